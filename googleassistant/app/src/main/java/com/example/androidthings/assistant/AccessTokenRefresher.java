@@ -0,0 +1,420 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an OAuth access token fresh ahead of time, with the refresh token grant.
+ *
+ * The last access token is cached in a JSON file, so a restart within its lifetime needs no
+ * token request at all. Refreshes are scheduled on the {@link Clock} {@link #REFRESH_MARGIN_MS}
+ * before the token expires, so calls never wait for one; a failed refresh is retried after
+ * {@link #RETRY_DELAY_MS}.
+ */
+class AccessTokenRefresher {
+    static final long REFRESH_MARGIN_MS = TimeUnit.MINUTES.toMillis(5);
+    static final long RETRY_DELAY_MS = TimeUnit.SECONDS.toMillis(30);
+    static final URI DEFAULT_TOKEN_SERVER_URI =
+            URI.create("https://accounts.google.com/o/oauth2/token");
+    private static final int TIMEOUT_MS = (int) TimeUnit.SECONDS.toMillis(20);
+    private static final String KEY_ACCESS_TOKEN = "access_token";
+    private static final String KEY_EXPIRES_IN = "expires_in";
+    private static final String KEY_EXPIRATION_TIME = "expiration_time_ms";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    interface Clock {
+        long currentTimeMillis();
+
+        void postDelayed(Runnable task, long delayMs);
+    }
+
+    interface Listener {
+        /**
+         * Called on the refreshing thread after a new token was obtained.
+         */
+        void onRefreshed(Token token, long nextRefreshDelayMs);
+
+        /**
+         * Called on the {@link Clock}'s thread when a scheduled refresh failed.
+         */
+        void onRefreshFailed(IOException e, long retryDelayMs);
+
+        /**
+         * Called when the cached token could not be read or written; it only costs a refresh.
+         */
+        void onCacheFailed(IOException e);
+    }
+
+    /**
+     * An access token and when it expires.
+     */
+    static class Token {
+        final String mValue;
+        final long mExpirationTimeMs;
+
+        Token(String value, long expirationTimeMs) {
+            mValue = value;
+            mExpirationTimeMs = expirationTimeMs;
+        }
+    }
+
+    private final String mClientId;
+    private final String mClientSecret;
+    private final String mRefreshToken;
+    private final URI mTokenServerUri;
+    private final File mCacheFile;
+    private final Clock mClock;
+    private final Listener mListener;
+    private final Object mRefreshLock = new Object();
+    private volatile Token mToken;
+    private volatile boolean mStopped;
+
+    /**
+     * Load the cached token, if any; nothing is requested until {@link #start()} or
+     * {@link #refresh()}.
+     *
+     * @param tokenServerUri where to refresh, or null for {@link #DEFAULT_TOKEN_SERVER_URI}.
+     */
+    AccessTokenRefresher(String clientId, String clientSecret, String refreshToken,
+            URI tokenServerUri, File cacheFile, Clock clock, Listener listener) {
+        mClientId = clientId;
+        mClientSecret = clientSecret;
+        mRefreshToken = refreshToken;
+        mTokenServerUri = tokenServerUri != null ? tokenServerUri : DEFAULT_TOKEN_SERVER_URI;
+        mCacheFile = cacheFile;
+        mClock = clock;
+        mListener = listener;
+        mToken = readCachedToken();
+    }
+
+    /**
+     * Start refreshing in the background; the first refresh happens right away unless a cached
+     * token is good for longer than {@link #REFRESH_MARGIN_MS}.
+     */
+    void start() {
+        scheduleRefresh(getDelayUntilRefreshMs());
+    }
+
+    void stop() {
+        mStopped = true;
+    }
+
+    /**
+     * @return the current token, which may have expired, or null if there is none yet.
+     */
+    Token getToken() {
+        return mToken;
+    }
+
+    /**
+     * Return true if calls can be authorized without a token request.
+     */
+    boolean isTokenValid() {
+        Token token = mToken;
+        return token != null && token.mExpirationTimeMs > mClock.currentTimeMillis();
+    }
+
+    /**
+     * Request a new token now, on the calling thread, and cache it.
+     */
+    Token refresh() throws IOException {
+        Token token;
+        synchronized (mRefreshLock) {
+            long requestTimeMs = mClock.currentTimeMillis();
+            Map<String, String> response = parseJson(post(mTokenServerUri,
+                    "grant_type=refresh_token"
+                            + "&client_id=" + encode(mClientId)
+                            + "&client_secret=" + encode(mClientSecret)
+                            + "&refresh_token=" + encode(mRefreshToken)));
+            String value = response.get(KEY_ACCESS_TOKEN);
+            String expiresIn = response.get(KEY_EXPIRES_IN);
+            if (value == null || expiresIn == null) {
+                throw new IOException("no access token in the token response");
+            }
+            try {
+                // Counted from the request, so the token never outlives its real expiry.
+                token = new Token(value, requestTimeMs
+                        + TimeUnit.SECONDS.toMillis(Long.parseLong(expiresIn)));
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid expires_in: " + expiresIn, e);
+            }
+            mToken = token;
+            try {
+                writeCachedToken(token);
+            } catch (IOException e) {
+                mListener.onCacheFailed(e);
+            }
+        }
+        // Outside the lock, so the listener may hand the token to code that holds its own.
+        mListener.onRefreshed(token, getDelayUntilRefreshMs());
+        return token;
+    }
+
+    private long getDelayUntilRefreshMs() {
+        Token token = mToken;
+        if (token == null) {
+            return 0;
+        }
+        long refreshAt = token.mExpirationTimeMs - REFRESH_MARGIN_MS;
+        return Math.max(0, refreshAt - mClock.currentTimeMillis());
+    }
+
+    private void scheduleRefresh(long delayMs) {
+        if (mStopped) {
+            return;
+        }
+        mClock.postDelayed(mRefreshTask, delayMs);
+    }
+
+    private final Runnable mRefreshTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mStopped) {
+                return;
+            }
+            long nextDelayMs;
+            try {
+                refresh();
+                nextDelayMs = getDelayUntilRefreshMs();
+            } catch (IOException e) {
+                nextDelayMs = RETRY_DELAY_MS;
+                mListener.onRefreshFailed(e, nextDelayMs);
+            }
+            scheduleRefresh(nextDelayMs);
+        }
+    };
+
+    private Token readCachedToken() {
+        if (!mCacheFile.exists()) {
+            return null;
+        }
+        try (InputStream is = new FileInputStream(mCacheFile)) {
+            Map<String, String> json = parseJson(new String(readFully(is), UTF_8));
+            String value = json.get(KEY_ACCESS_TOKEN);
+            String expirationTime = json.get(KEY_EXPIRATION_TIME);
+            if (value == null || expirationTime == null) {
+                throw new IOException("incomplete cached token");
+            }
+            long expirationTimeMs = Long.parseLong(expirationTime);
+            return expirationTimeMs > mClock.currentTimeMillis()
+                    ? new Token(value, expirationTimeMs) : null;
+        } catch (IOException e) {
+            mListener.onCacheFailed(e);
+            return null;
+        } catch (NumberFormatException e) {
+            mListener.onCacheFailed(new IOException("invalid cached token", e));
+            return null;
+        }
+    }
+
+    private void writeCachedToken(Token token) throws IOException {
+        File tempFile = new File(mCacheFile.getPath() + ".tmp");
+        try (FileOutputStream os = new FileOutputStream(tempFile)) {
+            os.write(("{\"" + KEY_ACCESS_TOKEN + "\":" + quote(token.mValue)
+                    + ",\"" + KEY_EXPIRATION_TIME + "\":" + token.mExpirationTimeMs + "}")
+                    .getBytes(UTF_8));
+            os.getFD().sync();
+        }
+        if (!tempFile.renameTo(mCacheFile)) {
+            throw new IOException("could not replace " + mCacheFile);
+        }
+    }
+
+    private static String post(URI uri, String form) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            byte[] body = form.getBytes(UTF_8);
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream os = connection.getOutputStream()) {
+                os.write(body);
+            }
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                // The body says why, e.g. {"error": "invalid_grant"} for a revoked grant.
+                InputStream error = connection.getErrorStream();
+                throw new IOException("token server returned " + code
+                        + (error != null ? ": " + new String(readFully(error), UTF_8) : ""));
+            }
+            try (InputStream is = connection.getInputStream()) {
+                return new String(readFully(is), UTF_8);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = is.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String encode(String value) throws IOException {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Parse a flat JSON object, such as a token response, into its members. Strings are
+     * unescaped; numbers, booleans and null are kept as written. Nested objects and arrays are
+     * not supported: token responses and the cache have none.
+     */
+    private static Map<String, String> parseJson(String json) throws IOException {
+        Map<String, String> members = new HashMap<>();
+        int[] position = {skipWhitespace(json, 0)};
+        expect(json, position, '{');
+        if (peek(json, position) == '}') {
+            return members;
+        }
+        while (true) {
+            String key = readString(json, position);
+            expect(json, position, ':');
+            String value;
+            if (peek(json, position) == '"') {
+                value = readString(json, position);
+            } else {
+                int start = position[0];
+                while (position[0] < json.length()
+                        && ",}".indexOf(json.charAt(position[0])) < 0
+                        && !Character.isWhitespace(json.charAt(position[0]))) {
+                    position[0]++;
+                }
+                value = json.substring(start, position[0]);
+                if (value.isEmpty() || value.charAt(0) == '{' || value.charAt(0) == '[') {
+                    throw new IOException("unsupported JSON value for " + key);
+                }
+            }
+            members.put(key, value);
+            if (peek(json, position) == '}') {
+                return members;
+            }
+            expect(json, position, ',');
+        }
+    }
+
+    private static String readString(String json, int[] position) throws IOException {
+        expect(json, position, '"');
+        StringBuilder value = new StringBuilder();
+        int i = position[0];
+        while (true) {
+            if (i >= json.length()) {
+                throw new IOException("unterminated JSON string");
+            }
+            char c = json.charAt(i++);
+            if (c == '"') {
+                break;
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (i >= json.length()) {
+                throw new IOException("unterminated JSON string");
+            }
+            char escaped = json.charAt(i++);
+            switch (escaped) {
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 > json.length()) {
+                        throw new IOException("invalid JSON escape");
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(json.substring(i, i + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("invalid JSON escape", e);
+                    }
+                    i += 4;
+                    break;
+                default:
+                    // \", \\ and \/.
+                    value.append(escaped);
+                    break;
+            }
+        }
+        position[0] = skipWhitespace(json, i);
+        return value.toString();
+    }
+
+    private static void expect(String json, int[] position, char c) throws IOException {
+        if (peek(json, position) != c) {
+            throw new IOException("expected '" + c + "' at " + position[0] + " of the JSON");
+        }
+        position[0] = skipWhitespace(json, position[0] + 1);
+    }
+
+    private static char peek(String json, int[] position) {
+        position[0] = skipWhitespace(json, position[0]);
+        return position[0] < json.length() ? json.charAt(position[0]) : 0;
+    }
+
+    private static int skipWhitespace(String json, int i) {
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.util.Log;
+
+import com.google.android.things.contrib.driver.button.Button;
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.PeripheralManagerService;
+
+import java.io.IOException;
+
+/**
+ * {@link Peripherals} on the GPIO pins of an Android Things board.
+ */
+class AndroidThingsPeripherals implements Peripherals {
+    private static final String TAG = AndroidThingsPeripherals.class.getSimpleName();
+
+    private final Button mButton;
+    private final Gpio mLed;
+    // Null if it could not be opened; the assistant works without it.
+    private final Gpio mRelay;
+    private volatile ButtonListener mButtonListener;
+
+    /**
+     * Open the button and LED, which the app cannot do without, and the relay if possible.
+     */
+    AndroidThingsPeripherals(String buttonPin, int debounceDelayMs, String ledPin,
+            String relayPin) throws IOException {
+        PeripheralManagerService pioService = new PeripheralManagerService();
+        mButton = new Button(buttonPin, Button.LogicState.PRESSED_WHEN_LOW);
+        try {
+            mButton.setDebounceDelay(debounceDelayMs);
+            mButton.setOnButtonEventListener(new Button.OnButtonEventListener() {
+                @Override
+                public void onButtonEvent(Button button, boolean pressed) {
+                    ButtonListener listener = mButtonListener;
+                    if (listener != null) {
+                        listener.onButton(pressed);
+                    }
+                }
+            });
+            mLed = pioService.openGpio(ledPin);
+            mLed.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
+        } catch (IOException e) {
+            mButton.close();
+            throw e;
+        }
+        Gpio relay = null;
+        try {
+            relay = pioService.openGpio(relayPin);
+            relay.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
+        } catch (IOException e) {
+            Log.e(TAG, "Error setting Relay GPIO!!!", e);
+        }
+        mRelay = relay;
+    }
+
+    @Override
+    public void setButtonListener(ButtonListener listener) {
+        mButtonListener = listener;
+    }
+
+    @Override
+    public void setLed(boolean on) {
+        try {
+            mLed.setValue(on);
+        } catch (IOException e) {
+            Log.w(TAG, "error setting LED:", e);
+        }
+    }
+
+    @Override
+    public void toggleLed() {
+        try {
+            mLed.setValue(!mLed.getValue());
+        } catch (IOException e) {
+            Log.w(TAG, "error toggling LED:", e);
+        }
+    }
+
+    @Override
+    public void setRelay(boolean active) {
+        if (mRelay == null) {
+            return;
+        }
+        try {
+            mRelay.setValue(active);
+        } catch (IOException e) {
+            Log.e(TAG, "error setting relay:", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            mLed.close();
+        } catch (IOException e) {
+            Log.w(TAG, "error closing LED", e);
+        }
+        try {
+            mButton.close();
+        } catch (IOException e) {
+            Log.w(TAG, "error closing button", e);
+        }
+        if (mRelay != null) {
+            try {
+                mRelay.close();
+            } catch (IOException e) {
+                Log.w(TAG, "error closing relay", e);
+            }
+        }
+    }
+}
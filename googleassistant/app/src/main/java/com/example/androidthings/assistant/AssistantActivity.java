@@ -25,80 +25,73 @@ import android.media.AudioRecord;
 import android.media.AudioTrack;
 import android.media.MediaRecorder;
 import android.os.Bundle;
-import android.os.CountDownTimer;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
 
-import com.google.android.things.contrib.driver.button.Button;
+import com.google.android.things.contrib.voicehat.I2sOutputWriter;
 import com.google.android.things.contrib.voicehat.VoiceHatDriver;
-import com.google.android.things.pio.Gpio;
 
 import com.google.android.things.pio.PeripheralManagerService;
-import com.google.assistant.embedded.v1alpha1.AudioInConfig;
 import com.google.assistant.embedded.v1alpha1.AudioOutConfig;
-import com.google.assistant.embedded.v1alpha1.ConverseConfig;
-import com.google.assistant.embedded.v1alpha1.ConverseRequest;
-import com.google.assistant.embedded.v1alpha1.ConverseResponse;
-import com.google.assistant.embedded.v1alpha1.ConverseState;
-import com.google.assistant.embedded.v1alpha1.EmbeddedAssistantGrpc;
-import com.google.firebase.database.ChildEventListener;
-import com.google.firebase.database.DataSnapshot;
-import com.google.firebase.database.DatabaseError;
-import com.google.firebase.database.DatabaseReference;
-import com.google.firebase.database.FirebaseDatabase;
-import com.google.firebase.database.ValueEventListener;
+import com.google.assistant.embedded.v1alpha1.ConverseResult;
 import com.google.protobuf.ByteString;
 
 import org.json.JSONException;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 
-import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
 import io.grpc.auth.MoreCallCredentials;
-import io.grpc.stub.StreamObserver;
 
-public class AssistantActivity extends Activity implements Button.OnButtonEventListener {
+public class AssistantActivity extends Activity {
     private static final String TAG = AssistantActivity.class.getSimpleName();
 
     // Firebase and Relay
     private static final String RELAY_PIN_NAME = "BCM17"; // GPIO port wired to the RELAY
-    private Gpio mRelayGpio;
-    private CountDownTimer relayTimer;
-    private FirebaseDatabase database;
-    private DatabaseReference activateRef;
-    private DatabaseReference releaseIntervalRef;
-
-    private long releaseInterval = 0;
+    // Relay stays off at least this long between two dispenses.
+    private static final long DISPENSE_MIN_GAP_MS = 500;
+    private static final int DISPENSE_MAX_PER_WINDOW = 10;
+    private static final long DISPENSE_RATE_WINDOW_MS = 60000;
+    private PulseTimingEngine mPulseEngine;
+    private DispenseScheduler mDispenseScheduler;
+    private CommandSource mCommandSource;
+    private CommandJournal mCommandJournal;
 
 
 
     // Peripheral and drivers constants.
     private static final boolean AUDIO_USE_I2S_VOICEHAT_IF_AVAILABLE = false;
+    // Ask for Ogg/Opus responses instead of raw PCM to save downlink bandwidth.
+    private static final boolean AUDIO_OUTPUT_USE_OPUS_IN_OGG = false;
+    // Upload FLAC instead of raw PCM to save uplink bandwidth.
+    private static final boolean AUDIO_INPUT_USE_FLAC = false;
+    // Cancel the speaker's echo from the microphone, so the wake word works during playback.
+    private static final boolean AUDIO_USE_ECHO_CANCELLATION = true;
     private static final int BUTTON_DEBOUNCE_DELAY_MS = 20;
 
     // Audio constants.
+    // Only read once, to carry the volume over into the state store.
     private static final String PREF_CURRENT_VOLUME = "current_volume";
-    private static final int SAMPLE_RATE = 16000;
+    private static final int SAMPLE_RATE = ConversePipeline.SAMPLE_RATE;
     private static final int ENCODING = AudioFormat.ENCODING_PCM_16BIT;
+    private static final int BYTES_PER_SAMPLE = ConversePipeline.BYTES_PER_SAMPLE;
     private static final int DEFAULT_VOLUME = 100;
 
-    private static AudioInConfig.Encoding ENCODING_INPUT = AudioInConfig.Encoding.LINEAR16;
-    private static AudioOutConfig.Encoding ENCODING_OUTPUT = AudioOutConfig.Encoding.LINEAR16;
+    private static AudioOutConfig.Encoding ENCODING_OUTPUT = AUDIO_OUTPUT_USE_OPUS_IN_OGG ?
+            AudioOutConfig.Encoding.OPUS_IN_OGG : AudioOutConfig.Encoding.LINEAR16;
 
-    private static final AudioFormat AUDIO_FORMAT_STEREO =
-            new AudioFormat.Builder()
-                    .setChannelMask(AudioFormat.CHANNEL_IN_STEREO)
-                    .setEncoding(ENCODING)
-                    .setSampleRate(SAMPLE_RATE)
-                    .build();
     private static final AudioFormat AUDIO_FORMAT_OUT_MONO =
             new AudioFormat.Builder()
                     .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
@@ -111,154 +104,452 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
                     .setEncoding(ENCODING)
                     .setSampleRate(SAMPLE_RATE)
                     .build();
-    private static final int SAMPLE_BLOCK_SIZE = 1024;
+    private static final int SAMPLE_BLOCK_SIZE = ConversePipeline.SAMPLE_BLOCK_SIZE;
+    // What to do when the upload falls further behind than the queue holds.
+    private static final UploadQueue.Policy UPLOAD_BACKPRESSURE_POLICY =
+            UploadQueue.Policy.DROP_OLDEST;
+    // Number of recycled capture buffers; one is in flight at a time, the rest absorb jitter.
+    private static final int SAMPLE_BLOCK_POOL_SIZE = 4;
+    // Maximum number of response chunks waiting for the speaker before the oldest is dropped.
+    private static final int PLAYBACK_QUEUE_CAPACITY = 256;
 
     // Google Assistant API constants.
     private static final String ASSISTANT_ENDPOINT = "embeddedassistant.googleapis.com";
+    private static final String ACCESS_TOKEN_CACHE_FILE = "access_token.json";
+    // Kept in the app's files directory, e.g. adb shell run-as <package> cat files/<name>.
+    private static final String METRICS_FILE = "turn_metrics.txt";
+    private static final String COMMAND_JOURNAL_FILE = "dispense_journal.bin";
+    private static final String CONVERSATION_JOURNAL_DIR = "conversation";
+    // Conversation state, volume and the last known release interval, kept across restarts.
+    private static final String STATE_FILE = "state.bin";
+    private static final String STATE_CONVERSATION = "conversation_state";
+    private static final String STATE_VOLUME_PERCENT = "volume_percent";
+    private static final String STATE_RELEASE_INTERVAL_MS = "release_interval_ms";
+    private static final long STATE_CLOSE_TIMEOUT_MS = 1000;
+    private static final int CONVERSATION_SEGMENT_SIZE = 1024 * 1024;
+    private static final int CONVERSATION_MAX_SEGMENTS = 16;
+    // Requests shown on screen; older ones are only kept in the conversation journal.
+    private static final int MAX_VISIBLE_REQUESTS = 50;
+    // Phrases recorded under assets/keywords/<phrase>/*.wav that dispense without waiting for
+    // the Assistant. Without recordings the local recognizer stays off.
+    private static final String KEYWORD_TEMPLATE_DIR = "keywords";
+    private static final String[] LOCAL_DISPENSE_KEYWORDS = {"candy", "more"};
+    private static final String LOCAL_DISPENSE_KEY_PREFIX = "local-";
+    // Someone is standing at the dispenser; go ahead of queued remote commands.
+    private static final int LOCAL_DISPENSE_PRIORITY = 1;
+    // Recordings of the wake word, assets/wakeword/*.wav, that start a request like the button.
+    // Without recordings the detector stays off.
+    private static final String WAKE_WORD_TEMPLATE_DIR = "wakeword";
+    // Feedback sounds played locally while the Assistant is working, see EarconCache.Earcon.
+    private static final String EARCON_DIR = "earcons";
 
     // gRPC client and stream observers.
-    private EmbeddedAssistantGrpc.EmbeddedAssistantStub mAssistantService;
-    private StreamObserver<ConverseRequest> mAssistantRequestObserver;
-    private StreamObserver<ConverseResponse> mAssistantResponseObserver =
-            new StreamObserver<ConverseResponse>() {
+    private CredentialsManager mCredentialsManager;
+    private ChannelManager mChannelManager;
+    private ConversePipeline mPipeline;
+    private final ConversePipeline.Listener mPipelineListener = new ConversePipeline.Listener() {
         @Override
-        public void onNext(ConverseResponse value) {
-            switch (value.getConverseResponseCase()) {
-                case EVENT_TYPE:
-                    Log.d(TAG, "converse response event: " + value.getEventType());
-                    break;
-                case RESULT:
-                    final String spokenRequestText = value.getResult().getSpokenRequestText();
-                    mConversationState = value.getResult().getConversationState();
-                    if (value.getResult().getVolumePercentage() != 0) {
-                        mVolumePercentage = value.getResult().getVolumePercentage();
-                        Log.i(TAG, "assistant volume changed: " + mVolumePercentage);
-                        float newVolume = AudioTrack.getMaxVolume() * mVolumePercentage / 100.0f;
-                        mAudioTrack.setVolume(newVolume);
-                        // Update our preferences
-                        SharedPreferences.Editor editor = PreferenceManager.
-                                getDefaultSharedPreferences(AssistantActivity.this).edit();
-                        editor.putFloat(PREF_CURRENT_VOLUME, newVolume);
-                        editor.apply();
+        public void onTurnStarted(long turn) {
+            // Holding the pipeline's lock, which the capture thread waits for: only the turn
+            // bookkeeping is done here, the rest is posted to the assistant thread.
+            final long pressedNanos = mButtonPressedNanos != 0 ? mButtonPressedNanos
+                    : System.nanoTime();
+            final boolean interrupting;
+            ConversationJournal.Turn previous = null;
+            synchronized (mTurnLock) {
+                interrupting = mTurnActive;
+                // A follow-on can start before the previous turn's playback has drained.
+                if (mTurnMetrics.finishTurn()) {
+                    previous = newJournalTurn(mTurnRecord,
+                            (int) mPipeline.getRequestAudioBytes(),
+                            (int) mPipeline.getResponseAudioBytes());
+                }
+                mTurnSerial = turn;
+                mTurnRecord = new TurnRecord(turn);
+                mTurnMetrics.startTurn(pressedNanos);
+                mTurnActive = true;
+            }
+            if (mOpusDecoder != null) {
+                mOpusDecoder.startResponse();
+            }
+            if (mLocalRecognizer != null) {
+                mLocalRecognizer.startUtterance();
+            }
+            final ConversationJournal.Turn finished = previous;
+            mAssistantHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (interrupting) {
+                        bargeIn(pressedNanos);
                     }
-                    if (!spokenRequestText.isEmpty()) {
-                        Log.i(TAG, "assistant request text: " + spokenRequestText);
-                        mMainHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                mAssistantRequestsAdapter.add(spokenRequestText);
-                            }
-                        });
+                    // After the flush, which would drop an earcon already playing.
+                    playEarcon(EarconCache.Earcon.PRESS);
+                    if (finished != null) {
+                        appendConversationTurn(finished);
                     }
-                    break;
-                case AUDIO_OUT:
-                    final ByteBuffer audioData =
-                            ByteBuffer.wrap(value.getAudioOut().getAudioData().toByteArray());
-                    Log.d(TAG, "converse audio size: " + audioData.remaining());
-                    mAudioTrack.write(audioData, audioData.remaining(), AudioTrack.WRITE_BLOCKING);
-                    if (mLed != null) {
-                        try {
-                            mLed.setValue(!mLed.getValue());
-                        } catch (IOException e) {
-                            Log.w(TAG, "error toggling LED:", e);
-                        }
+                    Log.i(TAG, "starting assistant request, last call got through: "
+                            + mChannelManager.isWarm() + ", token valid: "
+                            + mCredentialsManager.isTokenValid());
+                }
+            });
+        }
+
+        @Override
+        public void onRequestAudio(ByteBuffer audioData) {
+            if (mLocalRecognizer != null) {
+                mLocalRecognizer.feed(audioData);
+            }
+        }
+
+        @Override
+        public void onRequestEnded(ConversePipeline.EndReason reason) {
+            Log.i(TAG, "ending assistant request: " + reason);
+            mAudioTrack.play();
+            if (reason != ConversePipeline.EndReason.CALL_FAILED) {
+                // A failed call plays the error earcon instead.
+                playEarcon(EarconCache.Earcon.RELEASE);
+            }
+            Log.d(TAG, "audio buffer pool allocations: " + mAudioBufferPool.getAllocationCount());
+            Log.d(TAG, "request audio bytes on wire: " + mPipeline.getRequestAudioBytes());
+        }
+
+        @Override
+        public void onResult(ConverseResult result) {
+            final String spokenRequestText = result.getSpokenRequestText();
+            TurnRecord record = mTurnRecord;
+            record.mRequestText = spokenRequestText;
+            record.mConversationStateBytes = result.getConversationState().size();
+            mStateStore.putBytes(STATE_CONVERSATION, result.getConversationState().toByteArray());
+            if (result.getVolumePercentage() != 0) {
+                mVolumePercentage = result.getVolumePercentage();
+                Log.i(TAG, "assistant volume changed: " + mVolumePercentage);
+                float newVolume = AudioTrack.getMaxVolume() * mVolumePercentage / 100.0f;
+                mAudioTrack.setVolume(newVolume);
+                mStateStore.putLong(STATE_VOLUME_PERCENT, mVolumePercentage);
+            }
+            if (!spokenRequestText.isEmpty()) {
+                Log.i(TAG, "assistant request text: " + spokenRequestText);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        addAssistantRequest(spokenRequestText);
                     }
-                    break;
-                case ERROR:
-                    Log.e(TAG, "converse response error: " + value.getError());
-                    break;
+                });
             }
         }
 
         @Override
-        public void onError(Throwable t) {
-            Log.e(TAG, "converse error:", t);
+        public void onAudioOut(ByteBuffer audioData) {
+            Log.d(TAG, "converse audio size: " + audioData.remaining());
+            if (mOpusDecoder != null) {
+                mOpusDecoder.decode(audioData);
+            } else {
+                mPlaybackEngine.enqueue(audioData);
+            }
+            if (mPeripherals != null) {
+                mPeripherals.toggleLed();
+            }
+        }
+
+        @Override
+        public void onResponseError(String message) {
+            Log.e(TAG, "converse response error: " + message);
+            mTurnRecord.mError = message;
+            playEarcon(EarconCache.Earcon.ERROR);
         }
 
         @Override
-        public void onCompleted() {
+        public void onResponseCompleted(boolean followOn) {
             Log.i(TAG, "assistant response finished");
-            if (mLed != null) {
-                try {
-                    mLed.setValue(false);
-                } catch (IOException e) {
-                    Log.e(TAG, "error turning off LED:", e);
-                }
+            if (followOn) {
+                // The Assistant expects an answer: reopen the mic once it stops talking.
+                mPlaybackEngine.runWhenDrained(mFollowOnRequest);
+            }
+            if (mOpusDecoder != null) {
+                mOpusDecoder.endOfStream();
+            } else {
+                mPlaybackEngine.endOfStream();
+            }
+            Log.d(TAG, "response audio bytes on wire: " + mPipeline.getResponseAudioBytes());
+            Log.d(TAG, "playback underruns: " + mPlaybackEngine.getUnderrunCount()
+                    + ", overruns: " + mPlaybackEngine.getOverrunCount()
+                    + ", jitter buffer target: " + mPlaybackEngine.getTargetBufferMs() + "ms");
+            if (mPeripherals != null) {
+                mPeripherals.setLed(false);
             }
         }
+
+        @Override
+        public void onCallFailed(long turn, Throwable t) {
+            Log.e(TAG, "converse error:", t);
+            TurnRecord record = mTurnRecord;
+            if (record.mSerial == turn) {
+                record.mError = t.toString();
+            }
+            playEarcon(EarconCache.Earcon.ERROR);
+            postFinishTurn(turn);
+        }
     };
 
     // Audio playback and recording objects.
     private AudioTrack mAudioTrack;
+    private AudioPlaybackEngine mPlaybackEngine;
+    private OpusResponseDecoder mOpusDecoder;
     private AudioRecord mAudioRecord;
+    private final AudioBufferPool mAudioBufferPool =
+            new AudioBufferPool(SAMPLE_BLOCK_POOL_SIZE, SAMPLE_BLOCK_SIZE);
+    private AudioCapture mAudioCapture;
+    private LocalCommandRecognizer mLocalRecognizer;
+    private volatile long mTurnSerial;
+    private long mLastLocalDispenseTurn = -1;
+    // Fed by the capture thread between turns, from the first request until playback drains.
+    private WakeWordDetector mWakeWordDetector;
+    private boolean mWakeWordListening;
+    // Cleans every captured chunk before anything else sees it; set before capture starts.
+    private EchoCanceller mEchoCanceller;
+    // Written holding mTurnLock, so a late finish of one turn cannot end the next one.
+    private volatile boolean mTurnActive;
+    // Time from the press interrupting an answer until the speaker was flushed.
+    private final LatencyHistogram mBargeInMicros = new LatencyHistogram();
+    // Press time of the barge-in whose flush the playback writer has not carried out yet, or 0.
+    private volatile long mBargeInPressedNanos;
+    private EarconCache mEarconCache;
     private int mVolumePercentage = DEFAULT_VOLUME;
 
+    private StateStore mStateStore;
+
+    // Latency of every turn, dumped to METRICS_FILE after each one.
+    private final TurnMetrics mTurnMetrics = new TurnMetrics();
+    // Every turn, appended to the conversation journal when it finishes.
+    private ConversationJournal mConversationJournal;
+
+    /**
+     * What the conversation journal keeps of one turn, filled in by the gRPC thread while the
+     * turn runs.
+     */
+    private static class TurnRecord {
+        final long mSerial;
+        volatile String mRequestText = "";
+        volatile String mError = "";
+        volatile int mConversationStateBytes;
+
+        TurnRecord(long serial) {
+            mSerial = serial;
+        }
+    }
+
+    // Guards the switch from one turn to the next: mTurnSerial, mTurnRecord, mTurnActive and
+    // finishing the turn metrics. Taken inside the pipeline's lock, never around it.
+    private final Object mTurnLock = new Object();
+    private volatile TurnRecord mTurnRecord = new TurnRecord(0);
+    private final AudioPlaybackEngine.Listener mPlaybackListener =
+            new AudioPlaybackEngine.Listener() {
+        @Override
+        public void onFirstAudioWritten() {
+            mTurnMetrics.mark(TurnMetrics.Stage.FIRST_AUDIO_PLAYED);
+        }
+
+        @Override
+        public void onResponseDrained() {
+            postFinishTurn(mTurnSerial);
+        }
+
+        @Override
+        public void onFlushed() {
+            long pressedNanos = mBargeInPressedNanos;
+            if (pressedNanos == 0) {
+                return;
+            }
+            mBargeInPressedNanos = 0;
+            long micros = (System.nanoTime() - pressedNanos) / 1000;
+            mBargeInMicros.record(micros);
+            Log.i(TAG, "barge-in, press to silence: " + micros + "us");
+        }
+    };
+
     // Hardware peripherals.
     private VoiceHatDriver mVoiceHat;
-    private Button mButton;
-    private Gpio mLed;
+    private Peripherals mPeripherals;
 
     // Assistant Thread and Runnables implementing the push-to-talk functionality.
-    private ByteString mConversationState = null;
     private HandlerThread mAssistantThread;
     private Handler mAssistantHandler;
+    private long mButtonPressedNanos;
     private Runnable mStartAssistantRequest = new Runnable() {
         @Override
         public void run() {
-            Log.i(TAG, "starting assistant request");
-            mAudioRecord.startRecording();
-            mAssistantRequestObserver = mAssistantService.converse(mAssistantResponseObserver);
-            ConverseConfig.Builder converseConfigBuilder =
-                    ConverseConfig.newBuilder()
-                            .setAudioInConfig(AudioInConfig.newBuilder()
-                                    .setEncoding(ENCODING_INPUT)
-                                    .setSampleRateHertz(SAMPLE_RATE)
-                                    .build())
-                            .setAudioOutConfig(AudioOutConfig.newBuilder()
-                                    .setEncoding(ENCODING_OUTPUT)
-                                    .setSampleRateHertz(SAMPLE_RATE)
-                                    .setVolumePercentage(mVolumePercentage)
-                                    .build());
-            if (mConversationState != null) {
-                converseConfigBuilder.setConverseState(
-                        ConverseState.newBuilder()
-                                .setConversationState(mConversationState)
-                                .build());
-            }
-            mAssistantRequestObserver.onNext(ConverseRequest.newBuilder()
-                    .setConfig(converseConfigBuilder.build())
-                    .build());
-            mAssistantHandler.post(mStreamAssistantRequest);
+            if (mPipeline == null) {
+                Log.w(TAG, "assistant service not available");
+                return;
+            }
+            if (!mPipeline.startTurn()) {
+                Log.w(TAG, "assistant request already in progress");
+                return;
+            }
+            if (mButtonPressedNanos != 0) {
+                Log.d(TAG, "button press to first audio sent: "
+                        + (System.nanoTime() - mButtonPressedNanos) / 1000 + "us");
+                mButtonPressedNanos = 0;
+            }
         }
     };
-    private Runnable mStreamAssistantRequest = new Runnable() {
+
+    /**
+     * Finish turn {@code turn}, unless a newer one has started. Assistant thread only.
+     */
+    private void finishTurn(long turn) {
+        if (turn != mTurnSerial) {
+            return;
+        }
+        mTurnMetrics.setCounter("audio_buffer_pool_allocations",
+                mAudioBufferPool.getAllocationCount());
+        mTurnMetrics.setCounter("playback_underruns", mPlaybackEngine.getUnderrunCount());
+        mTurnMetrics.setCounter("playback_overruns", mPlaybackEngine.getOverrunCount());
+        mTurnMetrics.setCounter("playback_target_ms", mPlaybackEngine.getTargetBufferMs());
+        if (mPipeline != null) {
+            mPipeline.updateCounters();
+        }
+        mTurnMetrics.setCounter("state_saves", mStateStore.getSaveCount());
+        mTurnMetrics.setCounter("state_changes", mStateStore.getChangeCount());
+        mTurnMetrics.setCounter("state_save_failures", mStateStore.getSaveFailureCount());
+        mTurnMetrics.setCounter("state_save_us", mStateStore.getLastSaveMicros());
+        mTurnMetrics.setCounter("barge_ins", mBargeInMicros.getCount());
+        mTurnMetrics.setCounter("barge_in_to_silence_us_p50",
+                mBargeInMicros.getValueAtPercentile(50));
+        mTurnMetrics.setCounter("barge_in_to_silence_us_max", mBargeInMicros.getMax());
+        mTurnMetrics.setCounter("earcons_played", mPlaybackEngine.getEarconCount());
+        LatencyHistogram earconLatency = mPlaybackEngine.getEarconLatencyMicros();
+        mTurnMetrics.setCounter("earcon_latency_us_p50",
+                earconLatency.getValueAtPercentile(50));
+        mTurnMetrics.setCounter("earcon_latency_us_max", earconLatency.getMax());
+        if (mLocalRecognizer != null) {
+            mTurnMetrics.setCounter("keyword_cpu_us_per_s",
+                    mLocalRecognizer.getCpuMicrosPerSecond());
+            mTurnMetrics.setCounter("keyword_dropped_blocks",
+                    mLocalRecognizer.getDroppedBlocks());
+        }
+        WakeWordDetector wakeWordDetector = mWakeWordDetector;
+        if (wakeWordDetector != null) {
+            mTurnMetrics.setCounter("wake_us_per_s", wakeWordDetector.getMicrosPerSecond());
+            mTurnMetrics.setCounter("wake_gate_open_percent",
+                    wakeWordDetector.getGateOpenPercent());
+            mTurnMetrics.setCounter("wake_frame_us",
+                    wakeWordDetector.getFrameCostNanos() / 1000);
+            mTurnMetrics.setCounter("wake_template_limit",
+                    wakeWordDetector.getTemplateLimit());
+            mTurnMetrics.setCounter("wake_detections", wakeWordDetector.getDetections());
+        }
+        EchoCanceller echoCanceller = mEchoCanceller;
+        if (echoCanceller != null) {
+            mTurnMetrics.setCounter("aec_erle_db", Math.round(echoCanceller.getErleDb()));
+            mTurnMetrics.setCounter("aec_delay_ms", echoCanceller.getDelayMs());
+            mTurnMetrics.setCounter("aec_us_per_s", echoCanceller.getMicrosPerSecond());
+            mTurnMetrics.setCounter("aec_frame_us", echoCanceller.getFrameCostNanos() / 1000);
+            mTurnMetrics.setCounter("aec_tap_limit", echoCanceller.getTapLimit());
+            mTurnMetrics.setCounter("aec_double_talk_percent",
+                    echoCanceller.getDoubleTalkPercent());
+        }
+        I2sOutputWriter i2sWriter = mVoiceHat != null ? mVoiceHat.getOutputWriter() : null;
+        if (i2sWriter != null) {
+            mTurnMetrics.setCounter("i2s_underruns", i2sWriter.getUnderrunCount());
+            mTurnMetrics.setCounter("i2s_overruns", i2sWriter.getOverrunCount());
+            mTurnMetrics.setCounter("i2s_write_us_avg",
+                    i2sWriter.getAverageWriteNanos() / 1000);
+            mTurnMetrics.setCounter("i2s_write_us_max", i2sWriter.getMaxWriteNanos() / 1000);
+            mTurnMetrics.setCounter("i2s_queue_us_max", i2sWriter.getMaxQueueNanos() / 1000);
+        }
+        // Read before taking mTurnLock, which is taken inside the pipeline's lock. A turn
+        // starting meanwhile is noticed below, before these are reset.
+        int requestAudioBytes = (int) mPipeline.getRequestAudioBytes();
+        int responseAudioBytes = (int) mPipeline.getResponseAudioBytes();
+        ConversationJournal.Turn finished = null;
+        synchronized (mTurnLock) {
+            if (turn != mTurnSerial) {
+                // The next turn started and has already finished this one.
+                return;
+            }
+            if (mTurnMetrics.finishTurn()) {
+                finished = newJournalTurn(mTurnRecord, requestAudioBytes, responseAudioBytes);
+            }
+            mTurnActive = false;
+        }
+        if (finished != null) {
+            appendConversationTurn(finished);
+        }
+        try {
+            mTurnMetrics.dumpToFile(new File(getFilesDir(), METRICS_FILE));
+        } catch (IOException e) {
+            Log.w(TAG, "error writing turn metrics:", e);
+        }
+    }
+
+    // Reads the state store, which loads it, off the main thread.
+    private Runnable mRestoreState = new Runnable() {
         @Override
         public void run() {
-            ByteBuffer audioData = ByteBuffer.allocateDirect(SAMPLE_BLOCK_SIZE);
-            int result =
-                    mAudioRecord.read(audioData, audioData.capacity(), AudioRecord.READ_BLOCKING);
-            if (result < 0) {
-                Log.e(TAG, "error reading from audio stream:" + result);
+            long volumePercentage = mStateStore.getLong(STATE_VOLUME_PERCENT, -1);
+            if (volumePercentage < 0) {
+                // Saved by earlier versions as an AudioTrack gain.
+                SharedPreferences preferences =
+                        PreferenceManager.getDefaultSharedPreferences(AssistantActivity.this);
+                float maxVolume = AudioTrack.getMaxVolume();
+                float volume = preferences.getFloat(PREF_CURRENT_VOLUME, maxVolume);
+                volumePercentage = Math.min(100, Math.round(volume * 100.0f / maxVolume));
+                mStateStore.putLong(STATE_VOLUME_PERCENT, volumePercentage);
+            }
+            mVolumePercentage = (int) volumePercentage;
+            Log.i(TAG, "setting volume to: " + mVolumePercentage + "%");
+            mAudioTrack.setVolume(AudioTrack.getMaxVolume() * mVolumePercentage / 100.0f);
+            if (mPipeline == null) {
                 return;
             }
-            Log.d(TAG, "streaming ConverseRequest: " + result);
-            mAssistantRequestObserver.onNext(ConverseRequest.newBuilder()
-                    .setAudioIn(ByteString.copyFrom(audioData))
-                    .build());
-            mAssistantHandler.post(mStreamAssistantRequest);
+            mPipeline.setVolumePercentage(mVolumePercentage);
+            byte[] conversationState = mStateStore.getBytes(STATE_CONVERSATION);
+            // A request may already have been answered since startup.
+            if (conversationState != null
+                    && mPipeline.restoreConversationState(ByteString.copyFrom(conversationState))) {
+                Log.i(TAG, "restored conversation state: " + conversationState.length + " bytes");
+            }
         }
     };
     private Runnable mStopAssistantRequest = new Runnable() {
         @Override
         public void run() {
-            Log.i(TAG, "ending assistant request");
-            mAssistantHandler.removeCallbacks(mStreamAssistantRequest);
-            if (mAssistantRequestObserver != null) {
-                mAssistantRequestObserver.onCompleted();
-                mAssistantRequestObserver = null;
+            if (mPipeline != null) {
+                mPipeline.stopRequest();
             }
-            mAudioRecord.stop();
-            mAudioTrack.play();
+        }
+    };
+    private final AudioCapture.Listener mCaptureListener = new AudioCapture.Listener() {
+        @Override
+        public void onAudioChunk(ByteBuffer audioData) {
+            if (mEchoCanceller != null) {
+                mEchoCanceller.process(audioData);
+            }
+            ConversePipeline pipeline = mPipeline;
+            if (pipeline != null && !pipeline.streamAudio(audioData)
+                    && mWakeWordDetector != null) {
+                listenForWakeWord(audioData);
+            }
+        }
+    };
+    private final ChannelManager.Listener mChannelListener = new ChannelManager.Listener() {
+        @Override
+        public void onRetry(int attempt, Status cause, long delayMs) {
+            Log.w(TAG, "converse failed early: " + cause + ", replaying in " + delayMs
+                    + "ms, attempt " + attempt);
+        }
+
+        @Override
+        public void onChannelRebuilt(Status cause) {
+            Log.w(TAG, "assistant channel rebuilt after: " + cause);
+        }
+    };
+    private Runnable mFollowOnRequest = new Runnable() {
+        @Override
+        public void run() {
+            Log.i(TAG, "assistant expects a follow-on, reopening microphone");
+            mAssistantHandler.post(mStartAssistantRequest);
         }
     };
     private Handler mMainHandler;
@@ -267,6 +558,118 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
     private ArrayList<String> mAssistantRequests = new ArrayList<>();
     private ArrayAdapter<String> mAssistantRequestsAdapter;
 
+    /**
+     * Show a request, dropping the oldest beyond MAX_VISIBLE_REQUESTS. Main thread only.
+     */
+    private void addAssistantRequest(String text) {
+        mAssistantRequestsAdapter.add(text);
+        while (mAssistantRequestsAdapter.getCount() > MAX_VISIBLE_REQUESTS) {
+            mAssistantRequestsAdapter.remove(mAssistantRequestsAdapter.getItem(0));
+        }
+    }
+
+    /**
+     * Take what the journal keeps of {@code record}, right after its turn metrics were finished.
+     * Must hold mTurnLock.
+     */
+    private ConversationJournal.Turn newJournalTurn(TurnRecord record, int requestAudioBytes,
+            int responseAudioBytes) {
+        ConversationJournal.Turn turn = new ConversationJournal.Turn();
+        turn.mTimestampMs = System.currentTimeMillis();
+        turn.mRequestText = record.mRequestText;
+        turn.mError = record.mError;
+        turn.mConversationStateBytes = record.mConversationStateBytes;
+        turn.mRequestAudioBytes = requestAudioBytes;
+        turn.mResponseAudioBytes = responseAudioBytes;
+        turn.mStageMicros = mTurnMetrics.getLastTurnMicros();
+        return turn;
+    }
+
+    /**
+     * Append a finished turn to the conversation journal, which may map a new segment.
+     * Assistant thread only.
+     */
+    private void appendConversationTurn(ConversationJournal.Turn turn) {
+        if (mConversationJournal == null) {
+            return;
+        }
+        try {
+            mConversationJournal.append(turn);
+        } catch (IOException e) {
+            Log.w(TAG, "error appending to conversation journal:", e);
+        }
+    }
+
+    private Runnable mOpenConversationJournal = new Runnable() {
+        @Override
+        public void run() {
+            TurnMetrics.Stage[] stages = TurnMetrics.Stage.values();
+            String[] stageNames = new String[stages.length];
+            for (int i = 0; i < stages.length; i++) {
+                stageNames[i] = stages[i].name().toLowerCase();
+            }
+            ConversationJournal journal = new ConversationJournal(
+                    new File(getFilesDir(), CONVERSATION_JOURNAL_DIR), stageNames,
+                    CONVERSATION_SEGMENT_SIZE, CONVERSATION_MAX_SEGMENTS);
+            final List<ConversationJournal.Turn> recent;
+            try {
+                journal.open();
+                recent = journal.readRecent(MAX_VISIBLE_REQUESTS);
+            } catch (IOException e) {
+                Log.e(TAG, "error opening conversation journal:", e);
+                return;
+            }
+            mConversationJournal = journal;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (ConversationJournal.Turn turn : recent) {
+                        if (!turn.mRequestText.isEmpty()) {
+                            addAssistantRequest(turn.mRequestText);
+                        }
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * Start a feedback sound on the speaker, mixed with any response playing. Any thread.
+     */
+    private void playEarcon(EarconCache.Earcon earcon) {
+        AudioPlaybackEngine playbackEngine = mPlaybackEngine;
+        short[] samples = mEarconCache != null ? mEarconCache.get(earcon) : null;
+        if (playbackEngine != null && samples != null) {
+            playbackEngine.playEarcon(samples);
+        }
+    }
+
+    /**
+     * Run finishTurn(turn) on the assistant thread.
+     */
+    private void postFinishTurn(final long turn) {
+        mAssistantHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                finishTurn(turn);
+            }
+        });
+    }
+
+    /**
+     * Cut off the previous turn's answer, whose call the pipeline has just cancelled: drop the
+     * audio queued for the speaker. The playback writer flushes the speaker and records the
+     * press-to-silence time. Assistant thread only.
+     */
+    private void bargeIn(long pressedNanos) {
+        mBargeInPressedNanos = pressedNanos;
+        mPlaybackEngine.flush();
+        I2sOutputWriter i2sWriter = mVoiceHat != null ? mVoiceHat.getOutputWriter() : null;
+        if (i2sWriter != null) {
+            i2sWriter.discardQueued();
+        }
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -280,9 +683,17 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
         assistantRequestsListView.setAdapter(mAssistantRequestsAdapter);
         mMainHandler = new Handler(getMainLooper());
 
+        mStateStore = new StateStore(new File(getFilesDir(), STATE_FILE),
+                new StateStore.Listener() {
+            @Override
+            public void onSaveFailed(IOException e) {
+                Log.w(TAG, "error saving state:", e);
+            }
+        });
         mAssistantThread = new HandlerThread("assistantThread");
         mAssistantThread.start();
         mAssistantHandler = new Handler(mAssistantThread.getLooper());
+        mAssistantHandler.post(mOpenConversationJournal);
 
         try {
             if (AUDIO_USE_I2S_VOICEHAT_IF_AVAILABLE) {
@@ -294,7 +705,7 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
                         mVoiceHat = new VoiceHatDriver(
                                 BoardDefaults.getI2SDeviceForVoiceHat(),
                                 BoardDefaults.getGPIOForVoiceHatTrigger(),
-                                AUDIO_FORMAT_STEREO
+                                AUDIO_FORMAT_IN_MONO
                         );
                         mVoiceHat.registerAudioInputDriver();
                         mVoiceHat.registerAudioOutputDriver();
@@ -303,12 +714,9 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
                     }
                 }
             }
-            mButton = new Button(BoardDefaults.getGPIOForButton(), Button.LogicState.PRESSED_WHEN_LOW);
-            mButton.setDebounceDelay(BUTTON_DEBOUNCE_DELAY_MS);
-            mButton.setOnButtonEventListener(this);
-            PeripheralManagerService pioService = new PeripheralManagerService();
-            mLed = pioService.openGpio(BoardDefaults.getGPIOForLED());
-            mLed.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
+            mPeripherals = new AndroidThingsPeripherals(BoardDefaults.getGPIOForButton(),
+                    BUTTON_DEBOUNCE_DELAY_MS, BoardDefaults.getGPIOForLED(), RELAY_PIN_NAME);
+            mPeripherals.setButtonListener(mButtonListener);
         } catch (IOException e) {
             Log.e(TAG, "error configuring peripherals:", e);
             return;
@@ -326,81 +734,100 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
                 .setBufferSizeInBytes(outputBufferSize)
                 .build();
         mAudioTrack.play();
-        int inputBufferSize = AudioRecord.getMinBufferSize(AUDIO_FORMAT_STEREO.getSampleRate(),
-                AUDIO_FORMAT_STEREO.getChannelMask(),
-                AUDIO_FORMAT_STEREO.getEncoding());
+        mPlaybackEngine = new AudioPlaybackEngine(new AudioTrackOutput(mAudioTrack), SAMPLE_RATE,
+                BYTES_PER_SAMPLE, PLAYBACK_QUEUE_CAPACITY);
+        mPlaybackEngine.setListener(mPlaybackListener);
+        if (AUDIO_USE_ECHO_CANCELLATION) {
+            mEchoCanceller = new EchoCanceller(SAMPLE_RATE, EchoCanceller.DEFAULT_FILTER_MS,
+                    EchoCanceller.DEFAULT_FRAME_BUDGET_NANOS);
+            mPlaybackEngine.setEchoCanceller(mEchoCanceller);
+        }
+        mPlaybackEngine.start();
+        mEarconCache = new EarconCache(SAMPLE_RATE);
+        Log.i(TAG, "loaded " + mEarconCache.load(getAssets(), EARCON_DIR) + " earcons");
+        if (AUDIO_OUTPUT_USE_OPUS_IN_OGG) {
+            mOpusDecoder = new OpusResponseDecoder(mPlaybackEngine, SAMPLE_RATE);
+        }
+        int inputBufferSize = AudioRecord.getMinBufferSize(AUDIO_FORMAT_IN_MONO.getSampleRate(),
+                AUDIO_FORMAT_IN_MONO.getChannelMask(),
+                AUDIO_FORMAT_IN_MONO.getEncoding());
         mAudioRecord = new AudioRecord.Builder()
                 .setAudioSource(MediaRecorder.AudioSource.MIC)
                 .setAudioFormat(AUDIO_FORMAT_IN_MONO)
                 .setBufferSizeInBytes(inputBufferSize)
                 .build();
-        // Set volume from preferences
-        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
-        float initVolume = preferences.getFloat(PREF_CURRENT_VOLUME, maxVolume);
-        Log.i(TAG, "setting volume to: " + initVolume);
-        mAudioTrack.setVolume(initVolume);
-        // Scale initial volume to be a percent.
-        mVolumePercentage = Math.round(initVolume * 100.0f / maxVolume);
-
-        ManagedChannel channel = ManagedChannelBuilder.forTarget(ASSISTANT_ENDPOINT).build();
+        startLocalRecognizer();
+        startWakeWordDetector();
+
         try {
-            mAssistantService = EmbeddedAssistantGrpc.newStub(channel)
-                    .withCallCredentials(MoreCallCredentials.from(
-                            Credentials.fromResource(this, R.raw.credentials)
-                    ));
+            mCredentialsManager = new CredentialsManager(this, R.raw.credentials,
+                    new File(getFilesDir(), ACCESS_TOKEN_CACHE_FILE), null);
+            mCredentialsManager.start();
+            mChannelManager = new ChannelManager(ASSISTANT_ENDPOINT,
+                    MoreCallCredentials.from(mCredentialsManager.getCredentials()),
+                    mChannelListener);
+            Log.i(TAG, "warming up assistant channel");
+            mChannelManager.warmUp();
+            mPipeline = new ConversePipeline(mChannelManager, mTurnMetrics, AUDIO_INPUT_USE_FLAC,
+                    ENCODING_OUTPUT, UPLOAD_BACKPRESSURE_POLICY, mPipelineListener);
         } catch (IOException|JSONException e) {
             Log.e(TAG, "error creating assistant service:", e);
         }
+        // After the pipeline is set, which keeps the pre-roll and restores into.
+        mAudioCapture = new AudioCapture(new AudioRecordInput(mAudioRecord), mAudioBufferPool,
+                mCaptureListener);
+        mAudioCapture.start();
+        mAssistantHandler.post(mRestoreState);
 
 
         // call init database and gpio relay
         initDatabaseAndRelay();
     }
 
-    @Override
-    public void onButtonEvent(Button button, boolean pressed) {
-        try {
-            if (mLed != null) {
-                mLed.setValue(pressed);
+    private final Peripherals.ButtonListener mButtonListener = new Peripherals.ButtonListener() {
+        @Override
+        public void onButton(boolean pressed) {
+            mPeripherals.setLed(pressed);
+            // Opening the stream is asynchronous, so do it right here instead of paying for a
+            // hop to the assistant thread before the first audio goes out.
+            if (pressed) {
+                mButtonPressedNanos = System.nanoTime();
+                mStartAssistantRequest.run();
+            } else {
+                mStopAssistantRequest.run();
             }
-        } catch (IOException e) {
-            Log.d(TAG, "error toggling LED:", e);
-        }
-        if (pressed) {
-            mAssistantHandler.post(mStartAssistantRequest);
-        } else {
-            mAssistantHandler.post(mStopAssistantRequest);
         }
-    }
+    };
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
         Log.i(TAG, "destroying assistant demo");
-        if (mAudioRecord != null) {
-            mAudioRecord.stop();
-            mAudioRecord = null;
+        if (mAudioCapture != null) {
+            mAudioCapture.stop();
+            mAudioCapture = null;
+        }
+        if (mChannelManager != null) {
+            mChannelManager.shutdown();
+            mChannelManager = null;
+        }
+        if (mCredentialsManager != null) {
+            mCredentialsManager.stop();
+            mCredentialsManager = null;
+        }
+        mAudioRecord = null;
+        if (mOpusDecoder != null) {
+            mOpusDecoder.release();
+            mOpusDecoder = null;
+        }
+        if (mPlaybackEngine != null) {
+            mPlaybackEngine.stop();
+            mPlaybackEngine = null;
         }
         if (mAudioTrack != null) {
             mAudioTrack.stop();
             mAudioTrack = null;
         }
-        if (mLed != null) {
-            try {
-                mLed.close();
-            } catch (IOException e) {
-                Log.w(TAG, "error closing LED", e);
-            }
-            mLed = null;
-        }
-        if (mButton != null) {
-            try {
-                mButton.close();
-            } catch (IOException e) {
-                Log.w(TAG, "error closing button", e);
-            }
-            mButton = null;
-        }
         if (mVoiceHat != null) {
             try {
                 mVoiceHat.unregisterAudioOutputDriver();
@@ -411,99 +838,304 @@ public class AssistantActivity extends Activity implements Button.OnButtonEventL
             }
             mVoiceHat = null;
         }
+        if (mLocalRecognizer != null) {
+            mLocalRecognizer.release();
+            mLocalRecognizer = null;
+        }
+        if (mPulseEngine != null) {
+            // Cuts a running pulse short so the relay is never left on.
+            mPulseEngine.stop();
+        }
+        if (mPeripherals != null) {
+            mPeripherals.close();
+            mPeripherals = null;
+        }
+        // Kept set: a dispense that finished before the engine stopped may still be waiting on
+        // the main thread, and must be journaled and acknowledged, reopening the journal if
+        // needed.
+        if (mCommandSource != null) {
+            mCommandSource.stop();
+        }
+        if (mCommandJournal != null) {
+            try {
+                mCommandJournal.close();
+            } catch (IOException e) {
+                Log.w(TAG, "error closing dispense journal", e);
+            }
+        }
+        try {
+            if (!mStateStore.close(STATE_CLOSE_TIMEOUT_MS)) {
+                Log.w(TAG, "state not saved before shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mAssistantHandler.removeCallbacks(mRestoreState);
+        mAssistantHandler.removeCallbacks(mStartAssistantRequest);
         mAssistantHandler.post(new Runnable() {
             @Override
             public void run() {
-                mAssistantHandler.removeCallbacks(mStreamAssistantRequest);
+                if (mConversationJournal != null) {
+                    mConversationJournal.close();
+                    mConversationJournal = null;
+                }
             }
         });
         mAssistantThread.quitSafely();
     }
 
 
-    private void initDatabaseAndRelay() {
-        //Tried to use FirebaseMessaging
-        //FirebaseMessaging.getInstance().subscribeToTopic("candy");
-
-        // Create GPIO connection.
-        PeripheralManagerService service = new PeripheralManagerService();
+    /**
+     * Load the phrase templates and start spotting them in request audio. The Assistant turn
+     * goes on as usual; a match only starts the dispense early.
+     */
+    private void startLocalRecognizer() {
+        mLocalRecognizer = new LocalCommandRecognizer(SAMPLE_RATE, SAMPLE_BLOCK_SIZE,
+                new KeywordSpotter.Listener() {
+            @Override
+            public void onKeyword(final String label, float score) {
+                mTurnMetrics.mark(TurnMetrics.Stage.LOCAL_KEYWORD);
+                Log.i(TAG, "local keyword: " + label + ", score: " + score);
+                if (!Arrays.asList(LOCAL_DISPENSE_KEYWORDS).contains(label)) {
+                    return;
+                }
+                final long turn = mTurnSerial;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        dispenseLocally(turn);
+                    }
+                });
+            }
+        });
+        int templates = 0;
         try {
-            mRelayGpio = service.openGpio(RELAY_PIN_NAME);
-            mRelayGpio.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
+            templates = mLocalRecognizer.loadTemplates(getAssets(), KEYWORD_TEMPLATE_DIR);
         } catch (IOException e) {
-            Log.e(TAG, "Error setting Relay GPIO!!!", e);
+            Log.e(TAG, "error loading keyword templates:", e);
+        }
+        if (templates == 0) {
+            Log.i(TAG, "no keyword templates, local recognizer disabled");
+            mLocalRecognizer.release();
+            mLocalRecognizer = null;
+            return;
         }
+        Log.i(TAG, "loaded " + templates + " keyword templates");
+    }
 
+    /**
+     * Load the wake word templates so the capture thread can start requests hands-free.
+     */
+    private void startWakeWordDetector() {
+        WakeWordDetector detector = new WakeWordDetector(SAMPLE_RATE,
+                WakeWordDetector.DEFAULT_THRESHOLD, WakeWordDetector.DEFAULT_FRAME_BUDGET_NANOS);
+        try {
+            String[] files = getAssets().list(WAKE_WORD_TEMPLATE_DIR);
+            for (String file : files != null ? files : new String[0]) {
+                if (!file.endsWith(".wav")) {
+                    continue;
+                }
+                try (InputStream in = getAssets().open(WAKE_WORD_TEMPLATE_DIR + "/" + file)) {
+                    WavReader wav = WavReader.read(in);
+                    if (wav.mSampleRate != SAMPLE_RATE) {
+                        Log.w(TAG, "skipping " + file + ": " + wav.mSampleRate + " Hz");
+                        continue;
+                    }
+                    detector.addTemplate(
+                            KeywordSpotter.extractTemplate(wav.mSamples, wav.mSampleRate));
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "error loading wake word templates:", e);
+        }
+        if (detector.getTemplateCount() == 0) {
+            Log.i(TAG, "no wake word templates, wake word disabled");
+            return;
+        }
+        Log.i(TAG, "loaded " + detector.getTemplateCount() + " wake word templates");
+        mWakeWordDetector = detector;
+    }
 
-        database = FirebaseDatabase.getInstance();
-        releaseIntervalRef = database.getReference("releaseInterval");
-        activateRef = database.getReference("activate");
+    /**
+     * Look for the wake word in a captured chunk and start a request when it ends, handing
+     * over the audio spoken after it as pre-roll. Capture thread only.
+     */
+    private void listenForWakeWord(ByteBuffer audioData) {
+        // Playback of the previous answer has not drained; without echo cancellation it could
+        // wake the device. With it, the wake word interrupts the answer like the button does.
+        if (mTurnActive && mEchoCanceller == null) {
+            mWakeWordListening = false;
+            return;
+        }
+        if (!mWakeWordListening) {
+            mWakeWordDetector.reset();
+            mWakeWordListening = true;
+        }
+        if (!mWakeWordDetector.process(audioData)) {
+            return;
+        }
+        mPipeline.keepPreRoll(mWakeWordDetector.getSamplesSinceWakeWord() * BYTES_PER_SAMPLE);
+        mButtonPressedNanos = System.nanoTime();
+        Log.i(TAG, "wake word, score: " + mWakeWordDetector.getLastScore());
+        mAssistantHandler.post(mStartAssistantRequest);
+    }
 
+    /**
+     * Dispense for a phrase recognized on the device, at most once per turn. Main thread only.
+     */
+    private void dispenseLocally(long turn) {
+        if (mDispenseScheduler == null || turn == mLastLocalDispenseTurn) {
+            return;
+        }
+        long durationMs = mCommandSource.getDefaultDurationMs();
+        if (durationMs > 0) {
+            mStateStore.putLong(STATE_RELEASE_INTERVAL_MS, durationMs);
+        } else {
+            // Not received since startup, e.g. offline; use the last one seen.
+            durationMs = mStateStore.getLong(STATE_RELEASE_INTERVAL_MS, 0);
+        }
+        if (durationMs <= 0) {
+            Log.w(TAG, "no release interval yet, ignoring local dispense");
+            return;
+        }
+        mLastLocalDispenseTurn = turn;
+        mDispenseScheduler.submit(LOCAL_DISPENSE_KEY_PREFIX + turn, durationMs,
+                LOCAL_DISPENSE_PRIORITY);
+    }
 
-        releaseIntervalRef.addValueEventListener(new ValueEventListener() {
-            @Override
-            public void onDataChange(DataSnapshot dataSnapshot) {
-                releaseInterval = dataSnapshot.getValue(long.class);
-                Log.i("RELEASE INTERVAL ===>", "" + releaseInterval);
-            }
+    private void initDatabaseAndRelay() {
+        //Tried to use FirebaseMessaging
+        //FirebaseMessaging.getInstance().subscribeToTopic("candy");
 
+        mPulseEngine = new PulseTimingEngine(new PulseTimingEngine.Output() {
             @Override
-            public void onCancelled(DatabaseError databaseError) {
-
+            public void setActive(boolean active) {
+                mPeripherals.setRelay(active);
             }
-        });
+        }, PulseTimingEngine.SYSTEM_CLOCK);
+        mPulseEngine.start();
 
-        activateRef.addChildEventListener(new ChildEventListener() {
+        mDispenseScheduler = new DispenseScheduler(new DispenseScheduler.Relay() {
             @Override
-            public void onChildAdded(DataSnapshot dataSnapshot, String s) {
-                String key = dataSnapshot.getKey();
-
-                //Log.i("onChildAdded", "" + s);
-                Log.i("KEY =======> ", key);
-
-                Long interval = dataSnapshot.child("interval").exists() ? (Long) dataSnapshot.child("interval").getValue() : releaseInterval;
-
-                if (relayTimer != null) relayTimer.cancel();
-                relayTimer = new CountDownTimer(interval, interval) {
+            public void pulse(long durationMs, final Runnable onFinished) {
+                playEarcon(EarconCache.Earcon.DISPENSE);
+                mPulseEngine.pulse(durationMs, new PulseTimingEngine.Callback() {
                     @Override
-                    public void onTick(long millisUntilFinished) {}
+                    public void onPulseFinished(long requestedNanos, long actualNanos) {
+                        mMainHandler.post(onFinished);
+                    }
 
                     @Override
-                    public void onFinish() {
-                        try {
-                            mRelayGpio.setValue(false);
-                            activateRef.child(key).removeValue();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
+                    public void onPulseInterrupted(long requestedNanos, long actualNanos) {
+                        // Shutting down. Not finished, so not journaled as dispensed or
+                        // acknowledged; the journal resumes it on the next start.
+                        Log.w(TAG, "dispense cut short after " + actualNanos / 1000000
+                                + "ms of " + requestedNanos / 1000000 + "ms");
                     }
-                };
-
-                try {
-                    mRelayGpio.setValue(true);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                relayTimer.start();
-
+                });
             }
-
+        }, new DispenseScheduler.Clock() {
             @Override
-            public void onChildChanged(DataSnapshot dataSnapshot, String s) { }
+            public long uptimeMillis() {
+                return SystemClock.uptimeMillis();
+            }
 
             @Override
-            public void onChildRemoved(DataSnapshot dataSnapshot) { }
+            public void postDelayed(Runnable task, long delayMs) {
+                mMainHandler.postDelayed(task, delayMs);
+            }
+        }, new DispenseScheduler.Listener() {
+            @Override
+            public void onDispensed(String key) {
+                // Local dispenses were never received from the source, so there is nothing to
+                // journal or acknowledge.
+                if (!key.startsWith(LOCAL_DISPENSE_KEY_PREFIX)) {
+                    try {
+                        mCommandJournal.recordDispensed(key);
+                    } catch (IOException e) {
+                        Log.e(TAG, "error journaling dispense of " + key + ":", e);
+                    }
+                    mCommandSource.acknowledge(key);
+                }
+                mTurnMetrics.setCounter("dispensed", mDispenseScheduler.getDispensedCount());
+                mTurnMetrics.setCounter("dispense_coalesced",
+                        mDispenseScheduler.getCoalescedCount());
+                mTurnMetrics.setCounter("dispense_queue_depth",
+                        mDispenseScheduler.getQueueDepth());
+                mTurnMetrics.setCounter("dispense_queue_depth_max",
+                        mDispenseScheduler.getMaxQueueDepth());
+                mTurnMetrics.setCounter("dispense_wait_ms_avg",
+                        mDispenseScheduler.getAverageWaitMs());
+                mTurnMetrics.setCounter("dispense_wait_ms_max",
+                        mDispenseScheduler.getMaxWaitMs());
+                mTurnMetrics.setCounter("relay_pulse_over_us_max",
+                        mPulseEngine.getOvershootNanos().getMax() / 1000);
+                mTurnMetrics.setCounter("relay_pulse_over_us_p90",
+                        mPulseEngine.getOvershootNanos().getValueAtPercentile(90) / 1000);
+                mTurnMetrics.setCounter("relay_pulse_under_us_max",
+                        mPulseEngine.getUndershootNanos().getMax() / 1000);
+                mTurnMetrics.setCounter("relay_write_us_max",
+                        mPulseEngine.getWriteNanos().getMax() / 1000);
+                Log.i(TAG, "dispensed " + key + ", queue depth: "
+                        + mDispenseScheduler.getQueueDepth() + ", per minute: "
+                        + mDispenseScheduler.getThroughputPerMinute());
+            }
+        }, DISPENSE_MIN_GAP_MS, DISPENSE_MAX_PER_WINDOW, DISPENSE_RATE_WINDOW_MS);
 
+        // Finish whatever the last run left behind before taking new commands.
+        mCommandSource = new FirebaseCommandSource(mMainHandler);
+        mCommandJournal = new CommandJournal(new File(getFilesDir(), COMMAND_JOURNAL_FILE));
+        try {
+            mCommandJournal.open();
+        } catch (IOException e) {
+            Log.e(TAG, "error opening dispense journal:", e);
+        }
+        for (CommandSource.Command command : mCommandJournal.getPendingCommands()) {
+            if (command.mDurationMs <= 0) {
+                // Journaled without a length; left pending until the source delivers it again.
+                Log.w(TAG, "not resuming journaled dispense " + command.mKey + " of 0ms");
+                continue;
+            }
+            Log.i(TAG, "resuming journaled dispense " + command.mKey);
+            mDispenseScheduler.submit(command.mKey, command.mDurationMs, command.mPriority);
+        }
+        for (String key : mCommandJournal.getUnacknowledgedKeys()) {
+            mCommandSource.acknowledge(key);
+        }
+        mCommandSource.start(new CommandSource.Listener() {
             @Override
-            public void onChildMoved(DataSnapshot dataSnapshot, String s) { }
+            public void onCommand(CommandSource.Command command) {
+                if (command.mDurationMs <= 0) {
+                    // Would be journaled and acknowledged as dispensed without any candy.
+                    Log.w(TAG, "ignoring command " + command.mKey + " of 0ms");
+                    return;
+                }
+                if (mCommandJournal.isDispensed(command)) {
+                    // Redelivered before its removal reached the server.
+                    mCommandSource.acknowledge(command.mKey);
+                    return;
+                }
+                try {
+                    mCommandJournal.recordReceived(command);
+                } catch (IOException e) {
+                    Log.e(TAG, "error journaling command " + command.mKey + ":", e);
+                }
+                if (!mDispenseScheduler.submit(command.mKey, command.mDurationMs,
+                        command.mPriority)) {
+                    Log.i(TAG, "dispense " + command.mKey + " already pending");
+                }
+            }
 
             @Override
-            public void onCancelled(DatabaseError databaseError) { }
+            public void onAcknowledged(Collection<String> keys) {
+                try {
+                    for (String key : keys) {
+                        mCommandJournal.recordAcknowledged(key);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "error journaling acknowledgements:", e);
+                }
+            }
         });
-
-
     }
-
-
-
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size pool of direct audio buffers.
+ *
+ * All buffers are allocated up front so that steady-state capture does not allocate. If the pool
+ * runs dry a new buffer is allocated and counted, which makes pool misses visible instead of
+ * silently turning into GC pressure.
+ */
+class AudioBufferPool {
+    private final ArrayBlockingQueue<ByteBuffer> mFreeBuffers;
+    private final int mBufferSize;
+    private final AtomicLong mAllocations = new AtomicLong();
+
+    AudioBufferPool(int bufferCount, int bufferSize) {
+        mFreeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        mBufferSize = bufferSize;
+        for (int i = 0; i < bufferCount; i++) {
+            mFreeBuffers.offer(allocate());
+        }
+    }
+
+    /**
+     * Return a cleared buffer from the pool, allocating a new one only if the pool is empty.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = mFreeBuffers.poll();
+        if (buffer == null) {
+            buffer = allocate();
+        }
+        return buffer;
+    }
+
+    /**
+     * Hand a buffer back to the pool. Buffers beyond the pool capacity are dropped, and so are
+     * those that cannot be the pool's, e.g. read-only views of response audio.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != mBufferSize || !buffer.isDirect()
+                || buffer.isReadOnly()) {
+            return;
+        }
+        buffer.clear();
+        mFreeBuffers.offer(buffer);
+    }
+
+    int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Total number of buffers ever allocated by this pool, including the initial ones.
+     */
+    long getAllocationCount() {
+        return mAllocations.get();
+    }
+
+    private ByteBuffer allocate() {
+        mAllocations.incrementAndGet();
+        return ByteBuffer.allocateDirect(mBufferSize);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the microphone continuously on a dedicated thread.
+ *
+ * Every chunk is read into a pooled buffer and handed to the {@link Listener} on the capture
+ * thread; the buffer goes back to the pool as soon as the listener returns. The microphone is
+ * an {@link Input}, an AudioRecord on the device and a recording or generated audio on the host.
+ */
+class AudioCapture {
+    interface Input {
+        /**
+         * Start recording. Called on the capture thread before the first read, so the input can
+         * raise its priority.
+         */
+        void start();
+
+        /**
+         * Read up to {@code size} bytes into {@code audioData}, blocking until they are
+         * available.
+         *
+         * @return the number of bytes read, or a negative error code, which ends the capture.
+         */
+        int read(ByteBuffer audioData, int size);
+
+        /**
+         * Stop recording, after the capture thread has ended.
+         */
+        void stop();
+    }
+
+    interface Listener {
+        /**
+         * Called on the capture thread for every chunk read. {@code audioData} is only valid until
+         * this method returns.
+         */
+        void onAudioChunk(ByteBuffer audioData);
+    }
+
+    private final Input mInput;
+    private final AudioBufferPool mBufferPool;
+    private final Listener mListener;
+    private volatile boolean mRunning;
+    private Thread mCaptureThread;
+
+    AudioCapture(Input input, AudioBufferPool bufferPool, Listener listener) {
+        mInput = input;
+        mBufferPool = bufferPool;
+        mListener = listener;
+    }
+
+    void start() {
+        mRunning = true;
+        mCaptureThread = new Thread(mCaptureLoop, "captureThread");
+        mCaptureThread.start();
+    }
+
+    void stop() {
+        mRunning = false;
+        if (mCaptureThread != null) {
+            try {
+                mCaptureThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mCaptureThread = null;
+        }
+        mInput.stop();
+    }
+
+    private final Runnable mCaptureLoop = new Runnable() {
+        @Override
+        public void run() {
+            mInput.start();
+            while (mRunning) {
+                ByteBuffer audioData = mBufferPool.acquire();
+                try {
+                    int result = mInput.read(audioData, audioData.capacity());
+                    if (result < 0) {
+                        return;
+                    }
+                    audioData.limit(result);
+                    mListener.onAudioChunk(audioData);
+                } finally {
+                    mBufferPool.release(audioData);
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays Assistant responses from a dedicated writer thread.
+ *
+ * Chunks are queued as-is (usually read-only views of the response {@code ByteString}) so the
+ * gRPC callback thread never copies audio nor blocks on the speaker. The writer thread holds
+ * back playback until the jitter buffer reaches its target depth; every underrun grows the target
+ * and every clean response shrinks it again, within fixed bounds. When the queue is full the
+ * oldest chunk is dropped and counted as an overrun.
+ *
+ * {@link #flush()} abandons a response midway, for barge-in. The queue is emptied right away; the
+ * output itself is flushed by the writer thread, between two writes, so it never races a write
+ * in progress. Responses are written in blocks of {@link #WRITE_BLOCK_MS} so that wait is short.
+ *
+ * Earcons are played by the same thread: alone while no response is playing, otherwise mixed
+ * into the response as it is written, so neither has to wait for the other. Mixing assumes mono
+ * 16-bit little-endian PCM.
+ *
+ * The speaker is an {@link Output}, an AudioTrack on the device. Chunks taken from an
+ * {@link AudioBufferPool}, such as decoded Opus frames, go back to it once the engine is done
+ * with them; see {@link #setBufferPool(AudioBufferPool)}.
+ */
+class AudioPlaybackEngine {
+    interface Output {
+        /**
+         * Called on the writer thread before the first write, so the output can raise its
+         * priority.
+         */
+        void onWriterStarted();
+
+        /**
+         * Write up to {@code size} bytes from {@code audioData}, blocking until they are taken.
+         *
+         * @return the number of bytes written, or a negative error code.
+         */
+        int write(ByteBuffer audioData, int size);
+
+        /**
+         * Like {@link #write(ByteBuffer, int)}, for samples.
+         *
+         * @return the number of samples written, or a negative error code.
+         */
+        int write(short[] audioData, int offset, int size);
+
+        /**
+         * Number of frames played since the output was created.
+         */
+        int getPlaybackHeadPosition();
+
+        /**
+         * Discard what has been written but not played yet, and go on playing what comes next.
+         */
+        void flush();
+    }
+
+    interface Listener {
+        /**
+         * Called on the writer thread right after the first audio of a response has been written
+         * to the {@link Output}.
+         */
+        void onFirstAudioWritten();
+
+        /**
+         * Called on the writer thread once a response has been played out completely.
+         */
+        void onResponseDrained();
+
+        /**
+         * Called on the writer thread once it has carried out a {@link #flush()} and the output
+         * has dropped what it had not played.
+         */
+        void onFlushed();
+    }
+
+    private static final int MIN_TARGET_MS = 40;
+    private static final int MAX_TARGET_MS = 400;
+    private static final int TARGET_STEP_MS = 40;
+    private static final long POLL_TIMEOUT_MS = 20;
+    // Earcons are written and mixed in blocks of this length, so a response arriving meanwhile
+    // waits at most this long.
+    private static final int EARCON_BLOCK_MS = 10;
+    // Response audio is written in blocks of this length, so a flush waits at most this long
+    // for the write in progress.
+    private static final int WRITE_BLOCK_MS = 10;
+    private static final int NO_END_OF_STREAM = -1;
+
+    private final Output mOutput;
+    private final int mBytesPerMs;
+    private final ArrayBlockingQueue<ByteBuffer> mQueue;
+    private final AtomicInteger mQueuedBytes = new AtomicInteger();
+    private final AtomicLong mUnderruns = new AtomicLong();
+    private final AtomicLong mOverruns = new AtomicLong();
+    private final AtomicReference<Runnable> mDrainedCallback = new AtomicReference<>();
+    // Incremented by flush(); the writer drops whatever it holds from before and flushes the
+    // output.
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    // The generation whose response has been completely queued, or NO_END_OF_STREAM. An end of
+    // stream signalled before a flush is ignored after it.
+    private final AtomicInteger mEndOfStreamGeneration = new AtomicInteger(NO_END_OF_STREAM);
+    private final int mSampleRate;
+    private final AtomicReference<short[]> mPendingEarcon = new AtomicReference<>();
+    private volatile long mEarconRequestedNanos;
+    // Writer thread only.
+    private final short[] mMixBlock;
+    private short[] mEarcon;
+    private int mEarconPosition;
+    private int mFramesWritten;
+    private final AtomicLong mEarconsPlayed = new AtomicLong();
+    private final LatencyHistogram mEarconLatencyMicros = new LatencyHistogram();
+    private volatile Listener mListener;
+    private volatile EchoCanceller mEchoCanceller;
+    private volatile AudioBufferPool mBufferPool;
+    private volatile int mTargetMs = MIN_TARGET_MS * 2;
+    private volatile boolean mRunning;
+    private volatile Thread mWriterThread;
+
+    AudioPlaybackEngine(Output output, int sampleRate, int bytesPerFrame, int queueCapacity) {
+        mOutput = output;
+        mBytesPerMs = sampleRate * bytesPerFrame / 1000;
+        mQueue = new ArrayBlockingQueue<>(queueCapacity);
+        mSampleRate = sampleRate;
+        mMixBlock = new short[sampleRate * EARCON_BLOCK_MS / 1000];
+    }
+
+    void start() {
+        mRunning = true;
+        mWriterThread = new Thread(mWriter, "playbackThread");
+        mWriterThread.start();
+    }
+
+    void stop() {
+        mRunning = false;
+        if (mWriterThread != null) {
+            mWriterThread.interrupt();
+            try {
+                mWriterThread.join(POLL_TIMEOUT_MS * 10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mWriterThread = null;
+        }
+        mQueue.clear();
+        mQueuedBytes.set(0);
+    }
+
+    /**
+     * Queue a chunk of PCM for playback without blocking. The buffer is not copied and must not
+     * be modified afterwards.
+     */
+    void enqueue(ByteBuffer audioData) {
+        mEndOfStreamGeneration.set(NO_END_OF_STREAM);
+        int size = audioData.remaining();
+        while (!mQueue.offer(audioData)) {
+            ByteBuffer dropped = mQueue.poll();
+            if (dropped != null) {
+                mQueuedBytes.addAndGet(-dropped.remaining());
+                mOverruns.incrementAndGet();
+                recycle(dropped);
+            }
+        }
+        mQueuedBytes.addAndGet(size);
+    }
+
+    /**
+     * Signal that the current response is complete so buffered audio plays out without waiting
+     * for the jitter buffer to fill.
+     */
+    void endOfStream() {
+        mEndOfStreamGeneration.set(mGeneration.get());
+    }
+
+    /**
+     * Drop the queued response. The writer thread then stops writing it within
+     * {@link #WRITE_BLOCK_MS}, or {@link #POLL_TIMEOUT_MS} while it waits for audio, and flushes
+     * the audio the output has not played yet, telling the {@link Listener}. The writer then
+     * waits for the next response; the drained callback and listener are not called for the
+     * dropped one. An earcon requested afterwards still plays. Any thread.
+     */
+    void flush() {
+        mGeneration.incrementAndGet();
+        ByteBuffer dropped;
+        while ((dropped = mQueue.poll()) != null) {
+            mQueuedBytes.addAndGet(-dropped.remaining());
+            recycle(dropped);
+        }
+        mDrainedCallback.set(null);
+        Thread writerThread = mWriterThread;
+        if (writerThread != null) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * Run {@code callback} on the writer thread once the current response has been played out.
+     * Must be called before {@link #endOfStream()}.
+     */
+    void runWhenDrained(Runnable callback) {
+        mDrainedCallback.set(callback);
+    }
+
+    /**
+     * Start playing {@code samples} as soon as possible, replacing an earcon still playing. The
+     * array is not copied and must not be modified afterwards.
+     */
+    void playEarcon(short[] samples) {
+        mEarconRequestedNanos = System.nanoTime();
+        mPendingEarcon.set(samples);
+        // Wake the writer if it is idle rather than waiting for its next poll.
+        Thread writerThread = mWriterThread;
+        if (writerThread != null) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    long getEarconCount() {
+        return mEarconsPlayed.get();
+    }
+
+    /**
+     * Estimated time from {@link #playEarcon(short[])} until the earcon is heard: the wait for
+     * the writer thread plus the audio already queued in the output ahead of it.
+     */
+    LatencyHistogram getEarconLatencyMicros() {
+        return mEarconLatencyMicros;
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Pass everything written to the output to {@code echoCanceller} as its reference.
+     */
+    void setEchoCanceller(EchoCanceller echoCanceller) {
+        mEchoCanceller = echoCanceller;
+    }
+
+    /**
+     * Release every chunk to {@code pool} once it has been written, or dropped by an overrun or
+     * a flush, so the producer can fill it again. The pool ignores chunks it did not hand out.
+     */
+    void setBufferPool(AudioBufferPool pool) {
+        mBufferPool = pool;
+    }
+
+    long getUnderrunCount() {
+        return mUnderruns.get();
+    }
+
+    long getOverrunCount() {
+        return mOverruns.get();
+    }
+
+    int getTargetBufferMs() {
+        return mTargetMs;
+    }
+
+    private final Runnable mWriter = new Runnable() {
+        @Override
+        public void run() {
+            mOutput.onWriterStarted();
+            boolean buffering = true;
+            boolean inResponse = false;
+            boolean underrunThisResponse = false;
+            int generation = mGeneration.get();
+            while (mRunning) {
+                if (generation != mGeneration.get()) {
+                    generation = mGeneration.get();
+                    buffering = true;
+                    inResponse = false;
+                    underrunThisResponse = false;
+                    mEarcon = null;
+                    mOutput.flush();
+                    EchoCanceller echoCanceller = mEchoCanceller;
+                    if (echoCanceller != null) {
+                        echoCanceller.discardReference();
+                    }
+                    // The output forgot what it had not played.
+                    mFramesWritten = mOutput.getPlaybackHeadPosition();
+                    Listener listener = mListener;
+                    if (listener != null) {
+                        listener.onFlushed();
+                    }
+                    continue;
+                }
+                startPendingEarcon();
+                if (buffering) {
+                    if (mQueuedBytes.get() < mTargetMs * mBytesPerMs
+                            && mEndOfStreamGeneration.get() != generation) {
+                        if (mEarcon != null) {
+                            writeMixed(null);
+                        } else {
+                            LockSupport.parkNanos(
+                                    TimeUnit.MILLISECONDS.toNanos(POLL_TIMEOUT_MS / 2));
+                        }
+                        continue;
+                    }
+                    buffering = false;
+                }
+                ByteBuffer audioData;
+                try {
+                    audioData = mEarcon != null ? mQueue.poll()
+                            : mQueue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (audioData != null && generation != mGeneration.get()) {
+                    // Polled just before a flush.
+                    mQueuedBytes.addAndGet(-audioData.remaining());
+                    recycle(audioData);
+                    continue;
+                }
+                if (audioData == null) {
+                    if (mEndOfStreamGeneration.compareAndSet(generation, NO_END_OF_STREAM)) {
+                        // Response played out completely; relax the target if it went well.
+                        if (inResponse && !underrunThisResponse) {
+                            mTargetMs = Math.max(MIN_TARGET_MS, mTargetMs - TARGET_STEP_MS);
+                        }
+                        inResponse = false;
+                        underrunThisResponse = false;
+                        Listener listener = mListener;
+                        if (listener != null) {
+                            listener.onResponseDrained();
+                        }
+                        Runnable drainedCallback = mDrainedCallback.getAndSet(null);
+                        if (drainedCallback != null) {
+                            drainedCallback.run();
+                        }
+                    } else if (inResponse) {
+                        mUnderruns.incrementAndGet();
+                        underrunThisResponse = true;
+                        mTargetMs = Math.min(MAX_TARGET_MS, mTargetMs + TARGET_STEP_MS);
+                    }
+                    buffering = true;
+                    continue;
+                }
+                boolean firstWrite = !inResponse;
+                inResponse = true;
+                mQueuedBytes.addAndGet(-audioData.remaining());
+                while (audioData.hasRemaining() && mRunning && generation == mGeneration.get()) {
+                    int written;
+                    if (mEarcon != null && audioData.remaining() >= 2) {
+                        written = writeMixed(audioData);
+                    } else {
+                        int position = audioData.position();
+                        written = mOutput.write(audioData,
+                                Math.min(audioData.remaining(), WRITE_BLOCK_MS * mBytesPerMs));
+                        mFramesWritten += Math.max(0, written) / 2;
+                        EchoCanceller echoCanceller = mEchoCanceller;
+                        if (echoCanceller != null && written > 0) {
+                            echoCanceller.addReference(audioData, position, written);
+                        }
+                    }
+                    if (written <= 0) {
+                        break;
+                    }
+                    if (firstWrite) {
+                        firstWrite = false;
+                        Listener listener = mListener;
+                        if (listener != null) {
+                            listener.onFirstAudioWritten();
+                        }
+                    }
+                }
+                recycle(audioData);
+            }
+        }
+    };
+
+    private void recycle(ByteBuffer audioData) {
+        AudioBufferPool pool = mBufferPool;
+        if (pool != null) {
+            pool.release(audioData);
+        }
+    }
+
+    private void startPendingEarcon() {
+        short[] earcon = mPendingEarcon.getAndSet(null);
+        if (earcon == null || earcon.length == 0) {
+            return;
+        }
+        // Everything written but not yet played is ahead of the earcon. After an underrun the
+        // head has caught up and nothing is.
+        int framesAhead = Math.max(0, mFramesWritten - mOutput.getPlaybackHeadPosition());
+        mEarconLatencyMicros.record((System.nanoTime() - mEarconRequestedNanos) / 1000
+                + framesAhead * 1000000L / mSampleRate);
+        mEarconsPlayed.incrementAndGet();
+        mEarcon = earcon;
+        mEarconPosition = 0;
+    }
+
+    /**
+     * Write one block of the current earcon, mixed with the next samples of {@code audioData}
+     * if not null, and advance both.
+     *
+     * @return the number of bytes of {@code audioData} written, or the output's error code.
+     */
+    private int writeMixed(ByteBuffer audioData) {
+        short[] earcon = mEarcon;
+        int count = Math.min(mMixBlock.length, earcon.length - mEarconPosition);
+        if (audioData != null) {
+            count = Math.min(count, audioData.remaining() / 2);
+            int offset = audioData.position();
+            for (int i = 0; i < count; i++) {
+                int sample = (short) ((audioData.get(offset + 2 * i) & 0xff)
+                        | (audioData.get(offset + 2 * i + 1) << 8));
+                sample += earcon[mEarconPosition + i];
+                mMixBlock[i] = (short) Math.max(Short.MIN_VALUE,
+                        Math.min(Short.MAX_VALUE, sample));
+            }
+        } else {
+            System.arraycopy(earcon, mEarconPosition, mMixBlock, 0, count);
+        }
+        int written = 0;
+        while (written < count && mRunning) {
+            int result = mOutput.write(mMixBlock, written, count - written);
+            if (result <= 0) {
+                if (result < 0) {
+                    mEarcon = null;
+                    return result;
+                }
+                break;
+            }
+            written += result;
+        }
+        mFramesWritten += written;
+        EchoCanceller echoCanceller = mEchoCanceller;
+        if (echoCanceller != null && written > 0) {
+            echoCanceller.addReference(mMixBlock, 0, written);
+        }
+        mEarconPosition += written;
+        if (mEarconPosition >= earcon.length) {
+            mEarcon = null;
+        }
+        if (audioData == null) {
+            return written;
+        }
+        audioData.position(audioData.position() + 2 * written);
+        return 2 * written;
+    }
+}
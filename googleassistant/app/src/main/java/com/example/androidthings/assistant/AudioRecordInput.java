@@ -0,0 +1,56 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.media.AudioRecord;
+import android.os.Process;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Captures from an {@link AudioRecord} at urgent audio priority.
+ */
+class AudioRecordInput implements AudioCapture.Input {
+    private static final String TAG = AudioRecordInput.class.getSimpleName();
+
+    private final AudioRecord mAudioRecord;
+
+    AudioRecordInput(AudioRecord audioRecord) {
+        mAudioRecord = audioRecord;
+    }
+
+    @Override
+    public void start() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        mAudioRecord.startRecording();
+    }
+
+    @Override
+    public int read(ByteBuffer audioData, int size) {
+        int result = mAudioRecord.read(audioData, size, AudioRecord.READ_BLOCKING);
+        if (result < 0) {
+            Log.e(TAG, "error reading from audio stream:" + result);
+        }
+        return result;
+    }
+
+    @Override
+    public void stop() {
+        mAudioRecord.stop();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Plays to an {@link AudioTrack} at audio priority.
+ */
+class AudioTrackOutput implements AudioPlaybackEngine.Output {
+    private static final String TAG = AudioTrackOutput.class.getSimpleName();
+
+    private final AudioTrack mAudioTrack;
+
+    AudioTrackOutput(AudioTrack audioTrack) {
+        mAudioTrack = audioTrack;
+    }
+
+    @Override
+    public void onWriterStarted() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+    }
+
+    @Override
+    public int write(ByteBuffer audioData, int size) {
+        int result = mAudioTrack.write(audioData, size, AudioTrack.WRITE_BLOCKING);
+        if (result < 0) {
+            Log.e(TAG, "error writing to audio track: " + result);
+        }
+        return result;
+    }
+
+    @Override
+    public int write(short[] audioData, int offset, int size) {
+        int result = mAudioTrack.write(audioData, offset, size, AudioTrack.WRITE_BLOCKING);
+        if (result < 0) {
+            Log.e(TAG, "error writing samples to audio track: " + result);
+        }
+        return result;
+    }
+
+    @Override
+    public int getPlaybackHeadPosition() {
+        return mAudioTrack.getPlaybackHeadPosition();
+    }
+
+    @Override
+    public void flush() {
+        // flush() only discards while paused; play again right away for earcons.
+        mAudioTrack.pause();
+        mAudioTrack.flush();
+        mAudioTrack.play();
+    }
+}
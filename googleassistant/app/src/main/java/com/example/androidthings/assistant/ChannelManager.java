@@ -0,0 +1,316 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import com.google.assistant.embedded.v1alpha1.ConverseRequest;
+import com.google.assistant.embedded.v1alpha1.ConverseResponse;
+import com.google.assistant.embedded.v1alpha1.EmbeddedAssistantGrpc;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.CallCredentials;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.okhttp.OkHttpChannelBuilder;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Owns the channel to the Assistant, keeps its connection warm and rebuilds it when it keeps
+ * failing.
+ *
+ * The channel is connected as soon as it is created by starting a call and cancelling it right
+ * away, so DNS, TLS and HTTP/2 setup happen at startup instead of on the first button press.
+ * The cancelled call tells nothing about whether the connection worked, so {@link #isWarm()}
+ * only turns true once a real call got through. HTTP/2 keepalive pings and a long idle timeout
+ * keep the connection open between interactions, and notice a dead one within
+ * {@link #KEEPALIVE_TIMEOUT_SECONDS} while a call is open.
+ *
+ * Calls made with {@link #converse(StreamObserver)} are replayed on a fresh stream when they
+ * fail to connect before the Assistant answered, see {@link ReplayingConverseCall}. Retries
+ * wait for an exponential backoff with random jitter, so a crowd of devices that lost the same
+ * network does not come back in lockstep. After {@link #REBUILD_AFTER_FAILURES} failed calls in
+ * a row the channel is replaced by a new one: once a channel failed to connect, gRPC fails its
+ * calls right away until its own reconnect backoff, which starts at a second, has passed.
+ */
+class ChannelManager {
+    interface Listener {
+        /**
+         * Called when a call failed early and is replayed after {@code delayMs}. Any thread.
+         */
+        void onRetry(int attempt, Status cause, long delayMs);
+
+        /**
+         * Called when the channel was replaced after repeated failures. Any thread.
+         */
+        void onChannelRebuilt(Status cause);
+    }
+
+    private static final long KEEPALIVE_DELAY_SECONDS = 30;
+    private static final long KEEPALIVE_TIMEOUT_SECONDS = 10;
+    private static final long IDLE_TIMEOUT_DAYS = 30;
+    private static final long INITIAL_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 5000;
+    private static final double BACKOFF_MULTIPLIER = 1.6;
+    // Each delay is randomly up to this fraction shorter or longer.
+    private static final double BACKOFF_JITTER = 0.2;
+    static final int REBUILD_AFTER_FAILURES = 2;
+
+    private final ManagedChannelBuilder<?> mChannelBuilder;
+    private final CallCredentials mCallCredentials;
+    private final Listener mListener;
+    private final ScheduledExecutorService mScheduler;
+    private final boolean mInProcess;
+    private volatile boolean mWarm;
+
+    // Guarded by mLock.
+    private final Object mLock = new Object();
+    private final Random mRandom = new Random();
+    private ManagedChannel mChannel;
+    private EmbeddedAssistantGrpc.EmbeddedAssistantStub mAssistantService;
+    private int mConsecutiveFailures;
+    private long mRetries;
+    private long mRebuilds;
+    private long mReplayedBytes;
+
+    ChannelManager(String target, CallCredentials callCredentials, Listener listener) {
+        this(OkHttpChannelBuilder.forTarget(target)
+                .enableKeepAlive(true, KEEPALIVE_DELAY_SECONDS, TimeUnit.SECONDS,
+                        KEEPALIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS), callCredentials, listener);
+    }
+
+    /**
+     * Build channels from {@code channelBuilder}, e.g. an in-process builder for testing. It is
+     * built again whenever the channel is rebuilt.
+     */
+    ChannelManager(ManagedChannelBuilder<?> channelBuilder, CallCredentials callCredentials,
+            Listener listener) {
+        mChannelBuilder = channelBuilder.idleTimeout(IDLE_TIMEOUT_DAYS, TimeUnit.DAYS);
+        mCallCredentials = callCredentials;
+        mListener = listener;
+        mInProcess = channelBuilder instanceof InProcessChannelBuilder;
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "channelManagerThread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        synchronized (mLock) {
+            buildChannelLocked();
+        }
+    }
+
+    EmbeddedAssistantGrpc.EmbeddedAssistantStub getAssistantService() {
+        synchronized (mLock) {
+            return mAssistantService;
+        }
+    }
+
+    /**
+     * Return true if the channel is in-process. Its transport hands every request message to the
+     * server as it is, instead of serializing it before onNext returns, so the message must not
+     * wrap a buffer that is reused.
+     */
+    boolean isInProcess() {
+        return mInProcess;
+    }
+
+    /**
+     * Start a Converse call that is replayed on a fresh stream if it fails early. The returned
+     * observer takes the requests like the one returned by the stub.
+     */
+    ReplayingConverseCall converse(StreamObserver<ConverseResponse> responseObserver) {
+        return converse(responseObserver, false);
+    }
+
+    /**
+     * Like {@link #converse(StreamObserver)}, but a {@code compressible} call can later turn
+     * on gzip compression of its requests.
+     */
+    ReplayingConverseCall converse(StreamObserver<ConverseResponse> responseObserver,
+            boolean compressible) {
+        ReplayingConverseCall call =
+                new ReplayingConverseCall(this, responseObserver, compressible);
+        call.start();
+        return call;
+    }
+
+    /**
+     * Make the channel connect now. Starting a call is what triggers the connection; the call is
+     * cancelled before any request is sent, so the Assistant never sees it. Its outcome is always
+     * CANCELLED, so it leaves {@link #isWarm()} alone.
+     */
+    void warmUp() {
+        StreamObserver<ConverseRequest> requestObserver = getAssistantService().converse(
+                new StreamObserver<ConverseResponse>() {
+                    @Override
+                    public void onNext(ConverseResponse value) {
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                    }
+                });
+        requestObserver.onError(Status.CANCELLED.withDescription("channel warm-up").asException());
+    }
+
+    /**
+     * Record the outcome of a call, so readiness and the backoff reflect the latest connection
+     * state. Rebuilds the channel after {@link #REBUILD_AFTER_FAILURES} failures in a row.
+     */
+    void onCallResult(Status status) {
+        if (status.getCode() == Status.Code.CANCELLED) {
+            // Ended by us, e.g. by a new turn; says nothing about the connection.
+            return;
+        }
+        if (!isConnectionFailure(status)) {
+            synchronized (mLock) {
+                mConsecutiveFailures = 0;
+            }
+            mWarm = true;
+            return;
+        }
+        mWarm = false;
+        boolean rebuilt = false;
+        synchronized (mLock) {
+            mConsecutiveFailures++;
+            if (mConsecutiveFailures % REBUILD_AFTER_FAILURES == 0) {
+                ManagedChannel failed = mChannel;
+                buildChannelLocked();
+                failed.shutdownNow();
+                mRebuilds++;
+                rebuilt = true;
+            }
+        }
+        // Not warmed up: if the server is still unreachable, a failed connection would put the
+        // new channel into gRPC's own reconnect backoff, failing the retry without trying.
+        if (rebuilt && mListener != null) {
+            mListener.onChannelRebuilt(status);
+        }
+    }
+
+    /**
+     * Return true if the last call that was not cancelled got through to the Assistant; false
+     * before the first one.
+     */
+    boolean isWarm() {
+        return mWarm;
+    }
+
+    long getRetryCount() {
+        synchronized (mLock) {
+            return mRetries;
+        }
+    }
+
+    long getRebuildCount() {
+        synchronized (mLock) {
+            return mRebuilds;
+        }
+    }
+
+    /**
+     * Audio bytes sent again by replayed calls.
+     */
+    long getReplayedBytes() {
+        synchronized (mLock) {
+            return mReplayedBytes;
+        }
+    }
+
+    void shutdown() {
+        mScheduler.shutdownNow();
+        synchronized (mLock) {
+            mChannel.shutdownNow();
+        }
+    }
+
+    /**
+     * Return true for the statuses of a call that did not get through, and that may well get
+     * through on another stream.
+     */
+    static boolean isConnectionFailure(Status status) {
+        return status.getCode() == Status.Code.UNAVAILABLE
+                || status.getCode() == Status.Code.DEADLINE_EXCEEDED;
+    }
+
+    /**
+     * Schedule the retry of a failed call: after a jittered backoff that grows with the number
+     * of failures in a row.
+     *
+     * @return false if the manager has been shut down.
+     */
+    boolean scheduleRetry(int attempt, Status cause, Runnable retry) {
+        long delayMs;
+        synchronized (mLock) {
+            double backoffMs = INITIAL_BACKOFF_MS
+                    * Math.pow(BACKOFF_MULTIPLIER, Math.max(0, mConsecutiveFailures - 1));
+            backoffMs = Math.min(MAX_BACKOFF_MS, backoffMs);
+            delayMs = Math.round(backoffMs
+                    * (1 - BACKOFF_JITTER + 2 * BACKOFF_JITTER * mRandom.nextDouble()));
+            mRetries++;
+        }
+        try {
+            mScheduler.schedule(retry, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+        if (mListener != null) {
+            mListener.onRetry(attempt, cause, delayMs);
+        }
+        return true;
+    }
+
+    /**
+     * Run {@code task} on the manager's thread after {@code delayMs}.
+     *
+     * @return the scheduled task, or null if the manager has been shut down.
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        try {
+            return mScheduler.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    void addReplayedBytes(int bytes) {
+        synchronized (mLock) {
+            mReplayedBytes += bytes;
+        }
+    }
+
+    private void buildChannelLocked() {
+        mChannel = mChannelBuilder.build();
+        EmbeddedAssistantGrpc.EmbeddedAssistantStub stub = EmbeddedAssistantGrpc.newStub(mChannel);
+        mAssistantService = mCallCredentials != null
+                ? stub.withCallCredentials(mCallCredentials) : stub;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * Picks how much captured audio goes into each upload message.
+ *
+ * Small messages get audio to the Assistant sooner, so its endpointer reacts faster; large ones
+ * spend less on framing and writes when the link is slow. The target doubles whenever a send
+ * finds the transport not ready or takes long to hand the message over, and halves again after
+ * a run of fast sends with the transport ready. It always stays within the configured bounds.
+ */
+class ChunkSizer {
+    // A send that blocks this long means the transport is falling behind.
+    private static final long SLOW_SEND_NANOS = 2000000;
+    // Consecutive fast sends needed before the target shrinks.
+    private static final int FAST_SENDS_BEFORE_SHRINK = 8;
+
+    private final int mMinBytes;
+    private final int mMaxBytes;
+    private int mTargetBytes;
+    private int mFastSends;
+    private long mMessageCount;
+    private long mGrowCount;
+    private long mShrinkCount;
+    private final LatencyHistogram mMessageSizes = new LatencyHistogram();
+
+    ChunkSizer(int minBytes, int maxBytes, int initialBytes) {
+        if (minBytes <= 0 || maxBytes < minBytes) {
+            throw new IllegalArgumentException("invalid bounds: " + minBytes + ".." + maxBytes);
+        }
+        mMinBytes = minBytes;
+        mMaxBytes = maxBytes;
+        mTargetBytes = Math.max(minBytes, Math.min(maxBytes, initialBytes));
+    }
+
+    /**
+     * Number of bytes to accumulate before sending the next message.
+     */
+    int getTargetBytes() {
+        return mTargetBytes;
+    }
+
+    /**
+     * Account for a message of {@code bytes} whose send took {@code sendNanos}, and whether the
+     * transport reported itself ready just before it.
+     */
+    void onSent(int bytes, long sendNanos, boolean transportReady) {
+        mMessageCount++;
+        mMessageSizes.record(bytes);
+        if (!transportReady || sendNanos > SLOW_SEND_NANOS) {
+            mFastSends = 0;
+            if (mTargetBytes < mMaxBytes) {
+                mTargetBytes = Math.min(mMaxBytes, mTargetBytes * 2);
+                mGrowCount++;
+            }
+            return;
+        }
+        if (++mFastSends >= FAST_SENDS_BEFORE_SHRINK) {
+            mFastSends = 0;
+            if (mTargetBytes > mMinBytes) {
+                mTargetBytes = Math.max(mMinBytes, mTargetBytes / 2);
+                mShrinkCount++;
+            }
+        }
+    }
+
+    long getMessageCount() {
+        return mMessageCount;
+    }
+
+    long getGrowCount() {
+        return mGrowCount;
+    }
+
+    long getShrinkCount() {
+        return mShrinkCount;
+    }
+
+    /**
+     * Distribution of the sizes of all messages sent, in bytes.
+     */
+    LatencyHistogram getMessageSizes() {
+        return mMessageSizes;
+    }
+}
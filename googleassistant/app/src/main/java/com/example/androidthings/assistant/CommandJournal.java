@@ -0,0 +1,231 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only log of dispense commands, so none is lost or repeated across restarts.
+ *
+ * A command is recorded when it is received, when its dispense has finished and when the
+ * source has confirmed its acknowledgement; each record is synced to disk before returning.
+ * After a restart, commands not yet dispensed are dispensed again and dispensed ones whose
+ * acknowledgement was never confirmed are acknowledged again instead. The log is compacted to
+ * the live entries on open and whenever it grows too long.
+ */
+class CommandJournal {
+    private static final byte RECORD_RECEIVED = 'R';
+    private static final byte RECORD_DISPENSED = 'D';
+    private static final byte RECORD_ACKNOWLEDGED = 'A';
+    private static final int COMPACT_MIN_RECORDS = 256;
+
+    private static class Entry {
+        final CommandSource.Command mCommand;
+        boolean mDispensed;
+
+        Entry(CommandSource.Command command) {
+            mCommand = command;
+        }
+    }
+
+    private final File mFile;
+    // Live entries by key, in the order they were received.
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>();
+    private FileOutputStream mOutput;
+    private int mRecordCount;
+
+    CommandJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Replay the log from disk. Replay stops at a record torn by a crash.
+     */
+    void open() throws IOException {
+        mEntries.clear();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            while (true) {
+                byte type = in.readByte();
+                String key = in.readUTF();
+                if (type == RECORD_RECEIVED) {
+                    String stamp = in.readUTF();
+                    long durationMs = in.readLong();
+                    int priority = in.readInt();
+                    mEntries.put(key, new Entry(
+                            new CommandSource.Command(key, stamp, durationMs, priority)));
+                } else if (type == RECORD_DISPENSED) {
+                    Entry entry = mEntries.get(key);
+                    if (entry != null) {
+                        entry.mDispensed = true;
+                    }
+                } else if (type == RECORD_ACKNOWLEDGED) {
+                    mEntries.remove(key);
+                } else {
+                    // Garbage after a torn write; everything before it is intact.
+                    break;
+                }
+            }
+        } catch (FileNotFoundException | EOFException e) {
+            // Nothing journaled yet, or the end of the log.
+        }
+        compact();
+    }
+
+    void close() throws IOException {
+        if (mOutput != null) {
+            mOutput.close();
+            mOutput = null;
+        }
+    }
+
+    /**
+     * Commands received but not dispensed yet, in the order they were received.
+     */
+    List<CommandSource.Command> getPendingCommands() {
+        List<CommandSource.Command> commands = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            if (!entry.mDispensed) {
+                commands.add(entry.mCommand);
+            }
+        }
+        return commands;
+    }
+
+    /**
+     * Keys dispensed whose acknowledgement has not been confirmed.
+     */
+    List<String> getUnacknowledgedKeys() {
+        List<String> keys = new ArrayList<>();
+        for (Entry entry : mEntries.values()) {
+            if (entry.mDispensed) {
+                keys.add(entry.mCommand.mKey);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Whether {@code command} is a redelivery of one that has already been dispensed.
+     */
+    boolean isDispensed(CommandSource.Command command) {
+        Entry entry = mEntries.get(command.mKey);
+        return entry != null && entry.mDispensed
+                && entry.mCommand.mStamp.equals(command.mStamp);
+    }
+
+    /**
+     * Record a received command.
+     *
+     * @return false if its key is already pending or it was already dispensed, in which case
+     *     nothing is recorded.
+     */
+    boolean recordReceived(CommandSource.Command command) throws IOException {
+        Entry entry = mEntries.get(command.mKey);
+        if (entry != null && (!entry.mDispensed || isDispensed(command))) {
+            return false;
+        }
+        mEntries.remove(command.mKey);
+        mEntries.put(command.mKey, new Entry(command));
+        DataOutputStream out = startRecord(RECORD_RECEIVED, command.mKey);
+        out.writeUTF(command.mStamp);
+        out.writeLong(command.mDurationMs);
+        out.writeInt(command.mPriority);
+        endRecord(out);
+        return true;
+    }
+
+    void recordDispensed(String key) throws IOException {
+        Entry entry = mEntries.get(key);
+        if (entry == null || entry.mDispensed) {
+            return;
+        }
+        entry.mDispensed = true;
+        endRecord(startRecord(RECORD_DISPENSED, key));
+    }
+
+    void recordAcknowledged(String key) throws IOException {
+        Entry entry = mEntries.get(key);
+        // A key reused by a newer command stays until that one is dispensed.
+        if (entry == null || !entry.mDispensed) {
+            return;
+        }
+        mEntries.remove(key);
+        endRecord(startRecord(RECORD_ACKNOWLEDGED, key));
+        if (mRecordCount > COMPACT_MIN_RECORDS && mRecordCount > 4 * mEntries.size()) {
+            compact();
+        }
+    }
+
+    private DataOutputStream startRecord(byte type, String key) throws IOException {
+        if (mOutput == null) {
+            mOutput = new FileOutputStream(mFile, true);
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(mOutput));
+        out.writeByte(type);
+        out.writeUTF(key);
+        return out;
+    }
+
+    private void endRecord(DataOutputStream out) throws IOException {
+        out.flush();
+        mOutput.getFD().sync();
+        mRecordCount++;
+    }
+
+    /**
+     * Rewrite the log with only the live entries, replacing the old one atomically.
+     */
+    private void compact() throws IOException {
+        close();
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmpFile);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            for (Entry entry : mEntries.values()) {
+                CommandSource.Command command = entry.mCommand;
+                out.writeByte(RECORD_RECEIVED);
+                out.writeUTF(command.mKey);
+                out.writeUTF(command.mStamp);
+                out.writeLong(command.mDurationMs);
+                out.writeInt(command.mPriority);
+                if (entry.mDispensed) {
+                    out.writeByte(RECORD_DISPENSED);
+                    out.writeUTF(command.mKey);
+                }
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        if (!tmpFile.renameTo(mFile)) {
+            throw new IOException("could not replace " + mFile);
+        }
+        mRecordCount = mEntries.size();
+    }
+}
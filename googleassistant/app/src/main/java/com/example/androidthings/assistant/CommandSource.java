@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.util.Collection;
+
+/**
+ * Delivers dispense commands and takes back acknowledgements for the ones that are done.
+ *
+ * A source may deliver the same command again, e.g. after a reconnect, until its
+ * acknowledgement has been confirmed. Acknowledgements may be batched; {@link #flush()} sends
+ * whatever is pending. All calls and callbacks happen on one thread.
+ */
+interface CommandSource {
+    interface Listener {
+        void onCommand(Command command);
+
+        /**
+         * Called once the source has durably removed {@code keys}.
+         */
+        void onAcknowledged(Collection<String> keys);
+    }
+
+    final class Command {
+        final String mKey;
+        // Distinguishes a new command reusing a key from a redelivery of the same one.
+        final String mStamp;
+        final long mDurationMs;
+        final int mPriority;
+
+        Command(String key, String stamp, long durationMs, int priority) {
+            mKey = key;
+            mStamp = stamp;
+            mDurationMs = durationMs;
+            mPriority = priority;
+        }
+    }
+
+    void start(Listener listener);
+
+    /**
+     * Relay pulse length for commands that do not carry their own, e.g. ones recognized on
+     * the device.
+     */
+    long getDefaultDurationMs();
+
+    void acknowledge(String key);
+
+    void flush();
+
+    void stop();
+}
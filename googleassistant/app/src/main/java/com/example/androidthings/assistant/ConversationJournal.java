@@ -0,0 +1,345 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary journal of conversation turns in memory-mapped segment files.
+ *
+ * Appending copies one record into the mapped segment, so it makes no system call and the
+ * record survives an app crash. When a segment is full the next one is created, and the oldest
+ * is deleted beyond a fixed count, so disk use is bounded.
+ *
+ * Every segment starts with a header naming the latency stages its records carry. A record is
+ * its body length, a CRC32 of the body, and the body. The length is written last, so a record
+ * torn by a crash reads as the end of the segment.
+ */
+class ConversationJournal {
+    private static final int MAGIC = 0x544a4e4c; // "TJNL"
+    private static final int VERSION = 1;
+    private static final String SEGMENT_PREFIX = "turns-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int RECORD_HEADER_SIZE = 8;
+    // Longer request texts and errors are truncated to keep records small.
+    private static final int MAX_STRING_BYTES = 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * One conversation turn.
+     */
+    static class Turn {
+        long mTimestampMs;
+        String mRequestText = "";
+        String mError = "";
+        int mConversationStateBytes;
+        int mRequestAudioBytes;
+        int mResponseAudioBytes;
+        // Microseconds from the button press to each stage, -1 if it was not reached.
+        long[] mStageMicros;
+        String[] mStageNames;
+    }
+
+    interface Visitor {
+        void onTurn(Turn turn);
+    }
+
+    private final File mDirectory;
+    private final String[] mStageNames;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+    private final CRC32 mCrc = new CRC32();
+    private final ByteBuffer mBody;
+    private MappedByteBuffer mSegment;
+    private long mSegmentNumber = -1;
+
+    /**
+     * @param stageNames names of the latency stages each turn records, in order.
+     * @param segmentSize size of every segment file in bytes.
+     * @param maxSegments number of segments kept; the oldest is deleted beyond this.
+     */
+    ConversationJournal(File directory, String[] stageNames, int segmentSize, int maxSegments) {
+        mDirectory = directory;
+        mStageNames = stageNames.clone();
+        mSegmentSize = segmentSize;
+        mMaxSegments = maxSegments;
+        mBody = ByteBuffer.allocate(bodySize(stageNames.length)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Open the newest segment, or create the first one, and find where appending resumes.
+     */
+    synchronized void open() throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("could not create " + mDirectory);
+        }
+        long[] numbers = listSegments(mDirectory);
+        if (numbers.length == 0) {
+            startSegment(0);
+            return;
+        }
+        mSegmentNumber = numbers[numbers.length - 1];
+        mSegment = map(segmentFile(mDirectory, mSegmentNumber), mSegmentSize);
+        String[] stageNames = readHeader(mSegment);
+        if (!Arrays.equals(stageNames, mStageNames)) {
+            // Written by a build with other stages; records stay readable in the old segment.
+            startSegment(mSegmentNumber + 1);
+            return;
+        }
+        skipRecords(mSegment, stageNames, null);
+        // Clear what a torn record left behind, so it cannot hide later appends from readers.
+        for (int i = mSegment.position(); i < mSegment.limit(); i++) {
+            mSegment.put(i, (byte) 0);
+        }
+    }
+
+    synchronized void close() {
+        if (mSegment != null) {
+            mSegment.force();
+            mSegment = null;
+        }
+    }
+
+    synchronized void append(Turn turn) throws IOException {
+        if (mSegment == null) {
+            throw new IOException("journal is not open");
+        }
+        ByteBuffer body = mBody;
+        body.clear();
+        body.putLong(turn.mTimestampMs);
+        body.putInt(turn.mConversationStateBytes);
+        body.putInt(turn.mRequestAudioBytes);
+        body.putInt(turn.mResponseAudioBytes);
+        for (int i = 0; i < mStageNames.length; i++) {
+            long micros = turn.mStageMicros != null && i < turn.mStageMicros.length
+                    ? turn.mStageMicros[i] : -1;
+            body.putInt((int) Math.max(-1, Math.min(Integer.MAX_VALUE, micros)));
+        }
+        putString(body, turn.mRequestText);
+        putString(body, turn.mError);
+        body.flip();
+
+        int recordSize = RECORD_HEADER_SIZE + body.remaining();
+        if (mSegment.remaining() < recordSize) {
+            mSegment.force();
+            startSegment(mSegmentNumber + 1);
+        }
+        int position = mSegment.position();
+        mCrc.reset();
+        mCrc.update(body.array(), 0, body.limit());
+        mSegment.putInt(position + 4, (int) mCrc.getValue());
+        mSegment.position(position + RECORD_HEADER_SIZE);
+        mSegment.put(body);
+        mSegment.putInt(position, body.limit());
+    }
+
+    /**
+     * The newest {@code max} turns, oldest first.
+     */
+    synchronized List<Turn> readRecent(int max) throws IOException {
+        final Deque<Turn> turns = new ArrayDeque<>();
+        long[] numbers = listSegments(mDirectory);
+        for (int i = numbers.length - 1; i >= 0 && turns.size() < max; i--) {
+            final List<Turn> segmentTurns = new ArrayList<>();
+            readSegment(segmentFile(mDirectory, numbers[i]), new Visitor() {
+                @Override
+                public void onTurn(Turn turn) {
+                    segmentTurns.add(turn);
+                }
+            });
+            for (int j = segmentTurns.size() - 1; j >= 0 && turns.size() < max; j--) {
+                turns.addFirst(segmentTurns.get(j));
+            }
+        }
+        return new ArrayList<>(turns);
+    }
+
+    /**
+     * Visit every turn in {@code directory}, oldest first, without keeping them in memory.
+     */
+    static void read(File directory, Visitor visitor) throws IOException {
+        for (long number : listSegments(directory)) {
+            readSegment(segmentFile(directory, number), visitor);
+        }
+    }
+
+    private static void readSegment(File file, Visitor visitor) throws IOException {
+        MappedByteBuffer segment;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        segment.order(ByteOrder.LITTLE_ENDIAN);
+        String[] stageNames = readHeader(segment);
+        if (stageNames != null) {
+            skipRecords(segment, stageNames, visitor);
+        }
+    }
+
+    /**
+     * Walk the valid records from the segment's position, leaving it at the end of the last.
+     */
+    private static void skipRecords(ByteBuffer segment, String[] stageNames, Visitor visitor) {
+        CRC32 crc = new CRC32();
+        while (segment.remaining() >= RECORD_HEADER_SIZE) {
+            int position = segment.position();
+            int length = segment.getInt(position);
+            if (length <= 0 || length > segment.remaining() - RECORD_HEADER_SIZE) {
+                return;
+            }
+            ByteBuffer body = segment.duplicate();
+            body.order(ByteOrder.LITTLE_ENDIAN);
+            body.position(position + RECORD_HEADER_SIZE);
+            body.limit(position + RECORD_HEADER_SIZE + length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != segment.getInt(position + 4)) {
+                return;
+            }
+            if (visitor != null) {
+                visitor.onTurn(decode(body, stageNames));
+            }
+            segment.position(body.limit());
+        }
+    }
+
+    private static Turn decode(ByteBuffer body, String[] stageNames) {
+        Turn turn = new Turn();
+        turn.mTimestampMs = body.getLong();
+        turn.mConversationStateBytes = body.getInt();
+        turn.mRequestAudioBytes = body.getInt();
+        turn.mResponseAudioBytes = body.getInt();
+        turn.mStageMicros = new long[stageNames.length];
+        for (int i = 0; i < stageNames.length; i++) {
+            turn.mStageMicros[i] = body.getInt();
+        }
+        turn.mStageNames = stageNames;
+        turn.mRequestText = getString(body);
+        turn.mError = getString(body);
+        return turn;
+    }
+
+    private void startSegment(long number) throws IOException {
+        mSegmentNumber = number;
+        mSegment = map(segmentFile(mDirectory, number), mSegmentSize);
+        mSegment.putInt(MAGIC);
+        mSegment.putShort((short) VERSION);
+        mSegment.put((byte) mStageNames.length);
+        for (String name : mStageNames) {
+            byte[] bytes = name.getBytes(UTF_8);
+            mSegment.put((byte) bytes.length);
+            mSegment.put(bytes);
+        }
+        long[] numbers = listSegments(mDirectory);
+        for (int i = 0; i < numbers.length - mMaxSegments; i++) {
+            if (!segmentFile(mDirectory, numbers[i]).delete()) {
+                throw new IOException("could not delete segment " + numbers[i]);
+            }
+        }
+    }
+
+    /**
+     * Parse the segment header and leave the position after it, or return null if it is not a
+     * journal segment.
+     */
+    private static String[] readHeader(ByteBuffer segment) {
+        segment.position(0);
+        if (segment.remaining() < 7 || segment.getInt() != MAGIC
+                || segment.getShort() != VERSION) {
+            return null;
+        }
+        String[] names = new String[segment.get() & 0xff];
+        for (int i = 0; i < names.length; i++) {
+            byte[] bytes = new byte[segment.get() & 0xff];
+            segment.get(bytes);
+            names[i] = new String(bytes, UTF_8);
+        }
+        return names;
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            MappedByteBuffer buffer =
+                    raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+    }
+
+    private static long[] listSegments(File directory) {
+        String[] names = directory.list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] numbers = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    numbers[count++] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    // Not a segment.
+                }
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    private static File segmentFile(File directory, long number) {
+        return new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, number,
+                SEGMENT_SUFFIX));
+    }
+
+    private static int bodySize(int stageCount) {
+        return 8 + 3 * 4 + stageCount * 4 + 2 * (2 + MAX_STRING_BYTES);
+    }
+
+    private static void putString(ByteBuffer body, String value) {
+        byte[] bytes = value != null ? value.getBytes(UTF_8) : new byte[0];
+        int length = bytes.length;
+        if (length > MAX_STRING_BYTES) {
+            // Cut before the character that crosses the limit, not through it.
+            length = MAX_STRING_BYTES;
+            while (length > 0 && (bytes[length] & 0xc0) == 0x80) {
+                length--;
+            }
+        }
+        body.putShort((short) length);
+        body.put(bytes, 0, length);
+    }
+
+    private static String getString(ByteBuffer body) {
+        byte[] bytes = new byte[body.getShort() & 0xffff];
+        body.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
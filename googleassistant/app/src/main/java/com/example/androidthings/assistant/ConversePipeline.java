@@ -0,0 +1,613 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import com.google.assistant.embedded.v1alpha1.AudioInConfig;
+import com.google.assistant.embedded.v1alpha1.AudioOutConfig;
+import com.google.assistant.embedded.v1alpha1.ConverseConfig;
+import com.google.assistant.embedded.v1alpha1.ConverseRequest;
+import com.google.assistant.embedded.v1alpha1.ConverseResponse;
+import com.google.assistant.embedded.v1alpha1.ConverseResult;
+import com.google.assistant.embedded.v1alpha1.ConverseState;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.nio.ByteBuffer;
+
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Streams captured audio to the Assistant one turn at a time and passes on what it answers.
+ * Does not depend on the Android framework, so the same pipeline runs on the host.
+ *
+ * Between turns, captured audio is kept as pre-roll. {@link #startTurn()} cancels the previous
+ * turn's call, opens a new one through the {@link ChannelManager} and sends the config and the
+ * pre-roll. Audio captured from then on is batched into messages sized by a {@link ChunkSizer},
+ * FLAC-encoded if asked to, and held in an {@link UploadQueue} while the transport is not ready.
+ * The request ends on {@link #stopRequest()}, at the end of speech, on END_OF_UTTERANCE, or when
+ * the upload backs up under {@link UploadQueue.Policy#END_UTTERANCE}; it is abandoned when the
+ * call fails. Responses of the current turn go to the {@link Listener}; whatever still arrives
+ * for an interrupted turn is dropped.
+ *
+ * The stages of every turn are stamped on a {@link TurnMetrics}, whose turns the caller starts
+ * and finishes.
+ */
+class ConversePipeline {
+    static final int SAMPLE_RATE = 16000;
+    static final int BYTES_PER_SAMPLE = 2;
+    // Size of one microphone read (16ms); uploads are batched from these.
+    static final int SAMPLE_BLOCK_SIZE = 512;
+    // Bounds for the adaptive upload message size (16ms to 128ms of audio).
+    private static final int UPLOAD_MIN_BYTES = SAMPLE_BLOCK_SIZE;
+    private static final int UPLOAD_MAX_BYTES = SAMPLE_BLOCK_SIZE * 8;
+    private static final int UPLOAD_INITIAL_BYTES = SAMPLE_BLOCK_SIZE * 2;
+    // Upload messages held while the transport is not ready, about two seconds of audio once
+    // messages have grown to UPLOAD_MAX_BYTES.
+    private static final int UPLOAD_QUEUE_MESSAGES = 16;
+    // Silence after speech that ends the request without waiting for the button release.
+    private static final int VAD_TRAILING_SILENCE_MS = 600;
+    // Audio kept from before the button press and sent at the start of every request.
+    private static final int PRE_ROLL_MS = 320;
+    private static final int PRE_ROLL_BYTES = SAMPLE_RATE * BYTES_PER_SAMPLE * PRE_ROLL_MS / 1000;
+
+    /**
+     * Why a request was half-closed.
+     */
+    enum EndReason {
+        // stopRequest(), e.g. on the button release.
+        STOPPED,
+        END_OF_SPEECH,
+        END_OF_UTTERANCE,
+        // The upload fell further behind than the queue holds, under END_UTTERANCE.
+        UPLOAD_BACKED_UP,
+        // The call failed, including after its replays ran out; nothing more was sent.
+        CALL_FAILED
+    }
+
+    interface Listener {
+        /**
+         * Called when turn {@code turn} starts, after the previous turn's call was cancelled and
+         * before the new one is opened. Called holding the pipeline's lock.
+         */
+        void onTurnStarted(long turn);
+
+        /**
+         * Called with every chunk of audio sent on a request, before it is staged. Must leave
+         * its position untouched. Called holding the pipeline's lock.
+         */
+        void onRequestAudio(ByteBuffer audioData);
+
+        /**
+         * Called once the request has been half-closed, or abandoned because its call failed.
+         * Called holding the pipeline's lock.
+         */
+        void onRequestEnded(EndReason reason);
+
+        /**
+         * Called on a gRPC thread with the result of the current turn.
+         */
+        void onResult(ConverseResult result);
+
+        /**
+         * Called on a gRPC thread with response audio, a read-only buffer that stays valid.
+         */
+        void onAudioOut(ByteBuffer audioData);
+
+        /**
+         * Called on a gRPC thread when the Assistant reports an error in its response.
+         */
+        void onResponseError(String message);
+
+        /**
+         * Called on a gRPC thread once the response is complete. With {@code followOn} the
+         * Assistant expects the user to answer.
+         */
+        void onResponseCompleted(boolean followOn);
+
+        /**
+         * Called on a gRPC thread when the call of turn {@code turn} failed.
+         */
+        void onCallFailed(long turn, Throwable t);
+    }
+
+    private final ChannelManager mChannelManager;
+    private final TurnMetrics mTurnMetrics;
+    private final AudioInConfig.Encoding mInputEncoding;
+    private final AudioOutConfig.Encoding mOutputEncoding;
+    private final UploadQueue.Policy mBackpressurePolicy;
+    private final Listener mListener;
+    // The transport keeps the message itself, see ChannelManager#isInProcess().
+    private final boolean mCopyRequestAudio;
+    private volatile long mTurn;
+    private volatile long mResponseAudioBytes;
+    private volatile ConverseResult.MicrophoneMode mMicrophoneMode;
+
+    // Guards the request stream, which is fed by the capture thread while other threads start
+    // and stop it.
+    private final Object mLock = new Object();
+    private ReplayingConverseCall mRequestObserver;
+    // The latest turn's response, kept after the request is half-closed so a new turn can
+    // cancel it.
+    private ResponseObserver mResponseObserver;
+    private ByteString mConversationState;
+    private int mVolumePercentage = 100;
+    // Captured audio waiting to be sent; one block more than the largest message, since a block
+    // is only added while the staged audio is below the target.
+    private final ByteBuffer mUploadStaging =
+            ByteBuffer.allocateDirect(UPLOAD_MAX_BYTES + SAMPLE_BLOCK_SIZE);
+    private final ChunkSizer mChunkSizer =
+            new ChunkSizer(UPLOAD_MIN_BYTES, UPLOAD_MAX_BYTES, UPLOAD_INITIAL_BYTES);
+    private final FlacEncoder mFlacEncoder;
+    // Messages waiting for the transport.
+    private final UploadQueue mUploadQueue = new UploadQueue(UPLOAD_QUEUE_MESSAGES,
+            FlacEncoder.getMaxOutputSize(mUploadStaging.capacity() / BYTES_PER_SAMPLE));
+    private boolean mUploadBackedUp;
+    private boolean mUploadCompressed;
+    private long mUploadBackpressureEnds;
+    private long mRequestAudioBytes;
+    private final PreRollBuffer mPreRollBuffer = new PreRollBuffer(PRE_ROLL_BYTES);
+    private final ByteBuffer mPreRollScratch = ByteBuffer.allocateDirect(PRE_ROLL_BYTES);
+    private final VoiceActivityDetector mVoiceActivityDetector =
+            new VoiceActivityDetector(SAMPLE_RATE);
+
+    /**
+     * @param flacInput upload FLAC instead of raw PCM.
+     * @param outputEncoding the encoding to ask the Assistant to answer in.
+     * @param backpressurePolicy what to do when the upload falls further behind than the
+     *         queue holds.
+     */
+    ConversePipeline(ChannelManager channelManager, TurnMetrics turnMetrics, boolean flacInput,
+            AudioOutConfig.Encoding outputEncoding, UploadQueue.Policy backpressurePolicy,
+            Listener listener) {
+        mChannelManager = channelManager;
+        mTurnMetrics = turnMetrics;
+        mInputEncoding = flacInput ? AudioInConfig.Encoding.FLAC
+                : AudioInConfig.Encoding.LINEAR16;
+        mFlacEncoder = flacInput ?
+                new FlacEncoder(SAMPLE_RATE, mUploadStaging.capacity() / BYTES_PER_SAMPLE) : null;
+        mOutputEncoding = outputEncoding;
+        mBackpressurePolicy = backpressurePolicy;
+        mListener = listener;
+        mCopyRequestAudio = channelManager.isInProcess();
+    }
+
+    /**
+     * Start a turn: cancel the previous turn's call, if still running, open a new one and send
+     * the config and the pre-roll. Any thread.
+     *
+     * @return false if a request is already in progress.
+     */
+    boolean startTurn() {
+        synchronized (mLock) {
+            if (mRequestObserver != null) {
+                return false;
+            }
+            // Whatever the previous turn still has in flight is stale from here on.
+            mTurn++;
+            if (mResponseObserver != null) {
+                mResponseObserver.cancel();
+            }
+            mListener.onTurnStarted(mTurn);
+            mResponseAudioBytes = 0;
+            mRequestAudioBytes = 0;
+            mUploadStaging.clear();
+            mUploadQueue.clear();
+            mUploadBackedUp = false;
+            mUploadCompressed = false;
+            mVoiceActivityDetector.reset();
+            mMicrophoneMode = ConverseResult.MicrophoneMode.CLOSE_MICROPHONE;
+            if (mFlacEncoder != null) {
+                mFlacEncoder.reset();
+            }
+            mResponseObserver = new ResponseObserver(mTurn);
+            // Replayed on a fresh stream if the connection fails before the answer starts.
+            ReplayingConverseCall call = mChannelManager.converse(mResponseObserver,
+                    mBackpressurePolicy == UploadQueue.Policy.COMPRESS);
+            call.setOnReadyHandler(mUploadReady);
+            mRequestObserver = call;
+            mResponseObserver.mRequestObserver = call;
+            ConverseConfig.Builder converseConfigBuilder =
+                    ConverseConfig.newBuilder()
+                            .setAudioInConfig(AudioInConfig.newBuilder()
+                                    .setEncoding(mInputEncoding)
+                                    .setSampleRateHertz(SAMPLE_RATE)
+                                    .build())
+                            .setAudioOutConfig(AudioOutConfig.newBuilder()
+                                    .setEncoding(mOutputEncoding)
+                                    .setSampleRateHertz(SAMPLE_RATE)
+                                    .setVolumePercentage(mVolumePercentage)
+                                    .build());
+            if (mConversationState != null) {
+                converseConfigBuilder.setConverseState(
+                        ConverseState.newBuilder()
+                                .setConversationState(mConversationState)
+                                .build());
+            }
+            mRequestObserver.onNext(ConverseRequest.newBuilder()
+                    .setConfig(converseConfigBuilder.build())
+                    .build());
+            // Send what was captured right before the request started, one block at a time.
+            mPreRollScratch.clear();
+            mPreRollBuffer.drainTo(mPreRollScratch);
+            mPreRollScratch.flip();
+            int preRollEnd = mPreRollScratch.limit();
+            while (mPreRollScratch.hasRemaining() && mRequestObserver != null) {
+                int blockEnd = Math.min(preRollEnd,
+                        mPreRollScratch.position() + SAMPLE_BLOCK_SIZE);
+                mPreRollScratch.limit(blockEnd);
+                streamAudioLocked(mPreRollScratch);
+                mPreRollScratch.limit(preRollEnd);
+                mPreRollScratch.position(blockEnd);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Half-close the current request, if any. Any thread.
+     */
+    void stopRequest() {
+        synchronized (mLock) {
+            stopRequestLocked(EndReason.STOPPED);
+        }
+    }
+
+    /**
+     * Send one chunk of captured audio on the current request or, between requests, keep it as
+     * pre-roll. Capture thread.
+     *
+     * @return true if it was sent; a chunk kept as pre-roll is left untouched.
+     */
+    boolean streamAudio(ByteBuffer audioData) {
+        synchronized (mLock) {
+            if (mRequestObserver == null) {
+                mPreRollBuffer.write(audioData);
+                return false;
+            }
+            streamAudioLocked(audioData);
+            return true;
+        }
+    }
+
+    /**
+     * Keep only the last {@code bytes} of the pre-roll, e.g. what was said after the wake word.
+     */
+    void keepPreRoll(int bytes) {
+        synchronized (mLock) {
+            mPreRollBuffer.keepLast(bytes);
+        }
+    }
+
+    /**
+     * The turn started last, 0 before the first.
+     */
+    long getTurn() {
+        return mTurn;
+    }
+
+    /**
+     * Use the conversation state saved by an earlier run, unless the Assistant has already
+     * answered since.
+     *
+     * @return whether it was used.
+     */
+    boolean restoreConversationState(ByteString conversationState) {
+        synchronized (mLock) {
+            if (mConversationState != null) {
+                return false;
+            }
+            mConversationState = conversationState;
+            return true;
+        }
+    }
+
+    void setVolumePercentage(int volumePercentage) {
+        synchronized (mLock) {
+            mVolumePercentage = volumePercentage;
+        }
+    }
+
+    long getRequestAudioBytes() {
+        synchronized (mLock) {
+            return mRequestAudioBytes;
+        }
+    }
+
+    long getResponseAudioBytes() {
+        return mResponseAudioBytes;
+    }
+
+    /**
+     * Set the cumulative upload and connection counters on the turn metrics.
+     */
+    void updateCounters() {
+        synchronized (mLock) {
+            mTurnMetrics.setCounter("last_request_audio_bytes", mRequestAudioBytes);
+            mTurnMetrics.setCounter("upload_target_bytes", mChunkSizer.getTargetBytes());
+            mTurnMetrics.setCounter("upload_messages", mChunkSizer.getMessageCount());
+            mTurnMetrics.setCounter("upload_grow_count", mChunkSizer.getGrowCount());
+            mTurnMetrics.setCounter("upload_shrink_count", mChunkSizer.getShrinkCount());
+            LatencyHistogram messageSizes = mChunkSizer.getMessageSizes();
+            mTurnMetrics.setCounter("upload_message_bytes_p50",
+                    messageSizes.getValueAtPercentile(50));
+            mTurnMetrics.setCounter("upload_message_bytes_p90",
+                    messageSizes.getValueAtPercentile(90));
+            LatencyHistogram queueDepths = mUploadQueue.getDepths();
+            mTurnMetrics.setCounter("upload_queue_depth_p90",
+                    queueDepths.getValueAtPercentile(90));
+            mTurnMetrics.setCounter("upload_queue_depth_max", queueDepths.getMax());
+            LatencyHistogram stalls = mUploadQueue.getStallMicros();
+            mTurnMetrics.setCounter("upload_stalls", stalls.getCount());
+            mTurnMetrics.setCounter("upload_stall_us_p50", stalls.getValueAtPercentile(50));
+            mTurnMetrics.setCounter("upload_stall_us_max", stalls.getMax());
+            mTurnMetrics.setCounter("upload_dropped_messages",
+                    mUploadQueue.getDroppedMessages());
+            mTurnMetrics.setCounter("upload_dropped_bytes", mUploadQueue.getDroppedBytes());
+            mTurnMetrics.setCounter("upload_backpressure_ends", mUploadBackpressureEnds);
+        }
+        mTurnMetrics.setCounter("last_response_audio_bytes", mResponseAudioBytes);
+        mTurnMetrics.setCounter("converse_retries", mChannelManager.getRetryCount());
+        mTurnMetrics.setCounter("channel_rebuilds", mChannelManager.getRebuildCount());
+        mTurnMetrics.setCounter("replayed_audio_bytes", mChannelManager.getReplayedBytes());
+    }
+
+    /**
+     * Queue one block of captured audio on the current request, sending it once enough audio
+     * is staged. Must hold mLock.
+     */
+    private void streamAudioLocked(ByteBuffer audioData) {
+        mListener.onRequestAudio(audioData);
+        mVoiceActivityDetector.process(audioData);
+        mUploadStaging.put(audioData);
+        if (mUploadStaging.position() >= mChunkSizer.getTargetBytes()) {
+            sendStagedAudio(false);
+        }
+        if (mUploadBackedUp) {
+            mUploadBackpressureEnds++;
+            stopRequestLocked(EndReason.UPLOAD_BACKED_UP);
+        } else if (mVoiceActivityDetector.hasSpeechStarted()
+                && mVoiceActivityDetector.getTrailingSilenceMs() >= VAD_TRAILING_SILENCE_MS) {
+            stopRequestLocked(EndReason.END_OF_SPEECH);
+        }
+    }
+
+    /**
+     * Half-close the current request, if any. Must hold mLock.
+     */
+    private void stopRequestLocked(EndReason reason) {
+        if (mRequestObserver == null) {
+            // Already ended by the endpointer or the END_OF_UTTERANCE event.
+            return;
+        }
+        // Whatever is queued goes out now; the queue has bounded it.
+        sendStagedAudio(true);
+        mRequestObserver.onCompleted();
+        mTurnMetrics.mark(TurnMetrics.Stage.HALF_CLOSE);
+        mRequestObserver = null;
+        mListener.onRequestEnded(reason);
+    }
+
+    /**
+     * Send the staged audio as one message and adapt the message size to how the send went.
+     * While the transport is not ready the message is queued instead, and sent by mUploadReady;
+     * with {@code flush} the queue and the message are sent right away. Must hold mLock.
+     */
+    private void sendStagedAudio(boolean flush) {
+        if (mUploadStaging.position() == 0) {
+            if (flush) {
+                drainUploadQueue(true);
+            }
+            return;
+        }
+        mUploadStaging.flip();
+        ByteBuffer audioIn = mFlacEncoder != null ? mFlacEncoder.encode(mUploadStaging)
+                : mUploadStaging;
+        // The first message carries the FLAC stream header, so it must not be dropped.
+        boolean firstMessage = mRequestAudioBytes == 0;
+        mRequestAudioBytes += audioIn.remaining();
+        boolean transportReady = isUploadReady();
+        if (flush || (transportReady && mUploadQueue.isEmpty())) {
+            drainUploadQueue(true);
+            int bytes = audioIn.remaining();
+            long sendStartNanos = System.nanoTime();
+            sendAudioMessage(audioIn);
+            mChunkSizer.onSent(bytes, System.nanoTime() - sendStartNanos, transportReady);
+        } else {
+            // Larger messages fit more audio into the queue.
+            mChunkSizer.onSent(audioIn.remaining(), 0, false);
+            queueAudioMessage(audioIn, firstMessage);
+        }
+        mUploadStaging.clear();
+    }
+
+    /**
+     * Send one message of audio. Must hold mLock.
+     */
+    private void sendAudioMessage(ByteBuffer audio) {
+        mTurnMetrics.mark(TurnMetrics.Stage.FIRST_AUDIO_SENT);
+        // The OkHttp transport serializes the request before onNext returns, so the staging or
+        // FLAC buffer can be wrapped instead of copied and reused right after. The in-process
+        // transport passes the message itself on and would see the buffer overwritten.
+        ByteString audioIn = mCopyRequestAudio ? ByteString.copyFrom(audio.duplicate())
+                : UnsafeByteOperations.unsafeWrap(audio);
+        mRequestObserver.onNext(ConverseRequest.newBuilder()
+                .setAudioIn(audioIn)
+                .build());
+    }
+
+    /**
+     * Queue a message until the transport is ready, applying the backpressure policy if the
+     * queue is full. Must hold mLock.
+     */
+    private void queueAudioMessage(ByteBuffer audio, boolean keep) {
+        if (mUploadQueue.offer(audio, keep)) {
+            return;
+        }
+        switch (mBackpressurePolicy) {
+            case COMPRESS:
+                if (!mUploadCompressed && mRequestObserver != null) {
+                    mRequestObserver.setMessageCompression(true);
+                    mUploadCompressed = true;
+                }
+                // Only the messages sent from now on are smaller; make room as well.
+            case DROP_OLDEST:
+                if (mUploadQueue.dropOldest()) {
+                    mUploadQueue.offer(audio, keep);
+                } else {
+                    mUploadQueue.countDropped(audio.remaining());
+                }
+                break;
+            case END_UTTERANCE:
+                mUploadQueue.countDropped(audio.remaining());
+                mUploadBackedUp = true;
+                break;
+        }
+    }
+
+    /**
+     * Send queued messages while the transport is ready, or all of them with {@code all}.
+     * Must hold mLock.
+     */
+    private void drainUploadQueue(boolean all) {
+        ByteBuffer message;
+        while ((message = mUploadQueue.peek()) != null && (all || isUploadReady())) {
+            sendAudioMessage(message);
+            mUploadQueue.remove();
+        }
+    }
+
+    /**
+     * Return true if the request stream can take a message without buffering it. Must hold
+     * mLock.
+     */
+    private boolean isUploadReady() {
+        return mRequestObserver == null || mRequestObserver.isReady();
+    }
+
+    // Sends queued upload messages when the transport asks for more; runs on a gRPC thread.
+    private final Runnable mUploadReady = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                if (mRequestObserver != null) {
+                    drainUploadQueue(false);
+                }
+            }
+        }
+    };
+
+    /**
+     * Receives the response of one turn. Once a newer turn has started, whatever still arrives
+     * for this one is dropped.
+     */
+    private class ResponseObserver implements StreamObserver<ConverseResponse> {
+        private final long mTurn;
+        private ReplayingConverseCall mRequestObserver;
+
+        ResponseObserver(long turn) {
+            mTurn = turn;
+        }
+
+        /**
+         * Cancel the call, even if the request has been half-closed. Must hold mLock.
+         */
+        void cancel() {
+            if (mRequestObserver != null) {
+                // Cancels the call; the response side then fails with CANCELLED.
+                mRequestObserver.onError(Status.CANCELLED
+                        .withDescription("interrupted by a new turn").asRuntimeException());
+                mRequestObserver = null;
+            }
+        }
+
+        private boolean isStale() {
+            return mTurn != ConversePipeline.this.mTurn;
+        }
+
+        @Override
+        public void onNext(ConverseResponse value) {
+            if (isStale()) {
+                return;
+            }
+            switch (value.getConverseResponseCase()) {
+                case EVENT_TYPE:
+                    if (value.getEventType() == ConverseResponse.EventType.END_OF_UTTERANCE) {
+                        mTurnMetrics.mark(TurnMetrics.Stage.END_OF_UTTERANCE);
+                        synchronized (mLock) {
+                            // A new turn may have started meanwhile; its request goes on.
+                            if (!isStale()) {
+                                stopRequestLocked(EndReason.END_OF_UTTERANCE);
+                            }
+                        }
+                    }
+                    break;
+                case RESULT:
+                    mTurnMetrics.mark(TurnMetrics.Stage.RESULT);
+                    ConverseResult result = value.getResult();
+                    synchronized (mLock) {
+                        mConversationState = result.getConversationState();
+                        if (result.getVolumePercentage() != 0) {
+                            mVolumePercentage = result.getVolumePercentage();
+                        }
+                    }
+                    mMicrophoneMode = result.getMicrophoneMode();
+                    mListener.onResult(result);
+                    break;
+                case AUDIO_OUT:
+                    mTurnMetrics.mark(TurnMetrics.Stage.FIRST_AUDIO_OUT);
+                    ByteBuffer audioData =
+                            value.getAudioOut().getAudioData().asReadOnlyByteBuffer();
+                    mResponseAudioBytes += audioData.remaining();
+                    mListener.onAudioOut(audioData);
+                    break;
+                case ERROR:
+                    mListener.onResponseError(value.getError().getMessage());
+                    break;
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            if (isStale()) {
+                // Normally the cancellation by the turn that replaced this one.
+                return;
+            }
+            synchronized (mLock) {
+                // The request of a dead call can never be sent; end it so the next turn can
+                // start, instead of queueing and dropping audio until the endpointer fires.
+                if (!isStale() && ConversePipeline.this.mRequestObserver != null) {
+                    ConversePipeline.this.mRequestObserver = null;
+                    mUploadStaging.clear();
+                    mUploadQueue.clear();
+                    mListener.onRequestEnded(EndReason.CALL_FAILED);
+                }
+            }
+            mListener.onCallFailed(mTurn, t);
+        }
+
+        @Override
+        public void onCompleted() {
+            if (isStale()) {
+                return;
+            }
+            mTurnMetrics.mark(TurnMetrics.Stage.COMPLETED);
+            mListener.onResponseCompleted(
+                    mMicrophoneMode == ConverseResult.MicrophoneMode.DIALOG_FOLLOW_ON);
+        }
+    }
+}
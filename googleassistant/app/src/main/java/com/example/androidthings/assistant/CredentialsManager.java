@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.OAuth2Credentials;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authorizes Assistant calls with an access token that an {@link AccessTokenRefresher} keeps
+ * fresh ahead of time on a background thread, starting from the token cached on disk.
+ *
+ * Calls only request a token themselves when there is no valid one, e.g. right after a first
+ * start or after the refreshes kept failing.
+ */
+class CredentialsManager {
+    private static final String TAG = CredentialsManager.class.getSimpleName();
+
+    private final AccessTokenRefresher mRefresher;
+    private final OAuth2Credentials mCredentials;
+    private final ScheduledExecutorService mRefreshExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * @param resourceId raw resource holding the client id, client secret and refresh token.
+     * @param tokenServerUri where to refresh, or null for the default.
+     */
+    CredentialsManager(Context context, int resourceId, File cacheFile, URI tokenServerUri)
+            throws IOException, JSONException {
+        JSONObject json = readJson(context, resourceId);
+        mRefresher = new AccessTokenRefresher(
+                json.getString("client_id"),
+                json.getString("client_secret"),
+                json.getString("refresh_token"),
+                tokenServerUri, cacheFile, mClock, mRefresherListener);
+        AccessTokenRefresher.Token cachedToken = mRefresher.getToken();
+        if (cachedToken != null) {
+            Log.i(TAG, "using cached access token, expires "
+                    + new Date(cachedToken.mExpirationTimeMs));
+        }
+        mCredentials = new OAuth2Credentials(toAccessToken(cachedToken)) {
+            @Override
+            public AccessToken refreshAccessToken() throws IOException {
+                // Usually the token refreshed in the background, without a request.
+                return toAccessToken(mRefresher.isTokenValid() ? mRefresher.getToken()
+                        : mRefresher.refresh());
+            }
+        };
+    }
+
+    OAuth2Credentials getCredentials() {
+        return mCredentials;
+    }
+
+    /**
+     * Start refreshing in the background; the first refresh happens right away unless a cached
+     * token is still good.
+     */
+    void start() {
+        mRefresher.start();
+    }
+
+    void stop() {
+        mRefresher.stop();
+        mRefreshExecutor.shutdownNow();
+    }
+
+    /**
+     * Return true if calls can be authorized without a token request.
+     */
+    boolean isTokenValid() {
+        return mRefresher.isTokenValid();
+    }
+
+    private static AccessToken toAccessToken(AccessTokenRefresher.Token token) {
+        return token != null ? new AccessToken(token.mValue, new Date(token.mExpirationTimeMs))
+                : null;
+    }
+
+    private static JSONObject readJson(Context context, int resourceId)
+            throws IOException, JSONException {
+        try (InputStream is = context.getResources().openRawResource(resourceId)) {
+            byte[] bytes = new byte[is.available()];
+            int read = 0;
+            while (read < bytes.length) {
+                int result = is.read(bytes, read, bytes.length - read);
+                if (result < 0) {
+                    break;
+                }
+                read += result;
+            }
+            return new JSONObject(new String(bytes, 0, read, "UTF-8"));
+        }
+    }
+
+    private final AccessTokenRefresher.Clock mClock = new AccessTokenRefresher.Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            try {
+                mRefreshExecutor.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Stopped.
+            }
+        }
+    };
+
+    private final AccessTokenRefresher.Listener mRefresherListener =
+            new AccessTokenRefresher.Listener() {
+                @Override
+                public void onRefreshed(AccessTokenRefresher.Token token,
+                        long nextRefreshDelayMs) {
+                    Log.i(TAG, "access token refreshed, next refresh in "
+                            + TimeUnit.MILLISECONDS.toSeconds(nextRefreshDelayMs) + "s");
+                    try {
+                        // Hands the new token to the calls; refreshAccessToken() returns it.
+                        mCredentials.refresh();
+                    } catch (IOException e) {
+                        Log.w(TAG, "error updating the call credentials:", e);
+                    }
+                }
+
+                @Override
+                public void onRefreshFailed(IOException e, long retryDelayMs) {
+                    Log.w(TAG, "error refreshing access token, retrying in "
+                            + TimeUnit.MILLISECONDS.toSeconds(retryDelayMs) + "s:", e);
+                }
+
+                @Override
+                public void onCacheFailed(IOException e) {
+                    Log.w(TAG, "error reading or writing the cached access token:", e);
+                }
+            };
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.util.HashSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Runs candy dispense commands one at a time through the relay.
+ *
+ * Commands wait in a queue ordered by priority, then arrival. A new dispense starts only after
+ * the previous one has finished plus a minimum gap, and no more than a fixed number may start
+ * within any rate window. A command whose key is already queued or dispensing is coalesced
+ * into it. Every accepted key is acknowledged exactly once, after its dispense has finished.
+ *
+ * Not thread-safe: call it only from the thread that runs the {@link Clock}'s tasks.
+ */
+class DispenseScheduler {
+    interface Relay {
+        /**
+         * Switch the relay on for {@code durationMs}, then run {@code onFinished} on the
+         * {@link Clock}'s thread once it is off again.
+         */
+        void pulse(long durationMs, Runnable onFinished);
+    }
+
+    interface Clock {
+        long uptimeMillis();
+
+        void postDelayed(Runnable task, long delayMs);
+    }
+
+    interface Listener {
+        /**
+         * Called once for every accepted key, after its dispense has finished.
+         */
+        void onDispensed(String key);
+    }
+
+    private static class Command implements Comparable<Command> {
+        final String mKey;
+        final long mDurationMs;
+        final int mPriority;
+        final long mSequence;
+        final long mQueuedAtMs;
+
+        Command(String key, long durationMs, int priority, long sequence, long queuedAtMs) {
+            mKey = key;
+            mDurationMs = durationMs;
+            mPriority = priority;
+            mSequence = sequence;
+            mQueuedAtMs = queuedAtMs;
+        }
+
+        @Override
+        public int compareTo(Command other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private final Relay mRelay;
+    private final Clock mClock;
+    private final Listener mListener;
+    private final long mMinGapMs;
+    private final long mRateWindowMs;
+    // Start times of the most recent dispenses, oldest at mRecentStartIndex.
+    private final long[] mRecentStartsMs;
+    private int mRecentStartIndex;
+
+    private final PriorityQueue<Command> mQueue = new PriorityQueue<>();
+    private final Set<String> mKeys = new HashSet<>();
+    private Command mActive;
+    private long mLastEndMs = Long.MIN_VALUE / 2;
+    private long mWakeUpAtMs = -1;
+    private long mSequence;
+
+    private long mFirstStartMs = -1;
+    private long mDispensedCount;
+    private long mCoalescedCount;
+    private int mMaxQueueDepth;
+    private long mTotalWaitMs;
+    private long mMaxWaitMs;
+
+    /**
+     * @param minGapMs time the relay stays off between two dispenses.
+     * @param maxDispensesPerWindow maximum number of dispenses starting within any
+     *     {@code rateWindowMs}.
+     */
+    DispenseScheduler(Relay relay, Clock clock, Listener listener, long minGapMs,
+            int maxDispensesPerWindow, long rateWindowMs) {
+        if (maxDispensesPerWindow <= 0) {
+            throw new IllegalArgumentException("maxDispensesPerWindow must be positive");
+        }
+        mRelay = relay;
+        mClock = clock;
+        mListener = listener;
+        mMinGapMs = minGapMs;
+        mRateWindowMs = rateWindowMs;
+        mRecentStartsMs = new long[maxDispensesPerWindow];
+        for (int i = 0; i < mRecentStartsMs.length; i++) {
+            mRecentStartsMs[i] = Long.MIN_VALUE / 2;
+        }
+    }
+
+    /**
+     * Queue a dispense of {@code durationMs} for {@code key}.
+     *
+     * @return false if the key is already queued or dispensing and the command was coalesced.
+     */
+    boolean submit(String key, long durationMs, int priority) {
+        if (!mKeys.add(key)) {
+            mCoalescedCount++;
+            return false;
+        }
+        mQueue.add(new Command(key, durationMs, priority, mSequence++, mClock.uptimeMillis()));
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueue.size());
+        maybeStartNext();
+        return true;
+    }
+
+    int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    long getDispensedCount() {
+        return mDispensedCount;
+    }
+
+    long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    long getAverageWaitMs() {
+        return mDispensedCount == 0 ? 0 : mTotalWaitMs / mDispensedCount;
+    }
+
+    long getMaxWaitMs() {
+        return mMaxWaitMs;
+    }
+
+    /**
+     * Dispenses per minute since the first one started.
+     */
+    double getThroughputPerMinute() {
+        if (mFirstStartMs < 0) {
+            return 0;
+        }
+        long elapsedMs = Math.max(1, mClock.uptimeMillis() - mFirstStartMs);
+        return mDispensedCount * 60000.0 / elapsedMs;
+    }
+
+    private void maybeStartNext() {
+        if (mActive != null || mQueue.isEmpty()) {
+            return;
+        }
+        long now = mClock.uptimeMillis();
+        // The oldest of the last N starts decides when the rate limit allows another one.
+        long earliest = Math.max(mLastEndMs + mMinGapMs,
+                mRecentStartsMs[mRecentStartIndex] + mRateWindowMs);
+        if (now < earliest) {
+            if (mWakeUpAtMs < 0 || mWakeUpAtMs > earliest) {
+                mWakeUpAtMs = earliest;
+                mClock.postDelayed(mWakeUp, earliest - now);
+            }
+            return;
+        }
+        mActive = mQueue.poll();
+        mRecentStartsMs[mRecentStartIndex] = now;
+        mRecentStartIndex = (mRecentStartIndex + 1) % mRecentStartsMs.length;
+        if (mFirstStartMs < 0) {
+            mFirstStartMs = now;
+        }
+        long waitMs = now - mActive.mQueuedAtMs;
+        mTotalWaitMs += waitMs;
+        mMaxWaitMs = Math.max(mMaxWaitMs, waitMs);
+        mRelay.pulse(mActive.mDurationMs, mFinishActive);
+    }
+
+    private final Runnable mWakeUp = new Runnable() {
+        @Override
+        public void run() {
+            if (mClock.uptimeMillis() < mWakeUpAtMs) {
+                // Superseded by an earlier wake-up that already ran.
+                return;
+            }
+            mWakeUpAtMs = -1;
+            maybeStartNext();
+        }
+    };
+
+    private final Runnable mFinishActive = new Runnable() {
+        @Override
+        public void run() {
+            Command finished = mActive;
+            mActive = null;
+            mLastEndMs = mClock.uptimeMillis();
+            mDispensedCount++;
+            mKeys.remove(finished.mKey);
+            mListener.onDispensed(finished.mKey);
+            maybeStartNext();
+        }
+    };
+}
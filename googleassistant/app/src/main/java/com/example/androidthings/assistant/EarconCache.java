@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import com.google.android.things.contrib.voicehat.PolyphaseResampler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumMap;
+
+/**
+ * Short feedback sounds, decoded once from WAV assets into PCM at the playback rate so
+ * {@link AudioPlaybackEngine#playEarcon(short[])} can start them without touching storage or
+ * allocating.
+ *
+ * The recordings are longer than a cue should be, so each is trimmed of leading and trailing
+ * silence, cut to its maximum length, faded in and out and normalized to the same peak, leaving
+ * headroom for mixing with a response.
+ */
+class EarconCache {
+    private static final String TAG = EarconCache.class.getSimpleName();
+
+    enum Earcon {
+        // Microphone opened, by the button, the wake word or a follow-on.
+        PRESS("NumberGenieEarcons_Steam.wav", 300),
+        // Request half-closed; the answer is on its way.
+        RELEASE("NumberGenieEarcon_SteamOnly.wav", 400),
+        DISPENSE("NumberGenieEarcons_YouWin.wav", 2500),
+        ERROR("NumberGenieEarcon_ColdWind.wav", 1000);
+
+        final String mFile;
+        final int mMaxMs;
+
+        Earcon(String file, int maxMs) {
+            mFile = file;
+            mMaxMs = maxMs;
+        }
+    }
+
+    // Samples below this magnitude count as silence when trimming, about -40 dBFS.
+    private static final int SILENCE_LEVEL = 328;
+    // Peak after normalizing, about -6 dBFS.
+    private static final int PEAK_LEVEL = 16384;
+    // Trimming can start or end a sound mid-waveform; fade so it does not click.
+    private static final int FADE_IN_MS = 5;
+    private static final int FADE_OUT_MS = 30;
+    private static final int RESAMPLER_TAPS = 16;
+
+    private final int mSampleRate;
+    private final EnumMap<Earcon, short[]> mSounds = new EnumMap<>(Earcon.class);
+
+    EarconCache(int sampleRate) {
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * Decode every earcon found in {@code directory}; missing or unreadable ones stay silent.
+     *
+     * @return the number of earcons loaded.
+     */
+    int load(AssetManager assets, String directory) {
+        for (Earcon earcon : Earcon.values()) {
+            try (InputStream in = assets.open(directory + "/" + earcon.mFile)) {
+                mSounds.put(earcon, decode(WavReader.read(in), mSampleRate, earcon.mMaxMs));
+            } catch (IOException e) {
+                Log.w(TAG, "error loading earcon " + earcon.mFile + ": " + e.getMessage());
+            }
+        }
+        return mSounds.size();
+    }
+
+    /**
+     * @return the PCM of {@code earcon}, or null if it was not loaded. Must not be modified.
+     */
+    short[] get(Earcon earcon) {
+        return mSounds.get(earcon);
+    }
+
+    /**
+     * Resample, trim, shorten and normalize a recording for playback at {@code sampleRate}.
+     */
+    static short[] decode(WavReader wav, int sampleRate, int maxMs) {
+        short[] samples = wav.mSamples;
+        int count = samples.length;
+        if (wav.mSampleRate != sampleRate) {
+            PolyphaseResampler resampler =
+                    new PolyphaseResampler(wav.mSampleRate, sampleRate, RESAMPLER_TAPS);
+            short[] resampled = new short[resampler.getOutputCount(count)];
+            count = resampler.process(samples, 0, count, resampled, 0);
+            samples = resampled;
+        }
+        int start = 0;
+        while (start < count && Math.abs(samples[start]) < SILENCE_LEVEL) {
+            start++;
+        }
+        int end = count;
+        while (end > start && Math.abs(samples[end - 1]) < SILENCE_LEVEL) {
+            end--;
+        }
+        end = Math.min(end, start + sampleRate * maxMs / 1000);
+        int length = end - start;
+        int peak = 1;
+        for (int i = start; i < end; i++) {
+            peak = Math.max(peak, Math.abs(samples[i]));
+        }
+        float gain = (float) PEAK_LEVEL / peak;
+        int fadeIn = Math.min(length, sampleRate * FADE_IN_MS / 1000);
+        int fadeOut = Math.min(length, sampleRate * FADE_OUT_MS / 1000);
+        short[] sound = new short[length];
+        for (int i = 0; i < length; i++) {
+            float sample = samples[start + i] * gain;
+            if (i < fadeIn) {
+                sample *= (float) i / fadeIn;
+            }
+            if (i >= length - fadeOut) {
+                sample *= (float) (length - i) / fadeOut;
+            }
+            sound[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+        }
+        return sound;
+    }
+}
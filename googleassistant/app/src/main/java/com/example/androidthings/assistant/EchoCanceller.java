@@ -0,0 +1,583 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Removes the speaker's own output from the captured audio, so the microphone can stay open
+ * while a response plays.
+ *
+ * The playback thread passes everything it writes to the speaker to
+ * {@link #addReference(ByteBuffer, int, int)}; the capture thread takes the same amount of that
+ * reference for every chunk it cleans, so a reference sample is used about when it is heard. The
+ * remaining delay through the output and input paths is found by correlating the energy
+ * envelopes of both signals, and an NLMS adaptive filter covering {@link #DEFAULT_FILTER_MS}
+ * after that delay models the echo and subtracts it. Adaptation pauses while the near end talks,
+ * detected by the filter suddenly removing far less than it did.
+ *
+ * While the speaker is silent the capture passes through untouched at almost no cost. The
+ * measured cost per 10 ms of audio is held under a budget by shortening the filter when it runs
+ * over, and lengthening it again once there is room, so cancellation can run on the capture
+ * thread. 16-bit mono little-endian PCM.
+ */
+class EchoCanceller {
+    static final int DEFAULT_FILTER_MS = 64;
+    // A tenth of a core on the capture thread.
+    static final long DEFAULT_FRAME_BUDGET_NANOS = 1000000;
+    // Longest output plus input latency the delay search covers.
+    static final int MAX_DELAY_MS = 320;
+    // Envelope resolution; double-talk decisions and statistics are made per block.
+    private static final int BLOCK_MS = 4;
+    // Envelope history correlated to find the delay, and how often.
+    private static final int DELAY_WINDOW_MS = 1000;
+    private static final int DELAY_ESTIMATE_MS = 128;
+    // Lowest envelope correlation trusted as the echo.
+    private static final float DELAY_CONFIDENCE = 0.6f;
+    // The filter starts this far before the estimated delay, for taps in front of the peak.
+    private static final int PRE_DELAY_MS = 8;
+    // Reference kept for the capture thread; more means capture has stalled.
+    private static final int REFERENCE_MS = 1000;
+    // Mean square reference power below which the speaker counts as silent (about -50 dBFS).
+    private static final float FAR_ACTIVE_POWER = 10000f;
+    // NLMS step size, and regularization per tap so quiet reference does not blow up steps.
+    private static final float STEP_SIZE = 0.5f;
+    private static final float REGULARIZATION_PER_TAP = FAR_ACTIVE_POWER;
+    // Once the echo is reduced by this much, a block left this many times louder than usual is
+    // double talk.
+    private static final float CONVERGED_ERLE_DB = 10f;
+    private static final float DOUBLE_TALK_RATIO = 8f;
+    private static final int DOUBLE_TALK_HOLD_MS = 60;
+    private static final float NOISE_ADAPTATION = 0.002f;
+    // Double talk this long is more likely a moved speaker or microphone; adapt again.
+    private static final int MAX_DOUBLE_TALK_MS = 1000;
+    // Weight of a new block in the smoothed ERLE, about a quarter of a second.
+    private static final float ERLE_WEIGHT = 1f / 64;
+    // Filter length is shed and restored in this many steps.
+    private static final int TAP_STEPS = 8;
+    // Weight of a new measurement in the average cost per frame.
+    private static final float COST_WEIGHT = 0.05f;
+    // Taps are only added back if the cost with them would stay this far under budget.
+    private static final float HEADROOM = 0.8f;
+    // Frames at a reduced length before trying more taps anyway, since part of the cost does
+    // not depend on the length. About five seconds of playback.
+    private static final int PROBE_FRAMES = 500;
+
+    private final int mSampleRate;
+    private final int mHopSamples;
+    private final long mFrameBudgetNanos;
+    private final int mMaxTaps;
+    private final int mTapStep;
+    private final int mMaxDelay;
+    private final int mPreDelay;
+    private final int mBlockSamples;
+
+    // Reference handed over by the playback thread. Guarded by mReferenceLock.
+    private final Object mReferenceLock = new Object();
+    private final short[] mReference;
+    private long mReferenceWritten;
+    private long mReferenceRead;
+    private long mReferenceDropped;
+
+    // Capture thread only. The reference history is stored twice in a row so any filter window
+    // is contiguous.
+    private final float[] mFar;
+    private final int mFarLength;
+    private long mFarCount;
+    private long mLastFarActive = Long.MIN_VALUE / 2;
+    private final float[] mWeights;
+    private final float[] mShifted;
+    private int mTaps;
+    private int mDelay;
+    private float[] mMic = new float[0];
+
+    private final float[] mFarEnvelope;
+    private final float[] mMicEnvelope;
+    private long mEnvelopeBlocks;
+    private int mBlocksSinceEstimate;
+    private final int mEstimateBlocks;
+    private float mDelayCorrelation;
+    private int mCandidateLag = -1;
+
+    private float mMicPower;
+    private float mErrorPower;
+    private float mNoisePower = FAR_ACTIVE_POWER;
+    private boolean mConverged;
+    private int mDoubleTalkHold;
+    private int mDoubleTalkSamples;
+
+    private float mFrameCostNanos;
+    private long mFramesAtLimit;
+    private long mProcessedSamples;
+    private long mActiveSamples;
+    private long mDoubleTalkTotal;
+    private long mProcessNanos;
+    private long mTapLimitChanges;
+    private long mDelayChanges;
+
+    /**
+     * @param filterMs echo tail modeled after the delay.
+     * @param frameBudgetNanos time allowed per 10 ms of audio while the speaker plays.
+     */
+    EchoCanceller(int sampleRate, int filterMs, long frameBudgetNanos) {
+        mSampleRate = sampleRate;
+        mHopSamples = sampleRate / 100;
+        mFrameBudgetNanos = frameBudgetNanos;
+        mTapStep = Math.max(1, sampleRate * filterMs / 1000 / TAP_STEPS);
+        mMaxTaps = mTapStep * TAP_STEPS;
+        mTaps = mMaxTaps;
+        mMaxDelay = sampleRate * MAX_DELAY_MS / 1000;
+        mPreDelay = sampleRate * PRE_DELAY_MS / 1000;
+        mBlockSamples = sampleRate * BLOCK_MS / 1000;
+        mReference = new short[sampleRate * REFERENCE_MS / 1000];
+        mFarLength = mMaxDelay + mMaxTaps + mBlockSamples;
+        mFar = new float[2 * mFarLength];
+        mWeights = new float[mMaxTaps];
+        mShifted = new float[mMaxTaps];
+        mFarEnvelope = new float[(MAX_DELAY_MS + DELAY_WINDOW_MS) / BLOCK_MS];
+        mMicEnvelope = new float[DELAY_WINDOW_MS / BLOCK_MS];
+        mEstimateBlocks = DELAY_ESTIMATE_MS / BLOCK_MS;
+    }
+
+    /**
+     * Append audio that has just been written to the speaker. Called on the playback thread;
+     * {@code pcm} is read from {@code offset} and its position left untouched.
+     */
+    void addReference(ByteBuffer pcm, int offset, int bytes) {
+        synchronized (mReferenceLock) {
+            for (int i = 0; i + 1 < bytes; i += 2) {
+                putReference((short) ((pcm.get(offset + i) & 0xff)
+                        | (pcm.get(offset + i + 1) << 8)));
+            }
+        }
+    }
+
+    void addReference(short[] samples, int offset, int count) {
+        synchronized (mReferenceLock) {
+            for (int i = 0; i < count; i++) {
+                putReference(samples[offset + i]);
+            }
+        }
+    }
+
+    /**
+     * Forget the reference that has not been heard yet, after the speaker dropped it.
+     */
+    void discardReference() {
+        synchronized (mReferenceLock) {
+            mReferenceWritten = mReferenceRead;
+        }
+    }
+
+    /**
+     * Cancel the echo in the samples remaining in {@code pcm}, in place, leaving its position
+     * untouched.
+     */
+    void process(ByteBuffer pcm) {
+        long start = System.nanoTime();
+        int offset = pcm.position();
+        int count = pcm.remaining() / 2;
+        if (mMic.length < count) {
+            mMic = new float[count];
+        }
+        float[] mic = mMic;
+        for (int i = 0; i < count; i++) {
+            mic[i] = (short) ((pcm.get(offset + 2 * i) & 0xff)
+                    | (pcm.get(offset + 2 * i + 1) << 8));
+        }
+        mProcessedSamples += count;
+
+        int activeSamples = 0;
+        boolean changed = false;
+        for (int done = 0; done < count; done += mBlockSamples) {
+            int length = Math.min(mBlockSamples, count - done);
+            float farPower = takeReference(length);
+            addEnvelopes(mic, done, length, farPower);
+            if (mFarCount - mDelay - mMaxTaps - length < mLastFarActive) {
+                activeSamples += length;
+                changed = true;
+                cancelBlock(mic, done, length);
+            }
+        }
+        if (changed) {
+            for (int i = 0; i < count; i++) {
+                short sample = (short) Math.max(Short.MIN_VALUE,
+                        Math.min(Short.MAX_VALUE, Math.round(mic[i])));
+                pcm.put(offset + 2 * i, (byte) sample);
+                pcm.put(offset + 2 * i + 1, (byte) (sample >> 8));
+            }
+        }
+
+        long nanos = System.nanoTime() - start;
+        mProcessNanos += nanos;
+        if (activeSamples > 0) {
+            mActiveSamples += activeSamples;
+            float frames = (float) activeSamples / mHopSamples;
+            mFramesAtLimit += Math.max(1, Math.round(frames));
+            // Wall time includes preemption and GC pauses; clamp them so a single pause does
+            // not shorten the filter.
+            float frameNanos = Math.min(nanos / frames, 2f * mFrameBudgetNanos);
+            mFrameCostNanos += COST_WEIGHT * (frameNanos - mFrameCostNanos);
+            adjustTapLimit();
+        }
+    }
+
+    /**
+     * Echo return loss enhancement over the last quarter second or so of playback without
+     * double talk, in dB: how much quieter the echo is after cancellation.
+     */
+    float getErleDb() {
+        return erleDb(mMicPower, mErrorPower);
+    }
+
+    /**
+     * Delay of the first filter tap behind the reference, in milliseconds.
+     */
+    int getDelayMs() {
+        return mDelay * 1000 / mSampleRate;
+    }
+
+    /**
+     * Envelope correlation at the best lag in the last delay search, from 0 to 1.
+     */
+    float getDelayCorrelation() {
+        return mDelayCorrelation;
+    }
+
+    long getDelayChanges() {
+        return mDelayChanges;
+    }
+
+    /**
+     * Time spent in {@link #process(ByteBuffer)} per second of audio, in microseconds.
+     */
+    long getMicrosPerSecond() {
+        return mProcessedSamples == 0 ? 0
+                : mProcessNanos / 1000 * mSampleRate / mProcessedSamples;
+    }
+
+    /**
+     * Share of the audio captured while the speaker played, in percent.
+     */
+    int getActivePercent() {
+        return mProcessedSamples == 0 ? 0 : (int) (mActiveSamples * 100 / mProcessedSamples);
+    }
+
+    /**
+     * Share of the audio captured while the speaker played that was treated as double talk, in
+     * percent.
+     */
+    int getDoubleTalkPercent() {
+        return mActiveSamples == 0 ? 0 : (int) (mDoubleTalkTotal * 100 / mActiveSamples);
+    }
+
+    long getFrameCostNanos() {
+        return (long) mFrameCostNanos;
+    }
+
+    int getTapCount() {
+        return mMaxTaps;
+    }
+
+    int getTapLimit() {
+        return mTaps;
+    }
+
+    long getTapLimitChanges() {
+        return mTapLimitChanges;
+    }
+
+    /**
+     * Reference samples overwritten before capture used them, e.g. while capture was stopped.
+     */
+    long getDroppedReference() {
+        synchronized (mReferenceLock) {
+            return mReferenceDropped;
+        }
+    }
+
+    static float erleDb(double micPower, double errorPower) {
+        return (float) (10 * Math.log10((micPower + 1) / (errorPower + 1)));
+    }
+
+    private void putReference(short sample) {
+        if (mReferenceWritten - mReferenceRead >= mReference.length) {
+            mReferenceRead++;
+            mReferenceDropped++;
+        }
+        mReference[(int) (mReferenceWritten++ % mReference.length)] = sample;
+    }
+
+    /**
+     * Move the reference for {@code length} captured samples into the filter history. When
+     * playback has not written that much, the speaker is silent and so is the reference.
+     *
+     * @return the mean square of the new reference.
+     */
+    private float takeReference(int length) {
+        double power = 0;
+        synchronized (mReferenceLock) {
+            for (int i = 0; i < length; i++) {
+                float sample = 0;
+                if (mReferenceRead < mReferenceWritten) {
+                    sample = mReference[(int) (mReferenceRead % mReference.length)];
+                }
+                mReferenceRead++;
+                int position = (int) (mFarCount % mFarLength);
+                mFar[position] = sample;
+                mFar[position + mFarLength] = sample;
+                if (sample * sample > FAR_ACTIVE_POWER) {
+                    mLastFarActive = mFarCount;
+                }
+                mFarCount++;
+                power += sample * sample;
+            }
+            // Audio written from now on is heard from now on.
+            mReferenceWritten = Math.max(mReferenceWritten, mReferenceRead);
+        }
+        return (float) (power / length);
+    }
+
+    /**
+     * Filter one block of the reference, subtract it from {@code mic} and adapt.
+     */
+    private void cancelBlock(float[] mic, int offset, int length) {
+        float[] far = mFar;
+        float[] weights = mWeights;
+        int first = mMaxTaps - mTaps;
+        int last = mMaxTaps - 1;
+        boolean adapt = mDoubleTalkHold <= 0;
+        float regularization = REGULARIZATION_PER_TAP * mTaps;
+        double micEnergy = 0;
+        double errorEnergy = 0;
+        long farIndex = mFarCount - length;
+        // far[base + last] is the reference sample at the compensated delay, far[base + first]
+        // the oldest one still modeled.
+        int base = (int) Math.floorMod(farIndex - mDelay - last, (long) mFarLength);
+        double power = 0;
+        for (int j = first; j <= last; j++) {
+            power += far[base + j] * far[base + j];
+        }
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                base = base + 1 == mFarLength ? 0 : base + 1;
+                float entering = far[base + last];
+                float leaving = far[base + first - 1 + (base + first == 0 ? mFarLength : 0)];
+                power = Math.max(0, power + entering * entering - leaving * leaving);
+            }
+            float estimate = 0;
+            for (int j = first; j <= last; j++) {
+                estimate += weights[j] * far[base + j];
+            }
+            float near = mic[offset + i];
+            float error = near - estimate;
+            micEnergy += near * near;
+            errorEnergy += error * error;
+            // A few samples of the near end are enough to throw the filter off; stop adapting
+            // as soon as the block so far looks like double talk.
+            if (adapt && i >= mBlockSamples / 4 && isDoubleTalk(
+                    (float) (micEnergy / (i + 1)), (float) (errorEnergy / (i + 1)))) {
+                adapt = false;
+            }
+            if (adapt) {
+                float gain = (float) (STEP_SIZE * error / (power + regularization));
+                for (int j = first; j <= last; j++) {
+                    weights[j] += gain * far[base + j];
+                }
+            }
+            mic[offset + i] = error;
+        }
+        updateDoubleTalk((float) (micEnergy / length), (float) (errorEnergy / length), length);
+    }
+
+    private void updateDoubleTalk(float micPower, float errorPower, int length) {
+        if (mDoubleTalkHold > 0) {
+            mDoubleTalkHold -= length;
+            mDoubleTalkTotal += length;
+            mDoubleTalkSamples += length;
+            if (mDoubleTalkSamples > mSampleRate * MAX_DOUBLE_TALK_MS / 1000) {
+                mConverged = false;
+                mDoubleTalkHold = 0;
+                mDoubleTalkSamples = 0;
+                mMicPower = 0;
+                mErrorPower = 0;
+            }
+        }
+        if (isDoubleTalk(micPower, errorPower)) {
+            mDoubleTalkHold = mSampleRate * DOUBLE_TALK_HOLD_MS / 1000;
+            return;
+        }
+        if (mDoubleTalkHold > 0) {
+            return;
+        }
+        // The residual floor, noise the filter cannot remove. It drops at once and creeps up
+        // only with residuals close to it, so near-end speech is not mistaken for noise.
+        if (errorPower < mNoisePower) {
+            mNoisePower = errorPower;
+        } else if (errorPower < 2 * mNoisePower) {
+            mNoisePower += NOISE_ADAPTATION * (errorPower - mNoisePower);
+        }
+        // Quiet blocks, e.g. pauses in the response, say nothing about the filter.
+        if (micPower < FAR_ACTIVE_POWER) {
+            return;
+        }
+        mDoubleTalkSamples = 0;
+        mMicPower += ERLE_WEIGHT * (micPower - mMicPower);
+        mErrorPower += ERLE_WEIGHT * (errorPower - mErrorPower);
+        mConverged = getErleDb() > CONVERGED_ERLE_DB;
+    }
+
+    /**
+     * @return true if far more is left of loud audio than the filter usually leaves, on top of
+     *     the noise.
+     */
+    private boolean isDoubleTalk(float micPower, float errorPower) {
+        return mConverged && micPower >= FAR_ACTIVE_POWER && errorPower > DOUBLE_TALK_RATIO
+                * (micPower * (mErrorPower + 1) / (mMicPower + 1) + mErrorPower + mNoisePower);
+    }
+
+    /**
+     * Record the log energy of one block of both signals, before cancellation, and re-estimate
+     * the delay now and then while the speaker plays.
+     */
+    private void addEnvelopes(float[] mic, int offset, int length, float farPower) {
+        double micEnergy = 0;
+        for (int i = 0; i < length; i++) {
+            micEnergy += mic[offset + i] * mic[offset + i];
+        }
+        int farSlot = (int) (mEnvelopeBlocks % mFarEnvelope.length);
+        int micSlot = (int) (mEnvelopeBlocks % mMicEnvelope.length);
+        mFarEnvelope[farSlot] = (float) Math.log10(farPower + 1);
+        mMicEnvelope[micSlot] = (float) Math.log10(micEnergy / length + 1);
+        mEnvelopeBlocks++;
+        if (++mBlocksSinceEstimate >= mEstimateBlocks
+                && mEnvelopeBlocks >= mFarEnvelope.length
+                && mFarCount - mLastFarActive < (long) mMicEnvelope.length * mBlockSamples) {
+            mBlocksSinceEstimate = 0;
+            estimateDelay();
+        }
+    }
+
+    /**
+     * Find the lag at which the reference envelope best predicts the microphone envelope and
+     * move the filter there if the echo has drifted out of its first half.
+     */
+    private void estimateDelay() {
+        int window = mMicEnvelope.length;
+        int lags = mFarEnvelope.length - window;
+        long newest = mEnvelopeBlocks - 1;
+        double micMean = 0;
+        double micSquares = 0;
+        for (int i = 0; i < window; i++) {
+            micMean += mMicEnvelope[i];
+            micSquares += mMicEnvelope[i] * mMicEnvelope[i];
+        }
+        micMean /= window;
+        double micVariance = micSquares / window - micMean * micMean;
+        if (micVariance <= 1e-6) {
+            return;
+        }
+        int bestLag = -1;
+        double bestCorrelation = 0;
+        for (int lag = 0; lag <= lags; lag++) {
+            double farSum = 0;
+            double farSquares = 0;
+            double product = 0;
+            for (int i = 0; i < window; i++) {
+                long block = newest - i;
+                float micValue = mMicEnvelope[(int) (block % window)];
+                float farValue = mFarEnvelope[(int) ((block - lag) % mFarEnvelope.length)];
+                farSum += farValue;
+                farSquares += farValue * farValue;
+                product += micValue * farValue;
+            }
+            double farMean = farSum / window;
+            double farVariance = farSquares / window - farMean * farMean;
+            if (farVariance <= 1e-6) {
+                continue;
+            }
+            double correlation = (product / window - micMean * farMean)
+                    / Math.sqrt(micVariance * farVariance);
+            if (correlation > bestCorrelation) {
+                bestCorrelation = correlation;
+                bestLag = lag;
+            }
+        }
+        mDelayCorrelation = (float) bestCorrelation;
+        int candidate = mCandidateLag;
+        mCandidateLag = -1;
+        if (bestLag < 0 || bestCorrelation < DELAY_CONFIDENCE) {
+            return;
+        }
+        int echoDelay = bestLag * mBlockSamples;
+        if (echoDelay >= mDelay + mPreDelay - mBlockSamples
+                && echoDelay <= mDelay + mMaxTaps / 2) {
+            return;
+        }
+        // Moving loses part of the filter; only move to a lag found twice in a row.
+        if (Math.abs(bestLag - candidate) > 1) {
+            mCandidateLag = bestLag;
+            return;
+        }
+        int delay = Math.max(0, Math.min(mMaxDelay, echoDelay - mPreDelay));
+        if (delay != mDelay) {
+            setDelay(delay);
+        }
+    }
+
+    /**
+     * Move the filter window to start {@code delay} samples back, keeping the taps that still
+     * fall inside it.
+     */
+    private void setDelay(int delay) {
+        int shift = delay - mDelay;
+        // weights[mMaxTaps - 1 - k] models a total delay of mDelay + k.
+        for (int j = 0; j < mMaxTaps; j++) {
+            int from = j - shift;
+            mShifted[j] = from >= 0 && from < mMaxTaps ? mWeights[from] : 0;
+        }
+        System.arraycopy(mShifted, 0, mWeights, 0, mMaxTaps);
+        mDelay = delay;
+        mDelayChanges++;
+        // The filter has to prove itself again before residuals count as double talk.
+        mConverged = false;
+        mMicPower = 0;
+        mErrorPower = 0;
+    }
+
+    private void adjustTapLimit() {
+        if (mFrameCostNanos > mFrameBudgetNanos && mTaps > mTapStep) {
+            // The dropped taps model the longest delays; forget them so they start from zero
+            // when added back.
+            for (int j = mMaxTaps - mTaps; j < mMaxTaps - mTaps + mTapStep; j++) {
+                mWeights[j] = 0;
+            }
+            mTaps -= mTapStep;
+            // Assume the cost scales with the taps until it has been measured again, so one
+            // slow chunk does not shed them all.
+            mFrameCostNanos = mFrameCostNanos * mTaps / (mTaps + mTapStep);
+        } else if (mTaps < mMaxTaps
+                && (mFrameCostNanos * (mTaps + mTapStep) / mTaps < mFrameBudgetNanos * HEADROOM
+                        || mFramesAtLimit >= PROBE_FRAMES)) {
+            mTaps += mTapStep;
+        } else {
+            return;
+        }
+        mFramesAtLimit = 0;
+        mTapLimitChanges++;
+    }
+}
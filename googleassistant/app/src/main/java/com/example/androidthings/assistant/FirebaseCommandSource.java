@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.os.Handler;
+import android.util.Log;
+
+import com.google.firebase.database.ChildEventListener;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.DatabaseException;
+import com.google.firebase.database.DatabaseReference;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.ValueEventListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link CommandSource} reading the children of {@code /activate} in the Firebase database.
+ *
+ * Each child is one command; its optional {@code interval} and {@code priority} children set
+ * the dispense length and order, otherwise {@code /releaseInterval} is used. A command without
+ * its own interval is held back until {@code /releaseInterval} is known, since children can be
+ * read from the local cache before it. Acknowledged keys are removed in batches with a single
+ * multi-path update. Disk persistence is turned on, so commands seen before and removals made
+ * while offline survive a restart and are synced on reconnect.
+ */
+class FirebaseCommandSource implements CommandSource {
+    private static final String TAG = FirebaseCommandSource.class.getSimpleName();
+
+    private static final long ACK_BATCH_DELAY_MS = 1000;
+    private static final int ACK_BATCH_MAX_KEYS = 16;
+
+    private static boolean sPersistenceEnabled;
+
+    private final Handler mHandler;
+    private final DatabaseReference mActivateRef;
+    private final DatabaseReference mReleaseIntervalRef;
+    private final Set<String> mPendingAcks = new LinkedHashSet<>();
+    // Commands without their own interval, waiting for mReleaseInterval, by key.
+    private final Map<String, DataSnapshot> mHeldCommands = new LinkedHashMap<>();
+    private long mReleaseInterval = 0;
+    private Listener mListener;
+
+    /**
+     * @param handler handler of the thread Firebase delivers callbacks on.
+     */
+    FirebaseCommandSource(Handler handler) {
+        mHandler = handler;
+        FirebaseDatabase database = FirebaseDatabase.getInstance();
+        enablePersistence(database);
+        mActivateRef = database.getReference("activate");
+        mReleaseIntervalRef = database.getReference("releaseInterval");
+        mActivateRef.keepSynced(true);
+        mReleaseIntervalRef.keepSynced(true);
+    }
+
+    private static synchronized void enablePersistence(FirebaseDatabase database) {
+        if (sPersistenceEnabled) {
+            return;
+        }
+        try {
+            // Only allowed before the first reference is created in this process.
+            database.setPersistenceEnabled(true);
+        } catch (DatabaseException e) {
+            Log.w(TAG, "could not enable database persistence:", e);
+        }
+        sPersistenceEnabled = true;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        mListener = listener;
+        mReleaseIntervalRef.addValueEventListener(mReleaseIntervalListener);
+        mActivateRef.addChildEventListener(mActivateListener);
+    }
+
+    @Override
+    public long getDefaultDurationMs() {
+        return mReleaseInterval;
+    }
+
+    @Override
+    public void acknowledge(String key) {
+        mPendingAcks.add(key);
+        if (mPendingAcks.size() >= ACK_BATCH_MAX_KEYS) {
+            flush();
+        } else if (mPendingAcks.size() == 1) {
+            mHandler.postDelayed(mFlush, ACK_BATCH_DELAY_MS);
+        }
+    }
+
+    @Override
+    public void flush() {
+        mHandler.removeCallbacks(mFlush);
+        if (mPendingAcks.isEmpty()) {
+            return;
+        }
+        final List<String> keys = new ArrayList<>(mPendingAcks);
+        mPendingAcks.clear();
+        Map<String, Object> removals = new HashMap<>();
+        for (String key : keys) {
+            removals.put(key, null);
+        }
+        mActivateRef.updateChildren(removals, new DatabaseReference.CompletionListener() {
+            @Override
+            public void onComplete(DatabaseError error, DatabaseReference reference) {
+                if (error != null) {
+                    // Still in the local journal; acknowledged again on the next start.
+                    Log.w(TAG, "error removing " + keys + ": " + error.getMessage());
+                    return;
+                }
+                if (mListener != null) {
+                    mListener.onAcknowledged(keys);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void stop() {
+        mActivateRef.removeEventListener(mActivateListener);
+        mReleaseIntervalRef.removeEventListener(mReleaseIntervalListener);
+        // Still in the database, so delivered again on the next start.
+        mHeldCommands.clear();
+        // Queued by the database client if offline, so nothing is lost.
+        flush();
+        mListener = null;
+    }
+
+    private void deliver(DataSnapshot dataSnapshot) {
+        String key = dataSnapshot.getKey();
+        // A new command reusing a key must not be removed by an older batch.
+        mPendingAcks.remove(key);
+        DataSnapshot interval = dataSnapshot.child("interval");
+        DataSnapshot priority = dataSnapshot.child("priority");
+        mHeldCommands.remove(key);
+        long durationMs = interval.exists() ? (Long) interval.getValue() : mReleaseInterval;
+        if (durationMs <= 0) {
+            // Dispensing for 0ms would drop the candy and still acknowledge the command.
+            Log.i(TAG, "holding " + key + " until the release interval is known");
+            mHeldCommands.put(key, dataSnapshot);
+            return;
+        }
+        int dispensePriority = priority.exists() ? ((Long) priority.getValue()).intValue() : 0;
+        if (mListener != null) {
+            mListener.onCommand(new Command(key, String.valueOf(dataSnapshot.getValue()),
+                    durationMs, dispensePriority));
+        }
+    }
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final ValueEventListener mReleaseIntervalListener = new ValueEventListener() {
+        @Override
+        public void onDataChange(DataSnapshot dataSnapshot) {
+            Long releaseInterval = dataSnapshot.getValue(Long.class);
+            mReleaseInterval = releaseInterval != null ? releaseInterval : 0;
+            Log.i(TAG, "release interval: " + mReleaseInterval);
+            if (mReleaseInterval > 0 && !mHeldCommands.isEmpty()) {
+                for (DataSnapshot held : new ArrayList<>(mHeldCommands.values())) {
+                    deliver(held);
+                }
+            }
+        }
+
+        @Override
+        public void onCancelled(DatabaseError databaseError) {
+        }
+    };
+
+    private final ChildEventListener mActivateListener = new ChildEventListener() {
+        @Override
+        public void onChildAdded(DataSnapshot dataSnapshot, String s) {
+            deliver(dataSnapshot);
+        }
+
+        @Override
+        public void onChildChanged(DataSnapshot dataSnapshot, String s) {
+            deliver(dataSnapshot);
+        }
+
+        @Override
+        public void onChildRemoved(DataSnapshot dataSnapshot) {
+            mHeldCommands.remove(dataSnapshot.getKey());
+        }
+
+        @Override
+        public void onChildMoved(DataSnapshot dataSnapshot, String s) {
+        }
+
+        @Override
+        public void onCancelled(DatabaseError databaseError) {
+            Log.w(TAG, "activate listener cancelled: " + databaseError.getMessage());
+        }
+    };
+}
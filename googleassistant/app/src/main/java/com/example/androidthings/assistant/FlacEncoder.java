@@ -0,0 +1,398 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming FLAC encoder for 16-bit mono PCM.
+ *
+ * Every call to {@link #encode} turns one capture chunk into one complete FLAC frame, so the
+ * encoder adds no latency beyond the chunk itself. Frames use the variable block size strategy so
+ * chunks of any length up to the configured maximum can be encoded. Each frame picks the best
+ * fixed polynomial predictor (order 0 to 4) and Rice partitioning, falling back to a verbatim
+ * subframe when prediction does not pay off. All working memory is allocated up front.
+ */
+class FlacEncoder {
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int MIN_BLOCK_SIZE = 16;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 4;
+    private static final int MAX_RICE_PARAMETER = 14;
+    private static final int STREAMINFO_SIZE = 34;
+    // "fLaC" marker, metadata block header and STREAMINFO.
+    private static final int STREAM_HEADER_SIZE = 4 + 4 + STREAMINFO_SIZE;
+    // Frame header, subframe header, warm-up and residual headers, footer and padding.
+    private static final int FRAME_OVERHEAD = 64;
+
+    private final int mSampleRate;
+    private final int mMaxBlockSize;
+    private final int[] mSamples;
+    private final int[][] mResiduals = new int[MAX_FIXED_ORDER + 1][];
+    private final int[] mRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+    private final BitWriter mWriter;
+    private final ByteBuffer mOutput;
+    private long mSampleNumber;
+    private boolean mHeaderWritten;
+
+    FlacEncoder(int sampleRate, int maxBlockSize) {
+        if (maxBlockSize < MIN_BLOCK_SIZE || maxBlockSize > 65535) {
+            throw new IllegalArgumentException("unsupported block size: " + maxBlockSize);
+        }
+        mSampleRate = sampleRate;
+        mMaxBlockSize = maxBlockSize;
+        mSamples = new int[maxBlockSize];
+        for (int order = 0; order <= MAX_FIXED_ORDER; order++) {
+            mResiduals[order] = new int[maxBlockSize];
+        }
+        mWriter = new BitWriter(getMaxOutputSize(maxBlockSize));
+        mOutput = ByteBuffer.wrap(mWriter.getBuffer());
+    }
+
+    /**
+     * Worst-case output size of a single {@link #encode} call for {@code blockSize} samples.
+     */
+    static int getMaxOutputSize(int blockSize) {
+        return STREAM_HEADER_SIZE + FRAME_OVERHEAD + blockSize * BITS_PER_SAMPLE / 8;
+    }
+
+    /**
+     * Start a new stream; the next frame will be preceded by the stream header again.
+     */
+    void reset() {
+        mSampleNumber = 0;
+        mHeaderWritten = false;
+    }
+
+    /**
+     * Encode the little-endian 16-bit samples remaining in {@code pcm} into one FLAC frame,
+     * preceded by the stream header if this is the first frame of the stream.
+     *
+     * @return the encoded bytes; the buffer is reused by the next call.
+     */
+    ByteBuffer encode(ByteBuffer pcm) {
+        int blockSize = pcm.remaining() / 2;
+        if (blockSize > mMaxBlockSize) {
+            throw new IllegalArgumentException("block too large: " + blockSize);
+        }
+        int offset = pcm.position();
+        for (int i = 0; i < blockSize; i++) {
+            mSamples[i] = (short) ((pcm.get(offset + 2 * i) & 0xff)
+                    | (pcm.get(offset + 2 * i + 1) << 8));
+        }
+        mWriter.reset();
+        if (!mHeaderWritten) {
+            writeStreamHeader();
+            mHeaderWritten = true;
+        }
+        if (blockSize > 0) {
+            writeFrame(blockSize);
+            mSampleNumber += blockSize;
+        }
+        mOutput.clear();
+        mOutput.limit(mWriter.getByteLength());
+        return mOutput;
+    }
+
+    private void writeStreamHeader() {
+        mWriter.writeBits('f', 8);
+        mWriter.writeBits('L', 8);
+        mWriter.writeBits('a', 8);
+        mWriter.writeBits('C', 8);
+        // Last metadata block, type STREAMINFO.
+        mWriter.writeBits(1, 1);
+        mWriter.writeBits(0, 7);
+        mWriter.writeBits(STREAMINFO_SIZE, 24);
+        mWriter.writeBits(MIN_BLOCK_SIZE, 16);
+        mWriter.writeBits(mMaxBlockSize, 16);
+        // Frame sizes, total sample count and MD5 are unknown while streaming.
+        mWriter.writeBits(0, 24);
+        mWriter.writeBits(0, 24);
+        mWriter.writeBits(mSampleRate, 20);
+        mWriter.writeBits(0, 3);
+        mWriter.writeBits(BITS_PER_SAMPLE - 1, 5);
+        mWriter.writeBits(0, 36);
+        for (int i = 0; i < 16; i++) {
+            mWriter.writeBits(0, 8);
+        }
+    }
+
+    private void writeFrame(int blockSize) {
+        int frameStart = mWriter.getByteLength();
+        // Sync code and variable block size strategy.
+        mWriter.writeBits(0x3ffe, 14);
+        mWriter.writeBits(0, 1);
+        mWriter.writeBits(1, 1);
+        // Block size in a trailing 16-bit field, sample rate from STREAMINFO.
+        mWriter.writeBits(0x7, 4);
+        mWriter.writeBits(0x0, 4);
+        // Mono, 16 bits per sample.
+        mWriter.writeBits(0x0, 4);
+        mWriter.writeBits(0x4, 3);
+        mWriter.writeBits(0, 1);
+        writeUtf8Number(mSampleNumber);
+        mWriter.writeBits(blockSize - 1, 16);
+        mWriter.writeBits(crc8(mWriter.getBuffer(), frameStart, mWriter.getByteLength()), 8);
+
+        writeSubframe(blockSize);
+
+        mWriter.alignToByte();
+        int crc = crc16(mWriter.getBuffer(), frameStart, mWriter.getByteLength());
+        mWriter.writeBits(crc, 16);
+    }
+
+    private void writeSubframe(int blockSize) {
+        int bestOrder = 0;
+        long bestSum = Long.MAX_VALUE;
+        int maxOrder = Math.min(MAX_FIXED_ORDER, blockSize - 1);
+        for (int order = 0; order <= maxOrder; order++) {
+            long sum = computeResiduals(order, blockSize);
+            if (sum < bestSum) {
+                bestSum = sum;
+                bestOrder = order;
+            }
+        }
+        int[] residuals = mResiduals[bestOrder];
+        int bestPartitionOrder = 0;
+        long bestBits = Long.MAX_VALUE;
+        for (int partitionOrder = 0; partitionOrder <= MAX_PARTITION_ORDER; partitionOrder++) {
+            if (!isValidPartitionOrder(partitionOrder, blockSize, bestOrder)) {
+                break;
+            }
+            long bits = estimateResidualBits(residuals, blockSize, bestOrder, partitionOrder);
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestPartitionOrder = partitionOrder;
+            }
+        }
+        long fixedBits = bestOrder * BITS_PER_SAMPLE + bestBits;
+        if (fixedBits >= (long) blockSize * BITS_PER_SAMPLE) {
+            // Verbatim subframe.
+            mWriter.writeBits(0x02, 8);
+            for (int i = 0; i < blockSize; i++) {
+                mWriter.writeBits(mSamples[i], BITS_PER_SAMPLE);
+            }
+            return;
+        }
+        // Fixed subframe of the chosen order.
+        mWriter.writeBits((0x08 | bestOrder) << 1, 8);
+        for (int i = 0; i < bestOrder; i++) {
+            mWriter.writeBits(mSamples[i], BITS_PER_SAMPLE);
+        }
+        // Rice coding with 4-bit parameters.
+        estimateResidualBits(residuals, blockSize, bestOrder, bestPartitionOrder);
+        mWriter.writeBits(0, 2);
+        mWriter.writeBits(bestPartitionOrder, 4);
+        int partitions = 1 << bestPartitionOrder;
+        int partitionSize = blockSize >> bestPartitionOrder;
+        int index = bestOrder;
+        for (int p = 0; p < partitions; p++) {
+            int k = mRiceParameters[p];
+            mWriter.writeBits(k, 4);
+            int end = (p + 1) * partitionSize;
+            for (; index < end; index++) {
+                int value = residuals[index];
+                int folded = (value << 1) ^ (value >> 31);
+                mWriter.writeUnary(folded >>> k);
+                mWriter.writeBits(folded, k);
+            }
+        }
+    }
+
+    /**
+     * Compute the residuals of the fixed predictor of the given order.
+     *
+     * @return the sum of absolute residuals, used to pick the best order.
+     */
+    private long computeResiduals(int order, int blockSize) {
+        int[] s = mSamples;
+        int[] r = mResiduals[order];
+        long sum = 0;
+        for (int i = order; i < blockSize; i++) {
+            int residual;
+            switch (order) {
+                case 0:
+                    residual = s[i];
+                    break;
+                case 1:
+                    residual = s[i] - s[i - 1];
+                    break;
+                case 2:
+                    residual = s[i] - 2 * s[i - 1] + s[i - 2];
+                    break;
+                case 3:
+                    residual = s[i] - 3 * s[i - 1] + 3 * s[i - 2] - s[i - 3];
+                    break;
+                default:
+                    residual = s[i] - 4 * s[i - 1] + 6 * s[i - 2] - 4 * s[i - 3] + s[i - 4];
+                    break;
+            }
+            r[i] = residual;
+            sum += Math.abs(residual);
+        }
+        return sum;
+    }
+
+    private static boolean isValidPartitionOrder(int partitionOrder, int blockSize, int order) {
+        int partitionSize = blockSize >> partitionOrder;
+        return (partitionSize << partitionOrder) == blockSize && partitionSize > order;
+    }
+
+    /**
+     * Pick the best Rice parameter of every partition into {@link #mRiceParameters}.
+     *
+     * @return the number of bits needed to code the residual with this partition order.
+     */
+    private long estimateResidualBits(int[] residuals, int blockSize, int order,
+            int partitionOrder) {
+        int partitions = 1 << partitionOrder;
+        int partitionSize = blockSize >> partitionOrder;
+        long totalBits = 2 + 4;
+        int start = order;
+        for (int p = 0; p < partitions; p++) {
+            int end = (p + 1) * partitionSize;
+            long sum = 0;
+            for (int i = start; i < end; i++) {
+                int value = residuals[i];
+                sum += (value << 1) ^ (value >> 31);
+            }
+            int count = end - start;
+            // Estimate the parameter from the mean, then check its neighbours exactly.
+            int k = 0;
+            while (k < MAX_RICE_PARAMETER && ((long) count << (k + 1)) < sum) {
+                k++;
+            }
+            long bestBits = Long.MAX_VALUE;
+            int bestK = k;
+            for (int candidate = Math.max(0, k - 1);
+                    candidate <= Math.min(MAX_RICE_PARAMETER, k + 1); candidate++) {
+                long bits = (long) count * (candidate + 1);
+                for (int i = start; i < end; i++) {
+                    int value = residuals[i];
+                    bits += ((value << 1) ^ (value >> 31)) >>> candidate;
+                }
+                if (bits < bestBits) {
+                    bestBits = bits;
+                    bestK = candidate;
+                }
+            }
+            mRiceParameters[p] = bestK;
+            totalBits += 4 + bestBits;
+            start = end;
+        }
+        return totalBits;
+    }
+
+    private void writeUtf8Number(long value) {
+        if (value < 0x80) {
+            mWriter.writeBits((int) value, 8);
+            return;
+        }
+        int continuationBytes = 1;
+        while (value >= (1L << (5 * continuationBytes + 6))) {
+            continuationBytes++;
+        }
+        int lead = (0xff00 >> (continuationBytes + 1)) & 0xff;
+        mWriter.writeBits(lead | (int) (value >>> (6 * continuationBytes)), 8);
+        for (int i = continuationBytes - 1; i >= 0; i--) {
+            mWriter.writeBits(0x80 | (int) ((value >>> (6 * i)) & 0x3f), 8);
+        }
+    }
+
+    private static int crc8(byte[] data, int start, int end) {
+        int crc = 0;
+        for (int i = start; i < end; i++) {
+            crc ^= data[i] & 0xff;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xff : (crc << 1) & 0xff;
+            }
+        }
+        return crc;
+    }
+
+    private static int crc16(byte[] data, int start, int end) {
+        int crc = 0;
+        for (int i = start; i < end; i++) {
+            crc ^= (data[i] & 0xff) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? ((crc << 1) ^ 0x8005) & 0xffff : (crc << 1) & 0xffff;
+            }
+        }
+        return crc;
+    }
+
+    /**
+     * MSB-first bit writer over a fixed byte array.
+     */
+    private static class BitWriter {
+        private final byte[] mBuffer;
+        private int mBytes;
+        private long mAccumulator;
+        private int mAccumulatorBits;
+
+        BitWriter(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        void reset() {
+            mBytes = 0;
+            mAccumulator = 0;
+            mAccumulatorBits = 0;
+        }
+
+        void writeBits(long value, int bits) {
+            if (bits == 0) {
+                return;
+            }
+            if (bits > 32) {
+                writeBits(value >>> 32, bits - 32);
+                bits = 32;
+            }
+            mAccumulator = (mAccumulator << bits) | (value & ((1L << bits) - 1));
+            mAccumulatorBits += bits;
+            while (mAccumulatorBits >= 8) {
+                mAccumulatorBits -= 8;
+                mBuffer[mBytes++] = (byte) (mAccumulator >>> mAccumulatorBits);
+            }
+        }
+
+        void writeUnary(int zeros) {
+            while (zeros >= 32) {
+                writeBits(0, 32);
+                zeros -= 32;
+            }
+            writeBits(1, zeros + 1);
+        }
+
+        void alignToByte() {
+            if (mAccumulatorBits > 0) {
+                writeBits(0, 8 - mAccumulatorBits);
+            }
+        }
+
+        /**
+         * Bytes written so far; only meaningful when byte aligned.
+         */
+        int getByteLength() {
+            return mBytes;
+        }
+
+        byte[] getBuffer() {
+            return mBuffer;
+        }
+    }
+}
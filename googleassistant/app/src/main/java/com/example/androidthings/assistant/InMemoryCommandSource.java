@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link CommandSource} fed by hand, for running the dispenser without a network or against a
+ * simulated relay. Acknowledgements are held until {@link #flush()}, like a batched remote
+ * source.
+ */
+class InMemoryCommandSource implements CommandSource {
+    private final Set<String> mPendingAcks = new LinkedHashSet<>();
+    private final List<String> mAcknowledged = new ArrayList<>();
+    private Listener mListener;
+    private long mDefaultDurationMs;
+
+    @Override
+    public void start(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Deliver {@code command} as if it had arrived from a remote source.
+     */
+    void submit(Command command) {
+        mPendingAcks.remove(command.mKey);
+        if (mListener != null) {
+            mListener.onCommand(command);
+        }
+    }
+
+    void setDefaultDurationMs(long durationMs) {
+        mDefaultDurationMs = durationMs;
+    }
+
+    @Override
+    public long getDefaultDurationMs() {
+        return mDefaultDurationMs;
+    }
+
+    @Override
+    public void acknowledge(String key) {
+        mPendingAcks.add(key);
+    }
+
+    @Override
+    public void flush() {
+        if (mPendingAcks.isEmpty()) {
+            return;
+        }
+        List<String> keys = new ArrayList<>(mPendingAcks);
+        mPendingAcks.clear();
+        mAcknowledged.addAll(keys);
+        if (mListener != null) {
+            mListener.onAcknowledged(keys);
+        }
+    }
+
+    @Override
+    public void stop() {
+        flush();
+        mListener = null;
+    }
+
+    /**
+     * Every key flushed so far, in order.
+     */
+    List<String> getAcknowledged() {
+        return mAcknowledged;
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Template-based spotter for a few fixed phrases, running on the microphone stream.
+ *
+ * Each phrase is enrolled from a handful of recordings, kept as MFCC frame sequences. Every
+ * new frame advances a subsequence DTW against every template, so a phrase can start anywhere
+ * in the stream and be spoken between half and twice the template speed. A phrase is reported
+ * when the average frame distance of its best alignment settles below a threshold and beats
+ * the best other phrase by a margin. After a match all alignments start over, so one utterance
+ * is reported once.
+ */
+class KeywordSpotter {
+    interface Listener {
+        /**
+         * Called on the thread feeding audio.
+         *
+         * @param score average frame distance of the match; lower is better.
+         */
+        void onKeyword(String label, float score);
+    }
+
+    // Starting points that reject noise and unrelated speech; rhyming words can still pass.
+    // Retune with KeywordFixtureEvaluator on recordings from the dispenser.
+    static final float DEFAULT_THRESHOLD = 4.5f;
+    static final float DEFAULT_MARGIN = 1.5f;
+    // Template frames quieter than this, relative to the loudest one, are trimmed as silence.
+    private static final float TRIM_LOG_ENERGY = (float) Math.log(1000);
+    // A match is reported once it has not improved for this many frames, so the phrase is
+    // judged on its best alignment rather than the first one under the threshold.
+    static final int SETTLE_FRAMES = 5;
+    private static final float INFINITY = Float.MAX_VALUE / 4;
+
+    private static class Template {
+        final int mLabel;
+        final float[][] mFrames;
+        // Alignment cost and length for every template frame, for the last input frame and
+        // the one being computed.
+        float[] mCost;
+        float[] mNextCost;
+        int[] mLength;
+        int[] mNextLength;
+        // Whether the alignment reached each template frame without advancing in the template.
+        boolean[] mStayed;
+        boolean[] mNextStayed;
+
+        Template(int label, float[][] frames) {
+            mLabel = label;
+            mFrames = frames;
+            mCost = new float[frames.length];
+            mNextCost = new float[frames.length];
+            mLength = new int[frames.length];
+            mNextLength = new int[frames.length];
+            mStayed = new boolean[frames.length];
+            mNextStayed = new boolean[frames.length];
+            clear();
+        }
+
+        void clear() {
+            Arrays.fill(mCost, INFINITY);
+            Arrays.fill(mLength, 1);
+            Arrays.fill(mStayed, false);
+        }
+    }
+
+    private final Listener mListener;
+    private final float mThreshold;
+    private final float mMargin;
+    private final MfccExtractor mExtractor;
+    private final List<Template> mTemplates = new ArrayList<>();
+    private final List<String> mLabels = new ArrayList<>();
+    private float[] mLabelScores = new float[0];
+    private long mFrameCount;
+    private int mTemplateLimit = Integer.MAX_VALUE;
+    // Best match seen so far, reported once it has not improved for SETTLE_FRAMES.
+    private int mCandidate = -1;
+    private float mCandidateScore;
+    private int mFramesSinceCandidate;
+
+    /**
+     * @param threshold highest average frame distance that counts as a match.
+     * @param margin how much lower the matching phrase must score than any other phrase.
+     */
+    KeywordSpotter(int sampleRate, float threshold, float margin, Listener listener) {
+        mListener = listener;
+        mThreshold = threshold;
+        mMargin = margin;
+        mExtractor = new MfccExtractor(sampleRate, new MfccExtractor.Listener() {
+            @Override
+            public void onFrame(float[] coefficients, float logEnergy) {
+                onFeatureFrame(coefficients);
+            }
+        });
+    }
+
+    /**
+     * MFCC frames of a recording of one phrase, with leading and trailing silence trimmed.
+     */
+    static float[][] extractTemplate(short[] samples, int sampleRate) {
+        final List<float[]> frames = new ArrayList<>();
+        final List<Float> energies = new ArrayList<>();
+        MfccExtractor extractor = new MfccExtractor(sampleRate, new MfccExtractor.Listener() {
+            @Override
+            public void onFrame(float[] coefficients, float logEnergy) {
+                frames.add(coefficients.clone());
+                energies.add(logEnergy);
+            }
+        });
+        extractor.process(samples, 0, samples.length);
+        float maxEnergy = -INFINITY;
+        for (float energy : energies) {
+            maxEnergy = Math.max(maxEnergy, energy);
+        }
+        int first = 0;
+        int last = frames.size() - 1;
+        while (first < last && energies.get(first) < maxEnergy - TRIM_LOG_ENERGY) {
+            first++;
+        }
+        while (last > first && energies.get(last) < maxEnergy - TRIM_LOG_ENERGY) {
+            last--;
+        }
+        return frames.subList(first, last + 1).toArray(new float[0][]);
+    }
+
+    void addTemplate(String label, float[][] frames) {
+        if (frames.length == 0) {
+            throw new IllegalArgumentException("empty template for " + label);
+        }
+        if (!mLabels.contains(label)) {
+            mLabels.add(label);
+            mLabelScores = new float[mLabels.size()];
+        }
+        mTemplates.add(new Template(mLabels.indexOf(label), frames));
+    }
+
+    int getTemplateCount() {
+        return mTemplates.size();
+    }
+
+    /**
+     * Match against the first {@code limit} templates only, to bound the work per frame.
+     */
+    void setTemplateLimit(int limit) {
+        limit = Math.max(1, limit);
+        for (int i = limit; i < Math.min(mTemplateLimit, mTemplates.size()); i++) {
+            mTemplates.get(i).clear();
+        }
+        mTemplateLimit = limit;
+    }
+
+    int getTemplateLimit() {
+        return Math.min(mTemplateLimit, mTemplates.size());
+    }
+
+    /**
+     * Number of feature frames processed, for working out the cost per frame.
+     */
+    long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Start over for a new utterance.
+     */
+    void reset() {
+        mExtractor.reset();
+        clearAlignments();
+    }
+
+    void process(short[] samples, int offset, int count) {
+        mExtractor.process(samples, offset, count);
+    }
+
+    private void clearAlignments() {
+        for (Template template : mTemplates) {
+            template.clear();
+        }
+        mCandidate = -1;
+    }
+
+    private void onFeatureFrame(float[] frame) {
+        mFrameCount++;
+        Arrays.fill(mLabelScores, INFINITY);
+        int templates = getTemplateLimit();
+        for (int t = 0; t < templates; t++) {
+            Template template = mTemplates.get(t);
+            float score = advance(template, frame);
+            mLabelScores[template.mLabel] = Math.min(mLabelScores[template.mLabel], score);
+        }
+        int best = -1;
+        float secondScore = INFINITY;
+        for (int i = 0; i < mLabelScores.length; i++) {
+            if (best < 0 || mLabelScores[i] < mLabelScores[best]) {
+                if (best >= 0) {
+                    secondScore = mLabelScores[best];
+                }
+                best = i;
+            } else {
+                secondScore = Math.min(secondScore, mLabelScores[i]);
+            }
+        }
+        if (best >= 0 && mLabelScores[best] < mThreshold
+                && secondScore - mLabelScores[best] > mMargin
+                && (mCandidate < 0 || mLabelScores[best] < mCandidateScore)) {
+            mCandidate = best;
+            mCandidateScore = mLabelScores[best];
+            mFramesSinceCandidate = 0;
+        } else if (mCandidate >= 0 && ++mFramesSinceCandidate >= SETTLE_FRAMES) {
+            String label = mLabels.get(mCandidate);
+            float score = mCandidateScore;
+            clearAlignments();
+            mListener.onKeyword(label, score);
+        }
+    }
+
+    /**
+     * Advance the alignment of {@code template} by one input frame and return the average
+     * frame distance of the best alignment ending at its last frame.
+     */
+    private static float advance(Template template, float[] frame) {
+        float[][] frames = template.mFrames;
+        float[] cost = template.mCost;
+        int[] length = template.mLength;
+        float[] nextCost = template.mNextCost;
+        int[] nextLength = template.mNextLength;
+        boolean[] stayed = template.mStayed;
+        boolean[] nextStayed = template.mNextStayed;
+        for (int i = 0; i < frames.length; i++) {
+            float distance = distance(frame, frames[i]);
+            if (i == 0) {
+                // An alignment may start at any input frame.
+                nextCost[0] = distance;
+                nextLength[0] = 1;
+                nextStayed[0] = false;
+                continue;
+            }
+            // Each input frame advances the template by 0, 1 or 2 frames, but never by 0 twice
+            // in a row, which keeps the speed between half and twice the template's.
+            int from = i;
+            float best = stayed[i] ? INFINITY : averageCost(cost, length, i);
+            float diagonal = averageCost(cost, length, i - 1);
+            if (diagonal <= best) {
+                from = i - 1;
+                best = diagonal;
+            }
+            if (i >= 2 && averageCost(cost, length, i - 2) < best) {
+                from = i - 2;
+            }
+            if (cost[from] >= INFINITY) {
+                nextCost[i] = INFINITY;
+                nextLength[i] = 1;
+                nextStayed[i] = false;
+            } else {
+                nextCost[i] = cost[from] + distance;
+                nextLength[i] = length[from] + 1;
+                nextStayed[i] = from == i;
+            }
+        }
+        template.mCost = nextCost;
+        template.mNextCost = cost;
+        template.mLength = nextLength;
+        template.mNextLength = length;
+        template.mStayed = nextStayed;
+        template.mNextStayed = stayed;
+        int last = frames.length - 1;
+        if (nextCost[last] >= INFINITY) {
+            return INFINITY;
+        }
+        return nextCost[last] / nextLength[last];
+    }
+
+    private static float averageCost(float[] cost, int[] length, int i) {
+        return cost[i] >= INFINITY ? INFINITY : cost[i] / length[i];
+    }
+
+    /**
+     * Euclidean distance without the zeroth coefficient, which follows loudness rather than
+     * what is said.
+     */
+    private static float distance(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 1; i < a.length; i++) {
+            float difference = a[i] - b[i];
+            sum += difference * difference;
+        }
+        return (float) Math.sqrt(sum);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.content.res.AssetManager;
+import android.os.Debug;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Runs a {@link KeywordSpotter} on the request audio on its own thread, next to the upload.
+ *
+ * Templates are read from {@code <assets directory>/<phrase>/*.wav}, one directory per phrase.
+ * Audio is copied into pooled blocks on the capture thread and never blocks it: if the
+ * recognizer falls behind, blocks are dropped and counted. A single thread drains the filled
+ * blocks, so feeding allocates nothing.
+ */
+class LocalCommandRecognizer {
+    private static final String TAG = LocalCommandRecognizer.class.getSimpleName();
+
+    private static final int BLOCK_POOL_SIZE = 16;
+
+    private static class Block {
+        final short[] mSamples;
+        int mCount;
+        // Utterance the samples belong to, so the spotter is reset in order with the audio.
+        int mUtterance;
+
+        Block(int samples) {
+            mSamples = new short[samples];
+        }
+    }
+
+    private final int mSampleRate;
+    private final int mBlockSamples;
+    private final KeywordSpotter mSpotter;
+    private final ArrayBlockingQueue<Block> mFreeBlocks;
+    private final ArrayBlockingQueue<Block> mFilledBlocks;
+    private final Thread mThread;
+
+    private volatile int mUtterance;
+    private volatile long mCpuNanos;
+    private volatile long mSamplesProcessed;
+    private volatile long mDroppedBlocks;
+
+    /**
+     * @param blockBytes largest chunk of audio passed to {@link #feed(ByteBuffer)}.
+     */
+    LocalCommandRecognizer(int sampleRate, int blockBytes, KeywordSpotter.Listener listener) {
+        mSampleRate = sampleRate;
+        mBlockSamples = blockBytes / 2;
+        mSpotter = new KeywordSpotter(sampleRate, KeywordSpotter.DEFAULT_THRESHOLD,
+                KeywordSpotter.DEFAULT_MARGIN, listener);
+        mFreeBlocks = new ArrayBlockingQueue<>(BLOCK_POOL_SIZE);
+        mFilledBlocks = new ArrayBlockingQueue<>(BLOCK_POOL_SIZE);
+        for (int i = 0; i < BLOCK_POOL_SIZE; i++) {
+            mFreeBlocks.offer(new Block(mBlockSamples));
+        }
+        mThread = new Thread(mRecognizeLoop, "keywordThread");
+        mThread.start();
+    }
+
+    /**
+     * Enroll every phrase found under {@code directory}. Must be called before any audio is
+     * fed.
+     *
+     * @return the number of templates loaded.
+     */
+    int loadTemplates(AssetManager assets, String directory) throws IOException {
+        String[] phrases = assets.list(directory);
+        if (phrases == null) {
+            return 0;
+        }
+        for (String phrase : phrases) {
+            String[] files = assets.list(directory + "/" + phrase);
+            if (files == null) {
+                continue;
+            }
+            for (String file : files) {
+                if (!file.endsWith(".wav")) {
+                    continue;
+                }
+                try (InputStream in = assets.open(directory + "/" + phrase + "/" + file)) {
+                    WavReader wav = WavReader.read(in);
+                    if (wav.mSampleRate != mSampleRate) {
+                        Log.w(TAG, "skipping " + file + ": " + wav.mSampleRate + " Hz");
+                        continue;
+                    }
+                    mSpotter.addTemplate(phrase,
+                            KeywordSpotter.extractTemplate(wav.mSamples, wav.mSampleRate));
+                }
+            }
+        }
+        return mSpotter.getTemplateCount();
+    }
+
+    /**
+     * Start matching a new utterance.
+     */
+    void startUtterance() {
+        mUtterance++;
+    }
+
+    /**
+     * Queue the samples remaining in {@code audioData}, leaving its position untouched.
+     */
+    void feed(ByteBuffer audioData) {
+        Block block = mFreeBlocks.poll();
+        if (block == null) {
+            mDroppedBlocks++;
+            return;
+        }
+        int offset = audioData.position();
+        int count = Math.min(mBlockSamples, audioData.remaining() / 2);
+        for (int i = 0; i < count; i++) {
+            block.mSamples[i] = (short) ((audioData.get(offset + 2 * i) & 0xff)
+                    | (audioData.get(offset + 2 * i + 1) << 8));
+        }
+        block.mCount = count;
+        block.mUtterance = mUtterance;
+        // Never fails: there are no more blocks than the queue holds.
+        mFilledBlocks.offer(block);
+    }
+
+    void release() {
+        mThread.interrupt();
+    }
+
+    /**
+     * CPU time spent per second of audio processed, in microseconds.
+     */
+    long getCpuMicrosPerSecond() {
+        long samples = mSamplesProcessed;
+        return samples == 0 ? 0 : mCpuNanos / 1000 * mSampleRate / samples;
+    }
+
+    long getDroppedBlocks() {
+        return mDroppedBlocks;
+    }
+
+    private final Runnable mRecognizeLoop = new Runnable() {
+        @Override
+        public void run() {
+            int utterance = 0;
+            try {
+                while (true) {
+                    Block block = mFilledBlocks.take();
+                    long cpuStart = Debug.threadCpuTimeNanos();
+                    if (block.mUtterance != utterance) {
+                        utterance = block.mUtterance;
+                        mSpotter.reset();
+                    }
+                    mSpotter.process(block.mSamples, 0, block.mCount);
+                    mCpuNanos += Debug.threadCpuTimeNanos() - cpuStart;
+                    mSamplesProcessed += block.mCount;
+                    mFreeBlocks.offer(block);
+                }
+            } catch (InterruptedException e) {
+                // Released.
+            }
+        }
+    };
+}
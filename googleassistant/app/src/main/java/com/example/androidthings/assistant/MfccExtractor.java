@@ -0,0 +1,236 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.util.Arrays;
+
+/**
+ * Streaming mel-frequency cepstral coefficients of 16-bit PCM.
+ *
+ * Audio is cut into 25 ms Hamming-windowed frames every 10 ms. Each frame goes through a
+ * radix-2 FFT, a triangular mel filterbank and a DCT. A slow running mean is subtracted from
+ * the coefficients, which removes the microphone and room colouring so templates recorded on
+ * one device match speech on another. All tables and buffers are allocated up front.
+ */
+class MfccExtractor {
+    interface Listener {
+        /**
+         * Called for every frame. {@code coefficients} is reused for the next frame.
+         *
+         * @param logEnergy natural log of the frame energy, before normalization.
+         */
+        void onFrame(float[] coefficients, float logEnergy);
+    }
+
+    static final int COEFFICIENTS = 13;
+    private static final int MEL_FILTERS = 26;
+    private static final float PRE_EMPHASIS = 0.97f;
+    private static final float LOW_FREQUENCY = 60f;
+    // Weight of a new frame in the running mean; about one second of speech.
+    private static final float MEAN_WEIGHT = 0.01f;
+    private static final float ENERGY_FLOOR = 1e-6f;
+
+    private final Listener mListener;
+    private final int mFrameLength;
+    private final int mHopLength;
+    private final int mFftSize;
+    private final float[] mWindow;
+    private final int[] mBitReverse;
+    private final float[] mCos;
+    private final float[] mSin;
+    private final int[] mFilterStart;
+    private final float[][] mFilterWeights;
+    private final float[][] mDct;
+
+    // Last mFrameLength pre-emphasized samples, oldest at mHistoryPosition.
+    private final float[] mHistory;
+    private int mHistoryPosition;
+    private int mSamplesUntilFrame;
+    private float mLastSample;
+    private final float[] mReal;
+    private final float[] mImaginary;
+    private final float[] mMelEnergies = new float[MEL_FILTERS];
+    private final float[] mCoefficients = new float[COEFFICIENTS];
+    private final float[] mMean = new float[COEFFICIENTS];
+    private boolean mMeanInitialized;
+
+    MfccExtractor(int sampleRate, Listener listener) {
+        mListener = listener;
+        mFrameLength = sampleRate * 25 / 1000;
+        mHopLength = sampleRate / 100;
+        int fftSize = 1;
+        while (fftSize < mFrameLength) {
+            fftSize <<= 1;
+        }
+        mFftSize = fftSize;
+        mHistory = new float[mFrameLength];
+        mReal = new float[fftSize];
+        mImaginary = new float[fftSize];
+
+        mWindow = new float[mFrameLength];
+        for (int i = 0; i < mFrameLength; i++) {
+            mWindow[i] = (float) (0.54 - 0.46 * Math.cos(2 * Math.PI * i / (mFrameLength - 1)));
+        }
+        int bits = Integer.numberOfTrailingZeros(fftSize);
+        mBitReverse = new int[fftSize];
+        for (int i = 0; i < fftSize; i++) {
+            mBitReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        mCos = new float[fftSize / 2];
+        mSin = new float[fftSize / 2];
+        for (int i = 0; i < fftSize / 2; i++) {
+            mCos[i] = (float) Math.cos(2 * Math.PI * i / fftSize);
+            mSin[i] = (float) -Math.sin(2 * Math.PI * i / fftSize);
+        }
+
+        // Triangular filters evenly spaced on the mel scale between LOW_FREQUENCY and Nyquist.
+        int bins = fftSize / 2 + 1;
+        double lowMel = toMel(LOW_FREQUENCY);
+        double highMel = toMel(sampleRate / 2.0);
+        double[] edges = new double[MEL_FILTERS + 2];
+        for (int i = 0; i < edges.length; i++) {
+            double mel = lowMel + (highMel - lowMel) * i / (MEL_FILTERS + 1);
+            edges[i] = fromMel(mel) * fftSize / sampleRate;
+        }
+        mFilterStart = new int[MEL_FILTERS];
+        mFilterWeights = new float[MEL_FILTERS][];
+        for (int f = 0; f < MEL_FILTERS; f++) {
+            int start = (int) Math.ceil(edges[f]);
+            int end = Math.min(bins - 1, (int) Math.floor(edges[f + 2]));
+            mFilterStart[f] = start;
+            mFilterWeights[f] = new float[Math.max(0, end - start + 1)];
+            for (int b = start; b <= end; b++) {
+                double weight = b <= edges[f + 1]
+                        ? (b - edges[f]) / (edges[f + 1] - edges[f])
+                        : (edges[f + 2] - b) / (edges[f + 2] - edges[f + 1]);
+                mFilterWeights[f][b - start] = (float) Math.max(0, weight);
+            }
+        }
+        mDct = new float[COEFFICIENTS][MEL_FILTERS];
+        for (int c = 0; c < COEFFICIENTS; c++) {
+            for (int f = 0; f < MEL_FILTERS; f++) {
+                mDct[c][f] = (float) (Math.sqrt(2.0 / MEL_FILTERS)
+                        * Math.cos(Math.PI * c * (f + 0.5) / MEL_FILTERS));
+            }
+        }
+        reset();
+    }
+
+    /**
+     * Forget all buffered audio and the running mean, e.g. at the start of a new utterance.
+     */
+    void reset() {
+        Arrays.fill(mHistory, 0);
+        mHistoryPosition = 0;
+        mSamplesUntilFrame = mFrameLength;
+        mLastSample = 0;
+        Arrays.fill(mMean, 0);
+        mMeanInitialized = false;
+    }
+
+    void process(short[] samples, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            float sample = samples[i] / 32768f;
+            mHistory[mHistoryPosition] = sample - PRE_EMPHASIS * mLastSample;
+            mLastSample = sample;
+            if (++mHistoryPosition == mFrameLength) {
+                mHistoryPosition = 0;
+            }
+            if (--mSamplesUntilFrame == 0) {
+                mSamplesUntilFrame = mHopLength;
+                computeFrame();
+            }
+        }
+    }
+
+    private void computeFrame() {
+        float[] real = mReal;
+        float[] imaginary = mImaginary;
+        for (int i = 0; i < mFftSize; i++) {
+            real[i] = 0;
+            imaginary[i] = 0;
+        }
+        float energy = ENERGY_FLOOR;
+        for (int i = 0; i < mFrameLength; i++) {
+            int index = mHistoryPosition + i;
+            float sample = mHistory[index < mFrameLength ? index : index - mFrameLength];
+            energy += sample * sample;
+            real[mBitReverse[i]] = sample * mWindow[i];
+        }
+        fft(real, imaginary);
+
+        for (int f = 0; f < MEL_FILTERS; f++) {
+            float[] weights = mFilterWeights[f];
+            int start = mFilterStart[f];
+            float sum = ENERGY_FLOOR;
+            for (int k = 0; k < weights.length; k++) {
+                float re = real[start + k];
+                float im = imaginary[start + k];
+                sum += weights[k] * (re * re + im * im);
+            }
+            mMelEnergies[f] = (float) Math.log(sum);
+        }
+        for (int c = 0; c < COEFFICIENTS; c++) {
+            float[] basis = mDct[c];
+            float sum = 0;
+            for (int f = 0; f < MEL_FILTERS; f++) {
+                sum += basis[f] * mMelEnergies[f];
+            }
+            if (!mMeanInitialized) {
+                mMean[c] = sum;
+            } else {
+                mMean[c] += MEAN_WEIGHT * (sum - mMean[c]);
+            }
+            mCoefficients[c] = sum - mMean[c];
+        }
+        mMeanInitialized = true;
+        mListener.onFrame(mCoefficients, (float) Math.log(energy));
+    }
+
+    /**
+     * In-place iterative radix-2 FFT of input already in bit-reversed order.
+     */
+    private void fft(float[] real, float[] imaginary) {
+        int n = mFftSize;
+        for (int size = 2; size <= n; size <<= 1) {
+            int half = size >> 1;
+            int step = n / size;
+            for (int start = 0; start < n; start += size) {
+                for (int k = 0; k < half; k++) {
+                    float cos = mCos[k * step];
+                    float sin = mSin[k * step];
+                    int even = start + k;
+                    int odd = even + half;
+                    float re = real[odd] * cos - imaginary[odd] * sin;
+                    float im = real[odd] * sin + imaginary[odd] * cos;
+                    real[odd] = real[even] - re;
+                    imaginary[odd] = imaginary[even] - im;
+                    real[even] += re;
+                    imaginary[even] += im;
+                }
+            }
+        }
+    }
+
+    private static double toMel(double frequency) {
+        return 2595 * Math.log10(1 + frequency / 700);
+    }
+
+    private static double fromMel(double mel) {
+        return 700 * (Math.pow(10, mel / 2595) - 1);
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Incremental Ogg demuxer for a single Opus logical stream.
+ *
+ * Input may be split at arbitrary byte boundaries (as gRPC delivers it); complete packets are
+ * reported as soon as the page carrying their last segment has arrived. The first packet is the
+ * OpusHead identification header, the second one (OpusTags) is skipped and every following packet
+ * is an audio packet.
+ */
+class OggOpusDemuxer {
+    private static final int PAGE_HEADER_SIZE = 27;
+    private static final int OPUS_HEAD_MIN_SIZE = 19;
+    private static final byte[] CAPTURE_PATTERN = {'O', 'g', 'g', 'S'};
+    // Frame sizes at 48 kHz by the configuration in the TOC byte, RFC 6716 section 3.1: SILK
+    // 10, 20, 40 or 60 ms, hybrid 10 or 20 ms, CELT 2.5, 5, 10 or 20 ms.
+    private static final int[] SILK_FRAME_SAMPLES = {480, 960, 1920, 2880};
+    private static final int[] HYBRID_FRAME_SAMPLES = {480, 960};
+    private static final int[] CELT_FRAME_SAMPLES = {120, 240, 480, 960};
+
+    interface Listener {
+        /**
+         * Called once per stream with the raw OpusHead packet.
+         */
+        void onOpusHead(byte[] opusHead, int length, int channelCount, int preSkip);
+
+        /**
+         * Called for every audio packet. The array is reused once this method returns.
+         */
+        void onOpusPacket(byte[] packet, int length);
+    }
+
+    private final Listener mListener;
+    private byte[] mPending = new byte[8192];
+    private int mPendingLength;
+    private byte[] mPacket = new byte[4096];
+    private int mPacketLength;
+    private int mPacketIndex;
+
+    OggOpusDemuxer(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Forget any partial page or packet, ready for a new stream.
+     */
+    void reset() {
+        mPendingLength = 0;
+        mPacketLength = 0;
+        mPacketIndex = 0;
+    }
+
+    void feed(ByteBuffer data) {
+        int length = data.remaining();
+        mPending = ensureCapacity(mPending, mPendingLength + length);
+        data.get(mPending, mPendingLength, length);
+        mPendingLength += length;
+
+        int offset = 0;
+        while (true) {
+            int pageSize = parsePage(offset);
+            if (pageSize < 0) {
+                // Lost sync: skip a byte and look for the next capture pattern.
+                offset++;
+                continue;
+            }
+            if (pageSize == 0) {
+                break;
+            }
+            offset += pageSize;
+        }
+        System.arraycopy(mPending, offset, mPending, 0, mPendingLength - offset);
+        mPendingLength -= offset;
+    }
+
+    /**
+     * Parse the page starting at {@code offset}.
+     *
+     * @return the page size, 0 if more data is needed or -1 if no page starts at this offset.
+     */
+    private int parsePage(int offset) {
+        int available = mPendingLength - offset;
+        if (available < PAGE_HEADER_SIZE) {
+            return 0;
+        }
+        for (int i = 0; i < CAPTURE_PATTERN.length; i++) {
+            if (mPending[offset + i] != CAPTURE_PATTERN[i]) {
+                return -1;
+            }
+        }
+        int segmentCount = mPending[offset + 26] & 0xff;
+        int headerSize = PAGE_HEADER_SIZE + segmentCount;
+        if (available < headerSize) {
+            return 0;
+        }
+        int bodySize = 0;
+        for (int i = 0; i < segmentCount; i++) {
+            bodySize += mPending[offset + PAGE_HEADER_SIZE + i] & 0xff;
+        }
+        if (available < headerSize + bodySize) {
+            return 0;
+        }
+        boolean continued = (mPending[offset + 5] & 0x01) != 0;
+        if (!continued) {
+            mPacketLength = 0;
+        }
+        int bodyOffset = offset + headerSize;
+        for (int i = 0; i < segmentCount; i++) {
+            int lacing = mPending[offset + PAGE_HEADER_SIZE + i] & 0xff;
+            mPacket = ensureCapacity(mPacket, mPacketLength + lacing);
+            System.arraycopy(mPending, bodyOffset, mPacket, mPacketLength, lacing);
+            mPacketLength += lacing;
+            bodyOffset += lacing;
+            if (lacing < 255) {
+                onPacket();
+                mPacketLength = 0;
+            }
+        }
+        return headerSize + bodySize;
+    }
+
+    private void onPacket() {
+        switch (mPacketIndex++) {
+            case 0:
+                if (mPacketLength >= OPUS_HEAD_MIN_SIZE) {
+                    int channelCount = mPacket[9] & 0xff;
+                    int preSkip = (mPacket[10] & 0xff) | ((mPacket[11] & 0xff) << 8);
+                    mListener.onOpusHead(mPacket, mPacketLength, channelCount, preSkip);
+                }
+                break;
+            case 1:
+                // OpusTags carries no audio.
+                break;
+            default:
+                mListener.onOpusPacket(mPacket, mPacketLength);
+                break;
+        }
+    }
+
+    /**
+     * Duration of an Opus audio packet from its TOC byte and frame count.
+     *
+     * @return the number of samples at 48 kHz, or 0 if the packet is malformed.
+     */
+    static int getPacketSamples(byte[] packet, int length) {
+        if (length < 1) {
+            return 0;
+        }
+        int config = (packet[0] & 0xff) >> 3;
+        int frameSamples;
+        if (config < 12) {
+            frameSamples = SILK_FRAME_SAMPLES[config % 4];
+        } else if (config < 16) {
+            frameSamples = HYBRID_FRAME_SAMPLES[config % 2];
+        } else {
+            frameSamples = CELT_FRAME_SAMPLES[config % 4];
+        }
+        int frameCount;
+        switch (packet[0] & 0x03) {
+            case 0:
+                frameCount = 1;
+                break;
+            case 1:
+            case 2:
+                frameCount = 2;
+                break;
+            default:
+                // Code 3 packets carry the frame count in their second byte.
+                if (length < 2) {
+                    return 0;
+                }
+                frameCount = packet[1] & 0x3f;
+                break;
+        }
+        return frameSamples * frameCount;
+    }
+
+    private static byte[] ensureCapacity(byte[] array, int size) {
+        if (array.length >= size) {
+            return array;
+        }
+        return Arrays.copyOf(array, Math.max(size, array.length * 2));
+    }
+}
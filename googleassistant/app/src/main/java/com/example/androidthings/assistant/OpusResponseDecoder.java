@@ -0,0 +1,291 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.google.android.things.contrib.voicehat.PolyphaseResampler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes OPUS_IN_OGG response audio into PCM for the {@link AudioPlaybackEngine}.
+ *
+ * Response chunks are demuxed and decoded on a dedicated thread as they arrive, so playback starts
+ * with the first Opus packet instead of the end of the response. The platform Opus decoder always
+ * produces 48 kHz audio, which is resampled to the playback rate before it is queued. At the
+ * end of a response the codec is drained of its last frames before playback is told the stream
+ * ended. The resampled frames are written into pooled buffers, which the playback engine hands
+ * back once it is done with them, so decoding allocates nothing per frame.
+ */
+class OpusResponseDecoder implements OggOpusDemuxer.Listener {
+    private static final String TAG = OpusResponseDecoder.class.getSimpleName();
+
+    private static final int OPUS_SAMPLE_RATE = 48000;
+    private static final long SEEK_PRE_ROLL_NS = 80000000L;
+    private static final long CODEC_TIMEOUT_US = 10000;
+    // How many CODEC_TIMEOUT_US waits for a codec buffer before the codec is taken as stuck.
+    private static final int MAX_CODEC_WAITS = 50;
+    private static final int RESAMPLER_BASE_TAPS = 16;
+    private static final int MAX_FRAME_SAMPLES = OPUS_SAMPLE_RATE * 120 / 1000;
+    // Enough 20 ms frames for the deepest jitter buffer; more are allocated and counted.
+    private static final int PCM_POOL_SIZE = 32;
+
+    private final AudioPlaybackEngine mPlaybackEngine;
+    private final OggOpusDemuxer mDemuxer = new OggOpusDemuxer(this);
+    private final PolyphaseResampler mResampler;
+    private final short[] mDecoded = new short[MAX_FRAME_SAMPLES];
+    private final short[] mResampled;
+    private final AudioBufferPool mPcmPool;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private final HandlerThread mDecoderThread;
+    private final Handler mDecoderHandler;
+    private MediaCodec mCodec;
+    private long mPresentationTimeUs;
+
+    // Changed by startResponse() on the caller's thread, so chunks of an abandoned response
+    // still waiting for this thread are dropped instead of played.
+    private volatile int mResponseId;
+    private volatile long mTurnEncodedBytes;
+
+    OpusResponseDecoder(AudioPlaybackEngine playbackEngine, int outputSampleRate) {
+        mPlaybackEngine = playbackEngine;
+        mResampler = new PolyphaseResampler(OPUS_SAMPLE_RATE, outputSampleRate,
+                RESAMPLER_BASE_TAPS);
+        mResampled = new short[(int) ((long) MAX_FRAME_SAMPLES * outputSampleRate
+                / OPUS_SAMPLE_RATE) + 2];
+        mPcmPool = new AudioBufferPool(PCM_POOL_SIZE, mResampled.length * 2);
+        mPlaybackEngine.setBufferPool(mPcmPool);
+        mDecoderThread = new HandlerThread("opusDecoderThread");
+        mDecoderThread.start();
+        mDecoderHandler = new Handler(mDecoderThread.getLooper());
+    }
+
+    /**
+     * Prepare for a new response and drop what is left of the previous one; every response is
+     * a separate Ogg stream.
+     */
+    void startResponse() {
+        mResponseId++;
+        mDecoderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mDemuxer.reset();
+                mResampler.reset();
+                releaseCodec();
+                mTurnEncodedBytes = 0;
+            }
+        });
+    }
+
+    void decode(final ByteBuffer encoded) {
+        final int responseId = mResponseId;
+        mDecoderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (responseId != mResponseId) {
+                    return;
+                }
+                mTurnEncodedBytes += encoded.remaining();
+                mDemuxer.feed(encoded);
+            }
+        });
+    }
+
+    /**
+     * Mark the end of the response once every chunk posted so far has been decoded and the
+     * codec has returned its last frames.
+     */
+    void endOfStream() {
+        final int responseId = mResponseId;
+        mDecoderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (responseId != mResponseId) {
+                    return;
+                }
+                drainToEndOfStream();
+                mPlaybackEngine.endOfStream();
+                Log.d(TAG, "opus response: " + mTurnEncodedBytes + " bytes, pcm buffers allocated: "
+                        + mPcmPool.getAllocationCount());
+            }
+        });
+    }
+
+    void release() {
+        mDecoderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseCodec();
+            }
+        });
+        mDecoderThread.quitSafely();
+    }
+
+    @Override
+    public void onOpusHead(byte[] opusHead, int length, int channelCount, int preSkip) {
+        releaseCodec();
+        if (channelCount != 1) {
+            Log.w(TAG, "only mono opus responses are supported, got " + channelCount);
+            return;
+        }
+        MediaFormat format = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_OPUS,
+                OPUS_SAMPLE_RATE, channelCount);
+        ByteBuffer head = ByteBuffer.allocate(length);
+        head.put(opusHead, 0, length).flip();
+        format.setByteBuffer("csd-0", head);
+        format.setByteBuffer("csd-1", nanosBuffer(preSkip * 1000000000L / OPUS_SAMPLE_RATE));
+        format.setByteBuffer("csd-2", nanosBuffer(SEEK_PRE_ROLL_NS));
+        try {
+            mCodec = MediaCodec.createDecoderByType(MediaFormat.MIMETYPE_AUDIO_OPUS);
+            mCodec.configure(format, null, null, 0);
+            mCodec.start();
+            mPresentationTimeUs = 0;
+        } catch (IOException | IllegalStateException e) {
+            Log.e(TAG, "error creating opus decoder:", e);
+            releaseCodec();
+        }
+    }
+
+    @Override
+    public void onOpusPacket(byte[] packet, int length) {
+        if (mCodec == null) {
+            return;
+        }
+        int inputIndex = dequeueInputBuffer();
+        if (inputIndex < 0) {
+            Log.e(TAG, "opus decoder stuck, dropping packet");
+            return;
+        }
+        ByteBuffer input = mCodec.getInputBuffer(inputIndex);
+        input.clear();
+        input.put(packet, 0, length);
+        mCodec.queueInputBuffer(inputIndex, 0, length, mPresentationTimeUs, 0);
+        mPresentationTimeUs += OggOpusDemuxer.getPacketSamples(packet, length) * 1000000L
+                / OPUS_SAMPLE_RATE;
+        drainOutput(false);
+    }
+
+    /**
+     * Wait for a free input buffer, passing on decoded output meanwhile so the codec can
+     * release one.
+     *
+     * @return its index, or -1 if none came free within MAX_CODEC_WAITS waits.
+     */
+    private int dequeueInputBuffer() {
+        for (int i = 0; i < MAX_CODEC_WAITS; i++) {
+            int inputIndex = mCodec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+            if (inputIndex >= 0) {
+                return inputIndex;
+            }
+            drainOutput(false);
+        }
+        return -1;
+    }
+
+    /**
+     * Signal the end of the input and pass on everything the codec still holds. The codec is
+     * released afterwards; the next response brings its own OpusHead.
+     */
+    private void drainToEndOfStream() {
+        if (mCodec == null) {
+            return;
+        }
+        int inputIndex = dequeueInputBuffer();
+        if (inputIndex < 0) {
+            Log.e(TAG, "opus decoder stuck, end of response may be cut off");
+        } else {
+            mCodec.queueInputBuffer(inputIndex, 0, 0, mPresentationTimeUs,
+                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            drainOutput(true);
+        }
+        releaseCodec();
+    }
+
+    /**
+     * Pass on the decoded output. Without {@code untilEndOfStream} only what is ready now;
+     * with it, wait for the buffer carrying the end-of-stream flag.
+     */
+    private void drainOutput(boolean untilEndOfStream) {
+        int waits = 0;
+        while (true) {
+            int outputIndex = mCodec.dequeueOutputBuffer(mBufferInfo,
+                    untilEndOfStream ? CODEC_TIMEOUT_US : 0);
+            if (outputIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED
+                    || outputIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                continue;
+            }
+            if (outputIndex < 0) {
+                if (!untilEndOfStream) {
+                    return;
+                }
+                if (++waits >= MAX_CODEC_WAITS) {
+                    Log.e(TAG, "opus decoder did not reach end of stream");
+                    return;
+                }
+                continue;
+            }
+            waits = 0;
+            ByteBuffer output = mCodec.getOutputBuffer(outputIndex);
+            output.order(ByteOrder.nativeOrder());
+            int position = mBufferInfo.offset;
+            int end = mBufferInfo.offset + mBufferInfo.size;
+            while (end - position >= 2) {
+                int count = Math.min((end - position) / 2, mDecoded.length);
+                for (int i = 0; i < count; i++, position += 2) {
+                    mDecoded[i] = output.getShort(position);
+                }
+                int resampledCount = mResampler.process(mDecoded, 0, count, mResampled, 0);
+                ByteBuffer pcm = mPcmPool.acquire();
+                pcm.order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < resampledCount; i++) {
+                    pcm.putShort(mResampled[i]);
+                }
+                pcm.flip();
+                mPlaybackEngine.enqueue(pcm);
+            }
+            mCodec.releaseOutputBuffer(outputIndex, false);
+            if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return;
+            }
+        }
+    }
+
+    private void releaseCodec() {
+        if (mCodec != null) {
+            try {
+                mCodec.stop();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "error stopping opus decoder:", e);
+            }
+            mCodec.release();
+            mCodec = null;
+        }
+    }
+
+    private static ByteBuffer nanosBuffer(long nanos) {
+        ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+        buffer.putLong(nanos).flip();
+        return buffer;
+    }
+}
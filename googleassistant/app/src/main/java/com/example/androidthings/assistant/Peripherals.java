@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+/**
+ * The dispenser's push button, LED and candy relay, so the app does not drive GPIO itself.
+ *
+ * Writes that fail are reported by the implementation and otherwise ignored: a stuck LED must
+ * not end a turn.
+ */
+interface Peripherals {
+    interface ButtonListener {
+        /**
+         * Called on the main thread when the button is pressed or released.
+         */
+        void onButton(boolean pressed);
+    }
+
+    void setButtonListener(ButtonListener listener);
+
+    void setLed(boolean on);
+
+    void toggleLed();
+
+    /**
+     * Switch the relay. Called on the pulse engine's thread, which times the pulse around it.
+     */
+    void setRelay(boolean active);
+
+    void close();
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-size ring holding the most recent captured audio.
+ *
+ * The capture thread keeps writing into it while no request is active, so the audio spoken just
+ * before (and while) the button is pressed can be sent at the start of the next request. Older
+ * audio is overwritten; nothing is allocated after construction.
+ */
+class PreRollBuffer {
+    private final byte[] mRing;
+    private int mWritePosition;
+    private int mSize;
+
+    PreRollBuffer(int capacityBytes) {
+        mRing = new byte[capacityBytes];
+    }
+
+    /**
+     * Append the bytes remaining in {@code data}, leaving its position untouched.
+     */
+    void write(ByteBuffer data) {
+        int position = data.position();
+        int length = data.remaining();
+        if (length > mRing.length) {
+            data.position(position + length - mRing.length);
+            length = mRing.length;
+        }
+        int firstPart = Math.min(length, mRing.length - mWritePosition);
+        data.get(mRing, mWritePosition, firstPart);
+        data.get(mRing, 0, length - firstPart);
+        data.position(position);
+        mWritePosition = (mWritePosition + length) % mRing.length;
+        mSize = Math.min(mRing.length, mSize + length);
+    }
+
+    /**
+     * Move the buffered audio, oldest first, into {@code out} and empty the ring. The number of
+     * bytes moved is rounded down to whole 16-bit samples.
+     *
+     * @return the number of bytes written to {@code out}.
+     */
+    int drainTo(ByteBuffer out) {
+        int length = Math.min(mSize, out.remaining()) & ~1;
+        int start = (mWritePosition - length + mRing.length) % mRing.length;
+        int firstPart = Math.min(length, mRing.length - start);
+        out.put(mRing, start, firstPart);
+        out.put(mRing, 0, length - firstPart);
+        clear();
+        return length;
+    }
+
+    /**
+     * Drop all but the newest {@code length} bytes, e.g. the audio before a wake word.
+     */
+    void keepLast(int length) {
+        mSize = Math.min(mSize, Math.max(0, length));
+    }
+
+    void clear() {
+        mSize = 0;
+        mWritePosition = 0;
+    }
+
+    int getCapacity() {
+        return mRing.length;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives timed pulses on an output such as the candy relay from a dedicated thread.
+ *
+ * Deadlines are taken from a monotonic clock and the thread sleeps until shortly before one,
+ * then spins, so main thread work and timer slack cannot stretch a pulse. How early it wakes
+ * follows the measured wake-up latency. The output is
+ * assumed to switch when a write returns; the time writes take is measured, and the switch-off
+ * write is started early by its running average. Each pulse's actual duration is compared to
+ * the requested one and the error is recorded; pulses cut short by {@link #stop()} are reported
+ * as interrupted and left out.
+ */
+class PulseTimingEngine {
+    interface Output {
+        void setActive(boolean active);
+    }
+
+    interface Clock {
+        long nanoTime();
+
+        void sleepNanos(long nanos) throws InterruptedException;
+    }
+
+    interface Callback {
+        /**
+         * Called on the engine thread once the output is off again.
+         */
+        void onPulseFinished(long requestedNanos, long actualNanos);
+
+        /**
+         * Called on the engine thread when {@link #stop()} switched the output off before the
+         * pulse was due to end.
+         */
+        void onPulseInterrupted(long requestedNanos, long actualNanos);
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleepNanos(long nanos) throws InterruptedException {
+            LockSupport.parkNanos(nanos);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    };
+
+    // The thread sleeps until this long before a deadline, then spins. The margin grows to the
+    // worst wake-up latency seen and decays back slowly while wake-ups are punctual.
+    private static final long MIN_SPIN_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_SPIN_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int SPIN_DECAY_SHIFT = 5;
+    // Weight of a new write latency sample in the running average, as a shift.
+    private static final int LATENCY_AVERAGE_SHIFT = 3;
+
+    private static class Pulse {
+        final long mDurationNanos;
+        final Callback mCallback;
+
+        Pulse(long durationNanos, Callback callback) {
+            mDurationNanos = durationNanos;
+            mCallback = callback;
+        }
+    }
+
+    private final Output mOutput;
+    private final Clock mClock;
+    private final LinkedBlockingQueue<Pulse> mPulses = new LinkedBlockingQueue<>();
+    // Actual minus requested duration, split by sign since the histogram takes no negatives.
+    private final LatencyHistogram mOvershootNanos = new LatencyHistogram();
+    private final LatencyHistogram mUndershootNanos = new LatencyHistogram();
+    private final LatencyHistogram mWriteNanos = new LatencyHistogram();
+    private long mAverageOffWriteNanos;
+    private long mSpinNanos = MIN_SPIN_NANOS;
+    private Thread mThread;
+
+    PulseTimingEngine(Output output, Clock clock) {
+        mOutput = output;
+        mClock = clock;
+    }
+
+    synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        runPulse(mPulses.take());
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped.
+                }
+            }
+        }, "relayPulseThread");
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Stop the engine. A pulse in progress is cut short, so the output is always left off.
+     */
+    synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mThread.interrupt();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    /**
+     * Queue a pulse; pulses run back to back in the order they are queued.
+     */
+    void pulse(long durationMs, Callback callback) {
+        mPulses.add(new Pulse(TimeUnit.MILLISECONDS.toNanos(durationMs), callback));
+    }
+
+    /**
+     * Pulses that ran longer than requested, by how many nanoseconds.
+     */
+    LatencyHistogram getOvershootNanos() {
+        return mOvershootNanos;
+    }
+
+    /**
+     * Pulses that ran shorter than requested, by how many nanoseconds.
+     */
+    LatencyHistogram getUndershootNanos() {
+        return mUndershootNanos;
+    }
+
+    LatencyHistogram getWriteNanos() {
+        return mWriteNanos;
+    }
+
+    private void runPulse(Pulse pulse) throws InterruptedException {
+        long onTime = write(true);
+        // Start the switch-off write early so that it returns at the deadline.
+        long deadline = onTime + pulse.mDurationNanos - mAverageOffWriteNanos;
+        boolean completed = false;
+        try {
+            waitUntil(deadline);
+            completed = true;
+        } finally {
+            long offTime = write(false);
+            long actual = offTime - onTime;
+            if (completed) {
+                long error = actual - pulse.mDurationNanos;
+                if (error >= 0) {
+                    mOvershootNanos.record(error);
+                } else {
+                    mUndershootNanos.record(-error);
+                }
+                pulse.mCallback.onPulseFinished(pulse.mDurationNanos, actual);
+            } else {
+                // Says nothing about the timing, so kept out of the histograms.
+                pulse.mCallback.onPulseInterrupted(pulse.mDurationNanos, actual);
+            }
+        }
+    }
+
+    /**
+     * Write the output and return the time the write completed.
+     */
+    private long write(boolean active) {
+        long start = mClock.nanoTime();
+        mOutput.setActive(active);
+        long end = mClock.nanoTime();
+        mWriteNanos.record(end - start);
+        if (!active) {
+            mAverageOffWriteNanos += (end - start - mAverageOffWriteNanos)
+                    >> LATENCY_AVERAGE_SHIFT;
+        }
+        return end;
+    }
+
+    private void waitUntil(long deadline) throws InterruptedException {
+        long remaining = deadline - mClock.nanoTime();
+        if (remaining > mSpinNanos) {
+            long wakeUp = deadline - mSpinNanos;
+            mClock.sleepNanos(remaining - mSpinNanos);
+            long lateNanos = mClock.nanoTime() - wakeUp;
+            if (lateNanos > mSpinNanos) {
+                mSpinNanos = Math.min(MAX_SPIN_NANOS, lateNanos);
+            } else {
+                mSpinNanos = Math.max(MIN_SPIN_NANOS,
+                        mSpinNanos - (mSpinNanos >> SPIN_DECAY_SHIFT));
+            }
+        }
+        while (deadline - mClock.nanoTime() > 0) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import com.google.assistant.embedded.v1alpha1.ConverseRequest;
+import com.google.assistant.embedded.v1alpha1.ConverseResponse;
+import com.google.assistant.embedded.v1alpha1.EmbeddedAssistantGrpc;
+import com.google.protobuf.ByteString;
+
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+
+import io.grpc.Status;
+import io.grpc.stub.CallStreamObserver;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * A Converse call that survives the loss of its stream while the user is still talking.
+ *
+ * It takes the requests like the stream returned by the stub and keeps a copy of the config and
+ * of the audio sent so far, up to {@link #MAX_REPLAY_BYTES}. If the stream fails to connect
+ * before the Assistant answered, a new stream is opened after the {@link ChannelManager}'s
+ * backoff and the copy is sent on it, followed by the audio that arrived meanwhile; the response
+ * observer only sees the stream that made it. Events such as END_OF_UTTERANCE can be repeated by
+ * a replay, but once a result, audio or error has been received the call is no longer replayed.
+ *
+ * A stream that gets no answer within {@link #RESPONSE_TIMEOUT_MS} of being half-closed is
+ * treated as failed too, since a dead connection can otherwise take the keepalive timeout to
+ * notice. It is replayed like any other early failure, or fails with DEADLINE_EXCEEDED if the
+ * utterance was too long to keep.
+ *
+ * If the audio outgrows the copy while waiting to retry, the call fails with the status of the
+ * failed stream rather than replaying a truncated utterance.
+ *
+ * The on-ready handler and message compression carry over to every stream. A compressible call
+ * offers gzip on each stream but compresses nothing until {@link #setMessageCompression} turns
+ * it on. Inbound flow control is left automatic, since it cannot carry over a replay.
+ */
+class ReplayingConverseCall implements StreamObserver<ConverseRequest> {
+    static final int MAX_ATTEMPTS = 3;
+    // 8 seconds of 16 kHz LINEAR16; longer utterances are not replayed.
+    static final int MAX_REPLAY_BYTES = 256 * 1024;
+    static final long RESPONSE_TIMEOUT_MS = 5000;
+    private static final int INITIAL_REPLAY_BYTES = 32 * 1024;
+    // Replayed audio is sent in messages of this size, 100 ms of 16 kHz LINEAR16.
+    private static final int REPLAY_MESSAGE_BYTES = 3200;
+    private static final String COMPRESSOR = "gzip";
+
+    private final ChannelManager mChannelManager;
+    private final StreamObserver<ConverseResponse> mResponseObserver;
+    private final boolean mCompressible;
+    private volatile Runnable mOnReadyHandler;
+
+    // Guarded by mLock.
+    private final Object mLock = new Object();
+    private ConverseRequest mConfig;
+    private byte[] mAudio = new byte[INITIAL_REPLAY_BYTES];
+    private int mAudioBytes;
+    // Cleared once an answer arrived or the audio outgrew the copy.
+    private boolean mReplayable = true;
+    private boolean mAnswered;
+    private boolean mHalfClosed;
+    private boolean mCancelled;
+    private boolean mFinished;
+    private boolean mMessageCompression;
+    private int mAttemptCount;
+    // Failure of the last stream, set while waiting to retry.
+    private Status mRetryStatus;
+    // Null while waiting to retry and once finished.
+    private Attempt mAttempt;
+    private StreamObserver<ConverseRequest> mRequestObserver;
+    private ScheduledFuture<?> mResponseTimeout;
+
+    ReplayingConverseCall(ChannelManager channelManager,
+            StreamObserver<ConverseResponse> responseObserver, boolean compressible) {
+        mChannelManager = channelManager;
+        mResponseObserver = responseObserver;
+        mCompressible = compressible;
+    }
+
+    void start() {
+        synchronized (mLock) {
+            startAttemptLocked();
+        }
+    }
+
+    /**
+     * Number of streams opened so far, 1 unless the call was replayed.
+     */
+    int getAttemptCount() {
+        synchronized (mLock) {
+            return mAttemptCount;
+        }
+    }
+
+    @Override
+    public void onNext(ConverseRequest request) {
+        Status failed = null;
+        synchronized (mLock) {
+            if (request.getConverseRequestCase() == ConverseRequest.ConverseRequestCase.CONFIG) {
+                mConfig = request;
+            } else if (mReplayable) {
+                // The audio may wrap a buffer the caller reuses, so copy it.
+                ByteString audio = request.getAudioIn();
+                if (mAudioBytes + audio.size() > MAX_REPLAY_BYTES) {
+                    releaseReplayLocked();
+                    if (mRetryStatus != null && mRequestObserver == null) {
+                        // The retry could only send the config and the rest of the audio.
+                        failed = mRetryStatus;
+                        finishLocked();
+                    }
+                } else {
+                    if (mAudioBytes + audio.size() > mAudio.length) {
+                        mAudio = Arrays.copyOf(mAudio, Math.min(MAX_REPLAY_BYTES,
+                                Math.max(mAudio.length * 2, mAudioBytes + audio.size())));
+                    }
+                    audio.copyTo(mAudio, mAudioBytes);
+                    mAudioBytes += audio.size();
+                }
+            }
+            if (mRequestObserver != null) {
+                mRequestObserver.onNext(request);
+            }
+        }
+        if (failed != null) {
+            mResponseObserver.onError(failed.asRuntimeException());
+        }
+    }
+
+    @Override
+    public void onCompleted() {
+        synchronized (mLock) {
+            mHalfClosed = true;
+            if (mRequestObserver != null) {
+                mRequestObserver.onCompleted();
+                startResponseTimeoutLocked();
+            }
+        }
+    }
+
+    /**
+     * Cancel the call, even if the request has been half-closed. The response observer gets
+     * the error once, whether a stream is open or a retry is pending.
+     */
+    @Override
+    public void onError(Throwable t) {
+        synchronized (mLock) {
+            if (mCancelled || mFinished) {
+                return;
+            }
+            mCancelled = true;
+            if (mRequestObserver != null) {
+                // The stream fails with CANCELLED, which is passed on.
+                mRequestObserver.onError(t);
+                return;
+            }
+            finishLocked();
+        }
+        mResponseObserver.onError(Status.CANCELLED.withCause(t).asRuntimeException());
+    }
+
+    /**
+     * Return false while the current stream cannot take more without buffering, or while
+     * waiting to retry.
+     */
+    boolean isReady() {
+        synchronized (mLock) {
+            return mRequestObserver instanceof CallStreamObserver
+                    && ((CallStreamObserver<ConverseRequest>) mRequestObserver).isReady();
+        }
+    }
+
+    /**
+     * Run {@code onReadyHandler} on a gRPC thread whenever the current stream becomes ready,
+     * including a replayed one. Can be set at any time.
+     */
+    void setOnReadyHandler(Runnable onReadyHandler) {
+        mOnReadyHandler = onReadyHandler;
+    }
+
+    /**
+     * Compress the messages sent from now on, on this stream and any replay. Only has an effect
+     * on a compressible call.
+     */
+    void setMessageCompression(boolean enable) {
+        synchronized (mLock) {
+            mMessageCompression = enable;
+            if (mRequestObserver instanceof CallStreamObserver) {
+                ((CallStreamObserver<ConverseRequest>) mRequestObserver)
+                        .setMessageCompression(enable);
+            }
+        }
+    }
+
+    private void startAttemptLocked() {
+        mAttemptCount++;
+        mRetryStatus = null;
+        mAttempt = new Attempt();
+        EmbeddedAssistantGrpc.EmbeddedAssistantStub stub = mChannelManager.getAssistantService();
+        if (mCompressible) {
+            stub = stub.withCompression(COMPRESSOR);
+        }
+        mRequestObserver = stub.converse(mAttempt);
+        if (mRequestObserver instanceof CallStreamObserver) {
+            ((CallStreamObserver<ConverseRequest>) mRequestObserver)
+                    .setMessageCompression(mMessageCompression);
+        }
+        if (mAttemptCount == 1) {
+            return;
+        }
+        if (mConfig != null) {
+            mRequestObserver.onNext(mConfig);
+        }
+        for (int offset = 0; offset < mAudioBytes; offset += REPLAY_MESSAGE_BYTES) {
+            mRequestObserver.onNext(ConverseRequest.newBuilder()
+                    .setAudioIn(ByteString.copyFrom(mAudio, offset,
+                            Math.min(REPLAY_MESSAGE_BYTES, mAudioBytes - offset)))
+                    .build());
+        }
+        mChannelManager.addReplayedBytes(mAudioBytes);
+        if (mHalfClosed) {
+            mRequestObserver.onCompleted();
+            startResponseTimeoutLocked();
+        }
+    }
+
+    private void startResponseTimeoutLocked() {
+        final Attempt attempt = mAttempt;
+        if (mAnswered || attempt == null) {
+            // The answer has started; it is up to the caller how long it may take.
+            return;
+        }
+        mResponseTimeout = mChannelManager.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    if (attempt != mAttempt || mAnswered) {
+                        return;
+                    }
+                    attempt.mTimedOut = true;
+                    mRequestObserver.onError(Status.DEADLINE_EXCEEDED
+                            .withDescription("no response").asRuntimeException());
+                }
+            }
+        }, RESPONSE_TIMEOUT_MS);
+    }
+
+    private void cancelResponseTimeoutLocked() {
+        if (mResponseTimeout != null) {
+            mResponseTimeout.cancel(false);
+            mResponseTimeout = null;
+        }
+    }
+
+    private void releaseReplayLocked() {
+        mReplayable = false;
+        mAudio = null;
+        mAudioBytes = 0;
+    }
+
+    private void finishLocked() {
+        mAttempt = null;
+        mRequestObserver = null;
+        mFinished = true;
+        releaseReplayLocked();
+        cancelResponseTimeoutLocked();
+    }
+
+    private final Runnable mRetry = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                if (!mFinished) {
+                    startAttemptLocked();
+                }
+            }
+        }
+    };
+
+    /**
+     * Receives the responses of one stream and passes them on while it is the current one.
+     */
+    private class Attempt implements ClientResponseObserver<ConverseRequest, ConverseResponse> {
+        // Cancelled by the response timeout, which counts as a connection failure. Guarded by
+        // mLock.
+        private boolean mTimedOut;
+
+        @Override
+        public void beforeStart(ClientCallStreamObserver<ConverseRequest> requestStream) {
+            requestStream.setOnReadyHandler(new Runnable() {
+                @Override
+                public void run() {
+                    Runnable onReadyHandler = mOnReadyHandler;
+                    if (onReadyHandler != null && isCurrent()) {
+                        onReadyHandler.run();
+                    }
+                }
+            });
+        }
+
+        private boolean isCurrent() {
+            synchronized (mLock) {
+                return this == mAttempt;
+            }
+        }
+
+        @Override
+        public void onNext(ConverseResponse value) {
+            synchronized (mLock) {
+                if (this != mAttempt) {
+                    return;
+                }
+                if (value.getConverseResponseCase()
+                        != ConverseResponse.ConverseResponseCase.EVENT_TYPE) {
+                    mAnswered = true;
+                    releaseReplayLocked();
+                    cancelResponseTimeoutLocked();
+                }
+            }
+            mResponseObserver.onNext(value);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            Status status;
+            boolean retry;
+            int attemptCount;
+            synchronized (mLock) {
+                if (this != mAttempt) {
+                    return;
+                }
+                status = mTimedOut ? Status.DEADLINE_EXCEEDED.withCause(t)
+                        : Status.fromThrowable(t);
+                cancelResponseTimeoutLocked();
+                mAttempt = null;
+                mRequestObserver = null;
+                attemptCount = mAttemptCount;
+                retry = !mCancelled && mReplayable && mAttemptCount < MAX_ATTEMPTS
+                        && ChannelManager.isConnectionFailure(status);
+                if (retry) {
+                    mRetryStatus = status;
+                }
+            }
+            mChannelManager.onCallResult(status);
+            if (retry && mChannelManager.scheduleRetry(attemptCount + 1, status, mRetry)) {
+                return;
+            }
+            synchronized (mLock) {
+                if (mFinished) {
+                    // Already failed by audio that outgrew the copy.
+                    return;
+                }
+                finishLocked();
+            }
+            mResponseObserver.onError(status.asRuntimeException());
+        }
+
+        @Override
+        public void onCompleted() {
+            synchronized (mLock) {
+                if (this != mAttempt) {
+                    return;
+                }
+                finishLocked();
+            }
+            mChannelManager.onCallResult(Status.OK);
+            mResponseObserver.onCompleted();
+        }
+    }
+}
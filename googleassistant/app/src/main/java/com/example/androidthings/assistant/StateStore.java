@@ -0,0 +1,400 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Small key-value store for state that should survive a restart, such as the conversation
+ * state and the volume.
+ *
+ * Values live in memory and puts never wait for the disk, so they can be made from audio and
+ * gRPC threads. A writer thread saves a snapshot once changes have been quiet for
+ * {@link #COALESCE_MS}, so a burst of changes costs one write. A snapshot is written with a
+ * checksum to a temporary file, synced and then renamed over the previous one; on load a
+ * complete temporary file wins, so a crash at any point leaves the newest complete snapshot.
+ * The file is read on the first get or save, not on construction.
+ */
+class StateStore {
+    interface Listener {
+        /**
+         * Called on the writer thread when saving failed; it is retried after
+         * {@link #RETRY_MS}.
+         */
+        void onSaveFailed(IOException e);
+    }
+
+    static final long COALESCE_MS = 200;
+    // Longest a change waits for the changes after it to stop.
+    private static final long MAX_DELAY_MS = 2000;
+    private static final long RETRY_MS = 5000;
+    private static final int MAGIC = 0x53544131; // "STA1"
+    private static final byte TYPE_BYTES = 'B';
+    private static final byte TYPE_LONG = 'J';
+    private static final byte TYPE_FLOAT = 'F';
+
+    private final File mFile;
+    private final File mTmpFile;
+    private final Listener mListener;
+    private final Object mLoadLock = new Object();
+    private volatile boolean mLoaded;
+
+    // Guarded by mLock.
+    private final Object mLock = new Object();
+    private final Map<String, Object> mValues = new HashMap<>();
+    private long mVersion;
+    private long mSavedVersion;
+    private long mFirstUnsavedNanos;
+    private long mLastChangeNanos;
+    private boolean mFlushRequested;
+    private boolean mClosed;
+    private Thread mWriterThread;
+    private long mSaves;
+    private long mSaveFailures;
+    private long mLastSaveNanos;
+
+    StateStore(File file, Listener listener) {
+        mFile = file;
+        mTmpFile = new File(file.getPath() + ".tmp");
+        mListener = listener;
+    }
+
+    /**
+     * @return the stored array, which must not be modified, or null.
+     */
+    byte[] getBytes(String key) {
+        Object value = get(key);
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    long getLong(String key, long defaultValue) {
+        Object value = get(key);
+        return value instanceof Long ? (Long) value : defaultValue;
+    }
+
+    float getFloat(String key, float defaultValue) {
+        Object value = get(key);
+        return value instanceof Float ? (Float) value : defaultValue;
+    }
+
+    /**
+     * Store {@code value} without copying it; it must not be modified afterwards.
+     */
+    void putBytes(String key, byte[] value) {
+        put(key, value);
+    }
+
+    void putLong(String key, long value) {
+        put(key, value);
+    }
+
+    void putFloat(String key, float value) {
+        put(key, value);
+    }
+
+    /**
+     * Save pending changes now and wait for them to be on disk.
+     *
+     * @return false if they were not saved within {@code timeoutMs}.
+     */
+    boolean flush(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        synchronized (mLock) {
+            mFlushRequested = true;
+            mLock.notifyAll();
+            long version = mVersion;
+            while (mSavedVersion < version) {
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMs <= 0) {
+                    return false;
+                }
+                mLock.wait(remainingMs);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Flush and stop the writer thread. Changes made afterwards are not saved.
+     *
+     * @return false if pending changes could not be saved within {@code timeoutMs}.
+     */
+    boolean close(long timeoutMs) throws InterruptedException {
+        boolean flushed = flush(timeoutMs);
+        synchronized (mLock) {
+            mClosed = true;
+            mLock.notifyAll();
+        }
+        return flushed;
+    }
+
+    long getSaveCount() {
+        synchronized (mLock) {
+            return mSaves;
+        }
+    }
+
+    /**
+     * Number of puts that changed a value; compare with {@link #getSaveCount()} to see how
+     * much was coalesced.
+     */
+    long getChangeCount() {
+        synchronized (mLock) {
+            return mVersion;
+        }
+    }
+
+    long getSaveFailureCount() {
+        synchronized (mLock) {
+            return mSaveFailures;
+        }
+    }
+
+    long getLastSaveMicros() {
+        synchronized (mLock) {
+            return mLastSaveNanos / 1000;
+        }
+    }
+
+    private Object get(String key) {
+        ensureLoaded();
+        synchronized (mLock) {
+            return mValues.get(key);
+        }
+    }
+
+    private void put(String key, Object value) {
+        synchronized (mLock) {
+            Object old = mValues.get(key);
+            if (value.equals(old) || (value instanceof byte[] && old instanceof byte[]
+                    && Arrays.equals((byte[]) value, (byte[]) old))) {
+                return;
+            }
+            mValues.put(key, value);
+            long now = System.nanoTime();
+            if (mSavedVersion == mVersion) {
+                mFirstUnsavedNanos = now;
+            }
+            mLastChangeNanos = now;
+            mVersion++;
+            if (mWriterThread == null && !mClosed) {
+                mWriterThread = new Thread(mWriter, "stateStoreThread");
+                mWriterThread.start();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Read the file once. Values put before that are newer and are kept.
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        synchronized (mLoadLock) {
+            if (mLoaded) {
+                return;
+            }
+            Map<String, Object> stored = read(mTmpFile);
+            if (stored == null) {
+                stored = read(mFile);
+            }
+            synchronized (mLock) {
+                if (stored != null) {
+                    for (Map.Entry<String, Object> entry : stored.entrySet()) {
+                        if (!mValues.containsKey(entry.getKey())) {
+                            mValues.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+                mLoaded = true;
+            }
+        }
+    }
+
+    /**
+     * @return the snapshot in {@code file}, or null if it is missing, torn or unreadable.
+     */
+    private static Map<String, Object> read(File file) {
+        byte[] data;
+        try (InputStream in = new FileInputStream(file)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            int read;
+            while ((read = in.read(chunk)) > 0) {
+                bytes.write(chunk, 0, read);
+            }
+            data = bytes.toByteArray();
+        } catch (IOException e) {
+            // Missing or unreadable; the other file or the defaults are used instead.
+            return null;
+        }
+        if (data.length < 8) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 8);
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            int count = in.readInt();
+            Map<String, Object> values = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                byte type = in.readByte();
+                if (type == TYPE_BYTES) {
+                    byte[] value = new byte[in.readInt()];
+                    in.readFully(value);
+                    values.put(key, value);
+                } else if (type == TYPE_LONG) {
+                    values.put(key, in.readLong());
+                } else if (type == TYPE_FLOAT) {
+                    values.put(key, in.readFloat());
+                } else {
+                    return null;
+                }
+            }
+            return in.readLong() == crc.getValue() ? values : null;
+        } catch (IOException | NegativeArraySizeException e) {
+            return null;
+        }
+    }
+
+    private void write(Map<String, Object> values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(values.size());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            out.writeUTF(entry.getKey());
+            Object value = entry.getValue();
+            if (value instanceof byte[]) {
+                out.writeByte(TYPE_BYTES);
+                out.writeInt(((byte[]) value).length);
+                out.write((byte[]) value);
+            } else if (value instanceof Long) {
+                out.writeByte(TYPE_LONG);
+                out.writeLong((Long) value);
+            } else {
+                out.writeByte(TYPE_FLOAT);
+                out.writeFloat((Float) value);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeLong(crc.getValue());
+        try (FileOutputStream file = new FileOutputStream(mTmpFile)) {
+            bytes.writeTo(file);
+            file.getFD().sync();
+        }
+        if (!mTmpFile.renameTo(mFile)) {
+            throw new IOException("could not replace " + mFile);
+        }
+    }
+
+    private final Runnable mWriter = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Map<String, Object> snapshot;
+                    long version;
+                    synchronized (mLock) {
+                        while (mSavedVersion == mVersion && !mClosed) {
+                            mLock.wait();
+                        }
+                        if (mSavedVersion == mVersion) {
+                            mWriterThread = null;
+                            return;
+                        }
+                        // Let a burst of changes finish, but do not wait for it forever.
+                        while (!mFlushRequested && !mClosed) {
+                            long now = System.nanoTime();
+                            long waitNanos = Math.min(
+                                    TimeUnit.MILLISECONDS.toNanos(COALESCE_MS)
+                                            - (now - mLastChangeNanos),
+                                    TimeUnit.MILLISECONDS.toNanos(MAX_DELAY_MS)
+                                            - (now - mFirstUnsavedNanos));
+                            if (waitNanos <= 0) {
+                                break;
+                            }
+                            mLock.wait(TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1);
+                        }
+                        mFlushRequested = false;
+                    }
+                    // Values on disk that were never put must be written back too.
+                    ensureLoaded();
+                    synchronized (mLock) {
+                        snapshot = new HashMap<>(mValues);
+                        version = mVersion;
+                    }
+                    long start = System.nanoTime();
+                    IOException failure = null;
+                    try {
+                        write(snapshot);
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                    synchronized (mLock) {
+                        if (failure == null) {
+                            mSavedVersion = version;
+                            mSaves++;
+                            mLastSaveNanos = System.nanoTime() - start;
+                            // Changes made while writing start a new batch.
+                            mFirstUnsavedNanos = System.nanoTime();
+                            mLock.notifyAll();
+                            continue;
+                        }
+                        mSaveFailures++;
+                    }
+                    if (mListener != null) {
+                        mListener.onSaveFailed(failure);
+                    }
+                    synchronized (mLock) {
+                        if (!mClosed) {
+                            mLock.wait(RETRY_MS);
+                        }
+                        if (mClosed) {
+                            mWriterThread = null;
+                            return;
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                synchronized (mLock) {
+                    mWriterThread = null;
+                }
+            }
+        }
+    };
+}
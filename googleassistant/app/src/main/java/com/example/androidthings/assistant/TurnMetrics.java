@@ -0,0 +1,171 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per-turn latency timeline for the converse pipeline.
+ *
+ * Each turn is stamped with monotonic timestamps as it passes the {@link Stage}s; stamps may come
+ * from any thread and only the first stamp of a stage counts. When the turn finishes, the time
+ * from the button press to every stage reached is recorded in a per-stage
+ * {@link LatencyHistogram}. Histograms and counters can be dumped as text to compare builds.
+ */
+class TurnMetrics {
+    enum Stage {
+        BUTTON_PRESS,
+        FIRST_AUDIO_SENT,
+        LOCAL_KEYWORD,
+        HALF_CLOSE,
+        END_OF_UTTERANCE,
+        RESULT,
+        FIRST_AUDIO_OUT,
+        FIRST_AUDIO_PLAYED,
+        COMPLETED,
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+    private static final long NANOS_PER_MICRO = 1000;
+
+    private final AtomicLongArray mStamps = new AtomicLongArray(STAGES.length);
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[STAGES.length];
+    private final long[] mLastTurn = new long[STAGES.length];
+    private final Map<String, Long> mCounters = new TreeMap<>();
+    private boolean mTurnOpen;
+    private long mTurnCount;
+
+    TurnMetrics() {
+        for (int i = 0; i < STAGES.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+            mLastTurn[i] = -1;
+        }
+    }
+
+    /**
+     * Start a new turn at {@code pressedNanos} on the {@link System#nanoTime()} clock,
+     * finishing the previous turn first if it is still open.
+     */
+    synchronized void startTurn(long pressedNanos) {
+        if (mTurnOpen) {
+            finishTurn();
+        }
+        for (int i = 0; i < STAGES.length; i++) {
+            mStamps.set(i, 0);
+        }
+        mStamps.set(Stage.BUTTON_PRESS.ordinal(), pressedNanos);
+        mTurnOpen = true;
+    }
+
+    /**
+     * Stamp {@code stage} of the current turn with the current time, unless it already is.
+     */
+    void mark(Stage stage) {
+        mStamps.compareAndSet(stage.ordinal(), 0, System.nanoTime());
+    }
+
+    /**
+     * Record the stages reached by the current turn. Does nothing if no turn is open.
+     *
+     * @return whether a turn was finished.
+     */
+    synchronized boolean finishTurn() {
+        if (!mTurnOpen) {
+            return false;
+        }
+        mTurnOpen = false;
+        mTurnCount++;
+        long start = mStamps.get(Stage.BUTTON_PRESS.ordinal());
+        for (int i = 0; i < STAGES.length; i++) {
+            long stamp = mStamps.get(i);
+            if (stamp == 0 || stamp < start) {
+                mLastTurn[i] = -1;
+                continue;
+            }
+            mLastTurn[i] = (stamp - start) / NANOS_PER_MICRO;
+            mHistograms[i].record(mLastTurn[i]);
+        }
+        return true;
+    }
+
+    synchronized void setCounter(String name, long value) {
+        mCounters.put(name, value);
+    }
+
+    /**
+     * Microseconds from the button press to every stage of the last finished turn, indexed by
+     * {@link Stage#ordinal()}, or -1 for stages it did not reach.
+     */
+    synchronized long[] getLastTurnMicros() {
+        return mLastTurn.clone();
+    }
+
+    LatencyHistogram getHistogram(Stage stage) {
+        return mHistograms[stage.ordinal()];
+    }
+
+    /**
+     * Write a text report of all stages and counters. Times are milliseconds since the button
+     * press.
+     */
+    synchronized void dump(PrintWriter writer) {
+        writer.println("turns: " + mTurnCount);
+        writer.println(String.format("%-20s %8s %9s %9s %9s %9s %9s %9s",
+                "stage", "count", "min", "p50", "p90", "p99", "max", "last"));
+        for (int i = 1; i < STAGES.length; i++) {
+            LatencyHistogram histogram = mHistograms[i];
+            writer.println(String.format("%-20s %8d %9.1f %9.1f %9.1f %9.1f %9.1f %9s",
+                    STAGES[i].name().toLowerCase(),
+                    histogram.getCount(),
+                    histogram.getMin() / 1000.0,
+                    histogram.getValueAtPercentile(50) / 1000.0,
+                    histogram.getValueAtPercentile(90) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0,
+                    histogram.getMax() / 1000.0,
+                    mLastTurn[i] < 0 ? "-" : String.format("%.1f", mLastTurn[i] / 1000.0)));
+        }
+        for (Map.Entry<String, Long> counter : mCounters.entrySet()) {
+            writer.println(counter.getKey() + ": " + counter.getValue());
+        }
+    }
+
+    /**
+     * Replace {@code file} with a fresh report. The report is written to a temporary file first,
+     * so readers never see a partial dump.
+     */
+    void dumpToFile(File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream os = new FileOutputStream(tempFile)) {
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(os, "UTF-8"));
+            dump(writer);
+            writer.flush();
+            if (writer.checkError()) {
+                throw new IOException("error writing " + tempFile);
+            }
+        }
+        if (!tempFile.renameTo(file)) {
+            throw new IOException("could not replace " + file);
+        }
+    }
+}
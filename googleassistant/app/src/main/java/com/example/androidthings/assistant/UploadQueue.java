@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Upload messages waiting for the gRPC transport to become ready.
+ *
+ * gRPC buffers whatever is sent while its transport is not ready, without a bound, so on a slow
+ * uplink the audio piles up in memory and reaches the Assistant later and later. Messages are
+ * queued here instead, in slots allocated up front, and sent once the transport asks for more.
+ * When the queue is full the caller applies its {@link Policy}.
+ *
+ * Records the queue depth whenever a message is queued, and how long each stall lasted: from
+ * the first message queued until the queue is empty again. Not thread safe.
+ */
+class UploadQueue {
+    /**
+     * What to do with new audio while the queue is full.
+     */
+    enum Policy {
+        // Drop the oldest queued message to make room; the Assistant hears a gap.
+        DROP_OLDEST,
+        // Turn on gzip compression of the call's messages, then drop the oldest as above. The
+        // server must accept gzip-compressed requests.
+        COMPRESS,
+        // Drop the new audio and end the utterance, so the Assistant answers what it got.
+        END_UTTERANCE
+    }
+
+    private final ByteBuffer[] mSlots;
+    private final boolean[] mKeep;
+    private int mHead;
+    private int mSize;
+    private long mStallStartNanos;
+    private long mDroppedMessages;
+    private long mDroppedBytes;
+    private final LatencyHistogram mDepths = new LatencyHistogram();
+    private final LatencyHistogram mStallMicros = new LatencyHistogram();
+
+    UploadQueue(int capacity, int maxMessageBytes) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        }
+        mSlots = new ByteBuffer[capacity];
+        mKeep = new boolean[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mSlots[i] = ByteBuffer.allocateDirect(maxMessageBytes);
+        }
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    boolean isFull() {
+        return mSize == mSlots.length;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Copy the bytes remaining in {@code message} to the back of the queue. A message with
+     * {@code keep} set, such as the one carrying the FLAC stream header, is never dropped.
+     *
+     * @return false if the queue is full.
+     */
+    boolean offer(ByteBuffer message, boolean keep) {
+        if (isFull()) {
+            return false;
+        }
+        int index = (mHead + mSize) % mSlots.length;
+        ByteBuffer slot = mSlots[index];
+        slot.clear();
+        slot.put(message.duplicate());
+        slot.flip();
+        mKeep[index] = keep;
+        if (mSize == 0) {
+            mStallStartNanos = System.nanoTime();
+        }
+        mSize++;
+        mDepths.record(mSize);
+        return true;
+    }
+
+    /**
+     * @return the message at the front of the queue, valid until it is removed, or null.
+     */
+    ByteBuffer peek() {
+        return mSize > 0 ? mSlots[mHead] : null;
+    }
+
+    /**
+     * Remove the message at the front of the queue, after it was sent.
+     */
+    void remove() {
+        if (mSize == 0) {
+            return;
+        }
+        mHead = (mHead + 1) % mSlots.length;
+        mSize--;
+        if (mSize == 0) {
+            mStallMicros.record((System.nanoTime() - mStallStartNanos) / 1000);
+        }
+    }
+
+    /**
+     * Drop the oldest message that may be dropped.
+     *
+     * @return false if there was none.
+     */
+    boolean dropOldest() {
+        for (int i = 0; i < mSize; i++) {
+            int index = (mHead + i) % mSlots.length;
+            if (mKeep[index]) {
+                continue;
+            }
+            countDropped(mSlots[index].remaining());
+            // Close the gap by moving the kept messages before it one slot back.
+            for (int j = i; j > 0; j--) {
+                int to = (mHead + j) % mSlots.length;
+                int from = (mHead + j - 1) % mSlots.length;
+                ByteBuffer slot = mSlots[to];
+                mSlots[to] = mSlots[from];
+                mSlots[from] = slot;
+                mKeep[to] = mKeep[from];
+            }
+            mHead = (mHead + 1) % mSlots.length;
+            mSize--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Account for a message of {@code bytes} that was dropped without being queued.
+     */
+    void countDropped(int bytes) {
+        mDroppedMessages++;
+        mDroppedBytes += bytes;
+    }
+
+    /**
+     * Forget the queued messages, e.g. when a new request starts.
+     */
+    void clear() {
+        if (mSize > 0) {
+            mStallMicros.record((System.nanoTime() - mStallStartNanos) / 1000);
+        }
+        mHead = 0;
+        mSize = 0;
+    }
+
+    long getDroppedMessages() {
+        return mDroppedMessages;
+    }
+
+    long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    /**
+     * Distribution of the queue depth, in messages, each time a message was queued.
+     */
+    LatencyHistogram getDepths() {
+        return mDepths;
+    }
+
+    /**
+     * Distribution of how long the transport held the upload up, in microseconds.
+     */
+    LatencyHistogram getStallMicros() {
+        return mStallMicros;
+    }
+}
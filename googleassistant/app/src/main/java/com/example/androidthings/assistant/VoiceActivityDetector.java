@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Energy based voice activity detector for 16-bit mono PCM chunks.
+ *
+ * A chunk counts as speech when its energy is well above a tracked noise floor and its
+ * zero-crossing rate is low enough to rule out broadband hiss. Speech only starts after a few
+ * consecutive speech chunks, so clicks do not trigger it. Once speech has started the detector
+ * reports how much silence has followed it.
+ */
+class VoiceActivityDetector {
+    // Speech must be this many times (10 dB) louder than the noise floor.
+    private static final float SPEECH_TO_NOISE_RATIO = 10f;
+    // Mean square energy below which a chunk is always silence (about -60 dBFS).
+    private static final float MIN_SPEECH_ENERGY = 1000f;
+    private static final float MAX_SPEECH_ZERO_CROSSING_RATE = 0.35f;
+    private static final float NOISE_FLOOR_ADAPTATION = 0.05f;
+    private static final int ONSET_CHUNKS = 2;
+
+    private final int mSampleRate;
+    private float mNoiseFloor = MIN_SPEECH_ENERGY / SPEECH_TO_NOISE_RATIO;
+    private int mSpeechChunks;
+    private boolean mSpeechStarted;
+    private long mTrailingSilenceSamples;
+
+    VoiceActivityDetector(int sampleRate) {
+        mSampleRate = sampleRate;
+    }
+
+    /**
+     * Forget the current utterance but keep the learned noise floor.
+     */
+    void reset() {
+        mSpeechChunks = 0;
+        mSpeechStarted = false;
+        mTrailingSilenceSamples = 0;
+    }
+
+    /**
+     * Classify the samples remaining in {@code pcm}, leaving its position untouched.
+     *
+     * @return true if the chunk contains speech.
+     */
+    boolean process(ByteBuffer pcm) {
+        int offset = pcm.position();
+        int count = pcm.remaining() / 2;
+        if (count == 0) {
+            return false;
+        }
+        double energy = 0;
+        int zeroCrossings = 0;
+        short previous = 0;
+        for (int i = 0; i < count; i++) {
+            short sample = (short) ((pcm.get(offset + 2 * i) & 0xff)
+                    | (pcm.get(offset + 2 * i + 1) << 8));
+            energy += sample * sample;
+            if ((sample ^ previous) < 0) {
+                zeroCrossings++;
+            }
+            previous = sample;
+        }
+        float meanEnergy = (float) (energy / count);
+        float zeroCrossingRate = (float) zeroCrossings / count;
+
+        boolean speech = meanEnergy > MIN_SPEECH_ENERGY
+                && meanEnergy > mNoiseFloor * SPEECH_TO_NOISE_RATIO
+                && zeroCrossingRate < MAX_SPEECH_ZERO_CROSSING_RATE;
+        if (!speech) {
+            if (meanEnergy < mNoiseFloor) {
+                mNoiseFloor = meanEnergy;
+            } else {
+                mNoiseFloor += (meanEnergy - mNoiseFloor) * NOISE_FLOOR_ADAPTATION;
+            }
+        }
+
+        if (speech) {
+            mSpeechChunks++;
+            if (mSpeechChunks >= ONSET_CHUNKS) {
+                mSpeechStarted = true;
+            }
+            mTrailingSilenceSamples = 0;
+        } else {
+            mSpeechChunks = 0;
+            if (mSpeechStarted) {
+                mTrailingSilenceSamples += count;
+            }
+        }
+        return speech;
+    }
+
+    boolean hasSpeechStarted() {
+        return mSpeechStarted;
+    }
+
+    /**
+     * Milliseconds of silence since the last speech chunk, or 0 before speech has started.
+     */
+    long getTrailingSilenceMs() {
+        return mTrailingSilenceSamples * 1000 / mSampleRate;
+    }
+}
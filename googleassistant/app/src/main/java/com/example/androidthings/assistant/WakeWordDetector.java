@@ -0,0 +1,268 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Listens for a wake word in the captured audio while no request is running.
+ *
+ * A {@link VoiceActivityDetector} gates the {@link KeywordSpotter}: in silence only the chunk
+ * energy is computed. When speech starts, the spotter is fed the last {@link #LEAD_IN_MS} of
+ * audio and then every chunk until {@link #HOLD_MS} of silence. The measured cost per feature
+ * frame is held under a budget by matching against fewer templates when it runs over, and
+ * more again once there is room, so the detector can run on the capture thread.
+ */
+class WakeWordDetector {
+    // Stricter than KeywordSpotter.DEFAULT_THRESHOLD: there is no other phrase to beat and a
+    // false accept opens the microphone to the cloud. Retune with WakeWordEvaluator.
+    static final float DEFAULT_THRESHOLD = 3.5f;
+    // A tenth of a core on the capture thread.
+    static final long DEFAULT_FRAME_BUDGET_NANOS = 1000000;
+    private static final String LABEL = "wake";
+    // Audio kept from before the gate opens, so the spotter sees the onset of the word.
+    private static final int LEAD_IN_MS = 200;
+    // Silence tolerated inside the wake word before the gate closes.
+    private static final int HOLD_MS = 500;
+    // Weight of a new measurement in the average cost per frame.
+    private static final float COST_WEIGHT = 0.05f;
+    // A template is only added back if the cost with it would stay this far under budget.
+    private static final float HEADROOM = 0.8f;
+    // Frames spotted at a reduced limit before trying a template again anyway, since part of
+    // the cost does not depend on the templates. About five seconds of speech.
+    private static final int PROBE_FRAMES = 500;
+
+    private final int mHopSamples;
+    private final int mSampleRate;
+    private final long mFrameBudgetNanos;
+    private final KeywordSpotter mSpotter;
+    private final VoiceActivityDetector mGate;
+    private final short[] mLeadIn;
+    private int mLeadInPosition;
+    private int mLeadInSize;
+    private final int mHoldSamples;
+    private short[] mSamples;
+
+    private boolean mGateOpen;
+    private long mSilentSamples;
+    private boolean mDetected;
+    private float mLastScore;
+    private int mSamplesSinceWakeWord;
+    private float mFrameCostNanos;
+    private long mFramesAtLimit;
+
+    private long mProcessedSamples;
+    private long mGateOpenSamples;
+    private long mProcessNanos;
+    private long mDetections;
+    private long mTemplateLimitChanges;
+
+    /**
+     * @param threshold highest average frame distance that counts as the wake word.
+     * @param frameBudgetNanos time allowed per 10 ms feature frame.
+     */
+    WakeWordDetector(int sampleRate, float threshold, long frameBudgetNanos) {
+        mSampleRate = sampleRate;
+        mHopSamples = sampleRate / 100;
+        mFrameBudgetNanos = frameBudgetNanos;
+        // With a single phrase there is no other phrase to beat, so no margin.
+        mSpotter = new KeywordSpotter(sampleRate, threshold, 0, new KeywordSpotter.Listener() {
+            @Override
+            public void onKeyword(String label, float score) {
+                mDetected = true;
+                mLastScore = score;
+                mDetections++;
+            }
+        });
+        mGate = new VoiceActivityDetector(sampleRate);
+        mLeadIn = new short[sampleRate * LEAD_IN_MS / 1000];
+        mHoldSamples = sampleRate * HOLD_MS / 1000;
+        mSamples = new short[0];
+    }
+
+    /**
+     * Enroll one recording of the wake word. Templates added first are the last to be dropped
+     * when over budget.
+     */
+    void addTemplate(float[][] frames) {
+        mSpotter.addTemplate(LABEL, frames);
+    }
+
+    int getSampleRate() {
+        return mSampleRate;
+    }
+
+    int getTemplateCount() {
+        return mSpotter.getTemplateCount();
+    }
+
+    /**
+     * Forget the current utterance, e.g. after a request it triggered has started.
+     */
+    void reset() {
+        mGateOpen = false;
+        mSilentSamples = 0;
+        mLeadInSize = 0;
+        mGate.reset();
+        mSpotter.reset();
+    }
+
+    /**
+     * Look for the wake word in the samples remaining in {@code pcm}, leaving its position
+     * untouched.
+     *
+     * @return true if the wake word ended in this chunk; the detector is then reset.
+     */
+    boolean process(ByteBuffer pcm) {
+        long start = System.nanoTime();
+        int offset = pcm.position();
+        int count = pcm.remaining() / 2;
+        if (mSamples.length < count) {
+            mSamples = new short[count];
+        }
+        short[] samples = mSamples;
+        for (int i = 0; i < count; i++) {
+            samples[i] = (short) ((pcm.get(offset + 2 * i) & 0xff)
+                    | (pcm.get(offset + 2 * i + 1) << 8));
+        }
+        mProcessedSamples += count;
+
+        boolean speech = mGate.process(pcm);
+        if (!mGateOpen && !speech) {
+            keepLeadIn(samples, count);
+            mProcessNanos += System.nanoTime() - start;
+            return false;
+        }
+        long frames = mSpotter.getFrameCount();
+        if (!mGateOpen) {
+            mGateOpen = true;
+            mSpotter.reset();
+            int leadInStart = (mLeadInPosition - mLeadInSize + mLeadIn.length) % mLeadIn.length;
+            int firstPart = Math.min(mLeadInSize, mLeadIn.length - leadInStart);
+            mSpotter.process(mLeadIn, leadInStart, firstPart);
+            mSpotter.process(mLeadIn, 0, mLeadInSize - firstPart);
+            mLeadInSize = 0;
+        }
+        mSilentSamples = speech ? 0 : mSilentSamples + count;
+        mGateOpenSamples += count;
+
+        // Feed one hop at a time so the audio left after the wake word is known.
+        mDetected = false;
+        for (int fed = 0; fed < count && !mDetected; fed += mHopSamples) {
+            int slice = Math.min(mHopSamples, count - fed);
+            mSpotter.process(samples, fed, slice);
+            if (mDetected) {
+                // The word ended SETTLE_FRAMES frames before the one that reported it, which
+                // completed somewhere in this slice.
+                mSamplesSinceWakeWord = (KeywordSpotter.SETTLE_FRAMES + 1) * mHopSamples
+                        + count - fed - slice;
+            }
+        }
+        if (mDetected) {
+            reset();
+        } else if (mSilentSamples >= mHoldSamples) {
+            mGateOpen = false;
+            keepLeadIn(samples, count);
+        }
+
+        long nanos = System.nanoTime() - start;
+        mProcessNanos += nanos;
+        frames = mSpotter.getFrameCount() - frames;
+        if (frames > 0) {
+            mFramesAtLimit += frames;
+            // Wall time includes preemption and GC pauses; clamp them so a single pause does
+            // not shed a template.
+            float frameNanos = Math.min((float) nanos / frames, 2f * mFrameBudgetNanos);
+            mFrameCostNanos += COST_WEIGHT * (frameNanos - mFrameCostNanos);
+            adjustTemplateLimit();
+        }
+        return mDetected;
+    }
+
+    /**
+     * Upper bound on the samples captured after the end of the wake word, up to the end of the
+     * chunk it was detected in.
+     */
+    int getSamplesSinceWakeWord() {
+        return mSamplesSinceWakeWord;
+    }
+
+    /**
+     * Average frame distance of the last detection; lower is better.
+     */
+    float getLastScore() {
+        return mLastScore;
+    }
+
+    /**
+     * Time spent in {@link #process(ByteBuffer)} per second of audio, in microseconds.
+     */
+    long getMicrosPerSecond() {
+        return mProcessedSamples == 0 ? 0
+                : mProcessNanos / 1000 * mSampleRate / mProcessedSamples;
+    }
+
+    /**
+     * Share of the audio that went through the spotter, in percent.
+     */
+    int getGateOpenPercent() {
+        return mProcessedSamples == 0 ? 0 : (int) (mGateOpenSamples * 100 / mProcessedSamples);
+    }
+
+    long getFrameCostNanos() {
+        return (long) mFrameCostNanos;
+    }
+
+    int getTemplateLimit() {
+        return mSpotter.getTemplateLimit();
+    }
+
+    long getTemplateLimitChanges() {
+        return mTemplateLimitChanges;
+    }
+
+    long getDetections() {
+        return mDetections;
+    }
+
+    private void adjustTemplateLimit() {
+        int limit = mSpotter.getTemplateLimit();
+        if (mFrameCostNanos > mFrameBudgetNanos && limit > 1) {
+            mSpotter.setTemplateLimit(limit - 1);
+            // Assume the cost scales with the templates until it has been measured again, so
+            // one slow chunk does not shed them all.
+            mFrameCostNanos = mFrameCostNanos * (limit - 1) / limit;
+        } else if (limit < mSpotter.getTemplateCount()
+                && (mFrameCostNanos * (limit + 1) / limit < mFrameBudgetNanos * HEADROOM
+                        || mFramesAtLimit >= PROBE_FRAMES)) {
+            mSpotter.setTemplateLimit(limit + 1);
+        } else {
+            return;
+        }
+        mFramesAtLimit = 0;
+        mTemplateLimitChanges++;
+    }
+
+    private void keepLeadIn(short[] samples, int count) {
+        int start = Math.max(0, count - mLeadIn.length);
+        for (int i = start; i < count; i++) {
+            mLeadIn[mLeadInPosition] = samples[i];
+            mLeadInPosition = (mLeadInPosition + 1) % mLeadIn.length;
+        }
+        mLeadInSize = Math.min(mLeadIn.length, mLeadInSize + count - start);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads 16-bit PCM WAV files, downmixing stereo to mono.
+ */
+class WavReader {
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_EXTENSIBLE = 0xfffe;
+
+    final int mSampleRate;
+    final short[] mSamples;
+
+    private WavReader(int sampleRate, short[] samples) {
+        mSampleRate = sampleRate;
+        mSamples = samples;
+    }
+
+    static WavReader read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int read;
+        while ((read = in.read(chunk)) > 0) {
+            bytes.write(chunk, 0, read);
+        }
+        ByteBuffer wav = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        if (wav.remaining() < 12 || wav.getInt() != 0x46464952 // "RIFF"
+                || wav.getInt(8) != 0x45564157) { // "WAVE"
+            throw new IOException("not a WAV file");
+        }
+        wav.position(12);
+        int channels = 0;
+        int sampleRate = 0;
+        while (wav.remaining() >= 8) {
+            int id = wav.getInt();
+            int size = wav.getInt();
+            if (size < 0 || size > wav.remaining()) {
+                // Truncated files are common; take what is there.
+                size = wav.remaining();
+            }
+            if (id == 0x20746d66) { // "fmt "
+                int format = wav.getShort(wav.position()) & 0xffff;
+                channels = wav.getShort(wav.position() + 2);
+                sampleRate = wav.getInt(wav.position() + 4);
+                int bits = wav.getShort(wav.position() + 14);
+                if ((format != FORMAT_PCM && format != FORMAT_EXTENSIBLE) || bits != 16
+                        || channels < 1 || channels > 2) {
+                    throw new IOException("only 16-bit mono or stereo PCM is supported");
+                }
+            } else if (id == 0x61746164) { // "data"
+                if (channels == 0) {
+                    throw new IOException("data before fmt chunk");
+                }
+                short[] samples = new short[size / (2 * channels)];
+                for (int i = 0; i < samples.length; i++) {
+                    int index = wav.position() + i * 2 * channels;
+                    samples[i] = channels == 1 ? wav.getShort(index)
+                            : (short) ((wav.getShort(index) + wav.getShort(index + 2)) >> 1);
+                }
+                return new WavReader(sampleRate, samples);
+            }
+            // Chunks are padded to an even size.
+            wav.position(Math.min(wav.limit(), wav.position() + size + (size & 1)));
+        }
+        throw new IOException("no data chunk");
+    }
+}
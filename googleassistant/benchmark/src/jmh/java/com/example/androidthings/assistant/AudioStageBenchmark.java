@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.assistant;
+
+import com.google.android.things.contrib.voicehat.PolyphaseResampler;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Per-block cost of the processing stages between the microphone and the wire, and of the
+ * response resampler, at the block sizes the app uses.
+ */
+@State(Scope.Thread)
+public class AudioStageBenchmark {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int OPUS_SAMPLE_RATE = 48000;
+    private static final int RESAMPLER_BASE_TAPS = 16;
+
+    @Param({"1024", "2048", "4096"})
+    public int sampleBlockSize;
+
+    private ByteBuffer mAudioData;
+    private FlacEncoder mFlacEncoder;
+    private VoiceActivityDetector mVoiceActivityDetector;
+    private PreRollBuffer mPreRollBuffer;
+    private EchoCanceller mEchoCanceller;
+    private ByteBuffer mEchoOutput;
+    private short[] mResamplerInput;
+    private short[] mResamplerOutput;
+    private PolyphaseResampler mResampler;
+
+    @Setup
+    public void setUp() {
+        int samples = sampleBlockSize / 2;
+        mAudioData = TestAudio.toLittleEndianBytes(
+                TestAudio.speechLikeSamples(samples, SAMPLE_RATE), true);
+        mFlacEncoder = new FlacEncoder(SAMPLE_RATE, samples);
+        mVoiceActivityDetector = new VoiceActivityDetector(SAMPLE_RATE);
+        mPreRollBuffer = new PreRollBuffer(SAMPLE_RATE * 2 * 320 / 1000);
+        // No budget, so the whole filter is measured.
+        mEchoCanceller = new EchoCanceller(SAMPLE_RATE, EchoCanceller.DEFAULT_FILTER_MS,
+                Long.MAX_VALUE);
+        mEchoOutput = ByteBuffer.allocateDirect(sampleBlockSize);
+        // The same duration of audio at the Opus output rate.
+        int factor = OPUS_SAMPLE_RATE / SAMPLE_RATE;
+        mResamplerInput = TestAudio.speechLikeSamples(samples * factor, OPUS_SAMPLE_RATE);
+        mResamplerOutput = new short[samples + 2];
+        mResampler = new PolyphaseResampler(OPUS_SAMPLE_RATE, SAMPLE_RATE, RESAMPLER_BASE_TAPS);
+    }
+
+    /**
+     * What the encoding benchmarks put on the wire, reported next to their time, since a
+     * faster encoding that sends more bytes is not necessarily a win.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class EncodedSize {
+        private long mInputBytes;
+        private long mEncodedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            mInputBytes = 0;
+            mEncodedBytes = 0;
+        }
+
+        /**
+         * Encoded bytes per second of audio.
+         */
+        public double encodedBytesPerSecond() {
+            return mInputBytes == 0 ? 0 : (double) mEncodedBytes * SAMPLE_RATE * 2 / mInputBytes;
+        }
+
+        void add(int inputBytes, int encodedBytes) {
+            mInputBytes += inputBytes;
+            mEncodedBytes += encodedBytes;
+        }
+    }
+
+    @Benchmark
+    public ByteString linear16(EncodedSize size) {
+        mAudioData.rewind();
+        ByteString audioIn = UnsafeByteOperations.unsafeWrap(mAudioData);
+        size.add(sampleBlockSize, audioIn.size());
+        return audioIn;
+    }
+
+    @Benchmark
+    public ByteString flac(EncodedSize size) {
+        mAudioData.rewind();
+        ByteString audioIn = UnsafeByteOperations.unsafeWrap(mFlacEncoder.encode(mAudioData));
+        size.add(sampleBlockSize, audioIn.size());
+        return audioIn;
+    }
+
+    @Benchmark
+    public boolean voiceActivityDetector() {
+        mAudioData.rewind();
+        return mVoiceActivityDetector.process(mAudioData);
+    }
+
+    @Benchmark
+    public ByteBuffer preRoll() {
+        mAudioData.rewind();
+        mPreRollBuffer.write(mAudioData);
+        return mAudioData;
+    }
+
+    /**
+     * Cancellation while the speaker plays; the block is its own echo. Cancels a copy, since
+     * the block is cleaned in place.
+     */
+    @Benchmark
+    public ByteBuffer echoCanceller() {
+        mAudioData.rewind();
+        mEchoCanceller.addReference(mAudioData, 0, mAudioData.remaining());
+        mEchoOutput.clear();
+        mEchoOutput.put(mAudioData);
+        mEchoOutput.flip();
+        mEchoCanceller.process(mEchoOutput);
+        return mEchoOutput;
+    }
+
+    @Benchmark
+    public int resampleOpusOutput() {
+        return mResampler.process(mResamplerInput, 0, mResamplerInput.length,
+                mResamplerOutput, 0);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.assistant;
+
+import com.google.assistant.embedded.v1alpha1.ConverseRequest;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnsafeByteOperations;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Cost of turning one captured block into a serialized {@link ConverseRequest}, for several
+ * block sizes, copying the audio into a {@link ByteString} versus wrapping it.
+ */
+@State(Scope.Thread)
+public class ConverseRequestBenchmark {
+    private static final int SAMPLE_RATE = 16000;
+
+    @Param({"512", "1024", "2048", "4096", "8192"})
+    public int sampleBlockSize;
+
+    private ByteBuffer mAudioData;
+    private byte[] mOutput;
+
+    @Setup
+    public void setUp() {
+        mAudioData = TestAudio.toLittleEndianBytes(
+                TestAudio.speechLikeSamples(sampleBlockSize / 2, SAMPLE_RATE), true);
+        // Large enough for the audio plus the field tags.
+        mOutput = new byte[sampleBlockSize + 16];
+    }
+
+    @Benchmark
+    public ByteString copyByteString() {
+        mAudioData.rewind();
+        return ByteString.copyFrom(mAudioData);
+    }
+
+    @Benchmark
+    public ByteString wrapByteString() {
+        mAudioData.rewind();
+        return UnsafeByteOperations.unsafeWrap(mAudioData);
+    }
+
+    @Benchmark
+    public int buildAndSerializeCopy() throws IOException {
+        mAudioData.rewind();
+        return serialize(ConverseRequest.newBuilder()
+                .setAudioIn(ByteString.copyFrom(mAudioData))
+                .build());
+    }
+
+    @Benchmark
+    public int buildAndSerializeWrap() throws IOException {
+        mAudioData.rewind();
+        return serialize(ConverseRequest.newBuilder()
+                .setAudioIn(UnsafeByteOperations.unsafeWrap(mAudioData))
+                .build());
+    }
+
+    private int serialize(ConverseRequest request) throws IOException {
+        CodedOutputStream output = CodedOutputStream.newInstance(mOutput);
+        request.writeTo(output);
+        return output.getTotalBytesWritten();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.assistant;
+
+import com.google.assistant.embedded.v1alpha1.AudioOut;
+import com.google.assistant.embedded.v1alpha1.ConverseResponse;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cost of parsing an AUDIO_OUT {@link ConverseResponse} off the wire and getting at its audio,
+ * either as the read-only view the playback engine queues or as a copied array.
+ */
+@State(Scope.Thread)
+public class ConverseResponseBenchmark {
+    private static final int SAMPLE_RATE = 16000;
+
+    @Param({"1600", "3200", "6400"})
+    public int audioOutSize;
+
+    private byte[] mSerializedResponse;
+
+    @Setup
+    public void setUp() {
+        short[] samples = TestAudio.speechLikeSamples(audioOutSize / 2, SAMPLE_RATE);
+        mSerializedResponse = ConverseResponse.newBuilder()
+                .setAudioOut(AudioOut.newBuilder()
+                        .setAudioData(ByteString.copyFrom(
+                                TestAudio.toLittleEndianBytes(samples, false))))
+                .build()
+                .toByteArray();
+    }
+
+    @Benchmark
+    public ConverseResponse parse() throws InvalidProtocolBufferException {
+        return ConverseResponse.parseFrom(mSerializedResponse);
+    }
+
+    @Benchmark
+    public ByteBuffer parseAsReadOnlyByteBuffer() throws InvalidProtocolBufferException {
+        return ConverseResponse.parseFrom(mSerializedResponse)
+                .getAudioOut().getAudioData().asReadOnlyByteBuffer();
+    }
+
+    @Benchmark
+    public byte[] parseToByteArray() throws InvalidProtocolBufferException {
+        return ConverseResponse.parseFrom(mSerializedResponse)
+                .getAudioOut().getAudioData().toByteArray();
+    }
+}
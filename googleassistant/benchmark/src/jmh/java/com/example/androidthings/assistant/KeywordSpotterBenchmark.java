@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of the local keyword spotter per 10 ms of audio, i.e. per feature frame, against three
+ * phrases. Must stay well under 10 ms on the device for the recognizer to keep up.
+ */
+@State(Scope.Thread)
+public class KeywordSpotterBenchmark {
+    private static final int SAMPLE_RATE = 16000;
+    private static final int HOP_SAMPLES = SAMPLE_RATE / 100;
+    private static final String[] PHRASES = {"candy", "more", "stop"};
+
+    @Param({"1", "3", "6"})
+    public int templatesPerPhrase;
+
+    private KeywordSpotter mSpotter;
+    private MfccExtractor mExtractor;
+    private short[] mInput;
+    private int mOffset;
+
+    @Setup
+    public void setUp() {
+        // Never fires, so every frame advances every alignment.
+        mSpotter = new KeywordSpotter(SAMPLE_RATE, 0, 0, new KeywordSpotter.Listener() {
+            @Override
+            public void onKeyword(String label, float score) {
+            }
+        });
+        for (int phrase = 0; phrase < PHRASES.length; phrase++) {
+            for (int i = 0; i < templatesPerPhrase; i++) {
+                // Phrases of 0.4 to 0.8 s.
+                int samples = SAMPLE_RATE * (40 + 10 * phrase + 5 * i) / 100;
+                mSpotter.addTemplate(PHRASES[phrase], KeywordSpotter.extractTemplate(
+                        TestAudio.speechLikeSamples(samples, SAMPLE_RATE), SAMPLE_RATE));
+            }
+        }
+        mExtractor = new MfccExtractor(SAMPLE_RATE, new MfccExtractor.Listener() {
+            @Override
+            public void onFrame(float[] coefficients, float logEnergy) {
+            }
+        });
+        mInput = TestAudio.speechLikeSamples(SAMPLE_RATE * 4, SAMPLE_RATE);
+    }
+
+    @Benchmark
+    public long mfccOnly() {
+        mExtractor.process(mInput, nextOffset(), HOP_SAMPLES);
+        return mOffset;
+    }
+
+    @Benchmark
+    public long spotter() {
+        mSpotter.process(mInput, nextOffset(), HOP_SAMPLES);
+        return mSpotter.getFrameCount();
+    }
+
+    private int nextOffset() {
+        mOffset += HOP_SAMPLES;
+        if (mOffset + HOP_SAMPLES > mInput.length) {
+            mOffset = 0;
+        }
+        return mOffset;
+    }
+}
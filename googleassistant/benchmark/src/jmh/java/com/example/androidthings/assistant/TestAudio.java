@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.androidthings.assistant;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Deterministic speech-like test signal for the benchmarks.
+ */
+final class TestAudio {
+    private TestAudio() {
+    }
+
+    /**
+     * Return {@code sampleCount} 16-bit samples: a few harmonics with a slow amplitude
+     * envelope plus low-level noise, so encoders see realistic residuals. Use
+     * {@link #toLittleEndianBytes} for the byte layout the app records and sends.
+     */
+    static short[] speechLikeSamples(int sampleCount, int sampleRate) {
+        Random random = new Random(42);
+        short[] samples = new short[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            double t = (double) i / sampleRate;
+            double envelope = 0.5 + 0.5 * Math.sin(2 * Math.PI * 3 * t);
+            double voice = Math.sin(2 * Math.PI * 180 * t)
+                    + 0.5 * Math.sin(2 * Math.PI * 360 * t)
+                    + 0.25 * Math.sin(2 * Math.PI * 1250 * t);
+            double value = 6000 * envelope * voice + 200 * random.nextGaussian();
+            samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        }
+        return samples;
+    }
+
+    /**
+     * Return {@code samples} as little-endian 16-bit PCM, in a direct buffer if {@code direct}.
+     */
+    static ByteBuffer toLittleEndianBytes(short[] samples, boolean direct) {
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(samples.length * 2)
+                : ByteBuffer.allocate(samples.length * 2);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asShortBuffer().put(samples);
+        return buffer;
+    }
+}
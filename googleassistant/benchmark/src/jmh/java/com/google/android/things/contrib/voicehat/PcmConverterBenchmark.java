@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.things.contrib.voicehat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Throughput of the voice hat format conversion for one 50ms driver buffer in each direction:
+ * 48khz stereo from the I2S bus to 16khz mono, and back.
+ */
+@State(Scope.Thread)
+public class PcmConverterBenchmark {
+    private static final int NATIVE_RATE = 48000;
+    private static final int CLIENT_RATE = 16000;
+    private static final int NATIVE_FRAMES = NATIVE_RATE / 20;
+    private static final int CLIENT_FRAMES = CLIENT_RATE / 20;
+    private static final int BASE_TAPS = 16;
+
+    private PcmConverter mInputConverter;
+    private PcmConverter mOutputConverter;
+    private ByteBuffer mNativeAudio;
+    private ByteBuffer mClientAudio;
+    private ByteBuffer mNativeOutput;
+    private ByteBuffer mClientOutput;
+
+    @Setup
+    public void setUp() {
+        mInputConverter = new PcmConverter(NATIVE_RATE, 2, CLIENT_RATE, 1, NATIVE_FRAMES,
+                BASE_TAPS);
+        mOutputConverter = new PcmConverter(CLIENT_RATE, 1, NATIVE_RATE, 2, CLIENT_FRAMES,
+                BASE_TAPS);
+        mNativeAudio = ByteBuffer.allocate(NATIVE_FRAMES * 4);
+        for (int i = 0; i < NATIVE_FRAMES; i++) {
+            short left = (short) (8000 * Math.sin(2 * Math.PI * 440 * i / NATIVE_RATE));
+            short right = (short) (8000 * Math.sin(2 * Math.PI * 660 * i / NATIVE_RATE));
+            mNativeAudio.put(i * 4, (byte) left);
+            mNativeAudio.put(i * 4 + 1, (byte) (left >> 8));
+            mNativeAudio.put(i * 4 + 2, (byte) right);
+            mNativeAudio.put(i * 4 + 3, (byte) (right >> 8));
+        }
+        mClientAudio = ByteBuffer.allocate(CLIENT_FRAMES * 2);
+        for (int i = 0; i < CLIENT_FRAMES; i++) {
+            short sample = (short) (8000 * Math.sin(2 * Math.PI * 440 * i / CLIENT_RATE));
+            mClientAudio.put(i * 2, (byte) sample);
+            mClientAudio.put(i * 2 + 1, (byte) (sample >> 8));
+        }
+        mNativeOutput = ByteBuffer.allocate((NATIVE_FRAMES + 2) * 4);
+        mClientOutput = ByteBuffer.allocate((CLIENT_FRAMES + 2) * 2);
+    }
+
+    @Benchmark
+    public int nativeStereoToClientMono() {
+        return mInputConverter.convert(mNativeAudio, NATIVE_FRAMES, mClientOutput);
+    }
+
+    @Benchmark
+    public int clientMonoToNativeStereo() {
+        return mOutputConverter.convert(mClientAudio, CLIENT_FRAMES, mNativeOutput);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Reads a conversation journal pulled from a device and prints it as CSV, one row per turn,
+ * or with {@code --summary} as per-stage latency percentiles. Turns are streamed, so days of
+ * traffic take no more memory than one.
+ *
+ * <pre>
+ * adb pull /data/data/com.example.androidthings.assistant/files/conversation journal
+ * ./gradlew :benchmark:exportJournal -Pjournal=$PWD/journal [-Psummary]
+ * </pre>
+ */
+public class ConversationJournalExport {
+    public static void main(String[] args) throws IOException {
+        boolean summary = false;
+        File directory = null;
+        for (String arg : args) {
+            if (arg.equals("--summary")) {
+                summary = true;
+            } else {
+                directory = new File(arg);
+            }
+        }
+        if (directory == null || !directory.isDirectory()) {
+            System.err.println("usage: ConversationJournalExport [--summary] <journal directory>");
+            System.exit(2);
+        }
+        if (summary) {
+            printSummary(directory, System.out);
+        } else {
+            printCsv(directory, System.out);
+        }
+    }
+
+    private static void printCsv(File directory, final PrintStream out) throws IOException {
+        final SimpleDateFormat format =
+                new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        ConversationJournal.read(directory, new ConversationJournal.Visitor() {
+            private String[] mHeaderStages;
+
+            @Override
+            public void onTurn(ConversationJournal.Turn turn) {
+                if (turn.mStageNames != mHeaderStages) {
+                    // Segments written by another build may carry other stages.
+                    mHeaderStages = turn.mStageNames;
+                    StringBuilder header = new StringBuilder(
+                            "time,request_text,error,conversation_state_bytes,"
+                                    + "request_audio_bytes,response_audio_bytes");
+                    for (String stage : turn.mStageNames) {
+                        header.append(',').append(stage).append("_ms");
+                    }
+                    out.println(header);
+                }
+                StringBuilder row = new StringBuilder();
+                row.append(format.format(new Date(turn.mTimestampMs)))
+                        .append(',').append(csv(turn.mRequestText))
+                        .append(',').append(csv(turn.mError))
+                        .append(',').append(turn.mConversationStateBytes)
+                        .append(',').append(turn.mRequestAudioBytes)
+                        .append(',').append(turn.mResponseAudioBytes);
+                for (long micros : turn.mStageMicros) {
+                    row.append(',');
+                    if (micros >= 0) {
+                        row.append(String.format(Locale.US, "%.1f", micros / 1000.0));
+                    }
+                }
+                out.println(row);
+            }
+        });
+    }
+
+    private static void printSummary(File directory, PrintStream out) throws IOException {
+        final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+        final long[] totals = new long[3]; // turns, errors, empty requests
+        final long[] range = {Long.MAX_VALUE, Long.MIN_VALUE};
+        ConversationJournal.read(directory, new ConversationJournal.Visitor() {
+            @Override
+            public void onTurn(ConversationJournal.Turn turn) {
+                totals[0]++;
+                if (!turn.mError.isEmpty()) {
+                    totals[1]++;
+                }
+                if (turn.mRequestText.isEmpty()) {
+                    totals[2]++;
+                }
+                range[0] = Math.min(range[0], turn.mTimestampMs);
+                range[1] = Math.max(range[1], turn.mTimestampMs);
+                for (int i = 0; i < turn.mStageNames.length; i++) {
+                    LatencyHistogram histogram = histograms.get(turn.mStageNames[i]);
+                    if (histogram == null) {
+                        histogram = new LatencyHistogram();
+                        histograms.put(turn.mStageNames[i], histogram);
+                    }
+                    if (turn.mStageMicros[i] >= 0) {
+                        histogram.record(turn.mStageMicros[i]);
+                    }
+                }
+            }
+        });
+        out.println("turns: " + totals[0] + ", errors: " + totals[1]
+                + ", without request text: " + totals[2]);
+        if (totals[0] > 0) {
+            out.println("from " + new Date(range[0]) + " to " + new Date(range[1]));
+        }
+        out.println(String.format(Locale.US, "%-20s %8s %9s %9s %9s %9s",
+                "stage (ms)", "count", "p50", "p90", "p99", "max"));
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            out.println(String.format(Locale.US, "%-20s %8d %9.1f %9.1f %9.1f %9.1f",
+                    entry.getKey(), histogram.getCount(),
+                    histogram.getValueAtPercentile(50) / 1000.0,
+                    histogram.getValueAtPercentile(90) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0,
+                    histogram.getMax() / 1000.0));
+        }
+    }
+
+    private static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates many dispensers talking to one {@link ScriptedAssistant} at the same time, each a
+ * {@link SimulatedDevice} running the app's converse pipeline, and reports the throughput and
+ * the latency percentiles of every stage across all of them. Exits with status 1 if a turn was
+ * not answered.
+ *
+ * <pre>
+ * ./gradlew :benchmark:loadTest [-Pdevices=50] [-Pturns=10] [-PrampMs=ms] [-Pflac]
+ * </pre>
+ *
+ * Devices start evenly spread over the ramp and then run their turns back to back, with a short
+ * pause in between. Latencies are from the button press, like the app's turn metrics; "turn" is
+ * the whole turn until the answer has played out.
+ */
+public class ConverseLoadGenerator {
+    private static final String SERVER_NAME = "scripted-assistant-load";
+
+    public static void main(String[] args) throws Exception {
+        final HeadlessAssistantRunner.Options options =
+                HeadlessAssistantRunner.Options.parse(args, "ConverseLoadGenerator", 50, 10);
+        ScriptedAssistant assistant = new ScriptedAssistant(SERVER_NAME,
+                options.mSpeechMs + HeadlessAssistantRunner.ENDPOINT_DELAY_MS,
+                options.mThinkMs, options.mAnswerMs);
+        assistant.start();
+
+        final TurnMetrics.Stage[] stages = TurnMetrics.Stage.values();
+        final LatencyHistogram[] stageMicros = new LatencyHistogram[stages.length];
+        for (int i = 0; i < stages.length; i++) {
+            stageMicros[i] = new LatencyHistogram();
+        }
+        final LatencyHistogram turnMicros = new LatencyHistogram();
+        final AtomicLong answered = new AtomicLong();
+        final Map<String, Integer> failures = new TreeMap<>();
+        final CountDownLatch done = new CountDownLatch(options.mDevices);
+        long startNanos = System.nanoTime();
+        for (int d = 0; d < options.mDevices; d++) {
+            final SimulatedDevice device = new SimulatedDevice(SERVER_NAME, options.mSpeechMs,
+                    options.mFlacInput, options.mBackpressurePolicy, d);
+            final long startDelayMs = options.mRampMs * d / options.mDevices;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(startDelayMs);
+                        device.start();
+                        // Let the pre-roll fill up before the first press.
+                        Thread.sleep(HeadlessAssistantRunner.PAUSE_BETWEEN_TURNS_MS);
+                        for (int turn = 0; turn < options.mTurns; turn++) {
+                            long turnStartNanos = System.nanoTime();
+                            if (device.runTurn()) {
+                                answered.incrementAndGet();
+                                turnMicros.record(TimeUnit.NANOSECONDS.toMicros(
+                                        System.nanoTime() - turnStartNanos));
+                                long[] micros = device.getTurnMetrics().getLastTurnMicros();
+                                for (int i = 1; i < stages.length; i++) {
+                                    if (micros[i] >= 0) {
+                                        stageMicros[i].record(micros[i]);
+                                    }
+                                }
+                            } else {
+                                synchronized (failures) {
+                                    Integer count = failures.get(device.getTurnError());
+                                    failures.put(device.getTurnError(),
+                                            count == null ? 1 : count + 1);
+                                }
+                            }
+                            Thread.sleep(HeadlessAssistantRunner.PAUSE_BETWEEN_TURNS_MS);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        device.stop();
+                        done.countDown();
+                    }
+                }
+            }, "simulatedDevice" + d).start();
+        }
+        done.await();
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        assistant.stop();
+
+        long turns = (long) options.mDevices * options.mTurns;
+        System.out.println(String.format(Locale.US,
+                "%d devices x %d turns in %.1f s: %d answered, %d failed, %.2f turns/s",
+                options.mDevices, options.mTurns, elapsedSeconds, answered.get(),
+                turns - answered.get(), answered.get() / elapsedSeconds));
+        System.out.println(String.format(Locale.US,
+                "assistant: %d calls, at most %d open at once, %.1f kB of audio received",
+                assistant.getCallCount(), assistant.getMaxOpenCalls(),
+                assistant.getAudioBytesReceived() / 1024.0));
+        System.out.println(String.format("%-20s %8s %9s %9s %9s %9s %9s",
+                "stage", "count", "min", "p50", "p90", "p99", "max"));
+        for (int i = 1; i < stages.length; i++) {
+            printHistogram(stages[i].name().toLowerCase(Locale.US), stageMicros[i]);
+        }
+        printHistogram("turn", turnMicros);
+        for (Map.Entry<String, Integer> failure : failures.entrySet()) {
+            System.out.println("failed: " + failure.getKey() + ": " + failure.getValue());
+        }
+        if (answered.get() < turns) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Print one row of milliseconds.
+     */
+    private static void printHistogram(String name, LatencyHistogram histogram) {
+        System.out.println(String.format(Locale.US, "%-20s %8d %9.1f %9.1f %9.1f %9.1f %9.1f",
+                name,
+                histogram.getCount(),
+                histogram.getCount() == 0 ? 0 : histogram.getMin() / 1000.0,
+                histogram.getValueAtPercentile(50) / 1000.0,
+                histogram.getValueAtPercentile(90) / 1000.0,
+                histogram.getValueAtPercentile(99) / 1000.0,
+                histogram.getMax() / 1000.0));
+    }
+}
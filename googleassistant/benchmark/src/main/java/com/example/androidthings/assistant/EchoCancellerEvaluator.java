@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Runs the {@link EchoCanceller} over recorded fixtures the way the playback and capture
+ * threads do and reports the echo return loss enhancement (ERLE) and CPU time per second of
+ * audio. Exits with status 1 if any recording is cancelled by less than the minimum ERLE.
+ *
+ * <pre>
+ * fixtures/far/*.wav    what was played on the speaker
+ * fixtures/mic/*.wav    what the microphone recorded meanwhile, starting at the same time
+ * fixtures/near/*.wav   optional: the near-end speech alone, for recordings with double talk
+ *
+ * ./gradlew :benchmark:evaluateEchoCanceller -Pfixtures=$PWD/fixtures
+ * </pre>
+ *
+ * ERLE is measured after the first {@link #CONVERGENCE_MS}, over the chunks in which the
+ * speaker plays. Where a near-end recording is given it is subtracted from both the microphone
+ * and the output first, so only the echo counts.
+ */
+public class EchoCancellerEvaluator {
+    private static final int BLOCK_BYTES = 512;
+    private static final int CONVERGENCE_MS = 3000;
+    private static final float DEFAULT_MIN_ERLE_DB = 15f;
+    // Mean square of a far chunk that counts as the speaker playing.
+    private static final double FAR_ACTIVE_POWER = 10000;
+
+    public static void main(String[] args) throws IOException {
+        int filterMs = EchoCanceller.DEFAULT_FILTER_MS;
+        long budgetNanos = EchoCanceller.DEFAULT_FRAME_BUDGET_NANOS;
+        float minErleDb = DEFAULT_MIN_ERLE_DB;
+        File fixtures = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--filter-ms") && i + 1 < args.length) {
+                filterMs = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--budget-us") && i + 1 < args.length) {
+                budgetNanos = Long.parseLong(args[++i]) * 1000;
+            } else if (args[i].equals("--min-erle") && i + 1 < args.length) {
+                minErleDb = Float.parseFloat(args[++i]);
+            } else {
+                fixtures = new File(args[i]);
+            }
+        }
+        if (fixtures == null || !new File(fixtures, "far").isDirectory()) {
+            System.err.println("usage: EchoCancellerEvaluator [--filter-ms ms] [--budget-us us]"
+                    + " [--min-erle dB] <fixtures directory>");
+            System.exit(2);
+        }
+        if (!evaluate(fixtures, filterMs, budgetNanos, minErleDb)) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean evaluate(File fixtures, int filterMs, long budgetNanos,
+            float minErleDb) throws IOException {
+        File[] farFiles = listRecordings(new File(fixtures, "far"));
+        if (farFiles.length == 0) {
+            throw new IOException("no recordings in " + fixtures + "/far");
+        }
+        // The app is compiled ahead of time; let the JIT catch up before the budget counts.
+        WavReader warmUp = readWav(farFiles[0]);
+        run(new EchoCanceller(warmUp.mSampleRate, filterMs, Long.MAX_VALUE), warmUp, warmUp,
+                null);
+        System.out.println("filter " + filterMs + " ms, budget " + budgetNanos / 1000
+                + " us per frame, minimum ERLE " + minErleDb + " dB");
+
+        int failures = 0;
+        double seconds = 0;
+        long micros = 0;
+        double erleSum = 0;
+        for (File farFile : farFiles) {
+            WavReader far = readWav(farFile);
+            WavReader mic = readWav(new File(new File(fixtures, "mic"), farFile.getName()));
+            File nearFile = new File(new File(fixtures, "near"), farFile.getName());
+            WavReader near = nearFile.isFile() ? readWav(nearFile) : null;
+            if (mic.mSampleRate != far.mSampleRate
+                    || (near != null && near.mSampleRate != far.mSampleRate)) {
+                throw new IOException(farFile.getName() + ": sample rates differ");
+            }
+            EchoCanceller canceller = new EchoCanceller(far.mSampleRate, filterMs, budgetNanos);
+            float erleDb = run(canceller, far, mic, near);
+            seconds += (double) mic.mSamples.length / mic.mSampleRate;
+            micros += canceller.getMicrosPerSecond() * mic.mSamples.length / mic.mSampleRate;
+            erleSum += erleDb;
+            boolean ok = erleDb >= minErleDb;
+            if (!ok) {
+                failures++;
+            }
+            System.out.println(String.format(Locale.US,
+                    "%-5s %s: ERLE %.1f dB, delay %d ms (%d changes), double talk %d%%,"
+                            + " %d us per second, %d of %d taps after %d limit changes",
+                    ok ? "ok" : "LOW", farFile.getName(), erleDb, canceller.getDelayMs(),
+                    canceller.getDelayChanges(), canceller.getDoubleTalkPercent(),
+                    canceller.getMicrosPerSecond(), canceller.getTapLimit(),
+                    canceller.getTapCount(), canceller.getTapLimitChanges()));
+        }
+        System.out.println(String.format(Locale.US,
+                "%d of %d below the minimum, mean ERLE %.1f dB, cpu %d us per second of audio",
+                failures, farFiles.length, erleSum / farFiles.length,
+                seconds > 0 ? (long) (micros / seconds) : 0));
+        return failures == 0;
+    }
+
+    /**
+     * Play {@code far} and capture {@code mic} in lockstep, one capture block at a time.
+     *
+     * @return the ERLE after convergence, in dB.
+     */
+    private static float run(EchoCanceller canceller, WavReader far, WavReader mic,
+            WavReader near) {
+        ByteBuffer farBlock = ByteBuffer.allocateDirect(BLOCK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer micBlock = ByteBuffer.allocateDirect(BLOCK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        int skip = mic.mSampleRate * CONVERGENCE_MS / 1000;
+        double echoEnergy = 0;
+        double residualEnergy = 0;
+        for (int offset = 0; offset < mic.mSamples.length; offset += BLOCK_BYTES / 2) {
+            int count = Math.min(BLOCK_BYTES / 2, mic.mSamples.length - offset);
+            double farPower = 0;
+            farBlock.clear();
+            for (int i = 0; i < count; i++) {
+                short sample = offset + i < far.mSamples.length ? far.mSamples[offset + i] : 0;
+                farBlock.putShort(sample);
+                farPower += sample * sample;
+            }
+            farBlock.flip();
+            canceller.addReference(farBlock, 0, farBlock.limit());
+            micBlock.clear();
+            micBlock.asShortBuffer().put(mic.mSamples, offset, count);
+            micBlock.limit(count * 2);
+            canceller.process(micBlock);
+            if (offset < skip || farPower / count < FAR_ACTIVE_POWER) {
+                continue;
+            }
+            for (int i = 0; i < count; i++) {
+                int nearSample = near != null && offset + i < near.mSamples.length
+                        ? near.mSamples[offset + i] : 0;
+                double echo = mic.mSamples[offset + i] - nearSample;
+                double residual = micBlock.getShort(2 * i) - nearSample;
+                echoEnergy += echo * echo;
+                residualEnergy += residual * residual;
+            }
+        }
+        return EchoCanceller.erleDb(echoEnergy, residualEnergy);
+    }
+
+    private static WavReader readWav(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return WavReader.read(in);
+        } catch (IOException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static File[] listRecordings(File directory) {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(".wav");
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Runs the app's converse pipeline on the host JVM: one {@link SimulatedDevice} talks to a
+ * {@link ScriptedAssistant} for a number of turns. Prints the stages reached by every turn and
+ * the turn metrics as the app dumps them, and exits with status 1 if a turn was not answered.
+ *
+ * <pre>
+ * ./gradlew :benchmark:runHeadless [-Pturns=5] [-PspeechMs=ms] [-PthinkMs=ms] [-PanswerMs=ms]
+ * </pre>
+ *
+ * Everything runs in real time, so a profiler attached to this JVM sees the pipeline as it runs
+ * on the device, minus the Android framework.
+ */
+public class HeadlessAssistantRunner {
+    private static final String SERVER_NAME = "scripted-assistant";
+    // The Assistant hears the end of the utterance a little after the speech ends.
+    static final long ENDPOINT_DELAY_MS = 300;
+    static final long PAUSE_BETWEEN_TURNS_MS = 500;
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args, "HeadlessAssistantRunner", 1, 5);
+        ScriptedAssistant assistant = new ScriptedAssistant(SERVER_NAME,
+                options.mSpeechMs + ENDPOINT_DELAY_MS, options.mThinkMs, options.mAnswerMs);
+        assistant.start();
+        SimulatedDevice device = new SimulatedDevice(SERVER_NAME, options.mSpeechMs,
+                options.mFlacInput, options.mBackpressurePolicy, 0);
+        device.start();
+        // Let the pre-roll fill up, as it has by the time someone presses the button.
+        Thread.sleep(PAUSE_BETWEEN_TURNS_MS);
+        int failures = 0;
+        for (int turn = 1; turn <= options.mTurns; turn++) {
+            boolean answered = device.runTurn();
+            if (!answered) {
+                failures++;
+            }
+            StringBuilder line = new StringBuilder(String.format(Locale.US, "turn %d: %s",
+                    turn, answered ? "answered" : device.getTurnError()));
+            if (device.getEndReason() != null) {
+                line.append(", request ended by ")
+                        .append(device.getEndReason().name().toLowerCase(Locale.US));
+            }
+            long[] micros = device.getTurnMetrics().getLastTurnMicros();
+            TurnMetrics.Stage[] stages = TurnMetrics.Stage.values();
+            for (int i = 1; i < stages.length; i++) {
+                if (micros[i] >= 0) {
+                    line.append(String.format(Locale.US, ", %s %.1f ms",
+                            stages[i].name().toLowerCase(Locale.US), micros[i] / 1000.0));
+                }
+            }
+            System.out.println(line);
+            Thread.sleep(PAUSE_BETWEEN_TURNS_MS);
+        }
+        device.stop();
+        assistant.stop();
+
+        PrintWriter writer = new PrintWriter(System.out);
+        device.getTurnMetrics().dump(writer);
+        writer.flush();
+        System.out.println(failures + " of " + options.mTurns + " turns failed");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Command line options shared with the {@link ConverseLoadGenerator}; only the load
+     * generator runs more than one device.
+     */
+    static class Options {
+        int mDevices;
+        int mTurns;
+        long mSpeechMs = 1200;
+        long mThinkMs = 300;
+        long mAnswerMs = 2000;
+        long mRampMs = 1000;
+        boolean mFlacInput;
+        UploadQueue.Policy mBackpressurePolicy = UploadQueue.Policy.DROP_OLDEST;
+
+        static Options parse(String[] args, String tool, int defaultDevices,
+                int defaultTurns) {
+            Options options = new Options();
+            options.mDevices = defaultDevices;
+            options.mTurns = defaultTurns;
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--devices") && i + 1 < args.length) {
+                    options.mDevices = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--turns") && i + 1 < args.length) {
+                    options.mTurns = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--speech-ms") && i + 1 < args.length) {
+                    options.mSpeechMs = Long.parseLong(args[++i]);
+                } else if (args[i].equals("--think-ms") && i + 1 < args.length) {
+                    options.mThinkMs = Long.parseLong(args[++i]);
+                } else if (args[i].equals("--answer-ms") && i + 1 < args.length) {
+                    options.mAnswerMs = Long.parseLong(args[++i]);
+                } else if (args[i].equals("--ramp-ms") && i + 1 < args.length) {
+                    options.mRampMs = Long.parseLong(args[++i]);
+                } else if (args[i].equals("--policy") && i + 1 < args.length) {
+                    options.mBackpressurePolicy =
+                            UploadQueue.Policy.valueOf(args[++i].toUpperCase(Locale.US));
+                } else if (args[i].equals("--flac")) {
+                    options.mFlacInput = true;
+                } else {
+                    System.err.println("usage: " + tool + " [--devices n] [--turns n]"
+                            + " [--speech-ms ms] [--think-ms ms] [--answer-ms ms] [--ramp-ms ms]"
+                            + " [--policy drop_oldest|compress|end_utterance] [--flac]");
+                    System.exit(2);
+                }
+            }
+            return options;
+        }
+    }
+}
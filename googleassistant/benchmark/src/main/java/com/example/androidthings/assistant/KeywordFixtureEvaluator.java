@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Runs the {@link KeywordSpotter} over a directory of recorded fixtures and reports accuracy,
+ * detection latency and CPU cost. Exits with status 1 if any recording is misrecognized, so it
+ * can gate changes to the spotter or its defaults.
+ *
+ * <pre>
+ * fixtures/templates/&lt;phrase&gt;/*.wav    enrollment recordings, as shipped in assets/keywords
+ * fixtures/utterances/&lt;phrase&gt;/*.wav   recordings that must be recognized as &lt;phrase&gt;
+ * fixtures/utterances/none/*.wav       recordings that must not match anything
+ *
+ * ./gradlew :benchmark:evaluateKeywords -Pfixtures=$PWD/fixtures
+ * </pre>
+ *
+ * All recordings are 16-bit PCM at the same sample rate. Audio is fed in the app's capture
+ * block size.
+ */
+public class KeywordFixtureEvaluator {
+    private static final String NO_PHRASE = "none";
+    private static final int BLOCK_SAMPLES = 256;
+
+    public static void main(String[] args) throws IOException {
+        float threshold = KeywordSpotter.DEFAULT_THRESHOLD;
+        float margin = KeywordSpotter.DEFAULT_MARGIN;
+        File fixtures = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threshold") && i + 1 < args.length) {
+                threshold = Float.parseFloat(args[++i]);
+            } else if (args[i].equals("--margin") && i + 1 < args.length) {
+                margin = Float.parseFloat(args[++i]);
+            } else {
+                fixtures = new File(args[i]);
+            }
+        }
+        if (fixtures == null || !new File(fixtures, "templates").isDirectory()
+                || !new File(fixtures, "utterances").isDirectory()) {
+            System.err.println("usage: KeywordFixtureEvaluator [--threshold t] [--margin m]"
+                    + " <fixtures directory>");
+            System.exit(2);
+        }
+        if (!evaluate(fixtures, threshold, margin)) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean evaluate(File fixtures, float threshold, float margin)
+            throws IOException {
+        final String[] detected = new String[1];
+        final float[] detectedScore = new float[1];
+        final long[] detectedAtSample = new long[1];
+        final long[] fedSamples = new long[1];
+
+        int sampleRate = 0;
+        KeywordSpotter spotter = null;
+        for (File phrase : listPhrases(new File(fixtures, "templates"))) {
+            for (File file : listRecordings(phrase)) {
+                WavReader wav = readWav(file);
+                if (spotter == null) {
+                    sampleRate = wav.mSampleRate;
+                    spotter = new KeywordSpotter(sampleRate, threshold, margin,
+                            new KeywordSpotter.Listener() {
+                        @Override
+                        public void onKeyword(String label, float score) {
+                            if (detected[0] == null) {
+                                detected[0] = label;
+                                detectedScore[0] = score;
+                                detectedAtSample[0] = fedSamples[0];
+                            }
+                        }
+                    });
+                } else if (wav.mSampleRate != sampleRate) {
+                    throw new IOException(file + ": " + wav.mSampleRate + " Hz, expected "
+                            + sampleRate);
+                }
+                spotter.addTemplate(phrase.getName(),
+                        KeywordSpotter.extractTemplate(wav.mSamples, wav.mSampleRate));
+            }
+        }
+        if (spotter == null) {
+            throw new IOException("no templates in " + fixtures);
+        }
+        System.out.println(spotter.getTemplateCount() + " templates, threshold " + threshold
+                + ", margin " + margin);
+
+        int utterances = 0;
+        int correct = 0;
+        int falseAccepts = 0;
+        int misses = 0;
+        LatencyHistogram detectionMs = new LatencyHistogram();
+        long processedSamples = 0;
+        long processingNanos = 0;
+        for (File phrase : listPhrases(new File(fixtures, "utterances"))) {
+            String expected = phrase.getName();
+            for (File file : listRecordings(phrase)) {
+                WavReader wav = readWav(file);
+                if (wav.mSampleRate != sampleRate) {
+                    throw new IOException(file + ": " + wav.mSampleRate + " Hz, expected "
+                            + sampleRate);
+                }
+                detected[0] = null;
+                fedSamples[0] = 0;
+                spotter.reset();
+                long start = System.nanoTime();
+                for (int offset = 0; offset < wav.mSamples.length; offset += BLOCK_SAMPLES) {
+                    int count = Math.min(BLOCK_SAMPLES, wav.mSamples.length - offset);
+                    fedSamples[0] += count;
+                    spotter.process(wav.mSamples, offset, count);
+                }
+                processingNanos += System.nanoTime() - start;
+                processedSamples += wav.mSamples.length;
+
+                utterances++;
+                String outcome;
+                if (expected.equals(NO_PHRASE) ? detected[0] == null
+                        : expected.equals(detected[0])) {
+                    correct++;
+                    outcome = "ok";
+                } else if (detected[0] == null) {
+                    misses++;
+                    outcome = "MISSED";
+                } else {
+                    falseAccepts++;
+                    outcome = "FALSE ACCEPT";
+                }
+                StringBuilder line = new StringBuilder(String.format(Locale.US, "%-13s %s/%s",
+                        outcome, expected, file.getName()));
+                if (detected[0] != null) {
+                    long atMs = detectedAtSample[0] * 1000 / sampleRate;
+                    if (detected[0].equals(expected)) {
+                        detectionMs.record(atMs);
+                    }
+                    line.append(String.format(Locale.US, " -> %s (score %.2f) at %d ms",
+                            detected[0], detectedScore[0], atMs));
+                }
+                System.out.println(line);
+            }
+        }
+
+        System.out.println(String.format(Locale.US,
+                "%d utterances: %d correct, %d missed, %d false accepts",
+                utterances, correct, misses, falseAccepts));
+        if (detectionMs.getCount() > 0) {
+            System.out.println(String.format(Locale.US,
+                    "detected after (ms from start of recording): p50 %d, p90 %d, max %d",
+                    detectionMs.getValueAtPercentile(50), detectionMs.getValueAtPercentile(90),
+                    detectionMs.getMax()));
+        }
+        if (processedSamples > 0) {
+            double audioSeconds = (double) processedSamples / sampleRate;
+            System.out.println(String.format(Locale.US,
+                    "cpu: %.1f us per 10 ms of audio, real-time factor %.4f",
+                    processingNanos / 1000.0 / (audioSeconds * 100),
+                    processingNanos / 1e9 / audioSeconds));
+        }
+        return correct == utterances;
+    }
+
+    private static WavReader readWav(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return WavReader.read(in);
+        } catch (IOException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static File[] listPhrases(File directory) {
+        return listSorted(directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory();
+            }
+        }));
+    }
+
+    private static File[] listRecordings(File directory) {
+        return listSorted(directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(".wav");
+            }
+        }));
+    }
+
+    private static File[] listSorted(File[] files) {
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+}
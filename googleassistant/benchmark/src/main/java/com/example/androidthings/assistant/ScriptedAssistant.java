@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import com.google.assistant.embedded.v1alpha1.AudioOut;
+import com.google.assistant.embedded.v1alpha1.ConverseRequest;
+import com.google.assistant.embedded.v1alpha1.ConverseResponse;
+import com.google.assistant.embedded.v1alpha1.ConverseResult;
+import com.google.assistant.embedded.v1alpha1.EmbeddedAssistantGrpc;
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * An in-process EmbeddedAssistant that answers every Converse call with the same script, so the
+ * converse pipeline can be run and profiled on the host.
+ *
+ * {@code utteranceMs} after the first audio of a call it sends END_OF_UTTERANCE, unless the
+ * request was half-closed before. {@code thinkMs} after the half-close it sends a result, whose
+ * spoken request text says how much audio it received, then {@code answerMs} of a LINEAR16 tone
+ * in chunks of {@link #CHUNK_MS}, and completes the call. Chunks are sent every
+ * {@link #CHUNK_INTERVAL_MS}, faster than they play, so the client's jitter buffer fills up.
+ * Calls cancelled by the client are dropped.
+ */
+class ScriptedAssistant extends EmbeddedAssistantGrpc.EmbeddedAssistantImplBase {
+    static final int CHUNK_MS = 100;
+    static final long CHUNK_INTERVAL_MS = 50;
+    private static final int SAMPLE_RATE = 16000;
+    private static final int TONE_HZ = 440;
+    private static final int TONE_AMPLITUDE = 4000;
+    private static final int SCHEDULER_THREADS = 4;
+
+    private final String mName;
+    private final long mUtteranceMs;
+    private final long mThinkMs;
+    private final int mAnswerChunks;
+    // 100 ms hold a whole number of periods, so one chunk can be sent over and over.
+    private final ByteString mChunk;
+    private final ScheduledExecutorService mScheduler;
+    private final AtomicLong mCalls = new AtomicLong();
+    private final AtomicLong mAnswers = new AtomicLong();
+    private final AtomicLong mAudioBytes = new AtomicLong();
+    // Guarded by mLock.
+    private final Object mLock = new Object();
+    private int mOpenCalls;
+    private int mMaxOpenCalls;
+    private Server mServer;
+
+    ScriptedAssistant(String name, long utteranceMs, long thinkMs, long answerMs) {
+        mName = name;
+        mUtteranceMs = utteranceMs;
+        mThinkMs = thinkMs;
+        mAnswerChunks = (int) (answerMs / CHUNK_MS);
+        byte[] chunk = new byte[SAMPLE_RATE * CHUNK_MS / 1000 * 2];
+        for (int i = 0; i < chunk.length / 2; i++) {
+            int sample = (int) (TONE_AMPLITUDE
+                    * Math.sin(2 * Math.PI * TONE_HZ * i / SAMPLE_RATE));
+            chunk[2 * i] = (byte) sample;
+            chunk[2 * i + 1] = (byte) (sample >> 8);
+        }
+        mChunk = ByteString.copyFrom(chunk);
+        mScheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "scriptedAssistantThread");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    void start() throws IOException {
+        mServer = InProcessServerBuilder.forName(mName).addService(this).build().start();
+    }
+
+    void stop() {
+        mServer.shutdownNow();
+        mScheduler.shutdownNow();
+    }
+
+    /**
+     * Calls that sent at least one request, which leaves out channel warm-ups.
+     */
+    long getCallCount() {
+        return mCalls.get();
+    }
+
+    /**
+     * Calls that were answered completely.
+     */
+    long getAnswerCount() {
+        return mAnswers.get();
+    }
+
+    long getAudioBytesReceived() {
+        return mAudioBytes.get();
+    }
+
+    /**
+     * The most calls that were open at the same time.
+     */
+    int getMaxOpenCalls() {
+        synchronized (mLock) {
+            return mMaxOpenCalls;
+        }
+    }
+
+    @Override
+    public StreamObserver<ConverseRequest> converse(
+            StreamObserver<ConverseResponse> responseObserver) {
+        return new Call((ServerCallStreamObserver<ConverseResponse>) responseObserver);
+    }
+
+    /**
+     * One Converse call. Responses are sent from the scheduler, holding the call's lock.
+     */
+    private class Call implements StreamObserver<ConverseRequest> {
+        private final ServerCallStreamObserver<ConverseResponse> mResponseObserver;
+        // Guarded by this.
+        private boolean mStarted;
+        private boolean mHalfClosed;
+        private boolean mFinished;
+        private long mBytes;
+        private int mChunksSent;
+
+        Call(ServerCallStreamObserver<ConverseResponse> responseObserver) {
+            mResponseObserver = responseObserver;
+        }
+
+        @Override
+        public synchronized void onNext(ConverseRequest value) {
+            if (!mStarted) {
+                mStarted = true;
+                mCalls.incrementAndGet();
+                synchronized (mLock) {
+                    mOpenCalls++;
+                    mMaxOpenCalls = Math.max(mMaxOpenCalls, mOpenCalls);
+                }
+            }
+            if (value.getConverseRequestCase() != ConverseRequest.ConverseRequestCase.AUDIO_IN) {
+                return;
+            }
+            if (mBytes == 0) {
+                schedule(mEndOfUtterance, mUtteranceMs);
+            }
+            mBytes += value.getAudioIn().size();
+            mAudioBytes.addAndGet(value.getAudioIn().size());
+        }
+
+        @Override
+        public synchronized void onError(Throwable t) {
+            finish();
+        }
+
+        @Override
+        public synchronized void onCompleted() {
+            mHalfClosed = true;
+            schedule(mResult, mThinkMs);
+        }
+
+        private void schedule(Runnable task, long delayMs) {
+            try {
+                mScheduler.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shut down.
+            }
+        }
+
+        /**
+         * Return false if the call is over, e.g. cancelled by the client. Must hold the lock.
+         */
+        private boolean isOpen() {
+            if (!mFinished && mResponseObserver.isCancelled()) {
+                finish();
+            }
+            return !mFinished;
+        }
+
+        private void finish() {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            if (mStarted) {
+                synchronized (mLock) {
+                    mOpenCalls--;
+                }
+            }
+        }
+
+        private final Runnable mEndOfUtterance = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Call.this) {
+                    if (mHalfClosed || !isOpen()) {
+                        return;
+                    }
+                    mResponseObserver.onNext(ConverseResponse.newBuilder()
+                            .setEventType(ConverseResponse.EventType.END_OF_UTTERANCE)
+                            .build());
+                }
+            }
+        };
+
+        private final Runnable mResult = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Call.this) {
+                    if (!isOpen()) {
+                        return;
+                    }
+                    mResponseObserver.onNext(ConverseResponse.newBuilder()
+                            .setResult(ConverseResult.newBuilder()
+                                    .setSpokenRequestText(mBytes + " bytes of audio")
+                                    .setConversationState(ByteString.copyFromUtf8(
+                                            "call " + mCalls.get()))
+                                    .setMicrophoneMode(
+                                            ConverseResult.MicrophoneMode.CLOSE_MICROPHONE))
+                            .build());
+                }
+                mAudioOut.run();
+            }
+        };
+
+        private final Runnable mAudioOut = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Call.this) {
+                    if (!isOpen()) {
+                        return;
+                    }
+                    if (mChunksSent < mAnswerChunks) {
+                        mChunksSent++;
+                        mResponseObserver.onNext(ConverseResponse.newBuilder()
+                                .setAudioOut(AudioOut.newBuilder().setAudioData(mChunk))
+                                .build());
+                        schedule(this, CHUNK_INTERVAL_MS);
+                        return;
+                    }
+                    mResponseObserver.onCompleted();
+                    mAnswers.incrementAndGet();
+                    finish();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import com.google.assistant.embedded.v1alpha1.AudioOutConfig;
+import com.google.assistant.embedded.v1alpha1.ConverseResult;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+
+/**
+ * One dispenser on the host: the app's {@link ConversePipeline} on its own channel, fed by a
+ * synthetic microphone and playing into a simulated speaker, both running in real time.
+ *
+ * {@link #runTurn()} presses the button, speaks for {@code speechMs} and waits until the answer
+ * has played out, as the app's turn does. The microphone hears faint noise, and a loud voiced
+ * sound while speaking, so the voice activity detector ends the request after the speech if
+ * END_OF_UTTERANCE does not come first.
+ */
+class SimulatedDevice {
+    private static final int SAMPLE_RATE = ConversePipeline.SAMPLE_RATE;
+    private static final int BYTES_PER_SAMPLE = ConversePipeline.BYTES_PER_SAMPLE;
+    private static final int SAMPLE_BLOCK_POOL_SIZE = 4;
+    private static final int PLAYBACK_QUEUE_CAPACITY = 256;
+    // What the speaker holds ahead of what it plays, like an AudioTrack's buffer.
+    private static final int SPEAKER_BUFFER_MS = 100;
+    private static final long TURN_TIMEOUT_MS = 30000;
+
+    private final long mSpeechMs;
+    private final TurnMetrics mTurnMetrics = new TurnMetrics();
+    private final ChannelManager mChannelManager;
+    private final ConversePipeline mPipeline;
+    private final SyntheticMicrophone mMicrophone;
+    private final SimulatedSpeaker mSpeaker = new SimulatedSpeaker();
+    private final AudioCapture mAudioCapture;
+    private final AudioPlaybackEngine mPlaybackEngine;
+    private volatile CountDownLatch mTurnDone = new CountDownLatch(0);
+    private volatile String mTurnError;
+    private volatile ConversePipeline.EndReason mEndReason;
+
+    /**
+     * @param serverName the name of the in-process server to call, e.g. a
+     *         {@link ScriptedAssistant}.
+     * @param seed the seed of the microphone noise.
+     */
+    SimulatedDevice(String serverName, long speechMs, boolean flacInput,
+            UploadQueue.Policy backpressurePolicy, long seed) {
+        mSpeechMs = speechMs;
+        mChannelManager = new ChannelManager(InProcessChannelBuilder.forName(serverName), null,
+                null);
+        mPipeline = new ConversePipeline(mChannelManager, mTurnMetrics, flacInput,
+                AudioOutConfig.Encoding.LINEAR16, backpressurePolicy, mPipelineListener);
+        mMicrophone = new SyntheticMicrophone(seed);
+        mAudioCapture = new AudioCapture(mMicrophone,
+                new AudioBufferPool(SAMPLE_BLOCK_POOL_SIZE, ConversePipeline.SAMPLE_BLOCK_SIZE),
+                new AudioCapture.Listener() {
+                    @Override
+                    public void onAudioChunk(ByteBuffer audioData) {
+                        mPipeline.streamAudio(audioData);
+                    }
+                });
+        mPlaybackEngine = new AudioPlaybackEngine(mSpeaker, SAMPLE_RATE, BYTES_PER_SAMPLE,
+                PLAYBACK_QUEUE_CAPACITY);
+        mPlaybackEngine.setListener(new AudioPlaybackEngine.Listener() {
+            @Override
+            public void onFirstAudioWritten() {
+                mTurnMetrics.mark(TurnMetrics.Stage.FIRST_AUDIO_PLAYED);
+            }
+
+            @Override
+            public void onResponseDrained() {
+            }
+
+            @Override
+            public void onFlushed() {
+            }
+        });
+    }
+
+    void start() {
+        mChannelManager.warmUp();
+        mPlaybackEngine.start();
+        mAudioCapture.start();
+    }
+
+    void stop() {
+        mAudioCapture.stop();
+        mPlaybackEngine.stop();
+        mChannelManager.shutdown();
+    }
+
+    /**
+     * Run one turn, from the button press until the answer has played out or the call failed.
+     *
+     * @return whether the turn was answered; see {@link #getTurnError()} if not.
+     */
+    boolean runTurn() throws InterruptedException {
+        mTurnDone = new CountDownLatch(1);
+        mTurnError = null;
+        mEndReason = null;
+        mTurnMetrics.startTurn(System.nanoTime());
+        mMicrophone.speak(mSpeechMs);
+        if (!mPipeline.startTurn()) {
+            mTurnError = "request already in progress";
+        } else if (!mTurnDone.await(TURN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            mTurnError = "timed out";
+            mPipeline.stopRequest();
+        }
+        mTurnMetrics.finishTurn();
+        mPipeline.updateCounters();
+        return mTurnError == null;
+    }
+
+    TurnMetrics getTurnMetrics() {
+        return mTurnMetrics;
+    }
+
+    /**
+     * Why the last turn was not answered, or null if it was.
+     */
+    String getTurnError() {
+        return mTurnError;
+    }
+
+    /**
+     * What ended the last turn's request, or null if it did not end.
+     */
+    ConversePipeline.EndReason getEndReason() {
+        return mEndReason;
+    }
+
+    long getFramesPlayed() {
+        return mSpeaker.getPlaybackHeadPosition();
+    }
+
+    private final Runnable mAnswerPlayed = new Runnable() {
+        @Override
+        public void run() {
+            mTurnDone.countDown();
+        }
+    };
+
+    private final ConversePipeline.Listener mPipelineListener = new ConversePipeline.Listener() {
+        @Override
+        public void onTurnStarted(long turn) {
+        }
+
+        @Override
+        public void onRequestAudio(ByteBuffer audioData) {
+        }
+
+        @Override
+        public void onRequestEnded(ConversePipeline.EndReason reason) {
+            mEndReason = reason;
+        }
+
+        @Override
+        public void onResult(ConverseResult result) {
+        }
+
+        @Override
+        public void onAudioOut(ByteBuffer audioData) {
+            mPlaybackEngine.enqueue(audioData);
+        }
+
+        @Override
+        public void onResponseError(String message) {
+            mTurnError = "response error: " + message;
+        }
+
+        @Override
+        public void onResponseCompleted(boolean followOn) {
+            mPlaybackEngine.runWhenDrained(mAnswerPlayed);
+            mPlaybackEngine.endOfStream();
+        }
+
+        @Override
+        public void onCallFailed(long turn, Throwable t) {
+            mTurnError = Status.fromThrowable(t).toString();
+            mTurnDone.countDown();
+        }
+    };
+
+    /**
+     * Faint noise, and a 150 Hz voiced sound with its first harmonic while speaking, delivered
+     * at the pace of a 16 kHz microphone.
+     */
+    private static class SyntheticMicrophone implements AudioCapture.Input {
+        private static final int NOISE_AMPLITUDE = 30;
+        private static final int VOICE_HZ = 150;
+        private static final int VOICE_AMPLITUDE = 5000;
+
+        private final Random mRandom;
+        // Capture thread only.
+        private long mNextReadNanos;
+        private volatile long mSamplesRead;
+        private volatile long mSpeechEndSample;
+
+        SyntheticMicrophone(long seed) {
+            mRandom = new Random(seed);
+        }
+
+        /**
+         * Speak for {@code speechMs} from the next read on.
+         */
+        void speak(long speechMs) {
+            mSpeechEndSample = mSamplesRead + speechMs * SAMPLE_RATE / 1000;
+        }
+
+        @Override
+        public void start() {
+            mNextReadNanos = System.nanoTime();
+        }
+
+        @Override
+        public int read(ByteBuffer audioData, int size) {
+            int samples = size / BYTES_PER_SAMPLE;
+            // Block until the microphone would have recorded this much.
+            mNextReadNanos += samples * TimeUnit.SECONDS.toNanos(1) / SAMPLE_RATE;
+            long waitNanos;
+            while ((waitNanos = mNextReadNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+            long speechEndSample = mSpeechEndSample;
+            for (int i = 0; i < samples; i++) {
+                long sampleIndex = mSamplesRead + i;
+                int sample = mRandom.nextInt(2 * NOISE_AMPLITUDE + 1) - NOISE_AMPLITUDE;
+                if (sampleIndex < speechEndSample) {
+                    double phase = 2 * Math.PI * VOICE_HZ * sampleIndex / SAMPLE_RATE;
+                    sample += (int) (VOICE_AMPLITUDE * (0.7 * Math.sin(phase)
+                            + 0.3 * Math.sin(2 * phase)));
+                }
+                audioData.put(2 * i, (byte) sample);
+                audioData.put(2 * i + 1, (byte) (sample >> 8));
+            }
+            mSamplesRead += samples;
+            return samples * BYTES_PER_SAMPLE;
+        }
+
+        @Override
+        public void stop() {
+        }
+    }
+
+    /**
+     * A speaker that plays in real time and holds up to {@link #SPEAKER_BUFFER_MS} of audio;
+     * writes block while it is full.
+     */
+    private static class SimulatedSpeaker implements AudioPlaybackEngine.Output {
+        private static final long BUFFER_FRAMES = SAMPLE_RATE * SPEAKER_BUFFER_MS / 1000;
+        private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+        // Guarded by this.
+        private long mFramesWritten;
+        private long mFramesPlayed;
+        // When mFramesPlayed was last brought up to date.
+        private long mClockNanos = System.nanoTime();
+
+        @Override
+        public void onWriterStarted() {
+        }
+
+        @Override
+        public int write(ByteBuffer audioData, int size) {
+            int frames = writeFrames(size / BYTES_PER_SAMPLE);
+            audioData.position(audioData.position() + frames * BYTES_PER_SAMPLE);
+            return frames * BYTES_PER_SAMPLE;
+        }
+
+        @Override
+        public int write(short[] audioData, int offset, int size) {
+            return writeFrames(size);
+        }
+
+        @Override
+        public synchronized int getPlaybackHeadPosition() {
+            advance();
+            return (int) mFramesPlayed;
+        }
+
+        @Override
+        public synchronized void flush() {
+            advance();
+            mFramesWritten = mFramesPlayed;
+        }
+
+        /**
+         * Take up to {@code frames}, waiting for room if the buffer is full.
+         */
+        private int writeFrames(int frames) {
+            while (true) {
+                long waitNanos;
+                synchronized (this) {
+                    advance();
+                    long room = BUFFER_FRAMES - (mFramesWritten - mFramesPlayed);
+                    if (room > 0 || frames == 0) {
+                        int written = (int) Math.min(frames, room);
+                        mFramesWritten += written;
+                        return written;
+                    }
+                    waitNanos = (1 - room) * NANOS_PER_SECOND / SAMPLE_RATE;
+                }
+                LockSupport.parkNanos(waitNanos);
+            }
+        }
+
+        /**
+         * Play what was due since the last call. Must hold the lock.
+         */
+        private void advance() {
+            long now = System.nanoTime();
+            long dueFrames = (now - mClockNanos) * SAMPLE_RATE / NANOS_PER_SECOND;
+            if (dueFrames >= mFramesWritten - mFramesPlayed) {
+                // Ran dry; the clock restarts with the next write.
+                mFramesPlayed = mFramesWritten;
+                mClockNanos = now;
+            } else {
+                mFramesPlayed += dueFrames;
+                mClockNanos += dueFrames * NANOS_PER_SECOND / SAMPLE_RATE;
+            }
+        }
+    }
+}
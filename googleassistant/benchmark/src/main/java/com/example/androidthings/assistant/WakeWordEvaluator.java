@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Runs the {@link WakeWordDetector} over recorded fixtures the way the capture thread does and
+ * reports false rejects, false accepts and CPU time per second of audio. Exits with status 1
+ * on any false reject or false accept.
+ *
+ * <pre>
+ * fixtures/templates/*.wav   enrollment recordings, as shipped in assets/wakeword
+ * fixtures/positive/*.wav    recordings containing the wake word once
+ * fixtures/negative/*.wav    speech and noise without it, any length
+ *
+ * ./gradlew :benchmark:evaluateWakeWord -Pfixtures=$PWD/fixtures
+ * </pre>
+ */
+public class WakeWordEvaluator {
+    private static final int BLOCK_BYTES = 512;
+    private static final int WARM_UP_SECONDS = 30;
+
+    public static void main(String[] args) throws IOException {
+        float threshold = WakeWordDetector.DEFAULT_THRESHOLD;
+        long budgetNanos = WakeWordDetector.DEFAULT_FRAME_BUDGET_NANOS;
+        File fixtures = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threshold") && i + 1 < args.length) {
+                threshold = Float.parseFloat(args[++i]);
+            } else if (args[i].equals("--budget-us") && i + 1 < args.length) {
+                budgetNanos = Long.parseLong(args[++i]) * 1000;
+            } else {
+                fixtures = new File(args[i]);
+            }
+        }
+        if (fixtures == null || !new File(fixtures, "templates").isDirectory()) {
+            System.err.println("usage: WakeWordEvaluator [--threshold t] [--budget-us us]"
+                    + " <fixtures directory>");
+            System.exit(2);
+        }
+        if (!evaluate(fixtures, threshold, budgetNanos)) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean evaluate(File fixtures, float threshold, long budgetNanos)
+            throws IOException {
+        File[] templates = listRecordings(new File(fixtures, "templates"));
+        if (templates.length == 0) {
+            throw new IOException("no templates in " + fixtures);
+        }
+        // The app is compiled ahead of time; let the JIT catch up before the budget counts.
+        WakeWordDetector warmUp = createDetector(templates, threshold, Long.MAX_VALUE);
+        short[] warmUpAudio = readWav(templates[0]).mSamples;
+        ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long warmUpSamples = (long) warmUp.getSampleRate() * WARM_UP_SECONDS;
+        for (long fed = 0; fed < warmUpSamples; fed += BLOCK_BYTES / 2) {
+            feed(warmUp, warmUpAudio, (int) (fed % warmUpAudio.length), block);
+        }
+        WakeWordDetector detector = createDetector(templates, threshold, budgetNanos);
+        int sampleRate = detector.getSampleRate();
+        System.out.println(detector.getTemplateCount() + " templates, threshold " + threshold
+                + ", budget " + budgetNanos / 1000 + " us per frame");
+
+        int positives = 0;
+        int falseRejects = 0;
+        int falseAccepts = 0;
+        long negativeSamples = 0;
+        LatencyHistogram detectionMs = new LatencyHistogram();
+        for (String kind : new String[] {"positive", "negative"}) {
+            boolean positive = kind.equals("positive");
+            for (File file : listRecordings(new File(fixtures, kind))) {
+                WavReader wav = readWav(file);
+                if (wav.mSampleRate != sampleRate) {
+                    throw new IOException(file + ": " + wav.mSampleRate + " Hz, expected "
+                            + sampleRate);
+                }
+                detector.reset();
+                StringBuilder detections = new StringBuilder();
+                int count = 0;
+                for (int offset = 0; offset < wav.mSamples.length;
+                        offset += BLOCK_BYTES / 2) {
+                    if (feed(detector, wav.mSamples, offset, block)) {
+                        long atMs = (long) (offset + block.limit() / 2) * 1000 / sampleRate;
+                        if (count++ == 0 && positive) {
+                            detectionMs.record(atMs);
+                        }
+                        detections.append(String.format(Locale.US, " %d ms (score %.2f,"
+                                        + " %d ms after the word)", atMs, detector.getLastScore(),
+                                detector.getSamplesSinceWakeWord() * 1000 / sampleRate));
+                    }
+                }
+                String outcome;
+                if (positive) {
+                    positives++;
+                    if (count == 0) {
+                        falseRejects++;
+                        outcome = "FALSE REJECT";
+                    } else if (count > 1) {
+                        falseAccepts += count - 1;
+                        outcome = "FALSE ACCEPT";
+                    } else {
+                        outcome = "ok";
+                    }
+                } else {
+                    negativeSamples += wav.mSamples.length;
+                    falseAccepts += count;
+                    outcome = count == 0 ? "ok" : "FALSE ACCEPT";
+                }
+                System.out.println(String.format(Locale.US, "%-13s %s/%s%s",
+                        outcome, kind, file.getName(), detections));
+            }
+        }
+
+        double negativeHours = negativeSamples / (double) sampleRate / 3600;
+        System.out.println(String.format(Locale.US,
+                "false rejects: %d of %d, false accepts: %d (%.1f per hour of negatives)",
+                falseRejects, positives, falseAccepts,
+                negativeHours > 0 ? falseAccepts / negativeHours : 0));
+        if (detectionMs.getCount() > 0) {
+            System.out.println(String.format(Locale.US,
+                    "detected after (ms from start of recording): p50 %d, p90 %d, max %d",
+                    detectionMs.getValueAtPercentile(50), detectionMs.getValueAtPercentile(90),
+                    detectionMs.getMax()));
+        }
+        System.out.println(String.format(Locale.US,
+                "cpu: %d us per second of audio, spotter ran on %d%% of it, %d us per frame,"
+                        + " %d of %d templates after %d limit changes",
+                detector.getMicrosPerSecond(), detector.getGateOpenPercent(),
+                detector.getFrameCostNanos() / 1000, detector.getTemplateLimit(),
+                detector.getTemplateCount(), detector.getTemplateLimitChanges()));
+        return falseRejects == 0 && falseAccepts == 0;
+    }
+
+    private static WakeWordDetector createDetector(File[] templates, float threshold,
+            long budgetNanos) throws IOException {
+        WakeWordDetector detector = null;
+        for (File file : templates) {
+            WavReader wav = readWav(file);
+            if (detector == null) {
+                detector = new WakeWordDetector(wav.mSampleRate, threshold, budgetNanos);
+            } else if (wav.mSampleRate != detector.getSampleRate()) {
+                throw new IOException(file + ": " + wav.mSampleRate + " Hz, expected "
+                        + detector.getSampleRate());
+            }
+            detector.addTemplate(KeywordSpotter.extractTemplate(wav.mSamples, wav.mSampleRate));
+        }
+        return detector;
+    }
+
+    /**
+     * Pass one capture block starting at {@code offset} to the detector, as little-endian PCM.
+     */
+    private static boolean feed(WakeWordDetector detector, short[] samples, int offset,
+            ByteBuffer block) {
+        int count = Math.min(BLOCK_BYTES / 2, samples.length - offset);
+        block.clear();
+        block.asShortBuffer().put(samples, offset, count);
+        block.limit(count * 2);
+        return detector.process(block);
+    }
+
+    private static WavReader readWav(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return WavReader.read(in);
+        } catch (IOException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static File[] listRecordings(File directory) {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(".wav");
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an {@link AccessTokenRefresher} on a virtual clock against a token server on localhost,
+ * which records when each request arrived and can be told to fail.
+ */
+public class AccessTokenRefresherTest {
+    private static final long EXPIRES_IN_MS = TimeUnit.HOURS.toMillis(1);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    private final VirtualClock mClock = new VirtualClock();
+    private final TokenServer mTokenServer = new TokenServer();
+    private final List<Long> mFailuresMs = Collections.synchronizedList(new ArrayList<Long>());
+    private final List<IOException> mCacheFailures =
+            Collections.synchronizedList(new ArrayList<IOException>());
+    private HttpServer mServer;
+    private URI mTokenServerUri;
+    private File mCacheFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/token", mTokenServer);
+        mServer.start();
+        mTokenServerUri = URI.create("http://127.0.0.1:" + mServer.getAddress().getPort()
+                + "/token");
+        mCacheFile = new File(mFolder.getRoot(), "access_token.json");
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void firstStartRefreshesAtOnce() {
+        AccessTokenRefresher refresher = newRefresher();
+        assertNull(refresher.getToken());
+        assertFalse(refresher.isTokenValid());
+        refresher.start();
+        mClock.runUntil(0);
+
+        assertEquals(Arrays.asList(0L), mTokenServer.mRequestsMs);
+        assertEquals("grant_type=refresh_token&client_id=id&client_secret=s%26cret"
+                + "&refresh_token=refresh", mTokenServer.mLastForm);
+        assertEquals("token-1", refresher.getToken().mValue);
+        assertEquals(EXPIRES_IN_MS, refresher.getToken().mExpirationTimeMs);
+        assertTrue(refresher.isTokenValid());
+        assertTrue(mCacheFile.exists());
+    }
+
+    @Test
+    public void cachedTokenIsReusedAfterARestart() {
+        AccessTokenRefresher previous = newRefresher();
+        previous.start();
+        mClock.runUntil(0);
+        previous.stop();
+
+        mClock.mNowMs = TimeUnit.MINUTES.toMillis(10);
+        AccessTokenRefresher refresher = newRefresher();
+        assertEquals("token-1", refresher.getToken().mValue);
+        assertEquals(EXPIRES_IN_MS, refresher.getToken().mExpirationTimeMs);
+        assertTrue(refresher.isTokenValid());
+        refresher.start();
+        long refreshAtMs = EXPIRES_IN_MS - AccessTokenRefresher.REFRESH_MARGIN_MS;
+        mClock.runUntil(refreshAtMs - 1);
+        assertEquals(1, mTokenServer.mRequestsMs.size());
+        mClock.runUntil(refreshAtMs);
+        assertEquals(Arrays.asList(0L, refreshAtMs), mTokenServer.mRequestsMs);
+        assertEquals("token-2", refresher.getToken().mValue);
+        assertTrue(mCacheFailures.isEmpty());
+    }
+
+    @Test
+    public void tokenIsRefreshedFiveMinutesBeforeItExpires() {
+        AccessTokenRefresher refresher = newRefresher();
+        refresher.start();
+        mClock.runUntil(3 * EXPIRES_IN_MS);
+
+        long intervalMs = EXPIRES_IN_MS - TimeUnit.MINUTES.toMillis(5);
+        assertEquals(Arrays.asList(0L, intervalMs, 2 * intervalMs, 3 * intervalMs),
+                mTokenServer.mRequestsMs);
+        assertEquals("token-4", refresher.getToken().mValue);
+        assertTrue(mFailuresMs.isEmpty());
+    }
+
+    @Test
+    public void failedRefreshIsRetriedAfterThirtySeconds() {
+        AccessTokenRefresher refresher = newRefresher();
+        mTokenServer.mFailures = 2;
+        refresher.start();
+        mClock.runUntil(TimeUnit.MINUTES.toMillis(1));
+
+        long retryMs = TimeUnit.SECONDS.toMillis(30);
+        assertEquals(Arrays.asList(0L, retryMs, 2 * retryMs), mTokenServer.mRequestsMs);
+        assertEquals(Arrays.asList(0L, retryMs), mFailuresMs);
+        assertEquals("token-1", refresher.getToken().mValue);
+        assertEquals(2 * retryMs + EXPIRES_IN_MS, refresher.getToken().mExpirationTimeMs);
+        // Back on the regular schedule once it worked.
+        mClock.runUntil(2 * retryMs + EXPIRES_IN_MS);
+        assertEquals(2 * retryMs + EXPIRES_IN_MS - AccessTokenRefresher.REFRESH_MARGIN_MS,
+                (long) mTokenServer.mRequestsMs.get(3));
+    }
+
+    @Test
+    public void failedRefreshKeepsTheCurrentToken() {
+        AccessTokenRefresher refresher = newRefresher();
+        refresher.start();
+        mClock.runUntil(0);
+        mTokenServer.mFailures = Integer.MAX_VALUE;
+        mClock.runUntil(EXPIRES_IN_MS - 1);
+
+        assertEquals("token-1", refresher.getToken().mValue);
+        assertTrue(refresher.isTokenValid());
+        mClock.runUntil(EXPIRES_IN_MS);
+        assertFalse(refresher.isTokenValid());
+        // Every 30 seconds from five minutes before the expiry.
+        assertEquals(AccessTokenRefresher.REFRESH_MARGIN_MS / AccessTokenRefresher.RETRY_DELAY_MS
+                + 1, mFailuresMs.size());
+    }
+
+    @Test
+    public void expiredOrUnreadableCacheIsRefreshedAtOnce() throws IOException {
+        Files.write(mCacheFile.toPath(),
+                "{\"access_token\": \"old\", \"expiration_time_ms\": 0}".getBytes(UTF_8));
+        mClock.mNowMs = 1;
+        AccessTokenRefresher refresher = newRefresher();
+        assertNull(refresher.getToken());
+        assertTrue(mCacheFailures.isEmpty());
+
+        Files.write(mCacheFile.toPath(), "{\"access_token\": \"torn".getBytes(UTF_8));
+        refresher = newRefresher();
+        assertNull(refresher.getToken());
+        assertEquals(1, mCacheFailures.size());
+        refresher.start();
+        mClock.runUntil(1);
+        assertEquals(Arrays.asList(1L), mTokenServer.mRequestsMs);
+    }
+
+    @Test
+    public void stopCancelsTheScheduledRefresh() {
+        AccessTokenRefresher refresher = newRefresher();
+        refresher.start();
+        mClock.runUntil(0);
+        refresher.stop();
+        mClock.runUntil(3 * EXPIRES_IN_MS);
+        assertEquals(1, mTokenServer.mRequestsMs.size());
+    }
+
+    private AccessTokenRefresher newRefresher() {
+        return new AccessTokenRefresher("id", "s&cret", "refresh", mTokenServerUri, mCacheFile,
+                mClock, new AccessTokenRefresher.Listener() {
+                    @Override
+                    public void onRefreshed(AccessTokenRefresher.Token token,
+                            long nextRefreshDelayMs) {
+                    }
+
+                    @Override
+                    public void onRefreshFailed(IOException e, long retryDelayMs) {
+                        assertEquals(AccessTokenRefresher.RETRY_DELAY_MS, retryDelayMs);
+                        mFailuresMs.add(mClock.mNowMs);
+                    }
+
+                    @Override
+                    public void onCacheFailed(IOException e) {
+                        mCacheFailures.add(e);
+                    }
+                });
+    }
+
+    /**
+     * Answers the refresh token grant with a new token valid for {@link #EXPIRES_IN_MS}, or
+     * with an error while {@link #mFailures} is positive.
+     */
+    private class TokenServer implements HttpHandler {
+        final List<Long> mRequestsMs = Collections.synchronizedList(new ArrayList<Long>());
+        volatile int mFailures;
+        volatile String mLastForm;
+        private int mTokens;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            mRequestsMs.add(mClock.mNowMs);
+            mLastForm = new String(readFully(exchange.getRequestBody()), UTF_8);
+            int code;
+            String body;
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                code = 405;
+                body = "";
+            } else if (mFailures > 0) {
+                mFailures--;
+                code = 503;
+                body = "{\"error\": \"unavailable\"}";
+            } else {
+                mTokens++;
+                code = 200;
+                body = "{\n  \"access_token\": \"token-" + mTokens + "\",\n"
+                        + "  \"expires_in\": " + TimeUnit.MILLISECONDS.toSeconds(EXPIRES_IN_MS)
+                        + ",\n  \"token_type\": \"Bearer\"\n}";
+            }
+            byte[] bytes = body.getBytes(UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(code, bytes.length > 0 ? bytes.length : -1);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        }
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int read;
+        while ((read = is.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Runs the posted tasks on the test thread, in time order, as time is advanced.
+     */
+    private static class VirtualClock implements AccessTokenRefresher.Clock {
+        private static class Task implements Comparable<Task> {
+            final long mAtMs;
+            final long mSequence;
+            final Runnable mRunnable;
+
+            Task(long atMs, long sequence, Runnable runnable) {
+                mAtMs = atMs;
+                mSequence = sequence;
+                mRunnable = runnable;
+            }
+
+            @Override
+            public int compareTo(Task other) {
+                if (mAtMs != other.mAtMs) {
+                    return mAtMs < other.mAtMs ? -1 : 1;
+                }
+                return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+            }
+        }
+
+        private final PriorityQueue<Task> mTasks = new PriorityQueue<>();
+        private long mSequence;
+        // Read by the token server's thread.
+        volatile long mNowMs;
+
+        @Override
+        public long currentTimeMillis() {
+            return mNowMs;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            mTasks.add(new Task(mNowMs + Math.max(0, delayMs), mSequence++, task));
+        }
+
+        void runUntil(long atMs) {
+            while (!mTasks.isEmpty() && mTasks.peek().mAtMs <= atMs) {
+                Task task = mTasks.poll();
+                mNowMs = task.mAtMs;
+                task.mRunnable.run();
+            }
+            mNowMs = Math.max(mNowMs, atMs);
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.assistant.embedded.v1alpha1.AudioOutConfig;
+import com.google.assistant.embedded.v1alpha1.ConverseResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import io.grpc.inprocess.InProcessChannelBuilder;
+
+/**
+ * Streams captured chunks into a {@link ConversePipeline}, as the app does, and counts what the
+ * capture thread allocates once warmed up.
+ *
+ * Between turns the chunks go into the pre-roll, which must allocate nothing. During a turn
+ * every upload message is a new ConverseRequest, and the in-process transport copies its audio;
+ * anything beyond that, such as a copy of each chunk, fails the check.
+ */
+public class AudioCaptureTest {
+    private static final int CHUNK_BYTES = ConversePipeline.SAMPLE_BLOCK_SIZE;
+    private static final int POOL_SIZE = 4;
+    // Chunks before the measurement, so the JIT has compiled the path.
+    private static final int WARM_UP_CHUNKS = 1000;
+    private static final int MEASURED_CHUNKS = 2000;
+    // Delivered 16 times faster than a 16 kHz microphone, so the transport keeps up.
+    private static final long CHUNK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // A few allocations by the runtime over the whole run, not one per chunk.
+    private static final long MAX_PRE_ROLL_BYTES = 4096;
+    // The request message and its transport bookkeeping fit well under a chunk.
+    private static final long MAX_TURN_BYTES_PER_CHUNK = CHUNK_BYTES;
+    private static final long TIMEOUT_SECONDS = 30;
+    private static final String SERVER_NAME = "allocation-assistant";
+    // Longer than the run, so the Assistant never ends the request.
+    private static final long UTTERANCE_MS = 60000;
+
+    private final ScriptedAssistant mAssistant =
+            new ScriptedAssistant(SERVER_NAME, UTTERANCE_MS, 100, 100);
+    private final AtomicInteger mStreamedChunks = new AtomicInteger();
+    private volatile String mFailure;
+    private ChannelManager mChannelManager;
+    private ConversePipeline mPipeline;
+
+    @Before
+    public void setUp() throws IOException {
+        mAssistant.start();
+        mChannelManager = new ChannelManager(InProcessChannelBuilder.forName(SERVER_NAME), null,
+                null);
+        mPipeline = new ConversePipeline(mChannelManager, new TurnMetrics(), false,
+                AudioOutConfig.Encoding.LINEAR16, UploadQueue.Policy.DROP_OLDEST, mListener);
+    }
+
+    @After
+    public void tearDown() {
+        mPipeline.stopRequest();
+        mChannelManager.shutdown();
+        mAssistant.stop();
+    }
+
+    @Test
+    public void captureIntoThePreRollAllocatesNothing() throws InterruptedException {
+        Measurement measurement = capture();
+        assertEquals("chunks streamed", 0, mStreamedChunks.get());
+        assertTrue(measurement.mAllocatedBytes + " bytes allocated",
+                measurement.mAllocatedBytes <= MAX_PRE_ROLL_BYTES);
+        assertEquals("buffers allocated", POOL_SIZE, measurement.mPoolAllocations);
+    }
+
+    @Test
+    public void captureDuringATurnAllocatesNoMoreThanTheMessages()
+            throws InterruptedException {
+        assertTrue(mPipeline.startTurn());
+        Measurement measurement = capture();
+        assertNull(mFailure);
+        assertEquals("chunks streamed", WARM_UP_CHUNKS + MEASURED_CHUNKS,
+                mStreamedChunks.get());
+        long bytesPerChunk = (measurement.mAllocatedBytes - measurement.mRequestAudioBytes)
+                / MEASURED_CHUNKS;
+        assertTrue(bytesPerChunk + " bytes per chunk besides the audio copied by the transport",
+                bytesPerChunk <= MAX_TURN_BYTES_PER_CHUNK);
+        assertEquals("buffers allocated", POOL_SIZE, measurement.mPoolAllocations);
+    }
+
+    /**
+     * What the capture thread allocated over {@link #MEASURED_CHUNKS} chunks.
+     */
+    private static class Measurement {
+        long mAllocatedBytes;
+        // Request audio sent meanwhile, which the in-process transport copies.
+        long mRequestAudioBytes;
+        long mPoolAllocations;
+    }
+
+    private Measurement capture() throws InterruptedException {
+        final Measurement measurement = new Measurement();
+        final CountDownLatch done = new CountDownLatch(1);
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        AudioBufferPool pool = new AudioBufferPool(POOL_SIZE, CHUNK_BYTES);
+        AudioCapture capture = new AudioCapture(new AudioCapture.Input() {
+            private final Random mRandom = new Random(1);
+            private int mReads;
+            private long mNextReadNanos;
+
+            @Override
+            public void start() {
+                mNextReadNanos = System.nanoTime();
+            }
+
+            @Override
+            public int read(ByteBuffer audioData, int size) {
+                long threadId = Thread.currentThread().getId();
+                if (mReads == WARM_UP_CHUNKS) {
+                    measurement.mAllocatedBytes = -threads.getThreadAllocatedBytes(threadId);
+                    measurement.mRequestAudioBytes = -mPipeline.getRequestAudioBytes();
+                } else if (mReads == WARM_UP_CHUNKS + MEASURED_CHUNKS) {
+                    measurement.mAllocatedBytes += threads.getThreadAllocatedBytes(threadId);
+                    measurement.mRequestAudioBytes += mPipeline.getRequestAudioBytes();
+                    done.countDown();
+                    return -1;
+                }
+                mReads++;
+                mNextReadNanos += CHUNK_INTERVAL_NANOS;
+                long waitNanos;
+                while ((waitNanos = mNextReadNanos - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(waitNanos);
+                }
+                // Faint noise, which the voice activity detector takes for silence.
+                for (int i = 0; i < size; i++) {
+                    audioData.put(i, (byte) (mRandom.nextInt(61) - 30));
+                }
+                return size;
+            }
+
+            @Override
+            public void stop() {
+            }
+        }, pool, new AudioCapture.Listener() {
+            @Override
+            public void onAudioChunk(ByteBuffer audioData) {
+                if (mPipeline.streamAudio(audioData)) {
+                    mStreamedChunks.incrementAndGet();
+                }
+            }
+        });
+        capture.start();
+        assertTrue("capture did not finish", done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        capture.stop();
+        measurement.mPoolAllocations = pool.getAllocationCount();
+        return measurement;
+    }
+
+    private final ConversePipeline.Listener mListener = new ConversePipeline.Listener() {
+        @Override
+        public void onTurnStarted(long turn) {
+        }
+
+        @Override
+        public void onRequestAudio(ByteBuffer audioData) {
+        }
+
+        @Override
+        public void onRequestEnded(ConversePipeline.EndReason reason) {
+            mFailure = "request ended by " + reason;
+        }
+
+        @Override
+        public void onResult(ConverseResult result) {
+        }
+
+        @Override
+        public void onAudioOut(ByteBuffer audioData) {
+        }
+
+        @Override
+        public void onResponseError(String message) {
+            mFailure = "response error: " + message;
+        }
+
+        @Override
+        public void onResponseCompleted(boolean followOn) {
+        }
+
+        @Override
+        public void onCallFailed(long turn, Throwable t) {
+            mFailure = "call failed: " + t;
+        }
+    };
+}
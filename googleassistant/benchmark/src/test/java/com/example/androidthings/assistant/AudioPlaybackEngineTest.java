@@ -0,0 +1,147 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that an {@link AudioPlaybackEngine} hands pooled chunks back once it is done with
+ * them, whether they were played, dropped by an overrun or flushed, and keeps the rest.
+ */
+public class AudioPlaybackEngineTest {
+    private static final int SAMPLE_RATE = 16000;
+    // 20 ms of audio, an Opus frame.
+    private static final int CHUNK_BYTES = SAMPLE_RATE * 2 * 20 / 1000;
+    private static final int POOL_SIZE = 8;
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final AudioBufferPool mPool = new AudioBufferPool(POOL_SIZE, CHUNK_BYTES);
+    private AudioPlaybackEngine mEngine;
+
+    @After
+    public void tearDown() {
+        mEngine.stop();
+    }
+
+    @Test
+    public void playedChunksGoBackToThePool() throws InterruptedException {
+        mEngine = newEngine(2 * POOL_SIZE);
+        final Semaphore drained = new Semaphore(0);
+        mEngine.setListener(new AudioPlaybackEngine.Listener() {
+            @Override
+            public void onFirstAudioWritten() {
+            }
+
+            @Override
+            public void onResponseDrained() {
+                drained.release();
+            }
+
+            @Override
+            public void onFlushed() {
+            }
+        });
+        mEngine.start();
+        for (int response = 0; response < 3; response++) {
+            for (int i = 0; i < POOL_SIZE; i++) {
+                mEngine.enqueue(chunk());
+            }
+            mEngine.endOfStream();
+            // Every chunk is released before the response counts as drained.
+            assertTrue("response not played out",
+                    drained.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+        assertEquals(POOL_SIZE, mPool.getAllocationCount());
+    }
+
+    @Test
+    public void droppedAndFlushedChunksGoBackToThePool() {
+        // Not started, so nothing is played and the queue overruns.
+        mEngine = newEngine(2);
+        for (int i = 0; i < POOL_SIZE; i++) {
+            mEngine.enqueue(chunk());
+        }
+        assertEquals(POOL_SIZE - 2, mEngine.getOverrunCount());
+        // A chunk the pool never handed out is left alone, even of the same size.
+        mEngine.enqueue(ByteBuffer.allocateDirect(CHUNK_BYTES).asReadOnlyBuffer());
+        mEngine.flush();
+        for (int i = 0; i < POOL_SIZE; i++) {
+            mPool.acquire();
+        }
+        assertEquals(POOL_SIZE, mPool.getAllocationCount());
+        mPool.acquire();
+        assertEquals(POOL_SIZE + 1, mPool.getAllocationCount());
+    }
+
+    private AudioPlaybackEngine newEngine(int queueCapacity) {
+        AudioPlaybackEngine engine = new AudioPlaybackEngine(new InstantOutput(), SAMPLE_RATE, 2,
+                queueCapacity);
+        engine.setBufferPool(mPool);
+        return engine;
+    }
+
+    /**
+     * A pooled chunk of silence.
+     */
+    private ByteBuffer chunk() {
+        ByteBuffer chunk = mPool.acquire();
+        chunk.position(CHUNK_BYTES);
+        chunk.flip();
+        return chunk;
+    }
+
+    /**
+     * Takes every write at once.
+     */
+    private static class InstantOutput implements AudioPlaybackEngine.Output {
+        private int mFrames;
+
+        @Override
+        public void onWriterStarted() {
+        }
+
+        @Override
+        public int write(ByteBuffer audioData, int size) {
+            audioData.position(audioData.position() + size);
+            mFrames += size / 2;
+            return size;
+        }
+
+        @Override
+        public int write(short[] audioData, int offset, int size) {
+            mFrames += size;
+            return size;
+        }
+
+        @Override
+        public int getPlaybackHeadPosition() {
+            return mFrames;
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.assistant.embedded.v1alpha1.AudioInConfig;
+import com.google.assistant.embedded.v1alpha1.AudioOut;
+import com.google.assistant.embedded.v1alpha1.ConverseConfig;
+import com.google.assistant.embedded.v1alpha1.ConverseRequest;
+import com.google.assistant.embedded.v1alpha1.ConverseResponse;
+import com.google.assistant.embedded.v1alpha1.ConverseResult;
+import com.google.assistant.embedded.v1alpha1.EmbeddedAssistantGrpc;
+import com.google.protobuf.ByteString;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Runs Converse calls through the {@link ChannelManager} against an in-process fake Assistant
+ * that injects faults, and checks that early failures are replayed transparently and late ones
+ * are not.
+ *
+ * The fake answers with the number of audio bytes it received and their CRC, so a replay that
+ * lost, repeated or corrupted audio is caught. The channel must only report itself warm after a
+ * call that got through.
+ */
+@RunWith(Parameterized.class)
+public class ChannelManagerTest {
+    // 50 ms of 16 kHz LINEAR16 per message, sent every 5 ms to keep the run short.
+    private static final int MESSAGE_BYTES = 1600;
+    private static final long MESSAGE_INTERVAL_MS = 5;
+    private static final int UTTERANCE_MESSAGES = 40;
+    // Messages received by the fake before it injects a fault.
+    private static final int FAULT_AFTER_MESSAGES = 8;
+    private static final long RESTART_DOWNTIME_MS = 100;
+    private static final long CALL_TIMEOUT_SECONDS = 30;
+
+    enum Fault {
+        // Answer normally.
+        NONE,
+        // Send END_OF_UTTERANCE, then fail the stream with UNAVAILABLE.
+        RESET,
+        // Take the audio and never answer.
+        SILENT,
+        // Answer with a result, then fail with UNAVAILABLE.
+        RESET_AFTER_RESULT,
+        // Shut the whole server down and start it again a little later.
+        RESTART
+    }
+
+    enum AfterFault {
+        // Keep sending at the normal pace.
+        NOTHING,
+        // Cancel the call while the retry waits for its backoff.
+        CANCEL,
+        // Send the rest of the utterance at once, while the retry waits for its backoff.
+        BURST
+    }
+
+    /**
+     * What the fake does on each attempt, and how the call must end.
+     */
+    private static class Scenario {
+        final String mName;
+        final Fault[] mFaults;
+        final int mMessages;
+        final AfterFault mAfterFault;
+        final Status.Code mExpectedStatus;
+        final int mExpectedAttempts;
+
+        Scenario(String name, Fault[] faults, int messages, AfterFault afterFault,
+                Status.Code expectedStatus, int expectedAttempts) {
+            mName = name;
+            mFaults = faults;
+            mMessages = messages;
+            mAfterFault = afterFault;
+            mExpectedStatus = expectedStatus;
+            mExpectedAttempts = expectedAttempts;
+        }
+
+        Fault faultFor(int attempt) {
+            return attempt <= mFaults.length ? mFaults[attempt - 1] : Fault.NONE;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    @Parameterized.Parameters(name = "{0}")
+    public static List<Object[]> scenarios() {
+        return Arrays.asList(new Object[][] {
+                {new Scenario("clean", new Fault[0], UTTERANCE_MESSAGES, AfterFault.NOTHING,
+                        Status.Code.OK, 1)},
+                {new Scenario("reset mid-utterance", new Fault[] {Fault.RESET},
+                        UTTERANCE_MESSAGES, AfterFault.NOTHING, Status.Code.OK, 2)},
+                {new Scenario("two resets", new Fault[] {Fault.RESET, Fault.RESET},
+                        UTTERANCE_MESSAGES, AfterFault.NOTHING, Status.Code.OK, 3)},
+                {new Scenario("no answer", new Fault[] {Fault.SILENT}, UTTERANCE_MESSAGES,
+                        AfterFault.NOTHING, Status.Code.OK, 2)},
+                {new Scenario("server restart", new Fault[] {Fault.RESTART},
+                        UTTERANCE_MESSAGES, AfterFault.NOTHING, Status.Code.OK, -1)},
+                {new Scenario("reset after result", new Fault[] {Fault.RESET_AFTER_RESULT},
+                        UTTERANCE_MESSAGES, AfterFault.NOTHING, Status.Code.UNAVAILABLE, 1)},
+                {new Scenario("always down",
+                        new Fault[] {Fault.RESET, Fault.RESET, Fault.RESET, Fault.RESET},
+                        UTTERANCE_MESSAGES, AfterFault.NOTHING, Status.Code.UNAVAILABLE,
+                        ReplayingConverseCall.MAX_ATTEMPTS)},
+                {new Scenario("longer than the replay copy", new Fault[] {Fault.SILENT},
+                        ReplayingConverseCall.MAX_REPLAY_BYTES / MESSAGE_BYTES + 1,
+                        AfterFault.NOTHING, Status.Code.DEADLINE_EXCEEDED, 1)},
+                {new Scenario("cancel during backoff", new Fault[] {Fault.RESET},
+                        UTTERANCE_MESSAGES, AfterFault.CANCEL, Status.Code.CANCELLED, 1)},
+                {new Scenario("outgrows the replay copy during backoff",
+                        new Fault[] {Fault.RESET},
+                        ReplayingConverseCall.MAX_REPLAY_BYTES / MESSAGE_BYTES + 1,
+                        AfterFault.BURST, Status.Code.UNAVAILABLE, 1)},
+        });
+    }
+
+    private final Scenario mScenario;
+    private final FakeAssistant mFake;
+    private final List<Long> mRetryDelays = new ArrayList<>();
+    private ChannelManager mChannelManager;
+
+    public ChannelManagerTest(Scenario scenario) {
+        mScenario = scenario;
+        mFake = new FakeAssistant(scenario, "fake-assistant-" + scenario.mName);
+    }
+
+    @After
+    public void tearDown() {
+        if (mChannelManager != null) {
+            mChannelManager.shutdown();
+        }
+        mFake.stop();
+    }
+
+    @Test
+    public void callEndsAsExpected() throws Exception {
+        mFake.start();
+        mChannelManager = new ChannelManager(
+                InProcessChannelBuilder.forName(mFake.mName), null,
+                new ChannelManager.Listener() {
+                    @Override
+                    public void onRetry(int attempt, Status cause, long delayMs) {
+                        synchronized (mRetryDelays) {
+                            mRetryDelays.add(delayMs);
+                        }
+                    }
+
+                    @Override
+                    public void onChannelRebuilt(Status cause) {
+                    }
+                });
+        mChannelManager.warmUp();
+        // The warm-up call is cancelled, which says nothing about the connection.
+        assertFalse("warm before any call got through", mChannelManager.isWarm());
+
+        ResponseCollector responses = new ResponseCollector();
+        ReplayingConverseCall call = mChannelManager.converse(responses);
+        call.onNext(ConverseRequest.newBuilder()
+                .setConfig(ConverseConfig.newBuilder()
+                        .setAudioInConfig(AudioInConfig.newBuilder()
+                                .setEncoding(AudioInConfig.Encoding.LINEAR16)
+                                .setSampleRateHertz(16000)))
+                .build());
+        // Like the app on an in-process channel, copy the audio out of one staging buffer that
+        // is overwritten for every message: the transport hands the message itself to the fake.
+        ByteBuffer staging = ByteBuffer.allocateDirect(MESSAGE_BYTES);
+        byte[] audio = new byte[MESSAGE_BYTES];
+        Random random = new Random(mScenario.mName.hashCode());
+        CRC32 sentCrc = new CRC32();
+        boolean paced = true;
+        for (int i = 0; i < mScenario.mMessages && responses.mDone.getCount() > 0; i++) {
+            random.nextBytes(audio);
+            sentCrc.update(audio);
+            staging.clear();
+            staging.put(audio);
+            staging.flip();
+            call.onNext(ConverseRequest.newBuilder()
+                    .setAudioIn(ByteString.copyFrom(staging))
+                    .build());
+            if (i == FAULT_AFTER_MESSAGES + 1) {
+                // The fault has been injected and the retry is waiting for its backoff.
+                if (mScenario.mAfterFault == AfterFault.CANCEL) {
+                    call.onError(Status.CANCELLED.withDescription("new turn")
+                            .asRuntimeException());
+                } else if (mScenario.mAfterFault == AfterFault.BURST) {
+                    paced = false;
+                }
+            }
+            if (paced) {
+                Thread.sleep(MESSAGE_INTERVAL_MS);
+            }
+        }
+        call.onCompleted();
+        assertTrue("call did not end",
+                responses.mDone.await(CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        // Anything delivered after the end would show up as a second end.
+        Thread.sleep(50);
+
+        assertEquals("ends", 1, responses.mEnds.get());
+        assertEquals(mScenario.mExpectedStatus, responses.mStatus);
+        if (mScenario.mExpectedAttempts > 0) {
+            assertEquals("attempts", mScenario.mExpectedAttempts, call.getAttemptCount());
+        }
+        if (mScenario.mExpectedStatus == Status.Code.OK) {
+            assertEquals("what the fake heard", FakeAssistant.describe(
+                    (long) mScenario.mMessages * MESSAGE_BYTES, sentCrc.getValue()),
+                    responses.mResult);
+        }
+        // Only a call that got through leaves the channel warm.
+        assertEquals("warm", mScenario.mExpectedStatus == Status.Code.OK,
+                mChannelManager.isWarm());
+        synchronized (mRetryDelays) {
+            for (int i = 1; i < mRetryDelays.size(); i++) {
+                assertTrue("backoff did not grow: " + mRetryDelays,
+                        mRetryDelays.get(i) > mRetryDelays.get(i - 1));
+            }
+        }
+    }
+
+    /**
+     * Records how a call ended, as the app's response observer would see it.
+     */
+    private static class ResponseCollector implements StreamObserver<ConverseResponse> {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        final AtomicInteger mEnds = new AtomicInteger();
+        volatile Status.Code mStatus;
+        volatile String mResult;
+
+        @Override
+        public void onNext(ConverseResponse value) {
+            if (value.getConverseResponseCase() == ConverseResponse.ConverseResponseCase.RESULT) {
+                mResult = value.getResult().getSpokenRequestText();
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            end(Status.fromThrowable(t).getCode());
+        }
+
+        @Override
+        public void onCompleted() {
+            end(Status.Code.OK);
+        }
+
+        private void end(Status.Code status) {
+            if (mEnds.incrementAndGet() == 1) {
+                mStatus = status;
+            }
+            mDone.countDown();
+        }
+    }
+
+    /**
+     * An EmbeddedAssistant that answers with what it heard, unless the scenario tells it to
+     * fail.
+     */
+    private static class FakeAssistant extends EmbeddedAssistantGrpc.EmbeddedAssistantImplBase {
+        private final Scenario mScenario;
+        private final String mName;
+        private final AtomicInteger mAttempts = new AtomicInteger();
+        private volatile Server mServer;
+
+        FakeAssistant(Scenario scenario, String name) {
+            mScenario = scenario;
+            mName = name;
+        }
+
+        static String describe(long bytes, long crc) {
+            return bytes + " bytes, crc " + Long.toHexString(crc);
+        }
+
+        void start() throws IOException {
+            mServer = InProcessServerBuilder.forName(mName).addService(this).build().start();
+        }
+
+        void stop() {
+            if (mServer != null) {
+                mServer.shutdownNow();
+            }
+        }
+
+        private void restart() {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mServer.shutdownNow();
+                        mServer.awaitTermination(1, TimeUnit.SECONDS);
+                        Thread.sleep(RESTART_DOWNTIME_MS);
+                        start();
+                    } catch (InterruptedException | IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, "fakeAssistantRestart").start();
+        }
+
+        @Override
+        public StreamObserver<ConverseRequest> converse(
+                final StreamObserver<ConverseResponse> responseObserver) {
+            return new StreamObserver<ConverseRequest>() {
+                private final CRC32 mCrc = new CRC32();
+                // Counted from the first request on, since warm-up calls send none.
+                private Fault mFault;
+                private long mBytes;
+                private int mMessages;
+                private boolean mFailed;
+
+                @Override
+                public void onNext(ConverseRequest value) {
+                    if (mFault == null) {
+                        mFault = mScenario.faultFor(mAttempts.incrementAndGet());
+                    }
+                    if (mFailed || value.getConverseRequestCase()
+                            != ConverseRequest.ConverseRequestCase.AUDIO_IN) {
+                        return;
+                    }
+                    byte[] audio = value.getAudioIn().toByteArray();
+                    mCrc.update(audio);
+                    mBytes += audio.length;
+                    if (++mMessages != FAULT_AFTER_MESSAGES) {
+                        return;
+                    }
+                    if (mFault == Fault.RESET) {
+                        mFailed = true;
+                        responseObserver.onNext(ConverseResponse.newBuilder()
+                                .setEventType(ConverseResponse.EventType.END_OF_UTTERANCE)
+                                .build());
+                        responseObserver.onError(Status.UNAVAILABLE
+                                .withDescription("injected reset").asRuntimeException());
+                    } else if (mFault == Fault.RESTART) {
+                        mFailed = true;
+                        restart();
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                }
+
+                @Override
+                public void onCompleted() {
+                    if (mFault == null || mFailed || mFault == Fault.SILENT) {
+                        return;
+                    }
+                    responseObserver.onNext(ConverseResponse.newBuilder()
+                            .setResult(ConverseResult.newBuilder()
+                                    .setSpokenRequestText(describe(mBytes, mCrc.getValue())))
+                            .build());
+                    if (mFault == Fault.RESET_AFTER_RESULT) {
+                        responseObserver.onError(Status.UNAVAILABLE
+                                .withDescription("injected reset").asRuntimeException());
+                        return;
+                    }
+                    responseObserver.onNext(ConverseResponse.newBuilder()
+                            .setAudioOut(AudioOut.newBuilder()
+                                    .setAudioData(ByteString.copyFrom(new byte[MESSAGE_BYTES])))
+                            .build());
+                    responseObserver.onCompleted();
+                }
+            };
+        }
+    }
+}
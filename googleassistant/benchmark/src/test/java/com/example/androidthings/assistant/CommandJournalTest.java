@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Restarts the {@link CommandJournal} from what it left on disk, including logs torn by a crash
+ * in the middle of a record.
+ */
+public class CommandJournalTest {
+    private static final long DURATION_MS = 800;
+    // Far more records than compaction lets the log keep.
+    private static final int CYCLES = 1000;
+    private static final long MAX_COMPACTED_BYTES = 16 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mFolder.getRoot(), "dispense.journal");
+    }
+
+    @Test
+    public void restartDispensesPendingAndAcknowledgesDispensedAgain() throws IOException {
+        CommandJournal journal = open();
+        assertTrue(journal.recordReceived(command("a", "1")));
+        assertTrue(journal.recordReceived(command("b", "1")));
+        assertTrue(journal.recordReceived(command("c", "1")));
+        journal.recordDispensed("a");
+        journal.recordDispensed("c");
+        journal.recordAcknowledged("c");
+        journal.close();
+
+        journal = open();
+        assertEquals(Arrays.asList("b"), keys(journal.getPendingCommands()));
+        assertEquals(Arrays.asList("a"), journal.getUnacknowledgedKeys());
+        CommandSource.Command b = journal.getPendingCommands().get(0);
+        assertEquals(DURATION_MS, b.mDurationMs);
+        assertEquals(2, b.mPriority);
+        journal.recordAcknowledged("a");
+        journal.close();
+
+        journal = open();
+        assertEquals(Collections.emptyList(), journal.getUnacknowledgedKeys());
+        journal.close();
+    }
+
+    @Test
+    public void redeliveryOfADispensedCommandIsNotRecorded() throws IOException {
+        CommandJournal journal = open();
+        journal.recordReceived(command("a", "1"));
+        assertFalse("still pending", journal.recordReceived(command("a", "1")));
+        journal.recordDispensed("a");
+        assertTrue(journal.isDispensed(command("a", "1")));
+        assertFalse("already dispensed", journal.recordReceived(command("a", "1")));
+        journal.close();
+
+        journal = open();
+        assertTrue(journal.isDispensed(command("a", "1")));
+        assertEquals(Collections.emptyList(), journal.getPendingCommands());
+        journal.close();
+    }
+
+    @Test
+    public void reusedKeyIsNotAcknowledgedByTheOldCommand() throws IOException {
+        CommandJournal journal = open();
+        journal.recordReceived(command("a", "1"));
+        journal.recordDispensed("a");
+        assertFalse(journal.isDispensed(command("a", "2")));
+        assertTrue(journal.recordReceived(command("a", "2")));
+        // The late acknowledgement of "1" must not drop "2".
+        journal.recordAcknowledged("a");
+        journal.close();
+
+        journal = open();
+        List<CommandSource.Command> pending = journal.getPendingCommands();
+        assertEquals(1, pending.size());
+        assertEquals("2", pending.get(0).mStamp);
+        journal.close();
+    }
+
+    @Test
+    public void tornLastRecordIsDroppedAndTheRestKept() throws IOException {
+        CommandJournal journal = open();
+        journal.recordReceived(command("a", "1"));
+        long intactLength = mFile.length();
+        journal.recordReceived(command("b", "1"));
+        journal.close();
+        truncate(intactLength + (mFile.length() - intactLength) / 2);
+
+        journal = open();
+        assertEquals(Arrays.asList("a"), keys(journal.getPendingCommands()));
+        // The torn bytes are gone, so records appended after them replay too.
+        assertTrue(journal.recordReceived(command("b", "1")));
+        journal.close();
+        journal = open();
+        assertEquals(Arrays.asList("a", "b"), keys(journal.getPendingCommands()));
+        journal.close();
+    }
+
+    @Test
+    public void garbageAfterTheLastRecordIsIgnored() throws IOException {
+        CommandJournal journal = open();
+        journal.recordReceived(command("a", "1"));
+        journal.recordDispensed("a");
+        journal.close();
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            out.write(new byte[] {'X', 0, 3, 'x', 'y', 'z'});
+        }
+
+        journal = open();
+        assertEquals(Arrays.asList("a"), journal.getUnacknowledgedKeys());
+        journal.close();
+    }
+
+    @Test
+    public void logIsCompactedToTheLiveEntries() throws IOException {
+        CommandJournal journal = open();
+        journal.recordReceived(command("kept", "1"));
+        for (int i = 0; i < CYCLES; i++) {
+            String key = "k" + i;
+            journal.recordReceived(command(key, "1"));
+            journal.recordDispensed(key);
+            journal.recordAcknowledged(key);
+        }
+        journal.recordDispensed("kept");
+        journal.close();
+        assertTrue(mFile.length() + " bytes", mFile.length() <= MAX_COMPACTED_BYTES);
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+
+        journal = open();
+        assertEquals(Collections.emptyList(), journal.getPendingCommands());
+        assertEquals(Arrays.asList("kept"), journal.getUnacknowledgedKeys());
+        journal.close();
+    }
+
+    private CommandJournal open() throws IOException {
+        CommandJournal journal = new CommandJournal(mFile);
+        journal.open();
+        return journal;
+    }
+
+    private void truncate(long length) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(length);
+        }
+    }
+
+    private static CommandSource.Command command(String key, String stamp) {
+        return new CommandSource.Command(key, stamp, DURATION_MS, 2);
+    }
+
+    private static List<String> keys(List<CommandSource.Command> commands) {
+        List<String> keys = new ArrayList<>();
+        for (CommandSource.Command command : commands) {
+            keys.add(command.mKey);
+        }
+        return keys;
+    }
+}
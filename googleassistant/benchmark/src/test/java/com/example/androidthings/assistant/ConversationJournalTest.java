@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Appends turns to a {@link ConversationJournal} with small segments, and reopens it after
+ * simulated crashes and upgrades.
+ */
+public class ConversationJournalTest {
+    private static final String[] STAGES = {"press", "first_audio"};
+    // Room for three short turns after the header.
+    private static final int SEGMENT_SIZE = 200;
+    private static final int MAX_SEGMENTS = 3;
+    private static final int MAX_STRING_BYTES = 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    private File mDirectory;
+
+    @Before
+    public void setUp() {
+        mDirectory = new File(mFolder.getRoot(), "journal");
+    }
+
+    @Test
+    public void turnsReadBackAsAppended() throws IOException {
+        ConversationJournal journal = open(STAGES);
+        ConversationJournal.Turn turn = turn(1, "dispense candy");
+        turn.mError = "UNAVAILABLE";
+        turn.mConversationStateBytes = 12;
+        turn.mRequestAudioBytes = 64000;
+        turn.mResponseAudioBytes = 32000;
+        turn.mStageMicros = new long[] {0, 850000};
+        journal.append(turn);
+        journal.append(turn(2, "again"));
+
+        List<ConversationJournal.Turn> turns = journal.readRecent(10);
+        assertEquals(2, turns.size());
+        ConversationJournal.Turn read = turns.get(0);
+        assertEquals(1, read.mTimestampMs);
+        assertEquals("dispense candy", read.mRequestText);
+        assertEquals("UNAVAILABLE", read.mError);
+        assertEquals(12, read.mConversationStateBytes);
+        assertEquals(64000, read.mRequestAudioBytes);
+        assertEquals(32000, read.mResponseAudioBytes);
+        assertArrayEquals(new long[] {0, 850000}, read.mStageMicros);
+        assertArrayEquals(STAGES, read.mStageNames);
+        // Stages the turn did not reach read as -1.
+        assertArrayEquals(new long[] {-1, -1}, turns.get(1).mStageMicros);
+        journal.close();
+    }
+
+    @Test
+    public void tornRecordEndsTheSegmentAndIsOverwritten() throws IOException {
+        ConversationJournal journal = open(STAGES);
+        journal.append(turn(1, "first"));
+        journal.append(turn(2, "second"));
+        journal.close();
+        // A crash before the second record was complete leaves a body that fails its CRC.
+        corrupt(segmentFiles()[0], "second");
+
+        journal = open(STAGES);
+        assertEquals(Arrays.asList("first"), texts(journal.readRecent(10)));
+        journal.append(turn(3, "third"));
+        assertEquals(Arrays.asList("first", "third"), texts(journal.readRecent(10)));
+        journal.close();
+    }
+
+    @Test
+    public void oldestSegmentsAreDeletedBeyondTheLimit() throws IOException {
+        ConversationJournal journal = open(STAGES);
+        for (int i = 0; i < 20; i++) {
+            journal.append(turn(i, "turn " + i));
+        }
+        journal.close();
+        assertEquals(MAX_SEGMENTS, segmentFiles().length);
+
+        final List<Long> timestamps = new ArrayList<>();
+        ConversationJournal.read(mDirectory, new ConversationJournal.Visitor() {
+            @Override
+            public void onTurn(ConversationJournal.Turn turn) {
+                timestamps.add(turn.mTimestampMs);
+            }
+        });
+        // The newest turns, oldest first and without gaps.
+        assertTrue(timestamps.size() > MAX_SEGMENTS);
+        for (int i = 0; i < timestamps.size(); i++) {
+            assertEquals(20 - timestamps.size() + i, (long) timestamps.get(i));
+        }
+
+        journal = open(STAGES);
+        assertEquals(Arrays.asList("turn 17", "turn 18", "turn 19"),
+                texts(journal.readRecent(3)));
+        journal.close();
+    }
+
+    @Test
+    public void otherStagesStartANewSegment() throws IOException {
+        ConversationJournal journal = open(STAGES);
+        journal.append(turn(1, "before"));
+        journal.close();
+
+        String[] stages = {"press", "first_audio", "played"};
+        journal = open(stages);
+        journal.append(turn(2, "after"));
+        List<ConversationJournal.Turn> turns = journal.readRecent(10);
+        assertEquals(Arrays.asList("before", "after"), texts(turns));
+        assertArrayEquals(STAGES, turns.get(0).mStageNames);
+        assertArrayEquals(stages, turns.get(1).mStageNames);
+        journal.close();
+    }
+
+    @Test
+    public void longTextIsTruncatedBetweenCharacters() throws IOException {
+        ConversationJournal journal = new ConversationJournal(mDirectory, STAGES, 8192,
+                MAX_SEGMENTS);
+        journal.open();
+        // Two-byte characters, shifted by one so the limit falls inside one of them.
+        StringBuilder text = new StringBuilder("a");
+        for (int i = 0; i < MAX_STRING_BYTES; i++) {
+            text.append('\u00e9');
+        }
+        journal.append(turn(1, text.toString()));
+        // Four-byte characters, which are two chars in Java, shifted by two.
+        StringBuilder error = new StringBuilder("ab");
+        for (int i = 0; i < MAX_STRING_BYTES; i++) {
+            error.appendCodePoint(0x1f36c);
+        }
+        ConversationJournal.Turn turn = turn(2, "");
+        turn.mError = error.toString();
+        journal.append(turn);
+
+        List<ConversationJournal.Turn> turns = journal.readRecent(10);
+        String requestText = turns.get(0).mRequestText;
+        assertEquals(1 + (MAX_STRING_BYTES - 1) / 2, requestText.length());
+        assertTrue(text.toString().startsWith(requestText));
+        String errorText = turns.get(1).mError;
+        assertEquals(2 + (MAX_STRING_BYTES - 2) / 4,
+                errorText.codePointCount(0, errorText.length()));
+        assertTrue(error.toString().startsWith(errorText));
+        journal.close();
+    }
+
+    private ConversationJournal open(String[] stages) throws IOException {
+        ConversationJournal journal = new ConversationJournal(mDirectory, stages, SEGMENT_SIZE,
+                MAX_SEGMENTS);
+        journal.open();
+        return journal;
+    }
+
+    private File[] segmentFiles() {
+        File[] files = mDirectory.listFiles();
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Flip a byte of the record holding {@code text}.
+     */
+    private static void corrupt(File segment, String text) throws IOException {
+        byte[] contents = Files.readAllBytes(segment.toPath());
+        byte[] needle = text.getBytes(UTF_8);
+        for (int i = 0; i + needle.length <= contents.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(contents, i, i + needle.length), needle)) {
+                try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+                    file.seek(i);
+                    file.write(contents[i] ^ 0xff);
+                }
+                return;
+            }
+        }
+        throw new AssertionError(text + " not found in " + segment);
+    }
+
+    private static ConversationJournal.Turn turn(long timestampMs, String requestText) {
+        ConversationJournal.Turn turn = new ConversationJournal.Turn();
+        turn.mTimestampMs = timestampMs;
+        turn.mRequestText = requestText;
+        return turn;
+    }
+
+    private static List<String> texts(List<ConversationJournal.Turn> turns) {
+        List<String> texts = new ArrayList<>();
+        for (ConversationJournal.Turn turn : turns) {
+            texts.add(turn.mRequestText);
+        }
+        return texts;
+    }
+}
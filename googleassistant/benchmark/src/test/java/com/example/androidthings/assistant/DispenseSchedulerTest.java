@@ -0,0 +1,249 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Drives the {@link DispenseScheduler} on a virtual clock with a simulated relay.
+ *
+ * The relay fails the test as soon as a pulse starts while another is on, too soon after the
+ * previous one, or above the rate limit, and the listener as soon as a key is acknowledged
+ * twice or before its pulse has ended.
+ */
+public class DispenseSchedulerTest {
+    private static final long PULSE_MS = 200;
+    private static final long MIN_GAP_MS = 500;
+    private static final int MAX_PER_WINDOW = 3;
+    private static final long RATE_WINDOW_MS = 10000;
+
+    @Test
+    public void higherPrioritiesGoFirstThenArrivalOrder() {
+        Run run = new Run(100);
+        // "a" starts at once, the rest queue up behind it.
+        run.submit("a", 0);
+        run.submit("b", 0);
+        run.submit("c", 1);
+        run.submit("d", 0);
+        run.submit("e", 2);
+        run.submit("f", 1);
+        run.mClock.runAll();
+        assertEquals(Arrays.asList("a", "e", "c", "f", "b", "d"), run.mAcks);
+        run.assertAllAcknowledged();
+    }
+
+    @Test
+    public void backToBackDispensesAreSpacedByTheMinimumGap() {
+        Run run = new Run(100);
+        for (int i = 0; i < 5; i++) {
+            run.submit("k" + i, 0);
+        }
+        run.mClock.runAll();
+        for (int i = 1; i < run.mStartsMs.size(); i++) {
+            assertEquals("gap before pulse " + i, MIN_GAP_MS,
+                    run.mStartsMs.get(i) - run.mEndsMs.get(i - 1));
+        }
+        run.assertAllAcknowledged();
+    }
+
+    @Test
+    public void burstIsHeldToTheRateLimit() {
+        Run run = new Run(MAX_PER_WINDOW);
+        for (int i = 0; i < 2 * MAX_PER_WINDOW + 1; i++) {
+            run.submit("k" + i, 0);
+        }
+        run.mClock.runAll();
+        // Each pulse past the limit starts as soon as the window allows, not later.
+        for (int i = MAX_PER_WINDOW; i < run.mStartsMs.size(); i++) {
+            assertEquals("start of pulse " + i, RATE_WINDOW_MS,
+                    run.mStartsMs.get(i) - run.mStartsMs.get(i - MAX_PER_WINDOW));
+        }
+        run.assertAllAcknowledged();
+    }
+
+    @Test
+    public void outstandingKeyIsCoalescedUntilAcknowledged() {
+        Run run = new Run(100);
+        assertTrue(run.submit("a", 0));
+        // "a" is dispensing, "b" is queued.
+        assertFalse(run.submit("a", 0));
+        assertTrue(run.submit("b", 0));
+        assertFalse(run.submit("b", 5));
+        run.mClock.runAll();
+        assertTrue(run.submit("a", 0));
+        run.mClock.runAll();
+        assertEquals(Arrays.asList("a", "b", "a"), run.mAcks);
+        assertEquals(2, run.mScheduler.getCoalescedCount());
+        run.assertAllAcknowledged();
+    }
+
+    @Test
+    public void randomLoadKeepsPacingAndAcknowledgesEveryKeyOnce() {
+        Run run = new Run(MAX_PER_WINDOW);
+        Random random = new Random(42);
+        long atMs = 0;
+        // More than the rate limit allows, from few keys, so the queue fills and many coalesce.
+        for (int i = 0; i < 2000; i++) {
+            atMs += random.nextInt(3000);
+            run.mClock.runUntil(atMs);
+            run.submit("k" + random.nextInt(20), random.nextInt(3));
+        }
+        run.mClock.runAll();
+        assertTrue(run.mScheduler.getCoalescedCount() > 0);
+        run.assertAllAcknowledged();
+    }
+
+    /**
+     * One scheduler with its virtual clock and relay, and what they observed.
+     */
+    private static class Run implements DispenseScheduler.Relay, DispenseScheduler.Listener {
+        final VirtualClock mClock = new VirtualClock();
+        final DispenseScheduler mScheduler;
+        final int mMaxPerWindow;
+        final List<Long> mStartsMs = new ArrayList<>();
+        final List<Long> mEndsMs = new ArrayList<>();
+        final List<String> mAcks = new ArrayList<>();
+        // Keys accepted and not acknowledged yet.
+        final Set<String> mOutstanding = new HashSet<>();
+        int mAccepted;
+        boolean mPulsing;
+
+        Run(int maxPerWindow) {
+            mMaxPerWindow = maxPerWindow;
+            mScheduler = new DispenseScheduler(this, mClock, this, MIN_GAP_MS, maxPerWindow,
+                    RATE_WINDOW_MS);
+        }
+
+        boolean submit(String key, int priority) {
+            boolean accepted = mScheduler.submit(key, PULSE_MS, priority);
+            assertEquals(key + " accepted at " + mClock.mNowMs + " ms",
+                    !mOutstanding.contains(key), accepted);
+            if (accepted) {
+                mAccepted++;
+                mOutstanding.add(key);
+            }
+            return accepted;
+        }
+
+        void assertAllAcknowledged() {
+            assertTrue("never acknowledged: " + mOutstanding, mOutstanding.isEmpty());
+            assertEquals(mAccepted, mAcks.size());
+            assertEquals(mAccepted, mScheduler.getDispensedCount());
+        }
+
+        @Override
+        public void pulse(long durationMs, final Runnable onFinished) {
+            long now = mClock.uptimeMillis();
+            assertFalse("pulse started at " + now + " ms while another was on", mPulsing);
+            int n = mStartsMs.size();
+            if (n > 0 && now - mEndsMs.get(n - 1) < MIN_GAP_MS) {
+                fail("pulse started " + (now - mEndsMs.get(n - 1))
+                        + " ms after the previous one ended");
+            }
+            if (n >= mMaxPerWindow && now - mStartsMs.get(n - mMaxPerWindow) < RATE_WINDOW_MS) {
+                fail(mMaxPerWindow + 1 + " pulses started within "
+                        + (now - mStartsMs.get(n - mMaxPerWindow)) + " ms");
+            }
+            mPulsing = true;
+            mStartsMs.add(now);
+            mClock.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    mPulsing = false;
+                    mEndsMs.add(mClock.uptimeMillis());
+                    onFinished.run();
+                }
+            }, durationMs);
+        }
+
+        @Override
+        public void onDispensed(String key) {
+            assertFalse(key + " acknowledged before its pulse ended",
+                    mPulsing || mEndsMs.size() != mStartsMs.size());
+            assertTrue(key + " acknowledged without an outstanding submission",
+                    mOutstanding.remove(key));
+            mAcks.add(key);
+        }
+    }
+
+    /**
+     * Runs posted tasks in time order, jumping the clock to each one.
+     */
+    private static class VirtualClock implements DispenseScheduler.Clock {
+        private static class Task implements Comparable<Task> {
+            final long mAtMs;
+            final long mSequence;
+            final Runnable mRunnable;
+
+            Task(long atMs, long sequence, Runnable runnable) {
+                mAtMs = atMs;
+                mSequence = sequence;
+                mRunnable = runnable;
+            }
+
+            @Override
+            public int compareTo(Task other) {
+                if (mAtMs != other.mAtMs) {
+                    return mAtMs < other.mAtMs ? -1 : 1;
+                }
+                return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+            }
+        }
+
+        private final PriorityQueue<Task> mTasks = new PriorityQueue<>();
+        private long mSequence;
+        long mNowMs;
+
+        @Override
+        public long uptimeMillis() {
+            return mNowMs;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            mTasks.add(new Task(mNowMs + Math.max(0, delayMs), mSequence++, task));
+        }
+
+        void runUntil(long atMs) {
+            while (!mTasks.isEmpty() && mTasks.peek().mAtMs <= atMs) {
+                Task task = mTasks.poll();
+                mNowMs = task.mAtMs;
+                task.mRunnable.run();
+            }
+            mNowMs = Math.max(mNowMs, atMs);
+        }
+
+        void runAll() {
+            while (!mTasks.isEmpty()) {
+                runUntil(mTasks.peek().mAtMs);
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the {@link PulseTimingEngine} against a virtual clock that models a busy device, and
+ * stops it in the middle of a pulse.
+ *
+ * The virtual clock wakes sleeps up late by a random jitter, and now and then by a long stall,
+ * and output writes take a random time. Sleeping through a whole pulse on it is off by about
+ * 1.2 ms at the median and 5 ms at p90.
+ */
+public class PulseTimingEngineTest {
+    private static final int PULSES = 2000;
+    private static final long MIN_PULSE_MS = 50;
+    private static final long MAX_PULSE_MS = 1000;
+    private static final long MAX_SLEEP_JITTER_NANOS = 1500000;
+    private static final double STALL_PROBABILITY = 0.1;
+    private static final long MIN_STALL_NANOS = 4000000;
+    private static final long MAX_STALL_NANOS = 8000000;
+    private static final long MIN_WRITE_NANOS = 200000;
+    private static final long MAX_WRITE_NANOS = 400000;
+    // Each read of the virtual clock costs this much, so spinning moves time on.
+    private static final long CLOCK_READ_NANOS = 1000;
+    // Limits on the absolute timing error.
+    private static final long MAX_P50_ERROR_NANOS = 250000;
+    private static final long MAX_P90_ERROR_NANOS = 1000000;
+    // Pulse used for the stop checks, cut short after STOP_AFTER_MS.
+    private static final long STOP_PULSE_MS = 5000;
+    private static final long STOP_AFTER_MS = 100;
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    @Test
+    public void pulsesStayCloseToTheirDurationOnABusyDevice() throws InterruptedException {
+        final VirtualClock clock = new VirtualClock(new Random(1));
+        PulseTimingEngine engine = new PulseTimingEngine(new PulseTimingEngine.Output() {
+            @Override
+            public void setActive(boolean active) {
+                clock.write();
+            }
+        }, clock);
+        final long[] errors = new long[PULSES];
+        final AtomicInteger interrupted = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(PULSES);
+        Random random = new Random(2);
+        engine.start();
+        for (int i = 0; i < PULSES; i++) {
+            final int index = i;
+            engine.pulse(MIN_PULSE_MS + random.nextInt((int) (MAX_PULSE_MS - MIN_PULSE_MS)),
+                    new PulseTimingEngine.Callback() {
+                        @Override
+                        public void onPulseFinished(long requestedNanos, long actualNanos) {
+                            errors[index] = Math.abs(actualNanos - requestedNanos);
+                            done.countDown();
+                        }
+
+                        @Override
+                        public void onPulseInterrupted(long requestedNanos, long actualNanos) {
+                            interrupted.incrementAndGet();
+                            done.countDown();
+                        }
+                    });
+        }
+        done.await();
+        engine.stop();
+
+        assertEquals("interrupted pulses", 0, interrupted.get());
+        assertEquals("errors recorded", PULSES, engine.getOvershootNanos().getCount()
+                + engine.getUndershootNanos().getCount());
+        Arrays.sort(errors);
+        long p50 = errors[PULSES / 2];
+        long p90 = errors[PULSES * 9 / 10];
+        assertTrue("p50 error " + p50 / 1000 + " us", p50 <= MAX_P50_ERROR_NANOS);
+        assertTrue("p90 error " + p90 / 1000 + " us", p90 <= MAX_P90_ERROR_NANOS);
+    }
+
+    @Test
+    public void stopWhileSleepingLeavesTheOutputOff() throws InterruptedException {
+        assertStopCutsPulseShort(PulseTimingEngine.SYSTEM_CLOCK);
+    }
+
+    @Test
+    public void stopWhileSpinningLeavesTheOutputOff() throws InterruptedException {
+        // Real time, but sleeps return at once, so the engine spins for the whole pulse.
+        assertStopCutsPulseShort(new PulseTimingEngine.Clock() {
+            @Override
+            public long nanoTime() {
+                return System.nanoTime();
+            }
+
+            @Override
+            public void sleepNanos(long nanos) throws InterruptedException {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the engine while a long pulse is on, with a second pulse queued behind it.
+     */
+    private static void assertStopCutsPulseShort(PulseTimingEngine.Clock clock)
+            throws InterruptedException {
+        final List<Boolean> writes = new ArrayList<>();
+        final CountDownLatch on = new CountDownLatch(1);
+        final AtomicInteger finished = new AtomicInteger();
+        final AtomicInteger interrupted = new AtomicInteger();
+        final long[] actual = new long[1];
+        PulseTimingEngine engine = new PulseTimingEngine(new PulseTimingEngine.Output() {
+            @Override
+            public void setActive(boolean active) {
+                synchronized (writes) {
+                    writes.add(active);
+                }
+                if (active) {
+                    on.countDown();
+                }
+            }
+        }, clock);
+        PulseTimingEngine.Callback callback = new PulseTimingEngine.Callback() {
+            @Override
+            public void onPulseFinished(long requestedNanos, long actualNanos) {
+                finished.incrementAndGet();
+            }
+
+            @Override
+            public void onPulseInterrupted(long requestedNanos, long actualNanos) {
+                interrupted.incrementAndGet();
+                actual[0] = actualNanos;
+            }
+        };
+        engine.start();
+        engine.pulse(STOP_PULSE_MS, callback);
+        engine.pulse(STOP_PULSE_MS, callback);
+        assertTrue("pulse did not start", on.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        Thread.sleep(STOP_AFTER_MS);
+        long stopStart = System.nanoTime();
+        engine.stop();
+        long stopMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopStart);
+
+        synchronized (writes) {
+            assertEquals("output writes", Arrays.asList(true, false), writes);
+        }
+        assertTrue("stop took " + stopMs + " ms", stopMs <= STOP_TIMEOUT_MS);
+        assertEquals("finished pulses", 0, finished.get());
+        assertEquals("interrupted pulses", 1, interrupted.get());
+        assertTrue("interrupted pulse ran " + actual[0] / 1000000 + " ms",
+                actual[0] < TimeUnit.MILLISECONDS.toNanos(STOP_PULSE_MS));
+        assertEquals("errors recorded", 0, engine.getOvershootNanos().getCount()
+                + engine.getUndershootNanos().getCount());
+    }
+
+    /**
+     * Time that only moves when the engine reads it, sleeps or writes the output. Used from
+     * one thread at a time.
+     */
+    private static class VirtualClock implements PulseTimingEngine.Clock {
+        private final Random mRandom;
+        private long mNowNanos;
+
+        VirtualClock(Random random) {
+            mRandom = random;
+        }
+
+        @Override
+        public long nanoTime() {
+            mNowNanos += CLOCK_READ_NANOS;
+            return mNowNanos;
+        }
+
+        @Override
+        public void sleepNanos(long nanos) throws InterruptedException {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            mNowNanos += nanos + (long) (mRandom.nextDouble() * MAX_SLEEP_JITTER_NANOS);
+            if (mRandom.nextDouble() < STALL_PROBABILITY) {
+                mNowNanos += MIN_STALL_NANOS
+                        + (long) (mRandom.nextDouble() * (MAX_STALL_NANOS - MIN_STALL_NANOS));
+            }
+        }
+
+        void write() {
+            mNowNanos += MIN_WRITE_NANOS
+                    + (long) (mRandom.nextDouble() * (MAX_WRITE_NANOS - MIN_WRITE_NANOS));
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves and reloads a {@link StateStore} in real time, including after a crash that left a
+ * temporary file behind.
+ */
+public class StateStoreTest {
+    private static final String KEY = "volume";
+    private static final long TIMEOUT_MS = 5000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mFolder.getRoot(), "state");
+    }
+
+    @Test
+    public void valuesSurviveARestart() throws InterruptedException {
+        StateStore store = new StateStore(mFile, null);
+        store.putBytes("conversation", new byte[] {1, 2, 3});
+        store.putLong(KEY, 40);
+        store.putFloat("gain", 0.5f);
+        assertTrue(store.close(TIMEOUT_MS));
+
+        store = new StateStore(mFile, null);
+        assertArrayEquals(new byte[] {1, 2, 3}, store.getBytes("conversation"));
+        assertEquals(40, store.getLong(KEY, -1));
+        assertEquals(0.5f, store.getFloat("gain", -1), 0);
+        assertNull(store.getBytes("missing"));
+        assertEquals(-1, store.getLong("missing", -1));
+    }
+
+    @Test
+    public void burstOfChangesIsSavedOnce() throws InterruptedException {
+        StateStore store = new StateStore(mFile, null);
+        for (int i = 0; i < 50; i++) {
+            store.putLong(KEY, i);
+            // Unchanged values are not changes.
+            store.putLong(KEY, i);
+        }
+        awaitSaves(store, 1);
+        Thread.sleep(2 * StateStore.COALESCE_MS);
+        assertEquals(1, store.getSaveCount());
+        assertEquals(50, store.getChangeCount());
+        assertTrue(store.close(TIMEOUT_MS));
+        assertEquals(49, new StateStore(mFile, null).getLong(KEY, -1));
+    }
+
+    @Test
+    public void steadyChangesAreStillSaved() throws InterruptedException {
+        StateStore store = new StateStore(mFile, null);
+        // Never quiet for the coalescing delay, for longer than a change may wait.
+        long endNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+        for (int i = 0; System.nanoTime() < endNanos; i++) {
+            store.putLong(KEY, i);
+            Thread.sleep(StateStore.COALESCE_MS / 4);
+        }
+        assertTrue(store.getSaveCount() >= 1);
+        assertTrue(store.close(TIMEOUT_MS));
+    }
+
+    @Test
+    public void tornTemporaryFileFallsBackToTheSnapshot() throws Exception {
+        saveLong(mFile, 1);
+        // A crash while writing the next snapshot.
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        byte[] newer = snapshotOf(2);
+        Files.write(tmpFile.toPath(), Arrays.copyOf(newer, newer.length - 3));
+
+        StateStore store = new StateStore(mFile, null);
+        assertEquals(1, store.getLong(KEY, -1));
+    }
+
+    @Test
+    public void completeTemporaryFileWins() throws Exception {
+        saveLong(mFile, 1);
+        // A crash after the next snapshot was synced but before it was renamed.
+        Files.write(new File(mFile.getPath() + ".tmp").toPath(), snapshotOf(2));
+
+        StateStore store = new StateStore(mFile, null);
+        assertEquals(2, store.getLong(KEY, -1));
+    }
+
+    @Test
+    public void valuesPutBeforeTheLoadAreKept() throws InterruptedException {
+        StateStore store = new StateStore(mFile, null);
+        store.putLong(KEY, 1);
+        store.putLong("other", 7);
+        assertTrue(store.close(TIMEOUT_MS));
+
+        store = new StateStore(mFile, null);
+        store.putLong(KEY, 2);
+        assertTrue(store.close(TIMEOUT_MS));
+        store = new StateStore(mFile, null);
+        assertEquals(2, store.getLong(KEY, -1));
+        assertEquals(7, store.getLong("other", -1));
+    }
+
+    @Test
+    public void failedSaveIsReported() throws InterruptedException {
+        // The temporary file cannot be created where a directory is in the way.
+        assertTrue(new File(mFile.getPath() + ".tmp").mkdir());
+        final CountDownLatch failed = new CountDownLatch(1);
+        StateStore store = new StateStore(mFile, new StateStore.Listener() {
+            @Override
+            public void onSaveFailed(IOException e) {
+                failed.countDown();
+            }
+        });
+        store.putLong(KEY, 1);
+        assertFalse(store.flush(2 * StateStore.COALESCE_MS));
+        assertTrue(failed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, store.getSaveFailureCount());
+        assertEquals(0, store.getSaveCount());
+        // Still available in memory.
+        assertEquals(1, store.getLong(KEY, -1));
+        assertFalse(store.close(0));
+    }
+
+    private static void saveLong(File file, long value) throws InterruptedException {
+        StateStore store = new StateStore(file, null);
+        store.putLong(KEY, value);
+        assertTrue(store.close(TIMEOUT_MS));
+    }
+
+    private byte[] snapshotOf(long value) throws Exception {
+        File file = new File(mFolder.newFolder(), "state");
+        saveLong(file, value);
+        return Files.readAllBytes(file.toPath());
+    }
+
+    private static void awaitSaves(StateStore store, long saves) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (store.getSaveCount() < saves && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(saves, store.getSaveCount());
+    }
+}
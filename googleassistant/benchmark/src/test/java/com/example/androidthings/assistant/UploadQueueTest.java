@@ -0,0 +1,373 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.assistant;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.assistant.embedded.v1alpha1.AudioOutConfig;
+import com.google.assistant.embedded.v1alpha1.ConverseRequest;
+import com.google.assistant.embedded.v1alpha1.ConverseResponse;
+import com.google.assistant.embedded.v1alpha1.ConverseResult;
+import com.google.assistant.embedded.v1alpha1.EmbeddedAssistantGrpc;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * Exercises an {@link UploadQueue} on its own, and behind a {@link ConversePipeline} whose
+ * transport stays not ready while a slow in-process Assistant works through each message.
+ *
+ * Every chunk streamed into the pipeline carries its index as its samples, so the Assistant can
+ * tell which chunks arrived and in what order.
+ */
+public class UploadQueueTest {
+    private static final int MESSAGE_BYTES = 64;
+    private static final int CHUNK_BYTES = ConversePipeline.SAMPLE_BLOCK_SIZE;
+    private static final String SERVER_NAME = "slow-assistant";
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private Server mServer;
+    private ChannelManager mChannelManager;
+
+    @After
+    public void tearDown() {
+        if (mChannelManager != null) {
+            mChannelManager.shutdown();
+        }
+        if (mServer != null) {
+            mServer.shutdownNow();
+        }
+    }
+
+    @Test
+    public void messagesComeOutInOrderAcrossTheWraparound() {
+        UploadQueue queue = new UploadQueue(4, MESSAGE_BYTES);
+        int next = 0;
+        for (int round = 0; round < 5; round++) {
+            while (!queue.isFull()) {
+                assertTrue(queue.offer(message(next++), false));
+            }
+            assertFalse(queue.offer(message(next), false));
+            // Leave one behind, so the next round starts mid-ring.
+            for (int i = 0; i < 3; i++) {
+                assertEquals(next - 4 + i, index(queue.peek()));
+                queue.remove();
+            }
+            assertEquals(1, queue.size());
+        }
+        assertEquals(next - 1, index(queue.peek()));
+        queue.remove();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.peek());
+        assertEquals(0, queue.getDroppedMessages());
+    }
+
+    @Test
+    public void offerCopiesTheMessage() {
+        UploadQueue queue = new UploadQueue(2, MESSAGE_BYTES);
+        ByteBuffer message = message(1);
+        assertTrue(queue.offer(message, false));
+        // The caller reuses its buffer right after.
+        message.putInt(0, 2);
+        assertEquals(0, message.position());
+        assertEquals(1, index(queue.peek()));
+    }
+
+    @Test
+    public void dropOldestSkipsKeptMessages() {
+        UploadQueue queue = new UploadQueue(4, MESSAGE_BYTES);
+        // Start mid-ring, so closing the gap wraps around.
+        queue.offer(message(-1), false);
+        queue.offer(message(-1), false);
+        queue.remove();
+        queue.remove();
+        queue.offer(message(0), true);
+        queue.offer(message(1), true);
+        queue.offer(message(2), false);
+        queue.offer(message(3), false);
+
+        assertTrue(queue.dropOldest());
+        assertEquals(1, queue.getDroppedMessages());
+        assertEquals(MESSAGE_BYTES, queue.getDroppedBytes());
+        assertTrue(queue.offer(message(4), false));
+        assertEquals(0, index(queue.peek()));
+        queue.remove();
+        assertEquals(1, index(queue.peek()));
+        queue.remove();
+        assertEquals(3, index(queue.peek()));
+        queue.remove();
+        assertEquals(4, index(queue.peek()));
+        queue.remove();
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void dropOldestFailsWhenEverythingIsKept() {
+        UploadQueue queue = new UploadQueue(2, MESSAGE_BYTES);
+        queue.offer(message(0), true);
+        queue.offer(message(1), true);
+        assertFalse(queue.dropOldest());
+        assertEquals(0, queue.getDroppedMessages());
+        queue.countDropped(MESSAGE_BYTES);
+        assertEquals(1, queue.getDroppedMessages());
+        assertEquals(MESSAGE_BYTES, queue.getDroppedBytes());
+        assertEquals(0, index(queue.peek()));
+    }
+
+    @Test
+    public void stallsAndDepthsAreRecorded() {
+        UploadQueue queue = new UploadQueue(4, MESSAGE_BYTES);
+        for (int i = 0; i < 3; i++) {
+            queue.offer(message(i), false);
+        }
+        assertEquals(3, queue.getDepths().getCount());
+        assertEquals(3, queue.getDepths().getMax());
+        assertEquals(0, queue.getStallMicros().getCount());
+        queue.remove();
+        queue.remove();
+        assertEquals(0, queue.getStallMicros().getCount());
+        queue.remove();
+        assertEquals(1, queue.getStallMicros().getCount());
+        // A new request forgets what was queued, which also ends the stall.
+        queue.offer(message(3), false);
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertEquals(2, queue.getStallMicros().getCount());
+    }
+
+    @Test
+    public void slowTransportGetsEveryChunkInOrder() throws Exception {
+        // Faster than the Assistant takes messages, but not faster than it takes audio once the
+        // messages have grown.
+        Turn turn = stream(UploadQueue.Policy.DROP_OLDEST, 5, 200, 2);
+        assertEquals(ConversePipeline.EndReason.STOPPED, turn.mEndReason);
+        assertEquals(200, turn.mChunks.size());
+        for (int i = 0; i < turn.mChunks.size(); i++) {
+            assertEquals(i, (int) turn.mChunks.get(i));
+        }
+        assertTrue("the transport was always ready", counter(turn, "upload_stalls") > 0);
+        assertEquals(0, counter(turn, "upload_dropped_messages"));
+    }
+
+    @Test
+    public void dropOldestLeavesGapsButKeepsTheFirstMessage() throws Exception {
+        Turn turn = stream(UploadQueue.Policy.DROP_OLDEST, 50, 600, 1);
+        assertEquals(ConversePipeline.EndReason.STOPPED, turn.mEndReason);
+        assertTrue(counter(turn, "upload_dropped_messages") > 0);
+        assertTrue(turn.mChunks.size() < 600);
+        assertEquals(0, (int) turn.mChunks.get(0));
+        for (int i = 1; i < turn.mChunks.size(); i++) {
+            assertTrue(turn.mChunks.get(i - 1) + " before " + turn.mChunks.get(i),
+                    turn.mChunks.get(i - 1) < turn.mChunks.get(i));
+        }
+        // The queue is flushed when the request is stopped.
+        assertEquals(599, (int) turn.mChunks.get(turn.mChunks.size() - 1));
+    }
+
+    @Test
+    public void endUtteranceStopsTheRequestWithoutGaps() throws Exception {
+        Turn turn = stream(UploadQueue.Policy.END_UTTERANCE, 50, 600, 1);
+        assertEquals(ConversePipeline.EndReason.UPLOAD_BACKED_UP, turn.mEndReason);
+        assertEquals(1, counter(turn, "upload_backpressure_ends"));
+        assertTrue(turn.mChunks.size() < 600);
+        for (int i = 0; i < turn.mChunks.size(); i++) {
+            assertEquals(i, (int) turn.mChunks.get(i));
+        }
+    }
+
+    /**
+     * What the Assistant received in one turn, and how the pipeline saw it.
+     */
+    private static class Turn {
+        final List<Integer> mChunks = new ArrayList<>();
+        volatile ConversePipeline.EndReason mEndReason;
+        String mCounters;
+    }
+
+    /**
+     * Stream {@code chunks} chunks, {@code chunkIntervalMs} apart, to an Assistant that takes
+     * {@code messageDelayMs} over every message, then stop the request unless the pipeline
+     * ended it.
+     */
+    private Turn stream(UploadQueue.Policy policy, long messageDelayMs, int chunks,
+            long chunkIntervalMs) throws IOException, InterruptedException {
+        final Turn turn = new Turn();
+        SlowAssistant assistant = new SlowAssistant(messageDelayMs, turn.mChunks);
+        mServer = InProcessServerBuilder.forName(SERVER_NAME).addService(assistant).build()
+                .start();
+        mChannelManager = new ChannelManager(InProcessChannelBuilder.forName(SERVER_NAME), null,
+                null);
+        TurnMetrics metrics = new TurnMetrics();
+        ConversePipeline pipeline = new ConversePipeline(mChannelManager, metrics, false,
+                AudioOutConfig.Encoding.LINEAR16, policy, new Listener() {
+                    @Override
+                    public void onRequestEnded(ConversePipeline.EndReason reason) {
+                        turn.mEndReason = reason;
+                    }
+                });
+
+        assertTrue(pipeline.startTurn());
+        ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < chunks && pipeline.streamAudio(fill(chunk, i)); i++) {
+            Thread.sleep(chunkIntervalMs);
+        }
+        pipeline.stopRequest();
+        assertTrue("the request was not completed",
+                assistant.mCompleted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        pipeline.updateCounters();
+        StringWriter counters = new StringWriter();
+        metrics.dump(new PrintWriter(counters));
+        turn.mCounters = counters.toString();
+        return turn;
+    }
+
+    /**
+     * Fill {@code chunk} with samples equal to {@code index}: a flat signal, which the voice
+     * activity detector never takes for trailing silence once it is loud enough to be speech.
+     */
+    private static ByteBuffer fill(ByteBuffer chunk, int index) {
+        chunk.clear();
+        while (chunk.hasRemaining()) {
+            chunk.putShort((short) index);
+        }
+        chunk.flip();
+        return chunk;
+    }
+
+    private static ByteBuffer message(int index) {
+        ByteBuffer message = ByteBuffer.allocate(MESSAGE_BYTES);
+        message.putInt(0, index);
+        return message;
+    }
+
+    private static int index(ByteBuffer message) {
+        return message.getInt(message.position());
+    }
+
+    private static long counter(Turn turn, String name) {
+        for (String line : turn.mCounters.split("\n")) {
+            if (line.startsWith(name + ": ")) {
+                return Long.parseLong(line.substring(name.length() + 2).trim());
+            }
+        }
+        throw new AssertionError(name + " not in " + turn.mCounters);
+    }
+
+    /**
+     * Takes {@code messageDelayMs} over every request message, during which in-process flow
+     * control keeps the client's transport not ready. Records the index of every chunk it
+     * receives and completes the call without an answer once the request is half-closed.
+     */
+    private static class SlowAssistant extends EmbeddedAssistantGrpc.EmbeddedAssistantImplBase {
+        final CountDownLatch mCompleted = new CountDownLatch(1);
+        private final long mMessageDelayMs;
+        private final List<Integer> mChunks;
+
+        SlowAssistant(long messageDelayMs, List<Integer> chunks) {
+            mMessageDelayMs = messageDelayMs;
+            mChunks = chunks;
+        }
+
+        @Override
+        public StreamObserver<ConverseRequest> converse(
+                final StreamObserver<ConverseResponse> responseObserver) {
+            return new StreamObserver<ConverseRequest>() {
+                @Override
+                public void onNext(ConverseRequest value) {
+                    if (value.getConverseRequestCase()
+                            != ConverseRequest.ConverseRequestCase.AUDIO_IN) {
+                        return;
+                    }
+                    ByteBuffer audio = value.getAudioIn().asReadOnlyByteBuffer()
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                    synchronized (mChunks) {
+                        for (int i = 0; i < audio.remaining(); i += CHUNK_BYTES) {
+                            mChunks.add((int) audio.getShort(audio.position() + i));
+                        }
+                    }
+                    try {
+                        Thread.sleep(mMessageDelayMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    mCompleted.countDown();
+                }
+
+                @Override
+                public void onCompleted() {
+                    responseObserver.onCompleted();
+                    mCompleted.countDown();
+                }
+            };
+        }
+    }
+
+    /**
+     * Ignores everything but the end of the request.
+     */
+    private abstract static class Listener implements ConversePipeline.Listener {
+        @Override
+        public void onTurnStarted(long turn) {
+        }
+
+        @Override
+        public void onRequestAudio(ByteBuffer audioData) {
+        }
+
+        @Override
+        public void onResult(ConverseResult result) {
+        }
+
+        @Override
+        public void onAudioOut(ByteBuffer audioData) {
+        }
+
+        @Override
+        public void onResponseError(String message) {
+        }
+
+        @Override
+        public void onResponseCompleted(boolean followOn) {
+        }
+
+        @Override
+        public void onCallFailed(long turn, Throwable t) {
+        }
+    }
+}
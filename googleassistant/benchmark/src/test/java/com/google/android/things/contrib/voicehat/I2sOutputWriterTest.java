@@ -0,0 +1,197 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.voicehat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the {@link I2sOutputWriter} against a simulated device that takes audio no faster than
+ * 48khz stereo plays it, like the I2S bus.
+ */
+public class I2sOutputWriterTest {
+    private static final int BYTES_PER_MS = 48 * 2 * 2;
+    private static final int BLOCK_MS = 20;
+    private static final int BLOCK_SIZE = BLOCK_MS * BYTES_PER_MS;
+    private static final int BLOCK_COUNT = 3;
+    private static final int SILENCE_SIZE = 50 * BYTES_PER_MS;
+    private static final int STREAM_BLOCKS = 20;
+    // Longer than the writer's idle poll, so a stream has ended by then.
+    private static final long END_OF_STREAM_MS = 300;
+    private static final byte AUDIO = 1;
+
+    private final SlowDevice mDevice = new SlowDevice();
+    private final I2sOutputWriter mWriter =
+            new I2sOutputWriter(mDevice, BLOCK_SIZE, BLOCK_COUNT, SILENCE_SIZE);
+
+    @After
+    public void tearDown() {
+        mWriter.stop();
+    }
+
+    @Test
+    public void wakeUpSilenceGoesOutBeforeTheFirstBlockAndTheCallbackInBetween()
+            throws InterruptedException {
+        mWriter.start();
+        // Let the writer block waiting for audio, as it does between responses.
+        Thread.sleep(50);
+        final CountDownLatch silenceWritten = new CountDownLatch(1);
+        mWriter.queueSilence(SILENCE_SIZE, new Runnable() {
+            @Override
+            public void run() {
+                mDevice.log("callback");
+                silenceWritten.countDown();
+            }
+        });
+        queueAudioBlock();
+        assertTrue(silenceWritten.await(1, TimeUnit.SECONDS));
+        Thread.sleep(2 * BLOCK_MS + 50);
+        assertEquals(Arrays.asList("silence " + SILENCE_SIZE, "callback", "audio " + BLOCK_SIZE),
+                mDevice.getLog());
+    }
+
+    @Test
+    public void wakeUpSilenceIsWrittenWithoutAudio() throws InterruptedException {
+        mWriter.start();
+        final CountDownLatch silenceWritten = new CountDownLatch(1);
+        mWriter.queueSilence(SILENCE_SIZE, new Runnable() {
+            @Override
+            public void run() {
+                silenceWritten.countDown();
+            }
+        });
+        assertTrue(silenceWritten.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("silence " + SILENCE_SIZE), mDevice.getLog());
+    }
+
+    @Test
+    public void writerThreadIsAnnouncedBeforeTheFirstWrite() throws InterruptedException {
+        mWriter.start();
+        queueAudioBlock();
+        Thread.sleep(BLOCK_MS + 50);
+        assertEquals(Arrays.asList("writer started", "audio " + BLOCK_SIZE),
+                mDevice.getFullLog());
+    }
+
+    @Test
+    public void producerAheadOfTheDeviceOverrunsButNeverUnderruns()
+            throws InterruptedException {
+        mWriter.start();
+        for (int i = 0; i < STREAM_BLOCKS; i++) {
+            queueAudioBlock();
+        }
+        Thread.sleep(BLOCK_COUNT * BLOCK_MS + END_OF_STREAM_MS);
+        assertEquals(STREAM_BLOCKS, mWriter.getBlocksWritten());
+        assertTrue(mWriter.getOverrunCount() > 0);
+        // Running out of audio at the end of the stream is not an underrun.
+        assertEquals(0, mWriter.getUnderrunCount());
+        assertTrue(mWriter.getAverageWriteNanos() >= TimeUnit.MILLISECONDS.toNanos(BLOCK_MS));
+    }
+
+    @Test
+    public void producerBehindTheDeviceUnderruns() throws InterruptedException {
+        mWriter.start();
+        // Every block leaves the device without audio for half a block.
+        for (int i = 0; i < STREAM_BLOCKS; i++) {
+            queueAudioBlock();
+            Thread.sleep(BLOCK_MS * 3 / 2);
+        }
+        Thread.sleep(END_OF_STREAM_MS);
+        assertEquals(STREAM_BLOCKS, mWriter.getBlocksWritten());
+        assertEquals(0, mWriter.getOverrunCount());
+        // Allow for a few blocks delayed by the scheduler so that two were queued together.
+        long underruns = mWriter.getUnderrunCount();
+        assertTrue(underruns + " underruns", underruns >= STREAM_BLOCKS - 4
+                && underruns <= STREAM_BLOCKS - 1);
+    }
+
+    private void queueAudioBlock() throws InterruptedException {
+        I2sOutputWriter.Block block = mWriter.dequeueFreeBlock();
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            block.getBuffer().put(AUDIO);
+        }
+        mWriter.queueBlock(block, BLOCK_SIZE);
+    }
+
+    /**
+     * Takes every write whole, in the time it takes to play, and logs what it was given:
+     * silence or audio, with consecutive writes of the same kind merged.
+     */
+    private static class SlowDevice implements I2sOutput {
+        private final List<String> mKinds = new ArrayList<>();
+        private final List<Integer> mSizes = new ArrayList<>();
+
+        @Override
+        public void onWriterStarted() {
+            log("writer started");
+        }
+
+        @Override
+        public int write(byte[] buffer, int offset, int size) {
+            String kind = buffer[offset] == AUDIO ? "audio" : "silence";
+            synchronized (this) {
+                int last = mKinds.size() - 1;
+                if (last >= 0 && mKinds.get(last).equals(kind)) {
+                    mSizes.set(last, mSizes.get(last) + size);
+                } else {
+                    mKinds.add(kind);
+                    mSizes.add(size);
+                }
+            }
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(1) * size / BYTES_PER_MS;
+                Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+            return size;
+        }
+
+        synchronized void log(String event) {
+            mKinds.add(event);
+            mSizes.add(null);
+        }
+
+        /**
+         * What was written and the callbacks in between, without the thread start.
+         */
+        List<String> getLog() {
+            List<String> log = getFullLog();
+            log.remove("writer started");
+            return log;
+        }
+
+        synchronized List<String> getFullLog() {
+            List<String> log = new ArrayList<>();
+            for (int i = 0; i < mKinds.size(); i++) {
+                log.add(mSizes.get(i) == null ? mKinds.get(i)
+                        : mKinds.get(i) + " " + mSizes.get(i));
+            }
+            return log;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.voicehat;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Feeds tones through the voice hat format conversion, configured like the driver, and checks
+ * its frequency response in both directions.
+ *
+ * Capture converts 48khz stereo to 16khz mono: tones in the passband must keep their level and
+ * tones above the new Nyquist frequency must not alias back in. Playback converts 16khz mono to
+ * 48khz stereo: tones must keep their level and their images must be suppressed.
+ */
+public class PcmConverterTest {
+    private static final int NATIVE_RATE = 48000;
+    private static final int CLIENT_RATE = 16000;
+    // Same buffering and filter length as the driver.
+    private static final int NATIVE_FRAMES = NATIVE_RATE / 20;
+    private static final int CLIENT_FRAMES = CLIENT_RATE / 20;
+    private static final int BASE_TAPS = 16;
+    private static final double AMPLITUDE = 16000;
+    private static final int STREAM_BUFFERS = 20;
+    // Output skipped while the filter fills, and the length measured after it. Half a second
+    // holds a whole number of periods of any even frequency, so tones and images separate.
+    private static final double SETTLE_SECONDS = 0.1;
+    private static final double MEASURE_SECONDS = 0.5;
+    private static final double PASSBAND_TOLERANCE_DB = 0.5;
+    private static final double MAX_IMAGE_DB = -75;
+
+    @Test
+    public void captureIsFlatUpTo3khz() {
+        for (int frequency : new int[] {100, 1000, 3000}) {
+            assertEquals(frequency + " hz", 0, captureGainDb(frequency), PASSBAND_TOLERANCE_DB);
+        }
+    }
+
+    @Test
+    public void captureRollsOffAbove6khz() {
+        assertTrue(captureGainDb(6000) >= -2);
+        assertTrue(captureGainDb(9000) <= -28);
+    }
+
+    @Test
+    public void captureDoesNotAliasAbove12khz() {
+        for (int frequency : new int[] {12500, 15000, 20000}) {
+            double gainDb = captureGainDb(frequency);
+            assertTrue(frequency + " hz: " + gainDb + " dB", gainDb <= -75);
+        }
+    }
+
+    @Test
+    public void playbackIsFlatWithoutImagesUpTo3khz() {
+        for (int frequency : new int[] {100, 1000, 3000}) {
+            double[] gainAndImagesDb = playbackGainAndImagesDb(frequency);
+            assertEquals(frequency + " hz", 0, gainAndImagesDb[0], PASSBAND_TOLERANCE_DB);
+            assertTrue(frequency + " hz images: " + gainAndImagesDb[1] + " dB",
+                    gainAndImagesDb[1] <= MAX_IMAGE_DB);
+        }
+        assertTrue(playbackGainAndImagesDb(6000)[0] >= -2);
+    }
+
+    @Test
+    public void playbackWritesTheSameSamplesToBothSides() {
+        PcmConverter converter = new PcmConverter(CLIENT_RATE, 1, NATIVE_RATE, 2, CLIENT_FRAMES,
+                BASE_TAPS);
+        short[] out = convert(converter, CLIENT_FRAMES, 1, 1000, CLIENT_RATE, 1);
+        for (int i = 0; i < out.length; i += 2) {
+            assertEquals("frame " + i / 2, out[i], out[i + 1]);
+        }
+    }
+
+    @Test
+    public void antiphaseStereoDownmixesToSilence() {
+        PcmConverter converter = new PcmConverter(NATIVE_RATE, 2, CLIENT_RATE, 1, NATIVE_FRAMES,
+                BASE_TAPS);
+        short[] out = convert(converter, NATIVE_FRAMES, 2, 1000, NATIVE_RATE, -1);
+        assertArrayEquals(new short[out.length], out);
+    }
+
+    /**
+     * Total output level relative to the input, so aliases count against stopband tones.
+     */
+    private static double captureGainDb(int frequency) {
+        PcmConverter converter = new PcmConverter(NATIVE_RATE, 2, CLIENT_RATE, 1, NATIVE_FRAMES,
+                BASE_TAPS);
+        short[] out = convert(converter, NATIVE_FRAMES, 2, frequency, NATIVE_RATE, 1);
+        int start = (int) (SETTLE_SECONDS * CLIENT_RATE);
+        int length = (int) (MEASURE_SECONDS * CLIENT_RATE);
+        double sum = 0;
+        for (int i = start; i < start + length; i++) {
+            sum += (double) out[i] * out[i];
+        }
+        return decibels(Math.sqrt(sum / length) / (AMPLITUDE / Math.sqrt(2)));
+    }
+
+    /**
+     * Level of the tone itself, and of everything else, relative to the input.
+     */
+    private static double[] playbackGainAndImagesDb(int frequency) {
+        PcmConverter converter = new PcmConverter(CLIENT_RATE, 1, NATIVE_RATE, 2, CLIENT_FRAMES,
+                BASE_TAPS);
+        short[] out = convert(converter, CLIENT_FRAMES, 1, frequency, CLIENT_RATE, 1);
+        int start = (int) (SETTLE_SECONDS * NATIVE_RATE);
+        int length = (int) (MEASURE_SECONDS * NATIVE_RATE);
+        double sin = 0;
+        double cos = 0;
+        double sum = 0;
+        for (int i = start; i < start + length; i++) {
+            short left = out[2 * i];
+            double phase = 2 * Math.PI * frequency * i / NATIVE_RATE;
+            sin += left * Math.sin(phase);
+            cos += left * Math.cos(phase);
+            sum += (double) left * left;
+        }
+        double amplitude = 2 * Math.hypot(sin, cos) / length;
+        double residual = Math.max(0, sum / length - amplitude * amplitude / 2);
+        return new double[] {
+                decibels(amplitude / AMPLITUDE),
+                decibels(Math.sqrt(residual) / (AMPLITUDE / Math.sqrt(2)))
+        };
+    }
+
+    /**
+     * Convert {@link #STREAM_BUFFERS} buffers of a tone, one driver buffer at a time, and
+     * return the output samples, interleaved if stereo.
+     *
+     * @param rightSign for stereo input, 1 to put the tone on both sides or -1 to invert the
+     *     right side.
+     */
+    private static short[] convert(PcmConverter converter, int framesPerBuffer,
+            int inputChannels, int frequency, int inputRate, int rightSign) {
+        ByteBuffer in = ByteBuffer.allocate(framesPerBuffer * converter.getInputFrameSize());
+        ByteBuffer out = ByteBuffer.allocate(
+                (converter.getMaxInputFrames() * 3 + 2) * converter.getOutputFrameSize());
+        int outputSamplesPerFrame = converter.getOutputFrameSize() / 2;
+        short[] result = new short[0];
+        int frame = 0;
+        for (int b = 0; b < STREAM_BUFFERS; b++) {
+            for (int i = 0; i < framesPerBuffer; i++, frame++) {
+                short sample = (short) Math.round(
+                        AMPLITUDE * Math.sin(2 * Math.PI * frequency * frame / inputRate));
+                putSample(in, i * inputChannels, sample);
+                if (inputChannels == 2) {
+                    putSample(in, i * 2 + 1, (short) (rightSign * sample));
+                }
+            }
+            int frames = converter.convert(in, framesPerBuffer, out);
+            int count = frames * outputSamplesPerFrame;
+            short[] grown = new short[result.length + count];
+            System.arraycopy(result, 0, grown, 0, result.length);
+            for (int i = 0; i < count; i++) {
+                grown[result.length + i] = (short) ((out.get(2 * i) & 0xff)
+                        | (out.get(2 * i + 1) << 8));
+            }
+            result = grown;
+        }
+        return result;
+    }
+
+    private static void putSample(ByteBuffer buffer, int index, short sample) {
+        buffer.put(2 * index, (byte) sample);
+        buffer.put(2 * index + 1, (byte) (sample >> 8));
+    }
+
+    private static double decibels(double ratio) {
+        return 20 * Math.log10(Math.max(ratio, 1e-10));
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.things.contrib.voicehat;
+
+/**
+ * Destination for audio written by {@link I2sOutputWriter}, normally the I2S device.
+ */
+public interface I2sOutput {
+    /**
+     * Called on the writer thread before the first write, so the output can raise its
+     * priority.
+     */
+    void onWriterStarted();
+
+    /**
+     * Write up to {@code size} bytes, blocking until the device accepts them.
+     *
+     * @return the number of bytes written, or a negative value on error.
+     */
+    int write(byte[] buffer, int offset, int size);
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.things.contrib.voicehat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Feeds an {@link I2sOutput} from a dedicated thread.
+ *
+ * The producer fills one of a few preallocated blocks and queues it, then goes on to the next
+ * one while the writer thread blocks on the device, so the framework's callback thread never
+ * waits on I2S unless every block is in use. Silence comes from one preallocated buffer. The
+ * writer counts underruns (the queue ran dry after a block and more audio came later), overruns
+ * (the producer had to wait for a free block), and how long blocks wait and take to write.
+ */
+public class I2sOutputWriter {
+    // A stream that leaves the queue empty for this long has ended rather than underrun.
+    private static final long IDLE_POLL_MS = 100;
+
+    /**
+     * One buffer of audio on its way to the device.
+     */
+    public static class Block {
+        final byte[] mData;
+        final ByteBuffer mBuffer;
+        int mSize;
+        long mQueuedNanos;
+
+        Block(int capacity) {
+            mData = new byte[capacity];
+            mBuffer = ByteBuffer.wrap(mData);
+        }
+
+        /**
+         * The block's storage, cleared and ready to be filled from position 0.
+         */
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+    }
+
+    private final I2sOutput mOutput;
+    private final ArrayBlockingQueue<Block> mFreeBlocks;
+    private final ArrayBlockingQueue<Block> mQueuedBlocks;
+    private final byte[] mSilence;
+    // Silence to write before the next block, and what to run once it is written.
+    private final Object mSilenceLock = new Object();
+    private int mPendingSilenceBytes;
+    private Runnable mSilenceCallback;
+    private final AtomicLong mUnderruns = new AtomicLong();
+    private final AtomicLong mOverruns = new AtomicLong();
+    private final AtomicLong mBlocksWritten = new AtomicLong();
+    private final AtomicLong mTotalWriteNanos = new AtomicLong();
+    private final AtomicLong mMaxWriteNanos = new AtomicLong();
+    private final AtomicLong mMaxQueueNanos = new AtomicLong();
+    private volatile boolean mRunning;
+    private Thread mWriterThread;
+
+    /**
+     * @param blockSize capacity of each block in bytes.
+     * @param blockCount number of blocks; 2 for double buffering, 3 for triple buffering.
+     * @param silenceSize size of the preallocated silence buffer in bytes.
+     */
+    public I2sOutputWriter(I2sOutput output, int blockSize, int blockCount, int silenceSize) {
+        mOutput = output;
+        mFreeBlocks = new ArrayBlockingQueue<>(blockCount);
+        mQueuedBlocks = new ArrayBlockingQueue<>(blockCount);
+        for (int i = 0; i < blockCount; i++) {
+            mFreeBlocks.add(new Block(blockSize));
+        }
+        mSilence = new byte[silenceSize];
+    }
+
+    public void start() {
+        mRunning = true;
+        mWriterThread = new Thread(mWriter, "i2sWriterThread");
+        mWriterThread.start();
+    }
+
+    public void stop() {
+        mRunning = false;
+        if (mWriterThread != null) {
+            mWriterThread.interrupt();
+            try {
+                mWriterThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mWriterThread = null;
+        }
+        mFreeBlocks.addAll(mQueuedBlocks);
+        mQueuedBlocks.clear();
+    }
+
+    /**
+     * Take a free block to fill, waiting for the writer to release one if necessary.
+     */
+    public Block dequeueFreeBlock() throws InterruptedException {
+        Block block = mFreeBlocks.poll();
+        if (block == null) {
+            mOverruns.incrementAndGet();
+            block = mFreeBlocks.take();
+        }
+        block.mBuffer.clear();
+        return block;
+    }
+
+    /**
+     * Queue the first {@code size} bytes of {@code block} for writing.
+     */
+    public void queueBlock(Block block, int size) {
+        block.mSize = size;
+        block.mQueuedNanos = System.nanoTime();
+        mQueuedBlocks.add(block);
+    }
+
+    /**
+     * Drop the blocks queued but not written yet, e.g. when playback is interrupted. The block
+     * being written, if any, still plays.
+     *
+     * @return the number of blocks dropped.
+     */
+    public int discardQueued() {
+        int dropped = 0;
+        Block block;
+        while ((block = mQueuedBlocks.poll()) != null) {
+            mFreeBlocks.add(block);
+            dropped++;
+        }
+        return dropped;
+    }
+
+    /**
+     * Write {@code size} bytes of silence ahead of the next queued block, or within
+     * {@link #IDLE_POLL_MS} if none comes, then run {@code onWritten} on the writer thread
+     * before that block is written. A callback still pending from an earlier call is replaced.
+     */
+    public void queueSilence(int size, Runnable onWritten) {
+        synchronized (mSilenceLock) {
+            mPendingSilenceBytes += size;
+            mSilenceCallback = onWritten;
+        }
+    }
+
+    public long getUnderrunCount() {
+        return mUnderruns.get();
+    }
+
+    public long getOverrunCount() {
+        return mOverruns.get();
+    }
+
+    public long getBlocksWritten() {
+        return mBlocksWritten.get();
+    }
+
+    /**
+     * Mean time the device took to accept a block, in nanoseconds.
+     */
+    public long getAverageWriteNanos() {
+        long blocks = mBlocksWritten.get();
+        return blocks == 0 ? 0 : mTotalWriteNanos.get() / blocks;
+    }
+
+    public long getMaxWriteNanos() {
+        return mMaxWriteNanos.get();
+    }
+
+    /**
+     * Longest time a block waited between being queued and being written, in nanoseconds.
+     */
+    public long getMaxQueueNanos() {
+        return mMaxQueueNanos.get();
+    }
+
+    private final Runnable mWriter = new Runnable() {
+        @Override
+        public void run() {
+            mOutput.onWriterStarted();
+            boolean streaming = false;
+            while (mRunning) {
+                Block block = mQueuedBlocks.poll();
+                boolean ranDry = false;
+                if (block == null) {
+                    // The device has nothing left after the block just written, if any.
+                    ranDry = streaming;
+                    try {
+                        block = mQueuedBlocks.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                // Silence queued meanwhile goes out first, so it always precedes the block.
+                writePendingSilence();
+                if (block == null) {
+                    // The stream ended; that is not an underrun.
+                    streaming = false;
+                    continue;
+                }
+                if (ranDry) {
+                    mUnderruns.incrementAndGet();
+                }
+                streaming = true;
+                long start = System.nanoTime();
+                updateMax(mMaxQueueNanos, start - block.mQueuedNanos);
+                writeFully(block.mData, block.mSize);
+                mFreeBlocks.add(block);
+                long writeNanos = System.nanoTime() - start;
+                mBlocksWritten.incrementAndGet();
+                mTotalWriteNanos.addAndGet(writeNanos);
+                updateMax(mMaxWriteNanos, writeNanos);
+            }
+        }
+    };
+
+    private void writePendingSilence() {
+        int silence;
+        Runnable callback;
+        synchronized (mSilenceLock) {
+            silence = mPendingSilenceBytes;
+            callback = mSilenceCallback;
+            mPendingSilenceBytes = 0;
+            mSilenceCallback = null;
+        }
+        while (silence > 0) {
+            int size = Math.min(silence, mSilence.length);
+            writeFully(mSilence, size);
+            silence -= size;
+        }
+        if (callback != null) {
+            callback.run();
+        }
+    }
+
+    private void writeFully(byte[] data, int size) {
+        int written = 0;
+        while (written < size) {
+            int result = mOutput.write(data, written, size - written);
+            if (result <= 0) {
+                // The output reports its own errors; drop the rest of the block.
+                break;
+            }
+            written += result;
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.voicehat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts little-endian 16-bit PCM between sample rates and between mono and stereo.
+ *
+ * Stereo to mono is downmixed before resampling and mono to stereo is duplicated after, so
+ * only the channels that are kept get filtered. All buffers are allocated up front for at most
+ * {@code maxInputFrames} input frames per call.
+ */
+public class PcmConverter {
+    private static final int BYTES_PER_SAMPLE = 2;
+
+    private final int mInputChannels;
+    private final int mOutputChannels;
+    private final int mMaxInputFrames;
+    private final PolyphaseResampler[] mResamplers;
+    private final short[][] mResamplerInput;
+    private final short[][] mResamplerOutput;
+
+    public PcmConverter(int inputRate, int inputChannels, int outputRate, int outputChannels,
+            int maxInputFrames, int baseTaps) {
+        if (inputChannels < 1 || inputChannels > 2 || outputChannels < 1 || outputChannels > 2) {
+            throw new IllegalArgumentException("only mono and stereo are supported");
+        }
+        mInputChannels = inputChannels;
+        mOutputChannels = outputChannels;
+        mMaxInputFrames = maxInputFrames;
+        int channels = Math.min(inputChannels, outputChannels);
+        mResamplers = new PolyphaseResampler[channels];
+        mResamplerInput = new short[channels][maxInputFrames];
+        mResamplerOutput = new short[channels][];
+        for (int c = 0; c < channels; c++) {
+            mResamplers[c] = new PolyphaseResampler(inputRate, outputRate, baseTaps);
+            // An upsampler may emit one frame more than the rate ratio suggests.
+            mResamplerOutput[c] = new short[(int) ((long) maxInputFrames * outputRate
+                    / inputRate) + 2];
+        }
+    }
+
+    public int getInputFrameSize() {
+        return mInputChannels * BYTES_PER_SAMPLE;
+    }
+
+    public int getOutputFrameSize() {
+        return mOutputChannels * BYTES_PER_SAMPLE;
+    }
+
+    public int getMaxInputFrames() {
+        return mMaxInputFrames;
+    }
+
+    /**
+     * Largest number of input frames, up to {@link #getMaxInputFrames()}, that converts to at
+     * most {@code outputFrames} frames.
+     */
+    public int getMaxInputFrames(int outputFrames) {
+        return Math.min(mMaxInputFrames, mResamplers[0].getMaxInputCount(outputFrames));
+    }
+
+    public void reset() {
+        for (PolyphaseResampler resampler : mResamplers) {
+            resampler.reset();
+        }
+    }
+
+    /**
+     * Convert {@code inputFrames} frames from {@code src}, starting at its position, and write
+     * the result to {@code dst} starting at its position. Neither position is changed.
+     *
+     * @return the number of frames written to {@code dst}.
+     */
+    public int convert(ByteBuffer src, int inputFrames, ByteBuffer dst) {
+        if (inputFrames > mMaxInputFrames) {
+            throw new IllegalArgumentException(inputFrames + " frames exceed the maximum of "
+                    + mMaxInputFrames);
+        }
+        int offset = src.position();
+        if (mInputChannels == 2 && mOutputChannels == 1) {
+            // Downmix: (L + R) / 2 never overflows 16 bits.
+            short[] mono = mResamplerInput[0];
+            for (int i = 0; i < inputFrames; i++) {
+                int index = offset + i * 4;
+                mono[i] = (short) ((readSample(src, index) + readSample(src, index + 2)) >> 1);
+            }
+        } else {
+            for (int c = 0; c < mResamplers.length; c++) {
+                short[] channel = mResamplerInput[c];
+                int stride = mInputChannels * BYTES_PER_SAMPLE;
+                int index = offset + c * BYTES_PER_SAMPLE;
+                for (int i = 0; i < inputFrames; i++) {
+                    channel[i] = readSample(src, index);
+                    index += stride;
+                }
+            }
+        }
+
+        int outputFrames = 0;
+        for (int c = 0; c < mResamplers.length; c++) {
+            outputFrames = mResamplers[c].process(mResamplerInput[c], 0, inputFrames,
+                    mResamplerOutput[c], 0);
+        }
+
+        int position = dst.position();
+        for (int i = 0; i < outputFrames; i++) {
+            for (int c = 0; c < mOutputChannels; c++) {
+                // Mono to stereo copies the single resampled channel to both sides.
+                short sample = mResamplerOutput[Math.min(c, mResamplers.length - 1)][i];
+                dst.put(position++, (byte) sample);
+                dst.put(position++, (byte) (sample >> 8));
+            }
+        }
+        return outputFrames;
+    }
+
+    private static short readSample(ByteBuffer buffer, int index) {
+        return (short) ((buffer.get(index) & 0xff) | (buffer.get(index + 1) << 8));
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017, The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.things.contrib.voicehat;
+
+import java.util.Arrays;
+
+/**
+ * Rational sample rate converter for one channel of 16-bit PCM.
+ *
+ * The rate ratio is reduced to L/M and a windowed-sinc low-pass filter is split into L
+ * polyphase branches, so each output sample costs one short dot product and samples that
+ * would be thrown away are never computed. Coefficients are Q15 with every branch normalized to
+ * unity gain, and the filter runs in integer arithmetic without allocating.
+ */
+public class PolyphaseResampler {
+    private static final int COEFFICIENT_BITS = 15;
+    private static final int COEFFICIENT_ONE = 1 << COEFFICIENT_BITS;
+    // Pass band edge relative to the lower of the two Nyquist frequencies.
+    private static final double PASS_BAND = 0.9;
+
+    private final int mUpFactor;
+    private final int mDownFactor;
+    private final int mTapsPerPhase;
+    // Branch p is stored at [p * taps, (p + 1) * taps), oldest tap first.
+    private final int[] mCoefficients;
+    // Input history, written twice so a branch always reads a contiguous run.
+    private final short[] mHistory;
+    private int mHistoryPosition;
+    private int mPhase;
+
+    /**
+     * @param baseTaps filter length per branch when not decimating; more taps give a sharper
+     *     cut-off. Decimating filters get proportionally more taps, so the transition band
+     *     stays the same relative to the output rate.
+     */
+    public PolyphaseResampler(int inputRate, int outputRate, int baseTaps) {
+        if (inputRate <= 0 || outputRate <= 0 || baseTaps <= 0) {
+            throw new IllegalArgumentException("invalid resampler parameters");
+        }
+        int gcd = gcd(inputRate, outputRate);
+        mUpFactor = outputRate / gcd;
+        mDownFactor = inputRate / gcd;
+        int tapsPerPhase = baseTaps * ((mDownFactor + mUpFactor - 1) / mUpFactor);
+        mTapsPerPhase = tapsPerPhase;
+        mCoefficients = new int[mUpFactor * tapsPerPhase];
+        mHistory = new short[tapsPerPhase * 2];
+        designFilter();
+    }
+
+    /**
+     * Forget the buffered input, e.g. between unrelated streams.
+     */
+    public void reset() {
+        Arrays.fill(mHistory, (short) 0);
+        mHistoryPosition = 0;
+        mPhase = 0;
+    }
+
+    /**
+     * Number of samples {@link #process} will produce from {@code inputCount} samples.
+     */
+    public int getOutputCount(int inputCount) {
+        int phase = mPhase;
+        int outputCount = 0;
+        for (int i = 0; i < inputCount; i++) {
+            while (phase < mUpFactor) {
+                outputCount++;
+                phase += mDownFactor;
+            }
+            phase -= mUpFactor;
+        }
+        return outputCount;
+    }
+
+    /**
+     * Largest number of input samples that produces at most {@code outputCount} samples.
+     */
+    public int getMaxInputCount(int outputCount) {
+        int phase = mPhase;
+        int produced = 0;
+        int inputCount = 0;
+        while (true) {
+            int outputsForNext = 0;
+            while (phase < mUpFactor) {
+                outputsForNext++;
+                phase += mDownFactor;
+            }
+            if (produced + outputsForNext > outputCount) {
+                return inputCount;
+            }
+            produced += outputsForNext;
+            phase -= mUpFactor;
+            inputCount++;
+        }
+    }
+
+    /**
+     * Resample {@code inCount} samples from {@code in} starting at {@code inOffset} into
+     * {@code out} starting at {@code outOffset}, which must have room for
+     * {@link #getOutputCount(int)} samples.
+     *
+     * @return the number of samples written to {@code out}.
+     */
+    public int process(short[] in, int inOffset, int inCount, short[] out, int outOffset) {
+        int taps = mTapsPerPhase;
+        int outIndex = outOffset;
+        for (int i = 0; i < inCount; i++) {
+            if (++mHistoryPosition == taps) {
+                mHistoryPosition = 0;
+            }
+            short sample = in[inOffset + i];
+            mHistory[mHistoryPosition] = sample;
+            mHistory[mHistoryPosition + taps] = sample;
+            while (mPhase < mUpFactor) {
+                int coefficient = mPhase * taps;
+                int history = mHistoryPosition + 1;
+                int accumulator = 1 << (COEFFICIENT_BITS - 1);
+                for (int t = 0; t < taps; t++) {
+                    accumulator += mHistory[history + t] * mCoefficients[coefficient + t];
+                }
+                out[outIndex++] = clamp(accumulator >> COEFFICIENT_BITS);
+                mPhase += mDownFactor;
+            }
+            mPhase -= mUpFactor;
+        }
+        return outIndex - outOffset;
+    }
+
+    private void designFilter() {
+        int length = mUpFactor * mTapsPerPhase;
+        // Cut-off in cycles per sample at the upsampled rate.
+        double cutoff = PASS_BAND * 0.5 / Math.max(mUpFactor, mDownFactor);
+        double center = (length - 1) / 2.0;
+        double[] prototype = new double[length];
+        for (int n = 0; n < length; n++) {
+            double x = n - center;
+            double sinc = x == 0 ? 2 * cutoff
+                    : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+            double window = length == 1 ? 1 : 0.42
+                    - 0.5 * Math.cos(2 * Math.PI * n / (length - 1))
+                    + 0.08 * Math.cos(4 * Math.PI * n / (length - 1));
+            prototype[n] = sinc * window;
+        }
+        for (int phase = 0; phase < mUpFactor; phase++) {
+            double sum = 0;
+            for (int k = 0; k < mTapsPerPhase; k++) {
+                sum += prototype[phase + k * mUpFactor];
+            }
+            int quantizedSum = 0;
+            int absoluteSum = 0;
+            int centerTap = 0;
+            int centerValue = Integer.MIN_VALUE;
+            for (int k = 0; k < mTapsPerPhase; k++) {
+                // Tap k multiplies the sample k steps back, which is stored (taps - 1 - k)
+                // places after the oldest one.
+                int index = phase * mTapsPerPhase + mTapsPerPhase - 1 - k;
+                int value = (int) Math.round(
+                        prototype[phase + k * mUpFactor] / sum * COEFFICIENT_ONE);
+                mCoefficients[index] = value;
+                quantizedSum += value;
+                absoluteSum += Math.abs(value);
+                if (value > centerValue) {
+                    centerTap = index;
+                    centerValue = value;
+                }
+            }
+            // Put the rounding error on the largest tap so every branch has exactly unity gain.
+            mCoefficients[centerTap] += COEFFICIENT_ONE - quantizedSum;
+            // The integer accumulator cannot overflow while the taps sum to less than 2 in
+            // absolute value.
+            if (absoluteSum >= 2 * COEFFICIENT_ONE) {
+                throw new IllegalArgumentException("filter gain too high for " + mTapsPerPhase
+                        + " taps per phase");
+            }
+        }
+    }
+
+    private static short clamp(int value) {
+        if (value > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        }
+        if (value < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) value;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -17,6 +17,7 @@
 package com.google.android.things.contrib.voicehat;
 import android.media.AudioDeviceInfo;
 import android.media.AudioFormat;
+import android.os.Process;
 import android.util.Log;
 
 import com.google.android.things.pio.Gpio;
@@ -29,12 +30,31 @@ import com.google.android.things.userdriver.UserDriverManager;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
+/**
+ * User driver for the AIY Voice Kit hat.
+ *
+ * The I2S bus always runs at its native 48khz stereo. Audio is converted to and from the format
+ * given to the constructor, which is what the framework sees, so apps can record and play 16khz
+ * mono directly.
+ */
 public class VoiceHatDriver implements AutoCloseable {
     private static final String TAG = "VoiceHatDriver";
-    // buffer of 0.05 sec of sample data at 48khz / 16bit.
-    private static final int BUFFER_SIZE = 96000 / 20;
-    // buffer of 0.5 sec of sample data at 48khz / 16bit.
-    private static final int FLUSH_SIZE = 48000;
+    private static final int NATIVE_SAMPLE_RATE = 48000;
+    private static final int NATIVE_CHANNELS = 2;
+    private static final int NATIVE_FRAME_SIZE = NATIVE_CHANNELS * 2;
+    private static final AudioFormat NATIVE_AUDIO_FORMAT =
+            new AudioFormat.Builder()
+                    .setChannelMask(AudioFormat.CHANNEL_IN_STEREO)
+                    .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                    .setSampleRate(NATIVE_SAMPLE_RATE)
+                    .build();
+    // buffer of 0.05 sec of sample data at the native rate.
+    private static final int NATIVE_BUFFER_FRAMES = NATIVE_SAMPLE_RATE / 20;
+    // buffer of 0.5 sec of sample data at the native rate.
+    private static final int FLUSH_SIZE = NATIVE_SAMPLE_RATE / 2 * NATIVE_FRAME_SIZE;
+    private static final int RESAMPLER_BASE_TAPS = 16;
+    // 0.05 sec output blocks; one is written to the bus while the others are filled.
+    private static final int OUTPUT_BLOCK_COUNT = 3;
     private I2sDevice mDevice;
     private Gpio mTriggerGpio;
     private AudioFormat mAudioFormat;
@@ -45,7 +65,7 @@ public class VoiceHatDriver implements AutoCloseable {
             throws IOException {
         PeripheralManagerService pioService = new PeripheralManagerService();
         try {
-            mDevice = pioService.openI2sDevice(i2sBus, audioFormat);
+            mDevice = pioService.openI2sDevice(i2sBus, NATIVE_AUDIO_FORMAT);
             mTriggerGpio = pioService.openGpio(triggerGpioPin);
             mTriggerGpio.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
             mAudioFormat = audioFormat;
@@ -82,15 +102,18 @@ public class VoiceHatDriver implements AutoCloseable {
         Log.d(TAG, "registering audio input driver");
         mAudioInputDriver = new AudioInputUserDriver();
         UserDriverManager.getManager().registerAudioInputDriver(
-                mAudioInputDriver, mAudioFormat, AudioDeviceInfo.TYPE_BUILTIN_MIC, BUFFER_SIZE
+                mAudioInputDriver, mAudioFormat, AudioDeviceInfo.TYPE_BUILTIN_MIC,
+                getClientBufferSize()
         );
     }
 
     public void registerAudioOutputDriver() {
         Log.d(TAG, "registering audio output driver");
         mAudioOutputDriver = new AudioOutputUserDriver();
+        mAudioOutputDriver.mWriter.start();
         UserDriverManager.getManager().registerAudioOutputDriver(
-                mAudioOutputDriver, mAudioFormat, AudioDeviceInfo.TYPE_BUILTIN_SPEAKER, BUFFER_SIZE
+                mAudioOutputDriver, mAudioFormat, AudioDeviceInfo.TYPE_BUILTIN_SPEAKER,
+                getClientBufferSize()
         );
     }
 
@@ -104,44 +127,118 @@ public class VoiceHatDriver implements AutoCloseable {
     public void unregisterAudioOutputDriver() {
         if (mAudioOutputDriver != null) {
             UserDriverManager.getManager().unregisterAudioOutputDriver(mAudioOutputDriver);
+            mAudioOutputDriver.mWriter.stop();
             mAudioOutputDriver = null;
         }
     }
 
-    private class AudioInputUserDriver extends AudioInputDriver {
+    /**
+     * Writer feeding the I2S output, for its underrun, overrun and latency counters, or null if
+     * the output driver is not registered.
+     */
+    public I2sOutputWriter getOutputWriter() {
+        return mAudioOutputDriver != null ? mAudioOutputDriver.mWriter : null;
+    }
+
+    // 0.05 sec of sample data in the client format, matching the native buffer.
+    private int getClientBufferSize() {
+        return mAudioFormat.getSampleRate() / 20 * mAudioFormat.getChannelCount() * 2;
+    }
 
+    private class AudioInputUserDriver extends AudioInputDriver {
+        private final PcmConverter mConverter = new PcmConverter(
+                NATIVE_SAMPLE_RATE, NATIVE_CHANNELS,
+                mAudioFormat.getSampleRate(), mAudioFormat.getChannelCount(),
+                NATIVE_BUFFER_FRAMES, RESAMPLER_BASE_TAPS);
+        private final byte[] mNativeBytes = new byte[NATIVE_BUFFER_FRAMES * NATIVE_FRAME_SIZE];
+        private final ByteBuffer mNativeBuffer = ByteBuffer.wrap(mNativeBytes);
 
         @Override
         public void onStandbyChanged(boolean b) {
             Log.d(TAG, "audio input driver standby changed:" + b);
+            mConverter.reset();
         }
 
         @Override
         public int read(ByteBuffer byteBuffer, int i) {
+            int outputFrames = i / mConverter.getOutputFrameSize();
+            int nativeSize = mConverter.getMaxInputFrames(outputFrames) * NATIVE_FRAME_SIZE;
+            int nativeRead = 0;
             try {
-                return mDevice.read(byteBuffer, i);
+                while (nativeRead < nativeSize) {
+                    int result = mDevice.read(mNativeBytes, nativeRead, nativeSize - nativeRead);
+                    if (result <= 0) {
+                        break;
+                    }
+                    nativeRead += result;
+                }
             } catch (IOException e) {
                 Log.e(TAG, "error during read operation:", e);
                 return -1;
             }
+            mNativeBuffer.clear();
+            return mConverter.convert(mNativeBuffer, nativeRead / NATIVE_FRAME_SIZE, byteBuffer)
+                    * mConverter.getOutputFrameSize();
         }
     }
 
     private class AudioOutputUserDriver extends AudioOutputDriver {
+        private final PcmConverter mConverter = new PcmConverter(
+                mAudioFormat.getSampleRate(), mAudioFormat.getChannelCount(),
+                NATIVE_SAMPLE_RATE, NATIVE_CHANNELS,
+                (int) ((long) NATIVE_BUFFER_FRAMES * mAudioFormat.getSampleRate()
+                        / NATIVE_SAMPLE_RATE), RESAMPLER_BASE_TAPS);
+        private final I2sOutputWriter mWriter = new I2sOutputWriter(new I2sOutput() {
+            @Override
+            public void onWriterStarted() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            }
+
+            @Override
+            public int write(byte[] buffer, int offset, int size) {
+                try {
+                    return mDevice.write(buffer, offset, size);
+                } catch (IOException e) {
+                    Log.e(TAG, "error during write operation:", e);
+                    return -1;
+                }
+            }
+        }, (NATIVE_BUFFER_FRAMES + 2) * NATIVE_FRAME_SIZE, OUTPUT_BLOCK_COUNT, FLUSH_SIZE);
+        // Guards mInStandby and the trigger, which the writer thread switches on.
+        private final Object mTriggerLock = new Object();
+        private boolean mInStandby = true;
+
+        // Run by the writer once the wake-up silence is on the bus, before any audio.
+        private final Runnable mTurnDacOn = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mTriggerLock) {
+                    if (!mInStandby) {
+                        Log.d(TAG, "turning voice hat DAC on");
+                        setTrigger(true);
+                    }
+                }
+            }
+        };
 
         @Override
         public void onStandbyChanged(boolean inStandby) {
             Log.d(TAG, "audio output driver standby changed:" + inStandby);
-            try {
+            synchronized (mTriggerLock) {
+                mInStandby = inStandby;
                 if (!inStandby) {
-                    Log.d(TAG, "turning voice hat DAC on");
-                    byte[] buf = new byte[FLUSH_SIZE];
-                    mDevice.write(buf, 0, buf.length);
-                    mTriggerGpio.setValue(true);
+                    mConverter.reset();
+                    mWriter.queueSilence(FLUSH_SIZE, mTurnDacOn);
                 } else {
                     Log.d(TAG, "turning voice hat DAC off");
-                    mTriggerGpio.setValue(false);
+                    setTrigger(false);
                 }
+            }
+        }
+
+        private void setTrigger(boolean on) {
+            try {
+                mTriggerGpio.setValue(on);
             } catch (IOException e) {
                 Log.e(TAG, "error during standby trigger:", e);
             }
@@ -149,12 +246,22 @@ public class VoiceHatDriver implements AutoCloseable {
 
         @Override
         public int write(ByteBuffer byteBuffer, int i) {
+            int frameSize = mConverter.getInputFrameSize();
+            int start = byteBuffer.position();
+            int remainingFrames = i / frameSize;
             try {
-                return mDevice.write(byteBuffer, i);
-            } catch (IOException e) {
-                Log.e(TAG, "error during write operation:", e);
-                return -1;
+                while (remainingFrames > 0) {
+                    int frames = Math.min(remainingFrames, mConverter.getMaxInputFrames());
+                    I2sOutputWriter.Block block = mWriter.dequeueFreeBlock();
+                    int nativeFrames = mConverter.convert(byteBuffer, frames, block.getBuffer());
+                    mWriter.queueBlock(block, nativeFrames * NATIVE_FRAME_SIZE);
+                    byteBuffer.position(byteBuffer.position() + frames * frameSize);
+                    remainingFrames -= frames;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            return byteBuffer.position() - start;
         }
     }
 }